@@ -0,0 +1,192 @@
+package com.mobiledevpro.locationservice;
+
+import com.google.android.gms.location.LocationRequest;
+
+/**
+ * Chooses sampling mode by recent fixes: rare updates while device stays still,
+ * frequent updates while it moves fast.
+ * <p>
+ * Doesn't depend on clock or Android framework, all decisions are made from fixes passed to onFix(),
+ * so the same trajectory always gives the same decisions.
+ */
+
+class AdaptiveSampler {
+    static final int MODE_STATIONARY = 0;
+    static final int MODE_MOVING = 1;
+    static final int MODE_FAST = 2;
+
+    static final double EARTH_RADIUS = 6371008.8; //meters
+
+    private boolean mIsEnabled = true;
+    private int mMode = MODE_MOVING;
+    private int mCandidateMode = MODE_MOVING;
+    private int mCandidateCount;
+
+    private boolean mHasLastFix;
+    private long mLastTime;
+    private double mLastLatitude;
+    private double mLastLongitude;
+    private double mSpeed; //smoothed, meters/second
+
+    //stationarity is checked against the anchor point
+    private long mAnchorTime;
+    private double mAnchorLatitude;
+    private double mAnchorLongitude;
+
+    /**
+     * Feed the next fix
+     *
+     * @param time      Fix time, milliseconds
+     * @param latitude  Latitude
+     * @param longitude Longitude
+     * @param accuracy  Accuracy, meters
+     * @param speed     Speed from provider, meters/second (0 if unknown)
+     * @return True - sampling mode was changed
+     */
+    boolean onFix(long time, double latitude, double longitude, float accuracy, float speed) {
+        if (!mHasLastFix) {
+            mHasLastFix = true;
+            mLastTime = time;
+            mLastLatitude = latitude;
+            mLastLongitude = longitude;
+            resetAnchor(time, latitude, longitude);
+            return false;
+        }
+
+        long elapsed = time - mLastTime;
+        //old or duplicated fix (e.g. last known location), nothing to estimate by
+        if (elapsed <= 0) return false;
+
+        double distance = distance(mLastLatitude, mLastLongitude, latitude, longitude);
+        double fixSpeed = speed > 0 ? speed : distance * 1000 / elapsed;
+        mSpeed = mSpeed + Constants.ADAPTIVE_SPEED_SMOOTHING * (fixSpeed - mSpeed);
+
+        mLastTime = time;
+        mLastLatitude = latitude;
+        mLastLongitude = longitude;
+
+        //device is still while it stays within radius around anchor (but not less than fix accuracy)
+        double radius = Math.max(Constants.ADAPTIVE_STATIONARY_RADIUS, accuracy);
+        boolean isStationary = false;
+        if (distance(mAnchorLatitude, mAnchorLongitude, latitude, longitude) > radius) {
+            resetAnchor(time, latitude, longitude);
+        } else {
+            isStationary = time - mAnchorTime >= Constants.ADAPTIVE_STATIONARY_TIME;
+        }
+
+        int mode;
+        if (isStationary) {
+            mode = MODE_STATIONARY;
+        } else if (mSpeed >= Constants.ADAPTIVE_FAST_SPEED) {
+            mode = MODE_FAST;
+        } else {
+            mode = MODE_MOVING;
+        }
+        return switchMode(mode);
+    }
+
+    /**
+     * Turn adaptive sampling on/off (off - request is not adjusted, mode is MODE_MOVING)
+     *
+     * @param isEnabled True - adaptive sampling is allowed by all clients
+     * @return True - sampling mode was changed
+     */
+    boolean setEnabled(boolean isEnabled) {
+        mIsEnabled = isEnabled;
+        if (isEnabled || mMode == MODE_MOVING) return false;
+        mMode = MODE_MOVING;
+        mCandidateMode = MODE_MOVING;
+        mCandidateCount = 0;
+        return true;
+    }
+
+    int getMode() {
+        return mMode;
+    }
+
+    /**
+     * Adjust merged request for the current mode
+     *
+     * @param request Merged request
+     */
+    void adjustRequest(LocationRequest request) {
+        request.setInterval(scaleInterval(request.getInterval(), request.getFastestInterval()));
+        switch (mMode) {
+            case MODE_STATIONARY:
+                //don't keep GPS on while device stays still
+                request.setPriority(Math.max(request.getPriority(), LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY));
+                break;
+            case MODE_FAST:
+                request.setFastestInterval(Math.min(request.getFastestInterval(), request.getInterval()));
+                break;
+            default:
+                //keep as is
+        }
+    }
+
+    /**
+     * Scale interval for the current mode within bounds
+     *
+     * @param interval        Interval requested by client(s), milliseconds
+     * @param fastestInterval Fastest interval client(s) can handle, milliseconds
+     * @return Interval to use
+     */
+    long scaleInterval(long interval, long fastestInterval) {
+        switch (mMode) {
+            case MODE_STATIONARY:
+                return Math.max(interval, Math.min(interval * Constants.ADAPTIVE_STATIONARY_FACTOR, Constants.ADAPTIVE_INTERVAL_MAX));
+            case MODE_FAST:
+                long fastInterval = Math.max(interval / Constants.ADAPTIVE_FAST_FACTOR, Constants.ADAPTIVE_INTERVAL_MIN);
+                return Math.min(interval, Math.max(fastInterval, fastestInterval));
+            default:
+                return interval;
+        }
+    }
+
+    /**
+     * Switch mode if the same mode was chosen several times in a row
+     *
+     * @param mode Chosen mode
+     * @return True - mode was changed
+     */
+    private boolean switchMode(int mode) {
+        if (!mIsEnabled) return false;
+
+        if (mode == mMode) {
+            mCandidateCount = 0;
+            return false;
+        }
+
+        if (mode != mCandidateMode) {
+            mCandidateMode = mode;
+            mCandidateCount = 0;
+        }
+        mCandidateCount++;
+
+        //leave stationary mode at once, device started moving and we need fixes now
+        if (mMode != MODE_STATIONARY && mCandidateCount < Constants.ADAPTIVE_MODE_SWITCH_FIXES) return false;
+
+        mMode = mode;
+        mCandidateCount = 0;
+        return true;
+    }
+
+    private void resetAnchor(long time, double latitude, double longitude) {
+        mAnchorTime = time;
+        mAnchorLatitude = latitude;
+        mAnchorLongitude = longitude;
+    }
+
+    /**
+     * Haversine distance
+     *
+     * @return Meters
+     */
+    static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
@@ -0,0 +1,330 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Addresses of geohash cells in front of slow geocoder: positions a few meters apart share one lookup.
+ * <p>
+ * Cache is bounded (the least recently used cell is evicted) and entries expire after ADDRESS_CACHE_TTL,
+ * cells without address after ADDRESS_CACHE_EMPTY_TTL. Lookups of the same cell which come while
+ * it's resolved wait for that one geocoder call. Geocoder is called and cache is saved on its own thread,
+ * so neither blocks the service worker.
+ */
+
+class AddressCache {
+    static final int MAGIC = 0x4C534143; //"LSAC"
+    static final int VERSION = 1;
+
+    private static final int MSG_LOAD = 1;
+    private static final int MSG_RESOLVE = 2;
+    private static final int MSG_SAVE = 3;
+
+    interface Listener {
+        /**
+         * Called on cache thread, or on the caller's thread when address is in cache
+         *
+         * @param subscriber Client who asked
+         * @param latitude   Position from the request
+         * @param longitude  Position from the request
+         * @param address    Address or null if there is no one (or geocoder failed)
+         */
+        void onAddressResolved(LocationSubscriber subscriber, double latitude, double longitude, String address);
+    }
+
+    private static class Entry {
+        final String address;
+        final long time; //UTC milliseconds when resolved
+
+        Entry(String address, long time) {
+            this.address = address;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Least recently used entries are evicted above ADDRESS_CACHE_SIZE
+     */
+    private static class EntryMap extends LinkedHashMap<Long, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        EntryMap() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+            return size() > Constants.ADDRESS_CACHE_SIZE;
+        }
+    }
+
+    private static class Waiter {
+        final LocationSubscriber subscriber;
+        final double latitude;
+        final double longitude;
+
+        Waiter(LocationSubscriber subscriber, double latitude, double longitude) {
+            this.subscriber = subscriber;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+
+    private final File mFile;
+    private final AddressProvider mProvider;
+    private final Listener mListener;
+    private final PipelineStats mStats;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    //guarded by mEntries
+    private final LinkedHashMap<Long, Entry> mEntries = new EntryMap();
+    private final Map<Long, List<Waiter>> mPending = new HashMap<>();
+    private int mUnsaved;
+
+    /**
+     * Handles messages on cache thread
+     */
+    private final Handler.Callback mHandlerCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_LOAD:
+                    load();
+                    break;
+                case MSG_RESOLVE:
+                    resolve((Long) msg.obj);
+                    break;
+                case MSG_SAVE:
+                    save();
+                    break;
+                default:
+                    return false;
+            }
+            return true;
+        }
+    };
+
+    /**
+     * @param file     File where cache is kept between service runs
+     * @param provider Geocoder
+     * @param listener Receiver of addresses
+     * @param stats    Service counters
+     */
+    AddressCache(File file, AddressProvider provider, Listener listener, PipelineStats stats) {
+        mFile = file;
+        mProvider = provider;
+        mListener = listener;
+        mStats = stats;
+        mThread = new HandlerThread("LocationServiceGeocoder", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper(), mHandlerCallback);
+        mHandler.sendEmptyMessage(MSG_LOAD);
+    }
+
+    /**
+     * Find address of the cell which contains position. Address is sent to listener at once if it's in cache,
+     * otherwise when geocoder resolves the cell center.
+     *
+     * @param subscriber Client who asks
+     * @param latitude   Degrees
+     * @param longitude  Degrees
+     * @param precision  Geohash length, 1..GeoHash.MAX_PRECISION
+     */
+    void lookup(LocationSubscriber subscriber, double latitude, double longitude, int precision) {
+        long cell = GeoHash.encode(latitude, longitude, Math.max(1, Math.min(GeoHash.MAX_PRECISION, precision)));
+        String address;
+        synchronized (mEntries) {
+            Entry entry = get(cell);
+            if (entry == null) {
+                List<Waiter> waiters = mPending.get(cell);
+                boolean isCoalesced = waiters != null;
+                if (!isCoalesced) {
+                    waiters = new ArrayList<>(1);
+                    mPending.put(cell, waiters);
+                    mHandler.sendMessage(mHandler.obtainMessage(MSG_RESOLVE, cell));
+                }
+                waiters.add(new Waiter(subscriber, latitude, longitude));
+                mStats.onAddressLookup(false, isCoalesced);
+                return;
+            }
+            address = entry.address;
+        }
+        mStats.onAddressLookup(true, false);
+        mListener.onAddressResolved(subscriber, latitude, longitude, address);
+    }
+
+    /**
+     * Save cache and stop the thread, pending lookups are dropped
+     */
+    void close() {
+        mHandler.removeMessages(MSG_RESOLVE);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                save();
+                mThread.quit();
+            }
+        });
+    }
+
+    /**
+     * Should be called under lock of mEntries
+     *
+     * @return Entry which isn't expired or null
+     */
+    private Entry get(long cell) {
+        Entry entry = mEntries.get(cell);
+        if (entry == null) return null;
+        long ttl = entry.address != null ? Constants.ADDRESS_CACHE_TTL : Constants.ADDRESS_CACHE_EMPTY_TTL;
+        if (System.currentTimeMillis() - entry.time < ttl) return entry;
+        mEntries.remove(cell);
+        return null;
+    }
+
+    /**
+     * Call geocoder for the cell center and answer everyone who waits for the cell. Called on cache thread.
+     */
+    private void resolve(long cell) {
+        String address = null;
+        boolean isCached;
+        synchronized (mEntries) {
+            //cell may be loaded from file after the lookup
+            Entry entry = get(cell);
+            isCached = entry != null;
+            if (isCached) address = entry.address;
+        }
+        boolean isResolved = false;
+        if (!isCached) {
+            try {
+                address = mProvider.getAddress(GeoHash.getLatitude(cell), GeoHash.getLongitude(cell));
+                isResolved = true;
+            } catch (IOException e) {
+                //not cached, the next lookup tries again
+                Log.e(Constants.LOG_TAG_ERROR, "AddressCache.resolve: EXCEPTION - " + e.getLocalizedMessage(), e);
+            }
+            mStats.onGeocoderCall(isResolved);
+        }
+
+        List<Waiter> waiters;
+        synchronized (mEntries) {
+            if (isResolved) {
+                mEntries.put(cell, new Entry(address, System.currentTimeMillis()));
+                mUnsaved++;
+            }
+            waiters = mPending.remove(cell);
+        }
+        if (waiters != null) {
+            for (Waiter waiter : waiters) {
+                mListener.onAddressResolved(waiter.subscriber, waiter.latitude, waiter.longitude, address);
+            }
+        }
+        if (mUnsaved >= Constants.ADDRESS_CACHE_SAVE_ENTRIES && !mHandler.hasMessages(MSG_SAVE)) {
+            mHandler.sendEmptyMessageDelayed(MSG_SAVE, Constants.ADDRESS_CACHE_SAVE_DELAY);
+        }
+    }
+
+    /**
+     * Read entries saved by the previous run. Called on cache thread.
+     */
+    private void load() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.e(Constants.LOG_TAG_ERROR, "AddressCache.load(): unsupported file, ignored");
+                return;
+            }
+            int count = in.readInt();
+            long now = System.currentTimeMillis();
+            synchronized (mEntries) {
+                //the file is ordered from least to most recently used, so the order is restored
+                for (int i = 0; i < count; i++) {
+                    long cell = in.readLong();
+                    long time = in.readLong();
+                    String address = in.readBoolean() ? in.readUTF() : null;
+                    if (time <= now && !mEntries.containsKey(cell)) {
+                        mEntries.put(cell, new Entry(address, time));
+                    }
+                }
+            }
+        } catch (FileNotFoundException e) {
+            //the first run
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "AddressCache.load: EXCEPTION - " + e.getLocalizedMessage(), e);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write entries to temporary file and replace the old one with it, so the file is never torn.
+     * Called on cache thread.
+     */
+    private void save() {
+        long[] cells;
+        Entry[] entries;
+        synchronized (mEntries) {
+            if (mUnsaved == 0) return;
+            cells = new long[mEntries.size()];
+            entries = new Entry[mEntries.size()];
+            int i = 0;
+            for (Map.Entry<Long, Entry> entry : mEntries.entrySet()) {
+                cells[i] = entry.getKey();
+                entries[i] = entry.getValue();
+                i++;
+            }
+            mUnsaved = 0;
+        }
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(cells.length);
+            for (int i = 0; i < cells.length; i++) {
+                out.writeLong(cells[i]);
+                out.writeLong(entries[i].time);
+                out.writeBoolean(entries[i].address != null);
+                if (entries[i].address != null) out.writeUTF(entries[i].address);
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(mFile)) throw new IOException("Can't rename " + tmpFile);
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "AddressCache.save: EXCEPTION - " + e.getLocalizedMessage(), e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //nothing to do
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.mobiledevpro.locationservice;
+
+import java.io.IOException;
+
+/**
+ * Source of addresses used by AddressCache, it's called on the cache thread and may block
+ */
+
+interface AddressProvider {
+
+    /**
+     * @param latitude  Degrees
+     * @param longitude Degrees
+     * @return Address line or null if there is no address for the position
+     * @throws IOException Network or service error, result isn't cached
+     */
+    String getAddress(double latitude, double longitude) throws IOException;
+}
@@ -0,0 +1,285 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sends queued events to clients in parallel, so slow or dead client doesn't delay the others.
+ * Remote clients are drained by dispatcher threads, in-process clients on their callbacks' handler.
+ * <p>
+ * Remote callback which doesn't return in DISPATCH_DELIVERY_TIMEOUT holds its thread until the binder dies,
+ * so the client is dropped and the pool gets a thread in place of the stuck one.
+ */
+
+class CallbackDispatcher {
+
+    interface Listener {
+        /**
+         * Client must be unregistered (dead binder or queue overflow with disconnect policy)
+         *
+         * @param subscriber Client's state
+         */
+        void onSubscriberFailed(LocationSubscriber subscriber);
+    }
+
+    private final Listener mListener;
+    private final FixRing mFixRing;
+    private final FixRing mSmoothedFixRing;
+    private final PipelineStats mStats;
+    private final ThreadPoolExecutor mExecutor;
+    //clients who didn't get a place in executor queue, scheduled when a drain finishes
+    private final ConcurrentLinkedQueue<LocationSubscriber> mPending = new ConcurrentLinkedQueue<>();
+    //remote clients being drained now, a slot per dispatcher thread
+    private final AtomicReferenceArray<LocationSubscriber> mDraining =
+            new AtomicReferenceArray<>(Constants.DISPATCH_THREAD_COUNT_MAX);
+    private volatile long mNextWatchdogCheck; //SystemClock.uptimeMillis()
+    //guarded by mExecutor, threads which are still in callbacks of dropped clients
+    private int mStuckThreadCount;
+
+    CallbackDispatcher(Listener listener, FixRing fixRing, FixRing smoothedFixRing, PipelineStats stats) {
+        mListener = listener;
+        mFixRing = fixRing;
+        mSmoothedFixRing = smoothedFixRing;
+        mStats = stats;
+        //every subscriber is queued to executor not more than once at the same time,
+        //so the queue is filled only when there are more clients than its capacity
+        mExecutor = new ThreadPoolExecutor(
+                Constants.DISPATCH_THREAD_COUNT,
+                Constants.DISPATCH_THREAD_COUNT,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Constants.DISPATCH_QUEUE_CAPACITY),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(@NonNull final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "LocationServiceDispatcher-" + mCount.incrementAndGet());
+                    }
+                },
+                //caller is the service worker, it must never run a drain (and wait for a slow client) itself
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+    }
+
+    /**
+     * Put event to client's queue and schedule sending
+     *
+     * @param subscriber Client's state
+     * @param event      Event
+     */
+    void dispatch(LocationSubscriber subscriber, ClientEvent event) {
+        onEnqueued(subscriber, subscriber.enqueue(event));
+    }
+
+    /**
+     * Put fix to client's queue and schedule sending, doesn't allocate
+     *
+     * @param subscriber Client's state
+     * @param seq        Sequence number of fix in client's FixRing (raw or smoothed)
+     */
+    void dispatchFix(LocationSubscriber subscriber, long seq) {
+        onEnqueued(subscriber, subscriber.enqueueFix(seq));
+    }
+
+    /**
+     * Tell client who reads shared fix ring about new fixes, doesn't allocate
+     *
+     * @param subscriber Client's state
+     */
+    void dispatchSharedFixesAvailable(LocationSubscriber subscriber) {
+        onEnqueued(subscriber, subscriber.enqueueSharedFixesAvailable());
+    }
+
+    /**
+     * @param isSmoothed True - ring of fixes passed Kalman filter
+     * @return Ring of fixes
+     */
+    FixRing getFixRing(boolean isSmoothed) {
+        return isSmoothed ? mSmoothedFixRing : mFixRing;
+    }
+
+    private void onEnqueued(LocationSubscriber subscriber, int result) {
+        checkStuckDrains();
+        switch (result) {
+            case LocationSubscriber.ENQUEUE_SCHEDULE:
+                if (!mPending.isEmpty()) schedulePending();
+                schedule(subscriber);
+                break;
+            case LocationSubscriber.ENQUEUE_DISCONNECT:
+                mListener.onSubscriberFailed(subscriber);
+                break;
+            default:
+                //already scheduled or closed
+        }
+    }
+
+    /**
+     * Called by subscriber when event was delivered
+     *
+     * @param latency Nanoseconds since fix was received, 0 - event isn't a fix
+     * @param fixTime UTC time of the fix, 0 - event isn't a fix
+     */
+    void onDelivered(long latency, long fixTime) {
+        mStats.onEventDelivered(latency, fixTime);
+    }
+
+    /**
+     * Called by subscriber when fixes were dropped from its queue
+     *
+     * @param count Count of fixes
+     */
+    void onFixesDropped(int count) {
+        mStats.onFixesDropped(count);
+    }
+
+    /**
+     * Called by subscriber when event can't be delivered
+     *
+     * @param subscriber Client's state
+     */
+    void onDeliveryFailed(LocationSubscriber subscriber) {
+        mStats.onRemoteException();
+        mListener.onSubscriberFailed(subscriber);
+    }
+
+    /**
+     * Called by subscriber which has more events after its drain limit was reached
+     *
+     * @param subscriber Client's state
+     */
+    void reschedule(LocationSubscriber subscriber) {
+        schedule(subscriber);
+    }
+
+    /**
+     * Called by remote subscriber when its drain task starts on dispatcher thread, doesn't allocate
+     *
+     * @param subscriber Client's state
+     * @return Slot to pass to onDrainFinished(), -1 - no free slot
+     */
+    int onDrainStarted(LocationSubscriber subscriber) {
+        //there are not more drains at the same time than threads, so a slot is always found
+        for (int i = 0; i < mDraining.length(); i++) {
+            if (mDraining.compareAndSet(i, null, subscriber)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Called by subscriber when its drain task returns, a waiting client takes the freed place
+     *
+     * @param subscriber Client's state
+     * @param slot       Slot returned by onDrainStarted(), -1 - none (in-process client)
+     */
+    void onDrainFinished(LocationSubscriber subscriber, int slot) {
+        if (slot >= 0) {
+            //under the same lock as abandoning, so the stuck thread is counted and released exactly once
+            synchronized (mExecutor) {
+                mDraining.set(slot, null);
+                if (subscriber.isAbandoned()) {
+                    //the stuck callback returned at last, its thread isn't needed over the usual count any more
+                    mStuckThreadCount--;
+                    resizePool();
+                }
+            }
+        }
+        schedulePending();
+    }
+
+    private void schedulePending() {
+        LocationSubscriber subscriber = mPending.poll();
+        if (subscriber != null) schedule(subscriber);
+    }
+
+    /**
+     * Drop remote clients whose callback doesn't return in DISPATCH_DELIVERY_TIMEOUT,
+     * checked not more often than DISPATCH_WATCHDOG_INTERVAL when events are dispatched.
+     * Doesn't allocate.
+     */
+    private void checkStuckDrains() {
+        long now = SystemClock.uptimeMillis();
+        if (now < mNextWatchdogCheck) return;
+        mNextWatchdogCheck = now + Constants.DISPATCH_WATCHDOG_INTERVAL;
+
+        for (int i = 0; i < mDraining.length(); i++) {
+            LocationSubscriber subscriber = mDraining.get(i);
+            if (subscriber == null || !subscriber.isStuck(now)) continue;
+            synchronized (mExecutor) {
+                //drain may have returned meanwhile
+                if (mDraining.get(i) != subscriber || !subscriber.abandon()) continue;
+                //binder call can't be interrupted, the thread stays in it until the client returns or dies
+                mStuckThreadCount++;
+                resizePool();
+            }
+            Log.e(Constants.LOG_TAG_ERROR, "CallbackDispatcher.checkStuckDrains: client doesn't return from callback, it's disconnected");
+            mStats.onRemoteException();
+            mListener.onSubscriberFailed(subscriber);
+        }
+    }
+
+    /**
+     * Should be called under lock of mExecutor
+     */
+    private void resizePool() {
+        if (mExecutor.isShutdown()) return;
+        int size = Math.min(Constants.DISPATCH_THREAD_COUNT + mStuckThreadCount, Constants.DISPATCH_THREAD_COUNT_MAX);
+        if (size > mExecutor.getMaximumPoolSize()) {
+            //new core threads are started for queued drains at once
+            mExecutor.setMaximumPoolSize(size);
+            mExecutor.setCorePoolSize(size);
+        } else if (size < mExecutor.getCorePoolSize()) {
+            //extra threads finish when they are idle
+            mExecutor.setCorePoolSize(size);
+            mExecutor.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * @return Count of dispatcher threads which are still in callbacks of dropped clients
+     */
+    int getStuckThreadCount() {
+        synchronized (mExecutor) {
+            return mStuckThreadCount;
+        }
+    }
+
+    private void schedule(LocationSubscriber subscriber) {
+        Handler handler = subscriber.getLocalHandler();
+        if (handler != null) {
+            //in-process client gets callbacks on its own thread (main by default), its queue is drained there;
+            //looper has quit - client is gone
+            if (!handler.post(subscriber.getDrainTask())) mListener.onSubscriberFailed(subscriber);
+            return;
+        }
+        try {
+            mExecutor.execute(subscriber.getDrainTask());
+        } catch (RejectedExecutionException e) {
+            //queue is full (more clients are waiting than its capacity), subscriber stays scheduled
+            //and waits here, so its events aren't lost
+            if (!mExecutor.isShutdown()) mPending.offer(subscriber);
+        }
+    }
+
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+}
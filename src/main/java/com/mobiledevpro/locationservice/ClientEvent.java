@@ -0,0 +1,276 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.RemoteException;
+
+import java.util.List;
+
+/**
+ * Event waiting in client's queue for sending
+ */
+
+abstract class ClientEvent {
+
+    /**
+     * @return SystemClock.elapsedRealtimeNanos() when the service got the fix, 0 - event isn't a fix
+     */
+    long getSourceNanos() {
+        return 0;
+    }
+
+    /**
+     * @return UTC time of the newest fix, 0 - event isn't a fix
+     */
+    long getFixTime() {
+        return 0;
+    }
+
+    /**
+     * @return Count of fixes in this event
+     */
+    int getFixCount() {
+        return 0;
+    }
+
+    /**
+     * Send event to client
+     *
+     * @param callbacks Client's callbacks
+     * @throws RemoteException
+     */
+    abstract void deliver(ILocationServiceCallbacks callbacks) throws RemoteException;
+
+    /**
+     * @return True - event holds location data and may be dropped or conflated on queue overflow
+     */
+    boolean isLocation() {
+        return false;
+    }
+
+    /**
+     * Google Api connection error
+     */
+    static class ConnectionFailed extends ClientEvent {
+        private final GoogleApiError error;
+
+        ConnectionFailed(GoogleApiError error) {
+            this.error = error;
+        }
+
+        @Override
+        void deliver(ILocationServiceCallbacks callbacks) throws RemoteException {
+            callbacks.onGoogleApiConnectionFailed(error.getCode(), error.getMessage());
+        }
+    }
+
+    /**
+     * Location settings state
+     */
+    static class SettingsState extends ClientEvent {
+        private final LocationSettings settings;
+
+        SettingsState(LocationSettings settings) {
+            this.settings = settings;
+        }
+
+        @Override
+        void deliver(ILocationServiceCallbacks callbacks) throws RemoteException {
+            callbacks.onGetLocationSettingsState(settings.isNetworkLocationOn(), settings.isGpsOn());
+        }
+    }
+
+    /**
+     * Adaptive sampling mode
+     */
+    static class SamplingModeChanged extends ClientEvent {
+        private final int mode;
+
+        SamplingModeChanged(int mode) {
+            this.mode = mode;
+        }
+
+        @Override
+        void deliver(ILocationServiceCallbacks callbacks) throws RemoteException {
+            callbacks.onSamplingModeChanged(mode);
+        }
+    }
+
+    /**
+     * Provider state
+     */
+    static class ProviderStateChanged extends ClientEvent {
+        private final int state;
+
+        ProviderStateChanged(int state) {
+            this.state = state;
+        }
+
+        @Override
+        void deliver(ILocationServiceCallbacks callbacks) throws RemoteException {
+            callbacks.onProviderStateChanged(state);
+        }
+    }
+
+    /**
+     * Periodic stats snapshot
+     */
+    static class StatsSnapshot extends ClientEvent {
+        private final LocationServiceStats stats;
+
+        StatsSnapshot(LocationServiceStats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        void deliver(ILocationServiceCallbacks callbacks) throws RemoteException {
+            callbacks.onStatsSnapshot(stats);
+        }
+    }
+
+    /**
+     * Geofence transition
+     */
+    static class GeofenceTransition extends ClientEvent {
+        private final String id;
+        private final int transition;
+        private final double latitude;
+        private final double longitude;
+
+        GeofenceTransition(String id, int transition, double latitude, double longitude) {
+            this.id = id;
+            this.transition = transition;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        @Override
+        void deliver(ILocationServiceCallbacks callbacks) throws RemoteException {
+            callbacks.onGeofenceTransition(id, transition, latitude, longitude);
+        }
+    }
+
+    /**
+     * Stop or move started
+     */
+    static class TripSegmentStarted extends ClientEvent {
+        private final int type;
+        private final long time;
+        private final double latitude;
+        private final double longitude;
+
+        TripSegmentStarted(int type, long time, double latitude, double longitude) {
+            this.type = type;
+            this.time = time;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        @Override
+        void deliver(ILocationServiceCallbacks callbacks) throws RemoteException {
+            callbacks.onTripSegmentStarted(type, time, latitude, longitude);
+        }
+    }
+
+    /**
+     * Stop or move finished
+     */
+    static class TripSegmentEnded extends ClientEvent {
+        private final TripSegment segment;
+
+        TripSegmentEnded(TripSegment segment) {
+            this.segment = segment;
+        }
+
+        @Override
+        void deliver(ILocationServiceCallbacks callbacks) throws RemoteException {
+            callbacks.onTripSegmentEnded(segment);
+        }
+    }
+
+    /**
+     * The last fix saved by the previous run of the service, sent on register before live fixes
+     */
+    static class CachedLocation extends ClientEvent {
+        private final LocationFix fix;
+        private final long age;
+
+        CachedLocation(LocationFix fix, long age) {
+            this.fix = fix;
+            this.age = age;
+        }
+
+        @Override
+        void deliver(ILocationServiceCallbacks callbacks) throws RemoteException {
+            callbacks.onCachedLocation(fix, age);
+        }
+    }
+
+    /**
+     * Answer to address lookup
+     */
+    static class AddressResolved extends ClientEvent {
+        private final double latitude;
+        private final double longitude;
+        private final String address;
+
+        AddressResolved(double latitude, double longitude, String address) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.address = address;
+        }
+
+        @Override
+        void deliver(ILocationServiceCallbacks callbacks) throws RemoteException {
+            callbacks.onAddressResolved(latitude, longitude, address);
+        }
+    }
+
+    /**
+     * New fixes were written to the shared fix ring, one instance per client (never queued twice)
+     */
+    static class SharedFixesAvailable extends ClientEvent {
+
+        @Override
+        void deliver(ILocationServiceCallbacks callbacks) throws RemoteException {
+            callbacks.onSharedFixesAvailable();
+        }
+    }
+
+    /**
+     * Batch of fixes
+     */
+    static class LocationsBatch extends ClientEvent {
+        private final List<LocationFix> fixes;
+
+        LocationsBatch(List<LocationFix> fixes) {
+            this.fixes = fixes;
+        }
+
+        @Override
+        void deliver(ILocationServiceCallbacks callbacks) throws RemoteException {
+            callbacks.onLocationsBatch(fixes);
+        }
+
+        @Override
+        boolean isLocation() {
+            return true;
+        }
+
+        /**
+         * Latency is counted from the newest fix, waiting in batch is intended
+         */
+        @Override
+        long getSourceNanos() {
+            return fixes.isEmpty() ? 0 : fixes.get(fixes.size() - 1).receivedNanos;
+        }
+
+        @Override
+        long getFixTime() {
+            return fixes.isEmpty() ? 0 : fixes.get(fixes.size() - 1).getTime();
+        }
+
+        @Override
+        int getFixCount() {
+            return fixes.size();
+        }
+    }
+}
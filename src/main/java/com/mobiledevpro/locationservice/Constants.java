@@ -15,4 +15,107 @@ class Constants {
 
     static final int UPDATE_LOCATION_INTERVAL = 10000; //milliseconds
     static final int UPDATE_LOCATION_INTERVAL_FASTEST = UPDATE_LOCATION_INTERVAL / 5;
+
+    static final long SERVICE_LINGER_TIMEOUT = 5000; //milliseconds, service stays bound after the last listener is removed
+
+    //provider duty cycle
+    static final long PROVIDER_IDLE_TIMEOUT = 10000; //milliseconds without clients, then updates are stopped
+    static final long PROVIDER_RECONNECT_MIN = 2000; //milliseconds, after the first suspension
+    static final long PROVIDER_RECONNECT_MAX = 5 * 60000; //milliseconds
+
+    static final int MAX_BATCH_SIZE = 100; //keep batch parcel far below binder transaction limit
+    static final long DEFERRED_MAX_FIXES = 100; //max wait time is limited to this count of intervals
+
+    //adaptive sampling
+    static final long ADAPTIVE_INTERVAL_MIN = 2000; //milliseconds, while moving fast
+    static final long ADAPTIVE_INTERVAL_MAX = 120000; //milliseconds, while stationary
+    static final int ADAPTIVE_STATIONARY_FACTOR = 6; //interval multiplier while stationary
+    static final int ADAPTIVE_FAST_FACTOR = 2; //interval divider while moving fast
+    static final double ADAPTIVE_STATIONARY_RADIUS = 25; //meters
+    static final long ADAPTIVE_STATIONARY_TIME = 60000; //milliseconds within radius to become stationary
+    static final double ADAPTIVE_FAST_SPEED = 8; //meters/second (~30 km/h)
+    static final double ADAPTIVE_SPEED_SMOOTHING = 0.3; //weight of the newest speed
+    static final int ADAPTIVE_MODE_SWITCH_FIXES = 2; //fixes in a row to confirm mode
+
+    static final int CLIENT_QUEUE_CAPACITY = 64; //events waiting for sending to one client
+    static final int CLIENT_QUEUE_CAPACITY_MAX = 4096;
+    static final int DISPATCH_THREAD_COUNT = 4;
+    static final int DISPATCH_THREAD_COUNT_MAX = 32; //with threads which replaced stuck ones
+    static final long DISPATCH_DELIVERY_TIMEOUT = 5000; //milliseconds in one remote callback, then client is dropped
+    static final long DISPATCH_WATCHDOG_INTERVAL = 1000; //milliseconds between checks for stuck callbacks
+    static final int DISPATCH_QUEUE_CAPACITY = 1024; //clients waiting for free dispatcher thread
+    static final int DISPATCH_DRAIN_LIMIT = 16; //events sent to one client before switching to others
+
+    static final int FIX_RING_CAPACITY = 256; //fixes kept for lagging clients, power of two
+
+    //track recording
+    static final String TRACK_DIR = "tracks"; //in app's files dir
+    static final int TRACK_SEGMENT_SIZE = 4 * 1024 * 1024; //bytes, ~95000 fixes
+    static final int TRACK_MAX_SEGMENTS = 64; //the oldest are deleted
+    static final long TRACK_COMMIT_INTERVAL = 1000; //milliseconds between flushes to storage
+    static final int TRACK_COMMIT_RECORDS = 512; //records which force flush before interval
+    static final int HISTORY_INDEX_STEP = 256; //records between entries of in-memory time index
+    static final int HISTORY_PAGE_SIZE = 500; //max fixes in one page of history cursor
+    static final int HISTORY_ENCODED_PAGE_SIZE = 10000; //max fixes in one encoded page, ~100 KB at 1 Hz
+    static final int HISTORY_ENCODED_PAGE_BYTES = 128 * 1024; //max bytes of encoded page (fixes with big jumps take more)
+    static final long HISTORY_CURSOR_IDLE_TIMEOUT = 60000; //milliseconds without reading, then cursor is closed
+    static final int SIMPLIFY_WINDOW = 256; //fixes held by streaming simplification
+
+    //geofences
+    static final double GEOFENCE_CELL_SIZE = 0.01; //degrees of grid cell, ~1.1 km of latitude
+    static final int GEOFENCE_MAX_CELLS = 256; //bigger fences are checked on every fix
+    static final int GEOFENCE_MAX_PER_CLIENT = 50000;
+
+    //shared memory ring for clients who read every fix
+    static final String SHARED_FIX_RING_FILE = "shared_fix_ring";
+    static final int SHARED_FIX_RING_CAPACITY = 1024; //64 bytes per fix
+
+    //trip segmentation
+    static final double TRIP_DWELL_RADIUS = 50; //meters
+    static final long TRIP_DWELL_TIME = 3 * 60000; //milliseconds within radius to become a stop
+    static final float TRIP_MOVE_SPEED = 2.5f; //meters/second, faster fix is a move even within radius
+    static final float TRIP_MAX_ACCURACY = 100; //meters, less accurate fixes are skipped
+
+    //warm start
+    static final String WARM_START_FILE = "warm_start";
+    static final long WARM_START_FIX_MAX_AGE = 30 * 60000; //milliseconds, older fix isn't sent on register
+    static final long WARM_START_SETTINGS_MAX_AGE = 5 * 60000; //milliseconds, settings aren't checked again while younger
+
+    //Kalman smoothing
+    static final double KALMAN_ACCELERATION_NOISE = 2; //m/s^2, how fast device may change velocity
+    static final double KALMAN_INITIAL_SPEED_ERROR = 10; //m/s, when speed of the first fix is unknown
+    static final double KALMAN_DEFAULT_ACCURACY = 30; //meters, when fix has no accuracy
+    static final double KALMAN_MAX_SPEED = 85; //m/s (~300 km/h), faster jump is outlier
+    static final int KALMAN_MAX_REJECTED = 5; //outliers in a row, then filter starts over from the fix
+    static final double KALMAN_RESET_TIME = 60; //seconds without fixes to start over
+    static final double KALMAN_REFERENCE_DISTANCE = 10000; //meters from reference point to move it
+
+    //reverse geocoding cache
+    static final String ADDRESS_CACHE_FILE = "address_cache";
+    static final int ADDRESS_PRECISION = 8; //geohash length of cached cell, ~38 x 19 meters
+    static final int ADDRESS_CACHE_SIZE = 2000; //cells, the least recently used are evicted
+    static final long ADDRESS_CACHE_TTL = 7 * 24 * 3600000L; //milliseconds
+    static final long ADDRESS_CACHE_EMPTY_TTL = 3600000; //milliseconds, for cells without address
+    static final int ADDRESS_CACHE_SAVE_ENTRIES = 16; //new entries which are saved to file
+    static final long ADDRESS_CACHE_SAVE_DELAY = 10000; //milliseconds, new entries are saved together
+
+    //upload to server
+    static final String UPLOAD_DIR = "upload"; //in app's files dir
+    static final int UPLOAD_BATCH_MAX_FIXES = 500; //fixes in one request, a few KB of gzip JSON
+    static final long UPLOAD_BATCH_MAX_AGE = 5 * 60000; //milliseconds, the first fix waits for sending
+    static final int UPLOAD_MAX_BATCHES = 1000; //spooled while offline, the oldest are deleted
+    static final long UPLOAD_BACKOFF_MIN = 5000; //milliseconds, after the first failure
+    static final long UPLOAD_BACKOFF_MAX = 30 * 60000; //milliseconds
+    static final int UPLOAD_MAX_ATTEMPTS = 30; //retry answers of server for one batch, 5-11 hours with backoff
+    static final int UPLOAD_TIMEOUT = 30000; //milliseconds, connect and read
+
+    //dwell heatmap
+    static final String HEATMAP_FILE = "dwell_heatmap";
+    static final int HEATMAP_MAX_CELLS = 4096; //per precision, cells with the shortest dwell time are dropped
+    static final long HEATMAP_MAX_GAP = 5 * 60000; //milliseconds, longer time between fixes isn't counted as dwell
+    static final float HEATMAP_MAX_ACCURACY = 100; //meters, less accurate fixes are skipped
+    static final long HEATMAP_SAVE_INTERVAL = 60000; //milliseconds between writes to storage
+
+    static final long STATS_INTERVAL_MIN = 1000; //milliseconds, between snapshots sent to client
+    static final long DUMP_TIMEOUT = 1000; //milliseconds, waiting for worker thread
 }
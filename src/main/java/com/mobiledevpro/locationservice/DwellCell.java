@@ -0,0 +1,96 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Geohash cell of dwell heatmap: how long and how many times device was there
+ */
+
+public class DwellCell implements Parcelable {
+    //geohash lengths kept by the heatmap: ~4.9 x 4.9 km, ~1.2 x 0.6 km, ~150 x 150 m
+    public static final int MIN_PRECISION = 5;
+    public static final int MAX_PRECISION = 7;
+
+    private String geohash;
+    private double latitude; //of the cell center
+    private double longitude;
+    private long dwellTime; //milliseconds
+    private int visitCount;
+
+    public static final Creator<DwellCell> CREATOR = new Creator<DwellCell>() {
+        @Override
+        public DwellCell createFromParcel(Parcel in) {
+            return new DwellCell(in);
+        }
+
+        @Override
+        public DwellCell[] newArray(int size) {
+            return new DwellCell[size];
+        }
+    };
+
+    /**
+     * @param cell       GeoHash cell
+     * @param dwellTime  Milliseconds
+     * @param visitCount Count of visits
+     */
+    DwellCell(long cell, long dwellTime, int visitCount) {
+        this.geohash = GeoHash.toString(cell);
+        this.latitude = GeoHash.getLatitude(cell);
+        this.longitude = GeoHash.getLongitude(cell);
+        this.dwellTime = dwellTime;
+        this.visitCount = visitCount;
+    }
+
+    private DwellCell(Parcel in) {
+        geohash = in.readString();
+        latitude = in.readDouble();
+        longitude = in.readDouble();
+        dwellTime = in.readLong();
+        visitCount = in.readInt();
+    }
+
+    /**
+     * @return Geohash string, its length is precision of the cell
+     */
+    public String getGeohash() {
+        return geohash;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * @return Milliseconds between fixes in the cell
+     */
+    public long getDwellTime() {
+        return dwellTime;
+    }
+
+    /**
+     * @return Count of times device came into the cell
+     */
+    public int getVisitCount() {
+        return visitCount;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(geohash);
+        dest.writeDouble(latitude);
+        dest.writeDouble(longitude);
+        dest.writeLong(dwellTime);
+        dest.writeInt(visitCount);
+    }
+}
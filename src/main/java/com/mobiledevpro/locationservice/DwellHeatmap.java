@@ -0,0 +1,199 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Where device spends its time: dwell time and visit count of geohash cells at precisions
+ * DwellCell.MIN_PRECISION..MAX_PRECISION, updated by every fix.
+ * <p>
+ * Time between two fixes is added to the cell of the earlier one (longer gaps than HEATMAP_MAX_GAP
+ * aren't counted, device may be off), a visit is counted when fix comes into another cell or after a gap.
+ * Fix update doesn't allocate. Saved to file periodically, so the heatmap grows over service runs.
+ * Used on service worker thread only.
+ */
+
+class DwellHeatmap {
+    private static final int MAGIC = 0x4C534448; //"LSDH"
+    private static final int VERSION = 1;
+    private static final int PRECISION_COUNT = DwellCell.MAX_PRECISION - DwellCell.MIN_PRECISION + 1;
+
+    private final File mFile;
+    private final DwellTable[] mTables = new DwellTable[PRECISION_COUNT];
+    //cells of the previous fix by precision, their dwell time grows until the next fix
+    private final long[] mLastCells = new long[PRECISION_COUNT];
+    private long mLastTime;
+    private boolean mHasLast;
+    private boolean mIsDirty;
+    private long mSaveTime; //elapsed realtime of the last save
+
+    /**
+     * @param file File where heatmap is kept between service runs
+     */
+    DwellHeatmap(File file) {
+        mFile = file;
+        for (int i = 0; i < PRECISION_COUNT; i++) {
+            mTables[i] = new DwellTable(256);
+        }
+        mSaveTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @param fix Fix, in order of time
+     */
+    void onFix(LocationFix fix) {
+        if (fix.getAccuracy() > Constants.HEATMAP_MAX_ACCURACY) return;
+        long time = fix.getTime();
+        long dwellTime = time - mLastTime;
+        //time going back (e.g. replayed track) starts over like a gap
+        boolean isGap = !mHasLast || dwellTime < 0 || dwellTime > Constants.HEATMAP_MAX_GAP;
+        for (int i = 0; i < PRECISION_COUNT; i++) {
+            long cell = GeoHash.encode(fix.getLatitude(), fix.getLongitude(), DwellCell.MIN_PRECISION + i);
+            DwellTable table = mTables[i];
+            if (!isGap && dwellTime > 0) table.add(mLastCells[i], dwellTime, 0);
+            if (isGap || cell != mLastCells[i]) table.add(cell, 0, 1);
+            mLastCells[i] = cell;
+            //a bit more than max, so trimming isn't done on every new cell
+            if (table.size() > Constants.HEATMAP_MAX_CELLS + Constants.HEATMAP_MAX_CELLS / 4) {
+                table.trim(Constants.HEATMAP_MAX_CELLS, cell);
+            }
+        }
+        mLastTime = time;
+        mHasLast = true;
+        mIsDirty = true;
+
+        if (SystemClock.elapsedRealtime() - mSaveTime >= Constants.HEATMAP_SAVE_INTERVAL) save();
+    }
+
+    /**
+     * @param precision Geohash length, DwellCell.MIN_PRECISION..MAX_PRECISION
+     * @param maxCount  Max count of cells
+     * @return Cells with the longest dwell time first
+     */
+    List<DwellCell> getCells(int precision, int maxCount) {
+        DwellTable table = getTable(precision);
+        if (table == null || maxCount <= 0) return Collections.emptyList();
+        List<DwellCell> cells = new ArrayList<>(table.size());
+        for (int i = 0; i < table.getSlotCount(); i++) {
+            long cell = table.getCell(i);
+            if (cell != 0) cells.add(new DwellCell(cell, table.getDwellTime(i), table.getVisits(i)));
+        }
+        Collections.sort(cells, new Comparator<DwellCell>() {
+            @Override
+            public int compare(DwellCell a, DwellCell b) {
+                return Long.compare(b.getDwellTime(), a.getDwellTime());
+            }
+        });
+        return cells.size() > maxCount ? new ArrayList<>(cells.subList(0, maxCount)) : cells;
+    }
+
+    /**
+     * @param precision Geohash length, DwellCell.MIN_PRECISION..MAX_PRECISION
+     * @return Snapshot encoded by HeatmapCodec or null if precision isn't kept
+     */
+    byte[] export(int precision) {
+        DwellTable table = getTable(precision);
+        return table != null ? HeatmapCodec.encode(table, precision) : null;
+    }
+
+    private DwellTable getTable(int precision) {
+        if (precision < DwellCell.MIN_PRECISION || precision > DwellCell.MAX_PRECISION) return null;
+        return mTables[precision - DwellCell.MIN_PRECISION];
+    }
+
+    /**
+     * Read heatmap saved by the previous run
+     */
+    void load() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != PRECISION_COUNT) {
+                Log.e(Constants.LOG_TAG_ERROR, "DwellHeatmap.load(): unsupported file, ignored");
+                return;
+            }
+            mHasLast = in.readBoolean();
+            mLastTime = in.readLong();
+            for (int i = 0; i < PRECISION_COUNT; i++) {
+                mLastCells[i] = in.readLong();
+                int count = in.readInt();
+                for (int j = 0; j < count; j++) {
+                    long cell = in.readLong();
+                    long dwellTime = in.readLong();
+                    int visits = in.readInt();
+                    if (GeoHash.getPrecision(cell) == DwellCell.MIN_PRECISION + i) mTables[i].add(cell, dwellTime, visits);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            //the first run
+        } catch (IOException e) {
+            //torn file, what is read is kept
+            mHasLast = false;
+            Log.e(Constants.LOG_TAG_ERROR, "DwellHeatmap.load: EXCEPTION - " + e.getLocalizedMessage(), e);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write heatmap to temporary file and replace the old one with it, so the file is never torn
+     */
+    void save() {
+        mSaveTime = SystemClock.elapsedRealtime();
+        if (!mIsDirty) return;
+        mIsDirty = false;
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(PRECISION_COUNT);
+            out.writeBoolean(mHasLast);
+            out.writeLong(mLastTime);
+            for (int i = 0; i < PRECISION_COUNT; i++) {
+                DwellTable table = mTables[i];
+                out.writeLong(mLastCells[i]);
+                out.writeInt(table.size());
+                for (int j = 0; j < table.getSlotCount(); j++) {
+                    if (table.getCell(j) == 0) continue;
+                    out.writeLong(table.getCell(j));
+                    out.writeLong(table.getDwellTime(j));
+                    out.writeInt(table.getVisits(j));
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(mFile)) throw new IOException("Can't rename " + tmpFile);
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "DwellHeatmap.save: EXCEPTION - " + e.getLocalizedMessage(), e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //nothing to do
+        }
+    }
+}
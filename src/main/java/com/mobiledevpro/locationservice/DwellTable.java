@@ -0,0 +1,143 @@
+package com.mobiledevpro.locationservice;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing table of geohash cell -> dwell time and visit count in parallel primitive arrays,
+ * so updates on the fix path neither box nor allocate. Cell key 0 marks a free slot
+ * (GeoHash keys always have precision bits). Not thread safe.
+ */
+
+class DwellTable {
+    private long[] mCells;
+    private long[] mDwellTimes;
+    private int[] mVisits;
+    private int mSize;
+
+    /**
+     * @param capacity Expected count of cells
+     */
+    DwellTable(int capacity) {
+        allocate(Integer.highestOneBit(Math.max(4, capacity * 2 - 1)) << 1);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Add to the cell's counters, the cell is created if there is no one
+     *
+     * @param cell      GeoHash cell, not 0
+     * @param dwellTime Milliseconds
+     * @param visits    Count of visits
+     */
+    void add(long cell, long dwellTime, int visits) {
+        int mask = mCells.length - 1;
+        int i = LongHashMap.hash(cell) & mask;
+        for (; mCells[i] != 0; i = (i + 1) & mask) {
+            if (mCells[i] == cell) {
+                mDwellTimes[i] += dwellTime;
+                mVisits[i] += visits;
+                return;
+            }
+        }
+        mCells[i] = cell;
+        mDwellTimes[i] = dwellTime;
+        mVisits[i] = visits;
+        if (++mSize * 2 > mCells.length) rehash(mCells.length * 2);
+    }
+
+    /**
+     * @param cell GeoHash cell
+     * @return Slot of the cell or -1 if there is no one
+     */
+    int find(long cell) {
+        int mask = mCells.length - 1;
+        for (int i = LongHashMap.hash(cell) & mask; mCells[i] != 0; i = (i + 1) & mask) {
+            if (mCells[i] == cell) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return Count of slots, cells are read by slot index
+     */
+    int getSlotCount() {
+        return mCells.length;
+    }
+
+    /**
+     * @return Cell in the slot, 0 - free slot
+     */
+    long getCell(int slot) {
+        return mCells[slot];
+    }
+
+    long getDwellTime(int slot) {
+        return mDwellTimes[slot];
+    }
+
+    int getVisits(int slot) {
+        return mVisits[slot];
+    }
+
+    /**
+     * Keep only cells with the longest dwell time
+     *
+     * @param maxSize  Count of cells to keep, at least 1
+     * @param keepCell Cell which is always kept (device is in it now, its dwell time is still growing)
+     */
+    void trim(int maxSize, long keepCell) {
+        if (mSize <= maxSize) return;
+        int keepSlot = keepCell != 0 ? find(keepCell) : -1;
+        long[] dwellTimes = new long[mSize];
+        int count = 0;
+        for (int i = 0; i < mCells.length; i++) {
+            if (mCells[i] != 0 && i != keepSlot) dwellTimes[count++] = mDwellTimes[i];
+        }
+        Arrays.sort(dwellTimes, 0, count);
+        int room = keepSlot >= 0 ? maxSize - 1 : maxSize;
+        long threshold = room > 0 ? dwellTimes[count - room] : Long.MAX_VALUE;
+
+        long[] cells = mCells;
+        long[] times = mDwellTimes;
+        int[] visits = mVisits;
+        allocate(cells.length);
+        int kept = 0;
+        if (keepSlot >= 0) {
+            add(cells[keepSlot], times[keepSlot], visits[keepSlot]);
+            kept++;
+        }
+        //cells with dwell time equal to threshold are kept while there is room
+        for (int i = 0; i < cells.length && kept < maxSize; i++) {
+            if (cells[i] != 0 && i != keepSlot && times[i] > threshold) {
+                add(cells[i], times[i], visits[i]);
+                kept++;
+            }
+        }
+        for (int i = 0; i < cells.length && kept < maxSize; i++) {
+            if (cells[i] != 0 && i != keepSlot && times[i] == threshold) {
+                add(cells[i], times[i], visits[i]);
+                kept++;
+            }
+        }
+    }
+
+    private void allocate(int slotCount) {
+        mCells = new long[slotCount];
+        mDwellTimes = new long[slotCount];
+        mVisits = new int[slotCount];
+        mSize = 0;
+    }
+
+    private void rehash(int slotCount) {
+        long[] cells = mCells;
+        long[] times = mDwellTimes;
+        int[] visits = mVisits;
+        allocate(slotCount);
+        for (int i = 0; i < cells.length; i++) {
+            if (cells[i] != 0) add(cells[i], times[i], visits[i]);
+        }
+    }
+}
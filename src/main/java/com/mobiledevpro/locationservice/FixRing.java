@@ -0,0 +1,138 @@
+package com.mobiledevpro.locationservice;
+
+import android.location.Location;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Preallocated ring of fix slots: fixes are copied here as primitives and referenced by sequence number,
+ * so the path from provider to clients doesn't allocate.
+ * <p>
+ * Single writer (service worker thread), many readers (dispatcher threads).
+ * Every slot is guarded by its sequence number: reader gets false if the slot was overwritten
+ * while client's queue was lagging behind.
+ */
+
+class FixRing {
+    private static final int FIELD_SEQ = 0;
+    private static final int FIELD_TIME = 1;
+    private static final int FIELD_LATITUDE = 2;
+    private static final int FIELD_LONGITUDE = 3;
+    private static final int FIELD_ALTITUDE = 4;
+    private static final int FIELD_ACCURACY_SPEED = 5; //two floats
+    private static final int FIELD_BEARING = 6;
+    private static final int FIELD_RECEIVED_NANOS = 7;
+    private static final int SLOT_SIZE = 8;
+
+    private static final long SEQ_WRITING = -1;
+
+    private final int mMask;
+    //all fields are read with volatile semantic, so slot's sequence check is reliable
+    private final AtomicLongArray mSlots;
+    private final AtomicLong mLastSeq = new AtomicLong(-1);
+
+    /**
+     * @param capacity Count of slots, rounded up to power of two
+     */
+    FixRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mMask = size - 1;
+        mSlots = new AtomicLongArray(size * SLOT_SIZE);
+        for (int i = 0; i < size; i++) {
+            mSlots.set(i * SLOT_SIZE + FIELD_SEQ, SEQ_WRITING);
+        }
+    }
+
+    int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return Sequence number of the last written fix, -1 if nothing was written
+     */
+    long getLastSeq() {
+        return mLastSeq.get();
+    }
+
+    /**
+     * Copy location to the next slot, called by the single writer only
+     *
+     * @param location      Location
+     * @param receivedNanos SystemClock.elapsedRealtimeNanos() when location was received
+     * @return Sequence number of the fix
+     */
+    long write(Location location, long receivedNanos) {
+        return write(location.getTime(), location.getLatitude(), location.getLongitude(), location.getAltitude(),
+                location.getAccuracy(), location.getSpeed(), location.getBearing(), receivedNanos);
+    }
+
+    /**
+     * Copy fix to the next slot, called by the single writer only
+     *
+     * @param fix Fix
+     * @return Sequence number of the fix
+     */
+    long write(LocationFix fix) {
+        return write(fix.getTime(), fix.getLatitude(), fix.getLongitude(), fix.getAltitude(),
+                fix.getAccuracy(), fix.getSpeed(), fix.getBearing(), fix.receivedNanos);
+    }
+
+    private long write(long time, double latitude, double longitude, double altitude,
+                       float accuracy, float speed, float bearing, long receivedNanos) {
+        long seq = mLastSeq.get() + 1;
+        int base = (int) (seq & mMask) * SLOT_SIZE;
+
+        mSlots.set(base + FIELD_SEQ, SEQ_WRITING);
+        mSlots.lazySet(base + FIELD_TIME, time);
+        mSlots.lazySet(base + FIELD_LATITUDE, Double.doubleToRawLongBits(latitude));
+        mSlots.lazySet(base + FIELD_LONGITUDE, Double.doubleToRawLongBits(longitude));
+        mSlots.lazySet(base + FIELD_ALTITUDE, Double.doubleToRawLongBits(altitude));
+        mSlots.lazySet(base + FIELD_ACCURACY_SPEED, packFloats(accuracy, speed));
+        mSlots.lazySet(base + FIELD_BEARING, Float.floatToRawIntBits(bearing));
+        mSlots.lazySet(base + FIELD_RECEIVED_NANOS, receivedNanos);
+        mSlots.set(base + FIELD_SEQ, seq);
+
+        mLastSeq.set(seq);
+        return seq;
+    }
+
+    /**
+     * Copy fix to the given object
+     *
+     * @param seq Sequence number of the fix
+     * @param out Fix to fill
+     * @return False - slot was already overwritten by a newer fix
+     */
+    boolean read(long seq, LocationFix out) {
+        int base = (int) (seq & mMask) * SLOT_SIZE;
+        if (mSlots.get(base + FIELD_SEQ) != seq) return false;
+
+        long time = mSlots.get(base + FIELD_TIME);
+        long latitude = mSlots.get(base + FIELD_LATITUDE);
+        long longitude = mSlots.get(base + FIELD_LONGITUDE);
+        long altitude = mSlots.get(base + FIELD_ALTITUDE);
+        long accuracySpeed = mSlots.get(base + FIELD_ACCURACY_SPEED);
+        long bearing = mSlots.get(base + FIELD_BEARING);
+        long receivedNanos = mSlots.get(base + FIELD_RECEIVED_NANOS);
+
+        //writer started to overwrite the slot while we were reading it
+        if (mSlots.get(base + FIELD_SEQ) != seq) return false;
+
+        out.set(
+                time,
+                Double.longBitsToDouble(latitude),
+                Double.longBitsToDouble(longitude),
+                Double.longBitsToDouble(altitude),
+                Float.intBitsToFloat((int) (accuracySpeed >>> 32)),
+                Float.intBitsToFloat((int) accuracySpeed),
+                Float.intBitsToFloat((int) bearing)
+        );
+        out.receivedNanos = receivedNanos;
+        return true;
+    }
+
+    private static long packFloats(float high, float low) {
+        return ((long) Float.floatToRawIntBits(high) << 32) | (Float.floatToRawIntBits(low) & 0xFFFFFFFFL);
+    }
+}
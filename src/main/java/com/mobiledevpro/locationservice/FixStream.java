@@ -0,0 +1,67 @@
+package com.mobiledevpro.locationservice;
+
+/**
+ * Stream of fixes, see LocationServiceManager.fixes().
+ * Adds operators which need fix position; throttle() and sample() keep it a FixStream.
+ */
+
+public final class FixStream extends LocationStream<LocationFix> {
+    private final LocationStream<LocationFix> mSource;
+
+    FixStream(LocationStream<LocationFix> source) {
+        mSource = source;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super LocationFix> subscriber) {
+        mSource.subscribe(subscriber);
+    }
+
+    @Override
+    public FixStream throttle(long intervalMillis) {
+        return new FixStream(super.throttle(intervalMillis));
+    }
+
+    @Override
+    public FixStream sample(long periodMillis) {
+        return new FixStream(super.sample(periodMillis));
+    }
+
+    /**
+     * Pass fix only when it's farther than distance from the last passed one
+     *
+     * @param meters Min distance
+     * @return Stream
+     */
+    public FixStream distinctByDistance(final double meters) {
+        return new FixStream(lift(new StageFactory<LocationFix, LocationFix>() {
+            @Override
+            public Stage<LocationFix, LocationFix> create(Subscriber<? super LocationFix> downstream) {
+                return new DistinctStage(downstream, meters);
+            }
+        }));
+    }
+
+    private static class DistinctStage extends Stage<LocationFix, LocationFix> {
+        private final double mDistance;
+        private boolean mHasFix;
+        private double mLatitude;
+        private double mLongitude;
+
+        DistinctStage(Subscriber<? super LocationFix> downstream, double distance) {
+            super(downstream);
+            mDistance = distance;
+        }
+
+        @Override
+        public void onNext(LocationFix fix) {
+            if (mHasFix && AdaptiveSampler.distance(mLatitude, mLongitude, fix.getLatitude(), fix.getLongitude()) < mDistance) {
+                return;
+            }
+            mHasFix = true;
+            mLatitude = fix.getLatitude();
+            mLongitude = fix.getLongitude();
+            emit(fix);
+        }
+    }
+}
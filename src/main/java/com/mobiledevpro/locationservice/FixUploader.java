@@ -0,0 +1,523 @@
+package com.mobiledevpro.locationservice;
+
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends every fix from the ring to the server in batches, on its own thread.
+ * <p>
+ * Fixes are appended to the spool file first, so they wait on storage while device is offline
+ * and survive service restart. Spool is sealed to a batch when it has UPLOAD_BATCH_MAX_FIXES fixes
+ * or its first fix is older than UPLOAD_BATCH_MAX_AGE. Batch gets its id when it's sealed (the id is
+ * in file name), so a retry of the same batch has the same id and server can drop the duplicate.
+ * Spool has fixed size records (a torn one is cut after crash), sealed batch is stored by TrackCodec,
+ * several times smaller while batches wait for network.
+ * <p>
+ * Batch is POSTed as gzip JSON with Idempotency-Key header. 2xx and 409 - batch is delivered,
+ * other 4xx (except 408 and 429) - server rejects it and it's dropped, anything else is retried
+ * with exponential backoff and jitter. Network change wakes the uploader at once.
+ * Batch which can't be read, or which got UPLOAD_MAX_ATTEMPTS retry answers from server, is dropped,
+ * so it doesn't block the next ones. Network errors aren't counted: server may be down for long.
+ */
+
+class FixUploader {
+    private static final int MSG_SPOOL = 1;
+    private static final int MSG_SEAL = 2;
+    private static final int MSG_UPLOAD = 3;
+
+    private static final String SPOOL_FILE = "spool";
+    private static final String BATCH_EXTENSION = ".batch";
+    private static final String TEMP_EXTENSION = ".tmp";
+    static final int RECORD_SIZE = 44; //time, latitude, longitude, altitude, accuracy, speed, bearing
+
+    static final int RESULT_SENT = 0;
+    static final int RESULT_REJECTED = 1;
+    static final int RESULT_RETRY = 2;
+
+    private final File mDir;
+    private final FixRing mFixRing;
+    private final ConnectivityManager mConnectivityManager;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    //used on uploader thread only
+    private final LocationFix mFix = new LocationFix();
+    private final Random mRandom = new Random();
+    private URL mEndpoint;
+    private long mSpooledSeq;
+    private DataOutputStream mSpool;
+    private int mSpoolCount;
+    private int mFailures;
+    private String mAttemptBatch; //name of batch which got mAttempts retry answers
+    private int mAttempts;
+    private long mUploaded;
+    private long mDropped;
+
+    /**
+     * Handles messages on uploader thread
+     */
+    private final Handler.Callback mHandlerCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                //when new fixes are in the ring
+                case MSG_SPOOL:
+                    spool();
+                    break;
+                //when the first spooled fix is too old
+                case MSG_SEAL:
+                    seal();
+                    upload();
+                    break;
+                //when batch is sealed, backoff delay has passed or network is changed
+                case MSG_UPLOAD:
+                    upload();
+                    break;
+                default:
+                    return false;
+            }
+            return true;
+        }
+    };
+
+    /**
+     * @param dir                 Directory of spool and batches
+     * @param fixRing             Ring written by service worker
+     * @param endpoint            URL which gets batches
+     * @param connectivityManager To skip uploads while offline
+     */
+    FixUploader(File dir, FixRing fixRing, URL endpoint, ConnectivityManager connectivityManager) {
+        mDir = dir;
+        mFixRing = fixRing;
+        mEndpoint = endpoint;
+        mConnectivityManager = connectivityManager;
+        //fixes written before uploading was turned on aren't sent
+        mSpooledSeq = fixRing.getLastSeq();
+        mThread = new HandlerThread("LocationServiceUploader", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper(), mHandlerCallback);
+        //batch which wasn't completely written before crash, its fixes are still in spool
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deleteTempFiles();
+            }
+        });
+        //spool left by the previous run is sent as it is
+        mHandler.sendEmptyMessage(MSG_SEAL);
+    }
+
+    /**
+     * Called by ring writer after every fix, doesn't block and doesn't allocate
+     */
+    void onFixWritten() {
+        if (!mHandler.hasMessages(MSG_SPOOL)) {
+            mHandler.sendEmptyMessage(MSG_SPOOL);
+        }
+    }
+
+    /**
+     * Network is changed, try to upload at once instead of waiting for backoff
+     */
+    void onNetworkChanged() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mFailures = 0;
+                upload();
+            }
+        });
+    }
+
+    /**
+     * @param endpoint URL which gets batches (not sent batches go there too)
+     */
+    void setEndpoint(final URL endpoint) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mEndpoint = endpoint;
+                mFailures = 0;
+                upload();
+            }
+        });
+    }
+
+    /**
+     * Spool fixes which are still in the ring and stop the thread, not sent batches are kept for the next start
+     */
+    void stop() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                spool();
+                closeSpool();
+                Log.d(Constants.LOG_TAG_DEBUG, "FixUploader.stop(): uploaded - " + mUploaded + ", dropped - " + mDropped);
+                mThread.quit();
+            }
+        });
+    }
+
+    /**
+     * Append all fixes written to the ring since the last call
+     */
+    private void spool() {
+        long lastSeq = mFixRing.getLastSeq();
+        if (lastSeq - mSpooledSeq > mFixRing.getCapacity()) {
+            mDropped += lastSeq - mSpooledSeq - mFixRing.getCapacity();
+            mSpooledSeq = lastSeq - mFixRing.getCapacity();
+        }
+        if (mSpooledSeq == lastSeq) return;
+        try {
+            while (mSpooledSeq < lastSeq) {
+                if (!mFixRing.read(++mSpooledSeq, mFix)) {
+                    mDropped++;
+                    continue;
+                }
+                if (mSpool == null) openSpool();
+                writeRecord(mSpool, mFix);
+                if (++mSpoolCount == 1) {
+                    mHandler.sendEmptyMessageDelayed(MSG_SEAL, Constants.UPLOAD_BATCH_MAX_AGE);
+                }
+                if (mSpoolCount >= Constants.UPLOAD_BATCH_MAX_FIXES) {
+                    seal();
+                    mHandler.sendEmptyMessage(MSG_UPLOAD);
+                }
+            }
+            if (mSpool != null) mSpool.flush();
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "FixUploader.spool: EXCEPTION - " + e.getLocalizedMessage(), e);
+            closeSpool();
+        }
+    }
+
+    private void openSpool() throws IOException {
+        if (!mDir.exists() && !mDir.mkdirs()) throw new IOException("Can't create " + mDir);
+        mSpool = new DataOutputStream(new FileOutputStream(new File(mDir, SPOOL_FILE), true));
+    }
+
+    private void closeSpool() {
+        if (mSpool == null) return;
+        try {
+            mSpool.close();
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "FixUploader.closeSpool: EXCEPTION - " + e.getLocalizedMessage(), e);
+        }
+        mSpool = null;
+    }
+
+    /**
+     * Turn spool into batch with new id, it's never appended again
+     */
+    private void seal() {
+        mHandler.removeMessages(MSG_SEAL);
+        closeSpool();
+        mSpoolCount = 0;
+        File spool = new File(mDir, SPOOL_FILE);
+        //torn record after crash is skipped
+        long count = spool.length() / RECORD_SIZE;
+        if (count == 0) return;
+        //time prefix keeps batches in order of sealing
+        String name = String.format(Locale.US, "%013d_%s", System.currentTimeMillis(), UUID.randomUUID()) + BATCH_EXTENSION;
+        File temp = new File(mDir, name + TEMP_EXTENSION);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spool)));
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                TrackCodec.Encoder encoder = new TrackCodec.Encoder(out, TrackCodec.DEFAULT_PRECISION);
+                for (long i = 0; i < count; i++) {
+                    readRecord(in, mFix);
+                    encoder.write(mFix);
+                }
+                encoder.finish();
+            } finally {
+                out.close();
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "FixUploader.seal: EXCEPTION - " + e.getLocalizedMessage(), e);
+            if (temp.exists() && !temp.delete()) {
+                Log.e(Constants.LOG_TAG_ERROR, "FixUploader.seal(): can't delete " + temp);
+            }
+            return;
+        }
+        //complete batch appears at once; crash before the spool is deleted sends its fixes twice, never loses them
+        if (!temp.renameTo(new File(mDir, name))) {
+            Log.e(Constants.LOG_TAG_ERROR, "FixUploader.seal(): can't rename " + temp);
+            return;
+        }
+        if (!spool.delete()) {
+            Log.e(Constants.LOG_TAG_ERROR, "FixUploader.seal(): can't delete " + spool);
+        }
+        deleteOldBatches();
+    }
+
+    private void deleteTempFiles() {
+        File[] files = mDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(TEMP_EXTENSION);
+            }
+        });
+        if (files == null) return;
+        for (File file : files) {
+            if (!file.delete()) Log.e(Constants.LOG_TAG_ERROR, "FixUploader.deleteTempFiles(): can't delete " + file);
+        }
+    }
+
+    /**
+     * Keep not more than UPLOAD_MAX_BATCHES batches while device is offline
+     */
+    private void deleteOldBatches() {
+        File[] batches = listBatches();
+        for (int i = 0; i < batches.length - Constants.UPLOAD_MAX_BATCHES; i++) {
+            mDropped += countFixes(batches[i]);
+            if (!batches[i].delete()) {
+                Log.e(Constants.LOG_TAG_ERROR, "FixUploader.deleteOldBatches(): can't delete " + batches[i]);
+            }
+        }
+    }
+
+    /**
+     * Send the oldest batch, the next one is sent by the next message
+     */
+    private void upload() {
+        mHandler.removeMessages(MSG_UPLOAD);
+        if (mEndpoint == null || !isOnline()) return;
+        File[] batches = listBatches();
+        if (batches.length == 0) return;
+
+        File batch = batches[0];
+        byte[] body = null;
+        try {
+            body = encode(getBatchId(batch), batch);
+        } catch (IOException e) {
+            //truncated or unreadable batch fails the same way every time
+            Log.e(Constants.LOG_TAG_ERROR, "FixUploader.upload: EXCEPTION - " + e.getLocalizedMessage(), e);
+        }
+        int result = RESULT_REJECTED;
+        if (body != null) {
+            try {
+                result = post(mEndpoint, getBatchId(batch), body);
+                if (result == RESULT_RETRY && isOutOfAttempts(batch)) result = RESULT_REJECTED;
+            } catch (IOException e) {
+                Log.e(Constants.LOG_TAG_ERROR, "FixUploader.upload: EXCEPTION - " + e.getLocalizedMessage(), e);
+                result = RESULT_RETRY;
+            }
+        }
+
+        if (result == RESULT_RETRY) {
+            mFailures++;
+            mHandler.sendEmptyMessageDelayed(MSG_UPLOAD, getBackoff(mFailures));
+            return;
+        }
+        mFailures = 0;
+        mAttemptBatch = null;
+        long count = countFixes(batch);
+        if (result == RESULT_SENT) {
+            mUploaded += count;
+        } else {
+            Log.e(Constants.LOG_TAG_ERROR, "FixUploader.upload(): batch is dropped - " + batch.getName());
+            mDropped += count;
+        }
+        if (!batch.delete()) {
+            Log.e(Constants.LOG_TAG_ERROR, "FixUploader.upload(): can't delete " + batch);
+            return;
+        }
+        if (batches.length > 1) mHandler.sendEmptyMessage(MSG_UPLOAD);
+    }
+
+    /**
+     * Count retry answer of server for the batch
+     *
+     * @param batch Batch file
+     * @return True - batch got UPLOAD_MAX_ATTEMPTS retry answers and must be dropped
+     */
+    private boolean isOutOfAttempts(File batch) {
+        if (!batch.getName().equals(mAttemptBatch)) {
+            mAttemptBatch = batch.getName();
+            mAttempts = 0;
+        }
+        return ++mAttempts >= Constants.UPLOAD_MAX_ATTEMPTS;
+    }
+
+    /**
+     * @param failures Failed attempts in a row
+     * @return Milliseconds before the next attempt, random in [delay / 2, delay]
+     */
+    private long getBackoff(int failures) {
+        long delay = Constants.UPLOAD_BACKOFF_MIN << Math.min(failures - 1, 20);
+        delay = Math.min(delay, Constants.UPLOAD_BACKOFF_MAX);
+        return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+    }
+
+    private boolean isOnline() {
+        if (mConnectivityManager == null) return true;
+        NetworkInfo netInfo = mConnectivityManager.getActiveNetworkInfo();
+        return netInfo != null && netInfo.isConnected();
+    }
+
+    private File[] listBatches() {
+        File[] files = mDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(BATCH_EXTENSION);
+            }
+        });
+        if (files == null) return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static String getBatchId(File batch) {
+        String name = batch.getName();
+        return name.substring(name.indexOf('_') + 1, name.length() - BATCH_EXTENSION.length());
+    }
+
+    /**
+     * @param batch Batch file
+     * @return Count of fixes in batch, 0 - it can't be read
+     */
+    private long countFixes(File batch) {
+        long count = 0;
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(batch));
+            try {
+                TrackCodec.Decoder decoder = new TrackCodec.Decoder(in);
+                while (decoder.read(mFix)) {
+                    count++;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "FixUploader.countFixes: EXCEPTION - " + e.getLocalizedMessage(), e);
+        }
+        return count;
+    }
+
+    private static void readRecord(DataInputStream in, LocationFix out) throws IOException {
+        out.set(in.readLong(), in.readDouble(), in.readDouble(), in.readDouble(), in.readFloat(), in.readFloat(), in.readFloat());
+    }
+
+    private static void writeRecord(DataOutputStream out, LocationFix fix) throws IOException {
+        out.writeLong(fix.getTime());
+        out.writeDouble(fix.getLatitude());
+        out.writeDouble(fix.getLongitude());
+        out.writeDouble(fix.getAltitude());
+        out.writeFloat(fix.getAccuracy());
+        out.writeFloat(fix.getSpeed());
+        out.writeFloat(fix.getBearing());
+    }
+
+    /**
+     * Batch as gzip JSON: {"batch_id":"...","fixes":[{"time":...,"latitude":...,...},...]}.
+     * The server gets plain JSON, so it doesn't need TrackCodec to read batches.
+     * NaN and infinite values aren't valid JSON numbers, they are sent as null.
+     *
+     * @param batchId Batch id
+     * @param batch   Batch file (TrackCodec)
+     * @return Request body
+     * @throws IOException
+     */
+    static byte[] encode(String batchId, File batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) batch.length());
+        InputStream in = new BufferedInputStream(new FileInputStream(batch));
+        try {
+            TrackCodec.Decoder decoder = new TrackCodec.Decoder(in);
+            LocationFix fix = new LocationFix();
+            Writer writer = new OutputStreamWriter(new GZIPOutputStream(bytes), "UTF-8");
+            writer.write("{\"batch_id\":\"" + batchId + "\",\"fixes\":[");
+            for (int i = 0; decoder.read(fix); i++) {
+                if (i > 0) writer.write(',');
+                writer.write("{\"time\":" + fix.getTime());
+                writer.write(",\"latitude\":" + toJson(fix.getLatitude()));
+                writer.write(",\"longitude\":" + toJson(fix.getLongitude()));
+                writer.write(",\"altitude\":" + toJson(fix.getAltitude()));
+                writer.write(",\"accuracy\":" + toJson(fix.getAccuracy()));
+                writer.write(",\"speed\":" + toJson(fix.getSpeed()));
+                writer.write(",\"bearing\":" + toJson(fix.getBearing()));
+                writer.write('}');
+            }
+            writer.write("]}");
+            writer.close();
+        } catch (EOFException e) {
+            throw new IOException("Batch is truncated: " + batch, e);
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String toJson(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : String.valueOf(value);
+    }
+
+    private static String toJson(float value) {
+        return Float.isNaN(value) || Float.isInfinite(value) ? "null" : String.valueOf(value);
+    }
+
+    /**
+     * @param endpoint URL
+     * @param batchId  Batch id, the same for every attempt
+     * @param body     Gzip JSON
+     * @return RESULT_SENT, RESULT_REJECTED or RESULT_RETRY
+     * @throws IOException Network error
+     */
+    static int post(URL endpoint, String batchId, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        try {
+            connection.setConnectTimeout(Constants.UPLOAD_TIMEOUT);
+            connection.setReadTimeout(Constants.UPLOAD_TIMEOUT);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty("Idempotency-Key", batchId);
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+            int code = connection.getResponseCode();
+            //server already has the batch from the previous attempt
+            if ((code >= 200 && code < 300) || code == HttpURLConnection.HTTP_CONFLICT) return RESULT_SENT;
+            if (code >= 400 && code < 500 && code != HttpURLConnection.HTTP_CLIENT_TIMEOUT && code != 429) {
+                return RESULT_REJECTED;
+            }
+            return RESULT_RETRY;
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.mobiledevpro.locationservice;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.internal.zzh;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.location.LocationSettingsRequest;
+import com.google.android.gms.location.LocationSettingsResult;
+import com.google.android.gms.location.LocationSettingsStates;
+
+import java.util.List;
+
+/**
+ * Fixes from Google Play Services fused location provider
+ */
+
+class FusedLocationProvider implements LocationProvider {
+    private final Context mContext;
+    private GoogleApiClient mGoogleApiClient;
+    private Listener mListener;
+    private Handler mHandler;
+
+    /**
+     * Listen location changes, deferred fixes come as one result
+     */
+    private final LocationCallback mLocationCallback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult result) {
+            if (result == null || mListener == null) return;
+            List<Location> locations = result.getLocations();
+            if (locations == null || locations.isEmpty()) return;
+            if (locations.size() == 1) {
+                mListener.onLocationChanged(locations.get(0));
+            } else {
+                mListener.onLocationsChanged(locations);
+            }
+        }
+    };
+
+    FusedLocationProvider(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Connect to Google Api Client
+     *
+     * @param listener Listener
+     * @param handler  Handler for callbacks
+     */
+    @Override
+    public void connect(final Listener listener, Handler handler) {
+        if (mContext == null) return;
+        mListener = listener;
+        mHandler = handler;
+        mGoogleApiClient = new GoogleApiClient.Builder(mContext)
+                .addConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
+                    @Override
+                    public void onConnected(@Nullable Bundle bundle) {
+                        listener.onConnected();
+                    }
+
+                    @Override
+                    public void onConnectionSuspended(int i) {
+                        Log.d(Constants.LOG_TAG_DEBUG, "GoogleApiClient.onConnectionSuspended(): ");
+                        listener.onConnectionSuspended();
+                    }
+                })
+                .addOnConnectionFailedListener(new GoogleApiClient.OnConnectionFailedListener() {
+                    @Override
+                    public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
+                        onGapiFailedConnection(connectionResult);
+                    }
+                })
+                .addApi(LocationServices.API)
+                //connection callbacks and pending results are delivered on the handler's looper
+                .setHandler(handler)
+                .build();
+
+        mGoogleApiClient.connect();
+    }
+
+    /**
+     * Disconnect from Google API client
+     */
+    @Override
+    public void disconnect() {
+        if (mGoogleApiClient != null) {
+            if (mGoogleApiClient.isConnected()) removeLocationUpdates();
+            //client which is still connecting (or reconnecting after suspension) is stopped too
+            mGoogleApiClient.disconnect();
+            mGoogleApiClient = null;
+        }
+        mListener = null;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mGoogleApiClient != null && mGoogleApiClient.isConnected();
+    }
+
+    /**
+     * Check location settings
+     *
+     * @param request Request which settings have to satisfy
+     */
+    @Override
+    public void checkLocationSettings(LocationRequest request) {
+        if (mGoogleApiClient == null) return;
+        Log.d(Constants.LOG_TAG_DEBUG, "FusedLocationProvider.checkLocationSettings(): ");
+        LocationServices.SettingsApi.checkLocationSettings(
+                mGoogleApiClient,
+                new LocationSettingsRequest.Builder()
+                        .addLocationRequest(request)
+                        .build()
+        ).setResultCallback(
+                new ResultCallback<LocationSettingsResult>() {
+                    @Override
+                    public void onResult(@NonNull LocationSettingsResult locationSettingsResult) {
+                        Log.d(Constants.LOG_TAG_DEBUG, "LocationSettingsResult.onResult(): ");
+                        if (mListener == null) return;
+                        LocationSettingsStates states = locationSettingsResult.getLocationSettingsStates();
+                        mListener.onGetLocationSettingsState(
+                                new LocationSettings(
+                                        states.isGpsUsable(),
+                                        states.isNetworkLocationUsable()
+                                )
+                        );
+                    }
+                }
+        );
+    }
+
+    @Override
+    public Location getLastLocation() {
+        if (mGoogleApiClient == null) return null;
+        try {
+            return LocationServices.FusedLocationApi.getLastLocation(mGoogleApiClient);
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Start listen location changes
+     *
+     * @param request Request
+     */
+    @Override
+    public void requestLocationUpdates(LocationRequest request) {
+        if (!isConnected()) return;
+        try {
+            //listener is the same, so the new request replaces the previous one
+            LocationServices.FusedLocationApi.requestLocationUpdates(
+                    mGoogleApiClient,
+                    request,
+                    mLocationCallback,
+                    mHandler.getLooper()
+            );
+        } catch (SecurityException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "FusedLocationProvider.requestLocationUpdates: EXCEPTION - " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    /**
+     * Stop listen location changes
+     */
+    @Override
+    public void removeLocationUpdates() {
+        if (!isConnected()) return;
+        try {
+            LocationServices.FusedLocationApi.removeLocationUpdates(
+                    mGoogleApiClient,
+                    mLocationCallback
+            );
+        } catch (SecurityException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "FusedLocationProvider.removeLocationUpdates: EXCEPTION - " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    /**
+     * Handle Google API error
+     *
+     * @param connectionResult ConnectionResult
+     */
+    private void onGapiFailedConnection(ConnectionResult connectionResult) {
+        if (connectionResult == null || mListener == null) return;
+        //get detailed error message
+        String errMessage = zzh.zzi(mContext, connectionResult.getErrorCode());
+
+        mListener.onConnectionFailed(
+                new GoogleApiError(
+                        connectionResult.getErrorCode(),
+                        errMessage
+                )
+        );
+    }
+}
@@ -0,0 +1,100 @@
+package com.mobiledevpro.locationservice;
+
+/**
+ * Geohash cells packed into long: 5 bits per character, precision in the top 4 bits,
+ * so cells of different precision never have the same key.
+ * <p>
+ * Precision 6 is ~1.2 x 0.6 km, 7 is ~150 x 150 m, 8 is ~40 x 20 m, 9 is ~5 x 5 m.
+ */
+
+final class GeoHash {
+    static final int MAX_PRECISION = 12;
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+    static final long HASH_MASK = (1L << 60) - 1; //bits of characters, without precision
+
+    private GeoHash() {
+    }
+
+    /**
+     * @param latitude  Degrees
+     * @param longitude Degrees
+     * @param precision Count of characters, 1..MAX_PRECISION
+     * @return Cell key
+     */
+    static long encode(double latitude, double longitude, int precision) {
+        double minLatitude = -90;
+        double maxLatitude = 90;
+        double minLongitude = -180;
+        double maxLongitude = 180;
+        long hash = 0;
+        //bits alternate starting from longitude
+        for (int i = 0; i < precision * 5; i++) {
+            hash <<= 1;
+            if ((i & 1) == 0) {
+                double middle = (minLongitude + maxLongitude) / 2;
+                if (longitude >= middle) {
+                    hash |= 1;
+                    minLongitude = middle;
+                } else {
+                    maxLongitude = middle;
+                }
+            } else {
+                double middle = (minLatitude + maxLatitude) / 2;
+                if (latitude >= middle) {
+                    hash |= 1;
+                    minLatitude = middle;
+                } else {
+                    maxLatitude = middle;
+                }
+            }
+        }
+        return hash | ((long) precision << 60);
+    }
+
+    static int getPrecision(long cell) {
+        return (int) (cell >>> 60);
+    }
+
+    /**
+     * @return Latitude of the cell center
+     */
+    static double getLatitude(long cell) {
+        return decode(cell, false);
+    }
+
+    /**
+     * @return Longitude of the cell center
+     */
+    static double getLongitude(long cell) {
+        return decode(cell, true);
+    }
+
+    /**
+     * @return Geohash string, e.g. "u8vxn"
+     */
+    static String toString(long cell) {
+        int precision = getPrecision(cell);
+        char[] chars = new char[precision];
+        for (int i = 0; i < precision; i++) {
+            chars[i] = BASE32[(int) (cell >>> ((precision - 1 - i) * 5)) & 0x1F];
+        }
+        return new String(chars);
+    }
+
+    private static double decode(long cell, boolean isLongitude) {
+        int bits = getPrecision(cell) * 5;
+        long hash = cell & HASH_MASK;
+        double min = isLongitude ? -180 : -90;
+        double max = isLongitude ? 180 : 90;
+        for (int i = isLongitude ? 0 : 1; i < bits; i += 2) {
+            double middle = (min + max) / 2;
+            if ((hash >>> (bits - 1 - i) & 1) != 0) {
+                min = middle;
+            } else {
+                max = middle;
+            }
+        }
+        return (min + max) / 2;
+    }
+}
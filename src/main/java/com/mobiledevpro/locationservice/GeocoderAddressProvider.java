@@ -0,0 +1,34 @@
+package com.mobiledevpro.locationservice;
+
+import android.content.Context;
+import android.location.Address;
+import android.location.Geocoder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Addresses from Android Geocoder (network service of the platform)
+ */
+
+class GeocoderAddressProvider implements AddressProvider {
+    private final Geocoder mGeocoder;
+
+    GeocoderAddressProvider(Context context) {
+        mGeocoder = new Geocoder(context);
+    }
+
+    @Override
+    public String getAddress(double latitude, double longitude) throws IOException {
+        List<Address> addresses = mGeocoder.getFromLocation(latitude, longitude, 1);
+        if (addresses == null || addresses.isEmpty()) return null;
+
+        Address address = addresses.get(0);
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i <= address.getMaxAddressLineIndex(); i++) {
+            if (i > 0) line.append(", ");
+            line.append(address.getAddressLine(i));
+        }
+        return line.toString();
+    }
+}
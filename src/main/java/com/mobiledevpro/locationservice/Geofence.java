@@ -0,0 +1,143 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Circular geofence checked by the service on every fix
+ */
+
+public class Geofence implements Parcelable {
+    /**
+     * Transitions, may be combined as flags in setTransitionTypes()
+     */
+    public static final int TRANSITION_ENTER = 1;
+    public static final int TRANSITION_EXIT = 2;
+    public static final int TRANSITION_DWELL = 4;
+
+    private String id;
+    private double latitude;
+    private double longitude;
+    private float radius; //meters
+    private int transitionTypes = TRANSITION_ENTER | TRANSITION_EXIT;
+    private long loiteringDelay = 0; //milliseconds
+
+    public static final Creator<Geofence> CREATOR = new Creator<Geofence>() {
+        @Override
+        public Geofence createFromParcel(Parcel in) {
+            return new Geofence(in);
+        }
+
+        @Override
+        public Geofence[] newArray(int size) {
+            return new Geofence[size];
+        }
+    };
+
+    /**
+     * @param id        Id, unique for client (fence with the same id is replaced)
+     * @param latitude  Center, -90..90
+     * @param longitude Center, out of -180..180 is wrapped
+     * @param radius    Meters, > 0 (at least 1 meter is used)
+     * @throws IllegalArgumentException Value isn't finite or out of range
+     */
+    public Geofence(String id, double latitude, double longitude, float radius) {
+        this.id = id;
+        setCenter(latitude, longitude);
+        setRadius(radius);
+    }
+
+    /**
+     * Values come from client process, they are checked the same way as by public constructor,
+     * so a bad fence is rejected to the caller instead of reaching the service worker
+     */
+    private Geofence(Parcel in) {
+        id = in.readString();
+        double latitude = in.readDouble();
+        double longitude = in.readDouble();
+        setCenter(latitude, longitude);
+        setRadius(in.readFloat());
+        setTransitionTypes(in.readInt());
+        setLoiteringDelay(in.readLong());
+    }
+
+    private void setCenter(double latitude, double longitude) {
+        if (Double.isNaN(latitude) || latitude < -90 || latitude > 90) {
+            throw new IllegalArgumentException("Latitude must be -90..90: " + latitude);
+        }
+        if (Double.isNaN(longitude) || Double.isInfinite(longitude)) {
+            throw new IllegalArgumentException("Longitude must be finite: " + longitude);
+        }
+        this.latitude = latitude;
+        this.longitude = longitude >= -180 && longitude < 180 ? longitude : longitude - 360 * Math.floor((longitude + 180) / 360);
+    }
+
+    private void setRadius(float radius) {
+        if (!(radius > 0) || Float.isInfinite(radius)) {
+            throw new IllegalArgumentException("Radius must be positive and finite: " + radius);
+        }
+        this.radius = Math.max(1, radius);
+    }
+
+    /**
+     * Transitions client wants to get, ENTER and EXIT by default
+     *
+     * @param transitionTypes TRANSITION_ENTER, TRANSITION_EXIT, TRANSITION_DWELL combined with |
+     *                        (unknown flags are ignored)
+     * @return This geofence
+     */
+    public Geofence setTransitionTypes(int transitionTypes) {
+        this.transitionTypes = transitionTypes & (TRANSITION_ENTER | TRANSITION_EXIT | TRANSITION_DWELL);
+        return this;
+    }
+
+    /**
+     * Time inside the fence before DWELL transition
+     *
+     * @param loiteringDelay Milliseconds
+     * @return This geofence
+     */
+    public Geofence setLoiteringDelay(long loiteringDelay) {
+        this.loiteringDelay = Math.max(0, loiteringDelay);
+        return this;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public float getRadius() {
+        return radius;
+    }
+
+    public int getTransitionTypes() {
+        return transitionTypes;
+    }
+
+    public long getLoiteringDelay() {
+        return loiteringDelay;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(id);
+        dest.writeDouble(latitude);
+        dest.writeDouble(longitude);
+        dest.writeFloat(radius);
+        dest.writeInt(transitionTypes);
+        dest.writeLong(loiteringDelay);
+    }
+}
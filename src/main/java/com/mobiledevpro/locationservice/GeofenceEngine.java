@@ -0,0 +1,259 @@
+package com.mobiledevpro.locationservice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Checks every fix against clients' geofences.
+ * <p>
+ * Fences are put into uniform lat/lon grid cells they overlap, so a fix is checked only against fences
+ * of its own cell and fences it's currently inside: cost doesn't depend on total count of fences.
+ * Fences bigger than GEOFENCE_MAX_CELLS cells are checked on every fix.
+ * Used on service worker thread only.
+ */
+
+class GeofenceEngine {
+    private static final double METERS_PER_DEGREE = 111320;
+    private static final int LONGITUDE_CELLS = (int) Math.round(360 / Constants.GEOFENCE_CELL_SIZE);
+
+    interface Listener {
+        /**
+         * @param owner      Client who added the fence
+         * @param id         Fence id
+         * @param transition Geofence.TRANSITION_*
+         * @param fix        Fix which caused transition
+         */
+        void onGeofenceTransition(LocationSubscriber owner, String id, int transition, LocationFix fix);
+    }
+
+    private final Listener mListener;
+    private final LongHashMap<ArrayList<FenceState>> mCells = new LongHashMap<>();
+    private final ArrayList<FenceState> mLargeFences = new ArrayList<>();
+    private final HashMap<LocationSubscriber, HashMap<String, FenceState>> mFences = new HashMap<>();
+    private final ArrayList<FenceState> mInside = new ArrayList<>();
+    private long mEvaluation; //count of fixes, marks fences already checked with the current fix
+    private int mCount;
+
+    GeofenceEngine(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return Count of fences of all clients
+     */
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Add fences, fence with the same id replaces the old one. Only cells of new fences are changed.
+     *
+     * @param owner  Client
+     * @param fences Fences
+     * @return Count of fences which weren't added because of GEOFENCE_MAX_PER_CLIENT limit
+     */
+    int add(LocationSubscriber owner, List<Geofence> fences) {
+        HashMap<String, FenceState> ownerFences = mFences.get(owner);
+        if (ownerFences == null) {
+            ownerFences = new HashMap<>();
+            mFences.put(owner, ownerFences);
+        }
+
+        int rejected = 0;
+        for (Geofence fence : fences) {
+            if (fence == null || fence.getId() == null) continue;
+            FenceState old = ownerFences.remove(fence.getId());
+            if (old != null) removeFence(old);
+            if (ownerFences.size() >= Constants.GEOFENCE_MAX_PER_CLIENT) {
+                rejected++;
+                continue;
+            }
+            FenceState state = new FenceState(owner, fence);
+            ownerFences.put(fence.getId(), state);
+            addFence(state);
+        }
+        return rejected;
+    }
+
+    /**
+     * @param owner Client
+     * @param ids   Ids of fences
+     */
+    void remove(LocationSubscriber owner, List<String> ids) {
+        HashMap<String, FenceState> ownerFences = mFences.get(owner);
+        if (ownerFences == null) return;
+        for (String id : ids) {
+            FenceState state = ownerFences.remove(id);
+            if (state != null) removeFence(state);
+        }
+        if (ownerFences.isEmpty()) mFences.remove(owner);
+    }
+
+    /**
+     * Remove all fences of the client (client is gone)
+     *
+     * @param owner Client
+     */
+    void removeAll(LocationSubscriber owner) {
+        HashMap<String, FenceState> ownerFences = mFences.remove(owner);
+        if (ownerFences == null) return;
+        for (FenceState state : ownerFences.values()) {
+            removeFence(state);
+        }
+    }
+
+    /**
+     * Check fix against fences and emit transitions. Doesn't allocate unless there are transitions.
+     *
+     * @param fix Fix
+     */
+    void onFix(LocationFix fix) {
+        if (mCount == 0) return;
+        mEvaluation++;
+
+        //device may have left them to another cell; backward, because exit removes fence from the list
+        for (int i = mInside.size() - 1; i >= 0; i--) {
+            evaluate(mInside.get(i), fix);
+        }
+        for (int i = 0; i < mLargeFences.size(); i++) {
+            FenceState state = mLargeFences.get(i);
+            if (state.evaluation != mEvaluation) evaluate(state, fix);
+        }
+        ArrayList<FenceState> cell = mCells.get(cellKey(latitudeCell(fix.getLatitude()), longitudeCell(fix.getLongitude())));
+        if (cell == null) return;
+        for (int i = 0; i < cell.size(); i++) {
+            FenceState state = cell.get(i);
+            if (state.evaluation != mEvaluation) evaluate(state, fix);
+        }
+    }
+
+    private void evaluate(FenceState state, LocationFix fix) {
+        state.evaluation = mEvaluation;
+        Geofence fence = state.fence;
+        boolean isInside = AdaptiveSampler.distance(fence.getLatitude(), fence.getLongitude(), fix.getLatitude(), fix.getLongitude())
+                <= fence.getRadius();
+
+        if (isInside && !state.isInside) {
+            state.isInside = true;
+            state.enterTime = fix.getTime();
+            state.isDwellSent = false;
+            state.insideIndex = mInside.size();
+            mInside.add(state);
+            emit(state, Geofence.TRANSITION_ENTER, fix);
+        } else if (!isInside && state.isInside) {
+            removeInside(state);
+            emit(state, Geofence.TRANSITION_EXIT, fix);
+        }
+
+        if (state.isInside && !state.isDwellSent
+                && (fence.getTransitionTypes() & Geofence.TRANSITION_DWELL) != 0
+                && fix.getTime() - state.enterTime >= fence.getLoiteringDelay()) {
+            state.isDwellSent = true;
+            emit(state, Geofence.TRANSITION_DWELL, fix);
+        }
+    }
+
+    private void emit(FenceState state, int transition, LocationFix fix) {
+        if ((state.fence.getTransitionTypes() & transition) == 0) return;
+        mListener.onGeofenceTransition(state.owner, state.fence.getId(), transition, fix);
+    }
+
+    private void addFence(FenceState state) {
+        Geofence fence = state.fence;
+        double latitudeDelta = fence.getRadius() / METERS_PER_DEGREE;
+        double longitudeDelta = fence.getRadius() / (METERS_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(fence.getLatitude()))));
+        int fromLatitude = latitudeCell(Math.max(-90, fence.getLatitude() - latitudeDelta));
+        int toLatitude = latitudeCell(Math.min(90, fence.getLatitude() + latitudeDelta));
+        int fromLongitude = (int) Math.floor((fence.getLongitude() - longitudeDelta + 180) / Constants.GEOFENCE_CELL_SIZE);
+        int longitudeCount = Math.min(LONGITUDE_CELLS, (int) Math.floor((fence.getLongitude() + longitudeDelta + 180) / Constants.GEOFENCE_CELL_SIZE) - fromLongitude + 1);
+
+        long cellCount = (long) (toLatitude - fromLatitude + 1) * longitudeCount;
+        //Geofence checks its values, but a range which isn't a valid grid must not throw on the worker:
+        //checking the fence on every fix is always correct
+        if (cellCount <= 0 || cellCount > Constants.GEOFENCE_MAX_CELLS) {
+            mLargeFences.add(state);
+        } else {
+            state.cells = new long[(int) cellCount];
+            int n = 0;
+            for (int latitude = fromLatitude; latitude <= toLatitude; latitude++) {
+                for (int i = 0; i < longitudeCount; i++) {
+                    //fence may cross 180th meridian
+                    long key = cellKey(latitude, floorMod(fromLongitude + i, LONGITUDE_CELLS));
+                    ArrayList<FenceState> cell = mCells.get(key);
+                    if (cell == null) {
+                        cell = new ArrayList<>(4);
+                        mCells.put(key, cell);
+                    }
+                    cell.add(state);
+                    state.cells[n++] = key;
+                }
+            }
+        }
+        mCount++;
+    }
+
+    private void removeFence(FenceState state) {
+        if (state.cells == null) {
+            mLargeFences.remove(state);
+        } else {
+            for (long key : state.cells) {
+                ArrayList<FenceState> cell = mCells.get(key);
+                if (cell == null) continue;
+                cell.remove(state);
+                if (cell.isEmpty()) mCells.remove(key);
+            }
+        }
+        if (state.isInside) removeInside(state);
+        mCount--;
+    }
+
+    /**
+     * Swap with the last one, O(1)
+     */
+    private void removeInside(FenceState state) {
+        FenceState last = mInside.remove(mInside.size() - 1);
+        if (last != state) {
+            mInside.set(state.insideIndex, last);
+            last.insideIndex = state.insideIndex;
+        }
+        state.isInside = false;
+        state.insideIndex = -1;
+    }
+
+    private static int latitudeCell(double latitude) {
+        return (int) Math.floor((latitude + 90) / Constants.GEOFENCE_CELL_SIZE);
+    }
+
+    private static int longitudeCell(double longitude) {
+        return floorMod((int) Math.floor((longitude + 180) / Constants.GEOFENCE_CELL_SIZE), LONGITUDE_CELLS);
+    }
+
+    private static long cellKey(int latitudeCell, int longitudeCell) {
+        return ((long) latitudeCell << 32) | (longitudeCell & 0xFFFFFFFFL);
+    }
+
+    private static int floorMod(int value, int divisor) {
+        int mod = value % divisor;
+        return mod < 0 ? mod + divisor : mod;
+    }
+
+    /**
+     * Fence and its state for the current device position
+     */
+    private static class FenceState {
+        final LocationSubscriber owner;
+        final Geofence fence;
+        long[] cells; //null - large fence
+        boolean isInside;
+        int insideIndex = -1;
+        long enterTime;
+        boolean isDwellSent;
+        long evaluation;
+
+        FenceState(LocationSubscriber owner, Geofence fence) {
+            this.owner = owner;
+            this.fence = fence;
+        }
+    }
+}
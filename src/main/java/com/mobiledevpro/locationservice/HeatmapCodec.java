@@ -0,0 +1,110 @@
+package com.mobiledevpro.locationservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact snapshot of dwell heatmap at one precision, for upload instead of the full track.
+ * <p>
+ * Header: magic (2 bytes), version, geohash precision, count of cells (varint).
+ * Cell: geohash bits (varint of the difference with the previous cell, cells are sorted),
+ * dwell time (varint, seconds), visit count (varint).
+ * A cell usually takes 5-8 bytes, so a heatmap of a thousand places is a few KB.
+ */
+
+public final class HeatmapCodec {
+    private static final int MAGIC = 0x4C48; //"LH"
+    private static final int VERSION = 1;
+    private static final int MAX_VARINT_SIZE = 10;
+
+    private HeatmapCodec() {
+    }
+
+    /**
+     * @param table     Cells of one precision
+     * @param precision Geohash length of the cells
+     * @return Snapshot
+     */
+    static byte[] encode(DwellTable table, int precision) {
+        long[] cells = new long[table.size()];
+        int count = 0;
+        for (int i = 0; i < table.getSlotCount(); i++) {
+            if (table.getCell(i) != 0) cells[count++] = table.getCell(i);
+        }
+        //neighbour cells share geohash prefix, so sorted cells differ by small numbers
+        Arrays.sort(cells, 0, count);
+
+        byte[] buffer = new byte[3 * MAX_VARINT_SIZE];
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4 + MAX_VARINT_SIZE + count * 8);
+        out.write(MAGIC >>> 8);
+        out.write(MAGIC & 0xFF);
+        out.write(VERSION);
+        out.write(precision);
+        out.write(buffer, 0, TrackCodec.writeVarint(buffer, 0, count));
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = table.find(cells[i]);
+            long hash = cells[i] & GeoHash.HASH_MASK;
+            int size = TrackCodec.writeVarint(buffer, 0, hash - previous);
+            size = TrackCodec.writeVarint(buffer, size, (table.getDwellTime(slot) + 500) / 1000);
+            size = TrackCodec.writeVarint(buffer, size, table.getVisits(slot));
+            out.write(buffer, 0, size);
+            previous = hash;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param snapshot Snapshot from LocationServiceManager.exportDwellHeatmap()
+     * @return Cells in order of geohash
+     * @throws IOException Not a snapshot or it's truncated
+     */
+    public static List<DwellCell> decode(byte[] snapshot) throws IOException {
+        Reader in = new Reader(snapshot);
+        int magic = (in.readByte() << 8) | in.readByte();
+        int version = in.readByte();
+        int precision = in.readByte();
+        if (magic != MAGIC || version != VERSION || precision < 1 || precision > GeoHash.MAX_PRECISION) {
+            throw new IOException("Not a heatmap: magic - " + magic + ", version - " + version);
+        }
+        long count = in.readVarint();
+        if (count > snapshot.length) throw new IOException("Malformed count: " + count);
+
+        List<DwellCell> cells = new ArrayList<>((int) count);
+        long hash = 0;
+        for (int i = 0; i < count; i++) {
+            hash += in.readVarint();
+            long dwellTime = in.readVarint() * 1000;
+            int visits = (int) in.readVarint();
+            cells.add(new DwellCell(hash | ((long) precision << 60), dwellTime, visits));
+        }
+        return cells;
+    }
+
+    private static class Reader {
+        private final byte[] mBuffer;
+        private int mPosition;
+
+        Reader(byte[] buffer) {
+            mBuffer = buffer;
+        }
+
+        int readByte() throws IOException {
+            if (mPosition >= mBuffer.length) throw new IOException("Unexpected end of heatmap");
+            return mBuffer[mPosition++] & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Malformed varint");
+        }
+    }
+}
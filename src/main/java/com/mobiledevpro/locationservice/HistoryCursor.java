@@ -0,0 +1,177 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams recorded fixes of time range to client by pages, only one segment is opened at once.
+ * Cursor which isn't read for HISTORY_CURSOR_IDLE_TIMEOUT is closed, so a client which died
+ * or forgot to close it doesn't hold the mapped segment.
+ */
+
+class HistoryCursor extends IHistoryCursor.Stub {
+
+    interface Listener {
+        /**
+         * Cursor was closed by client, at the end of range or after idle timeout
+         *
+         * @param cursor Cursor
+         */
+        void onCursorClosed(HistoryCursor cursor);
+    }
+
+    private final TrackHistory mHistory;
+    private final long mFrom;
+    private final long mTo;
+    private final Handler mHandler;
+    private final Listener mListener;
+
+    //guarded by this (client may call from different binder threads)
+    private List<TrackHistory.SegmentIndex> mSegments;
+    private int mSegmentPosition;
+    private TrackSegment mSegment;
+    private int mRecord;
+    private boolean mIsClosed;
+    private long mLastAccess; //SystemClock.uptimeMillis()
+
+    private final Runnable mExpiry = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (HistoryCursor.this) {
+                if (mIsClosed) return;
+                long expiry = mLastAccess + Constants.HISTORY_CURSOR_IDLE_TIMEOUT;
+                if (SystemClock.uptimeMillis() < expiry) {
+                    mHandler.postAtTime(this, expiry);
+                    return;
+                }
+                Log.d(Constants.LOG_TAG_DEBUG, "HistoryCursor: isn't read for a long time, closed");
+                close();
+            }
+        }
+    };
+
+    /**
+     * @param history  Track history
+     * @param from     UTC time, milliseconds
+     * @param to       UTC time, milliseconds, inclusive
+     * @param handler  Handler of idle timeout
+     * @param listener Listener
+     */
+    HistoryCursor(TrackHistory history, long from, long to, Handler handler, Listener listener) {
+        mHistory = history;
+        mFrom = from;
+        mTo = to;
+        mHandler = handler;
+        mListener = listener;
+        mLastAccess = SystemClock.uptimeMillis();
+        mHandler.postAtTime(mExpiry, mLastAccess + Constants.HISTORY_CURSOR_IDLE_TIMEOUT);
+    }
+
+    /**
+     * @param maxCount Max count of fixes in page (limited by HISTORY_PAGE_SIZE)
+     * @return Next fixes in order of time, empty list - no more fixes
+     */
+    @Override
+    public synchronized List<LocationFix> next(int maxCount) {
+        mLastAccess = SystemClock.uptimeMillis();
+        maxCount = Math.max(1, Math.min(maxCount, Constants.HISTORY_PAGE_SIZE));
+        List<LocationFix> fixes = new ArrayList<>(Math.min(maxCount, 64));
+        while (fixes.size() < maxCount) {
+            LocationFix fix = new LocationFix();
+            if (!readNext(fix)) break;
+            fixes.add(fix);
+        }
+        return fixes;
+    }
+
+    /**
+     * @param maxCount  Max count of fixes in page (limited by HISTORY_ENCODED_PAGE_SIZE and HISTORY_ENCODED_PAGE_BYTES)
+     * @param tolerance Meters of track simplification, 0 - all fixes
+     * @return Next fixes encoded by TrackCodec (every page has its own header), empty array - no more fixes
+     */
+    @Override
+    public synchronized byte[] nextEncoded(int maxCount, float tolerance) {
+        mLastAccess = SystemClock.uptimeMillis();
+        maxCount = Math.max(1, Math.min(maxCount, Constants.HISTORY_ENCODED_PAGE_SIZE));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TrackCodec.Encoder encoder = new TrackCodec.Encoder(out, TrackCodec.DEFAULT_PRECISION, tolerance);
+        LocationFix fix = new LocationFix();
+        //the next write() and finish() encode not more than one fix each
+        int byteLimit = Constants.HISTORY_ENCODED_PAGE_BYTES - TrackCodec.HEADER_SIZE - 2 * TrackCodec.MAX_FIX_SIZE;
+        try {
+            for (int i = 0; i < maxCount && out.size() <= byteLimit && readNext(fix); i++) {
+                encoder.write(fix);
+            }
+            if (encoder.getCount() == 0) return new byte[0];
+            encoder.finish();
+        } catch (IOException e) {
+            //doesn't happen with byte array
+            Log.e(Constants.LOG_TAG_ERROR, "HistoryCursor.nextEncoded: EXCEPTION - " + e.getLocalizedMessage(), e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mIsClosed) return;
+        mIsClosed = true;
+        if (mSegment != null) {
+            mSegment.close();
+            mSegment = null;
+        }
+        mHandler.removeCallbacks(mExpiry);
+        mListener.onCursorClosed(this);
+    }
+
+    /**
+     * @param out Fix to fill
+     * @return False - no more fixes in range, cursor is closed
+     */
+    private boolean readNext(LocationFix out) {
+        if (mIsClosed) return false;
+        if (mSegments == null) mSegments = mHistory.findSegments(mFrom, mTo);
+
+        while (true) {
+            if (mSegment == null && !openNextSegment()) {
+                close();
+                return false;
+            }
+            if (mRecord >= mSegment.getCount()) {
+                mSegment.close();
+                mSegment = null;
+                continue;
+            }
+            if (!mSegment.read(mRecord++, out)) continue;
+            if (out.getTime() > mTo) {
+                close();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return False - there are no more segments in range
+     */
+    private boolean openNextSegment() {
+        while (mSegmentPosition < mSegments.size()) {
+            TrackHistory.SegmentIndex index = mSegments.get(mSegmentPosition++);
+            try {
+                mSegment = TrackSegment.openForRead(index.file);
+            } catch (IOException e) {
+                //segment was deleted by rotation or it's broken, go on with the next one
+                Log.e(Constants.LOG_TAG_ERROR, "HistoryCursor.openNextSegment: EXCEPTION - " + e.getLocalizedMessage(), e);
+                continue;
+            }
+            mRecord = index.findFirst(mSegment, mFrom);
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,165 @@
+package com.mobiledevpro.locationservice;
+
+/**
+ * Constant velocity Kalman filter of device position, fix accuracy is used as measurement noise.
+ * <p>
+ * Position is filtered in meters on the plane tangent to the reference point.
+ * East and north axes are independent and get the same noises, so they share one covariance matrix.
+ * Fix which requires physically impossible speed is rejected as outlier.
+ * Incremental and allocation-free, used on service worker thread only.
+ */
+
+class KalmanFilter {
+    private static final double METERS_PER_DEGREE = Math.toRadians(AdaptiveSampler.EARTH_RADIUS);
+
+    private boolean mIsInitialized;
+    private long mTime; //of the last accepted fix
+    private int mRejectedInRow;
+
+    //reference point of the plane
+    private double mReferenceLatitude;
+    private double mReferenceLongitude;
+    private double mMetersPerLongitudeDegree;
+
+    //state: position (meters) and velocity (m/s) along east and north axes
+    private double mEast;
+    private double mNorth;
+    private double mEastVelocity;
+    private double mNorthVelocity;
+
+    //covariance of position and velocity, the same for both axes
+    private double mP00;
+    private double mP01;
+    private double mP11;
+
+    void reset() {
+        mIsInitialized = false;
+        mRejectedInRow = 0;
+    }
+
+    /**
+     * @param fix Raw fix
+     * @param out Smoothed fix (may be the same object as fix)
+     * @return False - fix is rejected as outlier, out isn't changed
+     */
+    boolean onFix(LocationFix fix, LocationFix out) {
+        double accuracy = fix.getAccuracy() > 0 ? fix.getAccuracy() : Constants.KALMAN_DEFAULT_ACCURACY;
+        double dt = (fix.getTime() - mTime) / 1000.0;
+
+        if (!mIsInitialized || dt > Constants.KALMAN_RESET_TIME || dt < 0 || mRejectedInRow >= Constants.KALMAN_MAX_REJECTED) {
+            //start over: first fix, long gap, clock change or the filter lost the track
+            initialize(fix, accuracy);
+            write(fix, out);
+            return true;
+        }
+
+        //predict, state is changed only if the fix is accepted: rejected fix must not move the filter
+        double predictedEast = mEast;
+        double predictedNorth = mNorth;
+        double p00 = mP00;
+        double p01 = mP01;
+        double p11 = mP11;
+        if (dt > 0) {
+            double q = Constants.KALMAN_ACCELERATION_NOISE * Constants.KALMAN_ACCELERATION_NOISE;
+            double dt2 = dt * dt;
+            predictedEast += mEastVelocity * dt;
+            predictedNorth += mNorthVelocity * dt;
+            p00 += 2 * dt * p01 + dt2 * p11 + q * dt2 * dt2 / 4;
+            p01 += dt * p11 + q * dt2 * dt / 2;
+            p11 += q * dt2;
+        }
+
+        //reject fix which is farther than device can move
+        double east = toEast(fix.getLongitude());
+        double north = toNorth(fix.getLatitude());
+        double distance = Math.hypot(east - predictedEast, north - predictedNorth);
+        if (distance - accuracy - 3 * Math.sqrt(p00) > Constants.KALMAN_MAX_SPEED * Math.max(dt, 1)) {
+            mRejectedInRow++;
+            return false;
+        }
+        mRejectedInRow = 0;
+        mTime = fix.getTime();
+        mEast = predictedEast;
+        mNorth = predictedNorth;
+        mP00 = p00;
+        mP01 = p01;
+        mP11 = p11;
+
+        //update
+        double s = mP00 + accuracy * accuracy;
+        double k0 = mP00 / s;
+        double k1 = mP01 / s;
+        double eastInnovation = east - mEast;
+        double northInnovation = north - mNorth;
+        mEast += k0 * eastInnovation;
+        mNorth += k0 * northInnovation;
+        mEastVelocity += k1 * eastInnovation;
+        mNorthVelocity += k1 * northInnovation;
+        mP11 -= k1 * mP01;
+        mP01 *= 1 - k0;
+        mP00 *= 1 - k0;
+
+        write(fix, out);
+        //keep projection error small
+        if (Math.abs(mEast) > Constants.KALMAN_REFERENCE_DISTANCE || Math.abs(mNorth) > Constants.KALMAN_REFERENCE_DISTANCE) {
+            setReference(out.getLatitude(), out.getLongitude());
+            mEast = 0;
+            mNorth = 0;
+        }
+        return true;
+    }
+
+    private void initialize(LocationFix fix, double accuracy) {
+        setReference(fix.getLatitude(), fix.getLongitude());
+        mEast = 0;
+        mNorth = 0;
+        double bearing = Math.toRadians(fix.getBearing());
+        mEastVelocity = fix.getSpeed() * Math.sin(bearing);
+        mNorthVelocity = fix.getSpeed() * Math.cos(bearing);
+        mP00 = accuracy * accuracy;
+        mP01 = 0;
+        mP11 = Constants.KALMAN_INITIAL_SPEED_ERROR * Constants.KALMAN_INITIAL_SPEED_ERROR;
+        mTime = fix.getTime();
+        mRejectedInRow = 0;
+        mIsInitialized = true;
+    }
+
+    private void setReference(double latitude, double longitude) {
+        mReferenceLatitude = latitude;
+        mReferenceLongitude = longitude;
+        mMetersPerLongitudeDegree = METERS_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(latitude)));
+    }
+
+    private double toEast(double longitude) {
+        double delta = longitude - mReferenceLongitude;
+        //across 180th meridian
+        if (delta > 180) delta -= 360;
+        if (delta < -180) delta += 360;
+        return delta * mMetersPerLongitudeDegree;
+    }
+
+    private double toNorth(double latitude) {
+        return (latitude - mReferenceLatitude) * METERS_PER_DEGREE;
+    }
+
+    /**
+     * Copy filter state to fix, altitude and time are taken from raw fix
+     */
+    private void write(LocationFix fix, LocationFix out) {
+        double longitude = mReferenceLongitude + mEast / mMetersPerLongitudeDegree;
+        if (longitude > 180) longitude -= 360;
+        if (longitude < -180) longitude += 360;
+        double bearing = Math.toDegrees(Math.atan2(mEastVelocity, mNorthVelocity));
+        long receivedNanos = fix.receivedNanos;
+        out.set(
+                fix.getTime(),
+                mReferenceLatitude + mNorth / METERS_PER_DEGREE,
+                longitude,
+                fix.getAltitude(),
+                (float) Math.sqrt(mP00),
+                (float) Math.hypot(mEastVelocity, mNorthVelocity),
+                (float) (bearing < 0 ? bearing + 360 : bearing)
+        );
+        out.receivedNanos = receivedNanos;
+    }
+}
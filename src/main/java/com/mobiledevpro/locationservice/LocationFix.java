@@ -0,0 +1,145 @@
+package com.mobiledevpro.locationservice;
+
+import android.location.Location;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Model for single location fix (sent to client in batches)
+ */
+
+public class LocationFix implements Parcelable {
+    private long time;
+    private double latitude;
+    private double longitude;
+    private double altitude;
+    private float accuracy;
+    private float speed;
+    private float bearing;
+    //SystemClock.elapsedRealtimeNanos() when the service got this fix, isn't sent to clients
+    long receivedNanos;
+
+    public static final Creator<LocationFix> CREATOR = new Creator<LocationFix>() {
+        @Override
+        public LocationFix createFromParcel(Parcel in) {
+            return new LocationFix(in);
+        }
+
+        @Override
+        public LocationFix[] newArray(int size) {
+            return new LocationFix[size];
+        }
+    };
+
+    /**
+     * Empty fix, to be filled by set() or TrackCodec.Decoder.read()
+     */
+    public LocationFix() {
+    }
+
+    LocationFix(Location location) {
+        set(location);
+    }
+
+    LocationFix(LocationFix fix) {
+        set(fix.time, fix.latitude, fix.longitude, fix.altitude, fix.accuracy, fix.speed, fix.bearing);
+        receivedNanos = fix.receivedNanos;
+    }
+
+    private LocationFix(Parcel in) {
+        time = in.readLong();
+        latitude = in.readDouble();
+        longitude = in.readDouble();
+        altitude = in.readDouble();
+        accuracy = in.readFloat();
+        speed = in.readFloat();
+        bearing = in.readFloat();
+    }
+
+    /**
+     * Copy values from location
+     *
+     * @param location Location
+     */
+    void set(Location location) {
+        time = location.getTime();
+        latitude = location.getLatitude();
+        longitude = location.getLongitude();
+        altitude = location.getAltitude();
+        accuracy = location.getAccuracy();
+        speed = location.getSpeed();
+        bearing = location.getBearing();
+    }
+
+    /**
+     * @param time      UTC time, milliseconds
+     * @param latitude  Degrees
+     * @param longitude Degrees
+     * @param altitude  Meters
+     * @param accuracy  Meters
+     * @param speed     Meters/second
+     * @param bearing   Degrees
+     */
+    public void set(long time, double latitude, double longitude, double altitude, float accuracy, float speed, float bearing) {
+        this.time = time;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.altitude = altitude;
+        this.accuracy = accuracy;
+        this.speed = speed;
+        this.bearing = bearing;
+    }
+
+    /**
+     * @return UTC time of this fix, in milliseconds since January 1, 1970
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public double getAltitude() {
+        return altitude;
+    }
+
+    public float getAccuracy() {
+        return accuracy;
+    }
+
+    /**
+     * @return Speed in meters/second over ground (0 if unknown)
+     */
+    public float getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @return Bearing in degrees (0 if unknown)
+     */
+    public float getBearing() {
+        return bearing;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(time);
+        dest.writeDouble(latitude);
+        dest.writeDouble(longitude);
+        dest.writeDouble(altitude);
+        dest.writeFloat(accuracy);
+        dest.writeFloat(speed);
+        dest.writeFloat(bearing);
+    }
+}
@@ -0,0 +1,72 @@
+package com.mobiledevpro.locationservice;
+
+import android.location.Location;
+import android.os.Handler;
+
+import com.google.android.gms.location.LocationRequest;
+
+import java.util.List;
+
+/**
+ * Source of fixes used by LocationService
+ * <p>
+ * All methods are called and all listener callbacks are delivered on the handler passed to connect().
+ */
+
+interface LocationProvider {
+
+    interface Listener {
+        void onConnected();
+
+        void onConnectionSuspended();
+
+        void onConnectionFailed(GoogleApiError error);
+
+        void onGetLocationSettingsState(LocationSettings settings);
+
+        void onLocationChanged(Location location);
+
+        /**
+         * Several fixes at once (deferred delivery, request with max wait time)
+         *
+         * @param locations Fixes in order of time
+         */
+        void onLocationsChanged(List<Location> locations);
+    }
+
+    /**
+     * Connect to the source, Listener.onConnected() or Listener.onConnectionFailed() is called as result
+     *
+     * @param listener Listener
+     * @param handler  Handler for callbacks
+     */
+    void connect(Listener listener, Handler handler);
+
+    /**
+     * Disconnect from the source, location updates are stopped
+     */
+    void disconnect();
+
+    boolean isConnected();
+
+    /**
+     * Check location settings, Listener.onGetLocationSettingsState() is called as result
+     *
+     * @param request Request which settings have to satisfy
+     */
+    void checkLocationSettings(LocationRequest request);
+
+    /**
+     * @return Last known location or null
+     */
+    Location getLastLocation();
+
+    /**
+     * Start location updates, or replace request if updates are already started
+     *
+     * @param request Request
+     */
+    void requestLocationUpdates(LocationRequest request);
+
+    void removeLocationUpdates();
+}
@@ -0,0 +1,88 @@
+package com.mobiledevpro.locationservice;
+
+import com.google.android.gms.location.LocationRequest;
+
+/**
+ * Builds the least demanding location request which satisfies all clients
+ */
+
+class LocationRequestMerger {
+    private int mCount;
+    private long mInterval;
+    private long mFastestInterval;
+    private int mPriority;
+    private float mSmallestDisplacement;
+    private boolean mIsAdaptiveSamplingAllowed;
+    private long mMaxWaitTime;
+
+    LocationRequestMerger() {
+        reset();
+    }
+
+    void reset() {
+        mCount = 0;
+        mInterval = Long.MAX_VALUE;
+        mFastestInterval = Long.MAX_VALUE;
+        mPriority = LocationRequest.PRIORITY_NO_POWER;
+        mSmallestDisplacement = Float.MAX_VALUE;
+        mIsAdaptiveSamplingAllowed = true;
+        mMaxWaitTime = Long.MAX_VALUE;
+    }
+
+    /**
+     * Take client's requirements into account
+     *
+     * @param subscription Client's subscription
+     */
+    void add(LocationSubscription subscription) {
+        mCount++;
+        mInterval = Math.min(mInterval, subscription.getInterval());
+        mFastestInterval = Math.min(mFastestInterval, subscription.getFastestInterval());
+        //priority constants grow from the most accurate to the least one
+        mPriority = Math.min(mPriority, subscription.getPriority());
+        mSmallestDisplacement = Math.min(mSmallestDisplacement, subscription.getSmallestDisplacement());
+        mIsAdaptiveSamplingAllowed &= subscription.isAdaptiveSampling();
+        //client without deferral turns it off for everyone
+        mMaxWaitTime = Math.min(mMaxWaitTime, subscription.getMaxWaitTime());
+    }
+
+    /**
+     * @return True - none of added clients turned adaptive sampling off
+     */
+    boolean isAdaptiveSamplingAllowed() {
+        return mIsAdaptiveSamplingAllowed;
+    }
+
+    /**
+     * @return Merged request or null if no client was added
+     */
+    LocationRequest build() {
+        if (mCount == 0) return null;
+        return new LocationRequest()
+                .setInterval(mInterval)
+                .setFastestInterval(mFastestInterval)
+                .setPriority(mPriority)
+                .setSmallestDisplacement(mSmallestDisplacement)
+                //provider batch must fit the fix ring, huge client interval doesn't overflow
+                .setMaxWaitTime(Math.min(mMaxWaitTime, mInterval > Long.MAX_VALUE / Constants.DEFERRED_MAX_FIXES
+                        ? Long.MAX_VALUE
+                        : mInterval * Constants.DEFERRED_MAX_FIXES));
+    }
+
+    /**
+     * Compare requests by fields which are set by this merger
+     *
+     * @param r1 Request
+     * @param r2 Request
+     * @return True - requests are equal
+     */
+    static boolean isSame(LocationRequest r1, LocationRequest r2) {
+        if (r1 == r2) return true;
+        if (r1 == null || r2 == null) return false;
+        return r1.getInterval() == r2.getInterval()
+                && r1.getFastestInterval() == r2.getFastestInterval()
+                && r1.getPriority() == r2.getPriority()
+                && r1.getSmallestDisplacement() == r2.getSmallestDisplacement()
+                && r1.getMaxWaitTime() == r2.getMaxWaitTime();
+    }
+}
@@ -1,29 +1,43 @@
 package com.mobiledevpro.locationservice;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.location.Geocoder;
 import android.location.Location;
-import android.os.Bundle;
+import android.net.ConnectivityManager;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
-import android.support.annotation.NonNull;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.common.internal.zzh;
-import com.google.android.gms.location.LocationListener;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+
 import com.google.android.gms.location.LocationRequest;
-import com.google.android.gms.location.LocationServices;
-import com.google.android.gms.location.LocationSettingsRequest;
-import com.google.android.gms.location.LocationSettingsResult;
-import com.google.android.gms.location.LocationSettingsStates;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
@@ -40,8 +54,32 @@ public class LocationService extends Service {
     private static final int HANDLE_MSG_ON_GAPI_CONNECTION_FAILED = 1;
     private static final int HANDLE_MSG_ON_GET_LOCATION_STATE = 2;
     private static final int HANDLE_MSG_ON_LOCATION_UPDATED = 3;
+    private static final int HANDLE_MSG_FLUSH_BATCHES = 4;
+    private static final int HANDLE_MSG_UNREGISTER = 5;
+    private static final int HANDLE_MSG_REGISTER = 6;
+    private static final int HANDLE_MSG_STATS_SNAPSHOT = 7;
+    private static final int HANDLE_MSG_SUBSCRIBER_REMOVED = 8;
+    private static final int HANDLE_MSG_PROVIDER_IDLE = 9;
+    private static final int HANDLE_MSG_RECONNECT = 10;
 
-    private final RemoteCallbackList<ILocationServiceCallbacks> mCallbacks = new RemoteCallbackList<>();
+    /**
+     * Provider states, see ILocationServiceCallbacks.onProviderStateChanged()
+     */
+    static final int PROVIDER_STATE_CONNECTING = 0;
+    static final int PROVIDER_STATE_ACTIVE = 1;
+    static final int PROVIDER_STATE_IDLE = 2;
+    static final int PROVIDER_STATE_LOCATION_OFF = 3;
+    static final int PROVIDER_STATE_SUSPENDED = 4;
+    static final int PROVIDER_STATE_FAILED = 5;
+
+    private final RemoteCallbackList<ILocationServiceCallbacks> mCallbacks = new RemoteCallbackList<ILocationServiceCallbacks>() {
+        @Override
+        public void onCallbackDied(ILocationServiceCallbacks callback, Object cookie) {
+            ((LocationSubscriber) cookie).close();
+            Message msg = mHandler.obtainMessage(HANDLE_MSG_SUBSCRIBER_REMOVED, cookie);
+            mHandler.sendMessage(msg);
+        }
+    };
     private final ILocationService.Stub mBinder = new ILocationService.Stub() {
         /**
          * Register LocationService callbacks
@@ -51,111 +89,971 @@ public class LocationService extends Service {
          */
         @Override
         public void registerCallback(ILocationServiceCallbacks callbacks) throws RemoteException {
-            if (callbacks != null) mCallbacks.register(callbacks);
+            registerCallbackWithParams(callbacks, null);
+        }
+
+        /**
+         * Register LocationService callbacks with client's subscription parameters
+         *
+         * @param callbacks    Callbacks for interact from client (Activity, fragment, etc)
+         * @param subscription Subscription parameters (batching, queue, etc), may be null
+         * @throws RemoteException
+         */
+        @Override
+        public void registerCallbackWithParams(ILocationServiceCallbacks callbacks, LocationSubscription subscription) throws RemoteException {
+            if (callbacks != null) {
+                //registered on worker thread, so it's ordered with unregistering of the same client
+                Message msg = mHandler.obtainMessage(HANDLE_MSG_REGISTER, new LocationSubscriber(callbacks, subscription, mDispatcher));
+                mHandler.sendMessage(msg);
+            }
+        }
+
+        @Override
+        public int getSamplingMode() throws RemoteException {
+            return mSamplingMode;
+        }
+
+        @Override
+        public int getProviderState() throws RemoteException {
+            return mProviderState;
+        }
+
+        @Override
+        public LocationServiceStats getStats() throws RemoteException {
+            //clients are iterated on worker thread only
+            final LocationServiceStats[] stats = new LocationServiceStats[1];
+            boolean isDone = runOnWorker(new Runnable() {
+                @Override
+                public void run() {
+                    stats[0] = createStats();
+                }
+            });
+            //worker is busy, return service counters without clients
+            return isDone ? stats[0] : new LocationServiceStats(mStats, 0);
+        }
+
+        @Override
+        public void setTrackRecording(final boolean isEnabled) throws RemoteException {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    setTrackRecordingEnabled(isEnabled);
+                }
+            });
+        }
+
+        @Override
+        public boolean isTrackRecording() throws RemoteException {
+            return mIsTrackRecording;
+        }
+
+        @Override
+        public void setUploadEndpoint(final String url) throws RemoteException {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    setUploadEndpointOnWorker(url);
+                }
+            });
+        }
+
+        @Override
+        public IHistoryCursor queryHistory(long fromTime, long toTime) throws RemoteException {
+            HistoryCursor cursor = new HistoryCursor(mTrackHistory, fromTime, toTime, mHandler, mHistoryCursorListener);
+            mHistoryCursors.add(cursor);
+            return cursor;
+        }
+
+        @Override
+        public void addGeofences(final ILocationServiceCallbacks callbacks, final List<Geofence> geofences) throws RemoteException {
+            if (callbacks == null || geofences == null) return;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    LocationSubscriber subscriber = findSubscriber(callbacks);
+                    if (subscriber == null) {
+                        Log.e(Constants.LOG_TAG_ERROR, "LocationService.addGeofences(): client isn't registered");
+                        return;
+                    }
+                    int rejected = mGeofenceEngine.add(subscriber, geofences);
+                    if (rejected > 0) {
+                        Log.e(Constants.LOG_TAG_ERROR, "LocationService.addGeofences(): limit is reached, rejected - " + rejected);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void removeGeofences(final ILocationServiceCallbacks callbacks, final List<String> geofenceIds) throws RemoteException {
+            if (callbacks == null || geofenceIds == null) return;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    LocationSubscriber subscriber = findSubscriber(callbacks);
+                    if (subscriber != null) mGeofenceEngine.remove(subscriber, geofenceIds);
+                }
+            });
+        }
+
+        @Override
+        public ParcelFileDescriptor openSharedFixRing(final ILocationServiceCallbacks callbacks) throws RemoteException {
+            if (callbacks == null) return null;
+            //the ring is written on worker thread only; if worker is busy for too long, client isn't switched to the ring
+            final ParcelFileDescriptor[] descriptor = new ParcelFileDescriptor[1];
+            runOnWorker(new Runnable() {
+                @Override
+                public void run() {
+                    LocationSubscriber subscriber = findSubscriber(callbacks);
+                    if (subscriber == null) {
+                        Log.e(Constants.LOG_TAG_ERROR, "LocationService.openSharedFixRing(): client isn't registered");
+                        return;
+                    }
+                    try {
+                        if (mSharedFixRing == null) {
+                            mSharedFixRing = new SharedFixRing(getSharedFixRingFile(), Constants.SHARED_FIX_RING_CAPACITY);
+                        }
+                        descriptor[0] = mSharedFixRing.openForReader();
+                        subscriber.setSharedRingReader();
+                    } catch (IOException e) {
+                        Log.e(Constants.LOG_TAG_ERROR, "LocationService.openSharedFixRing: EXCEPTION - " + e.getLocalizedMessage(), e);
+                    }
+                }
+            });
+            return descriptor[0];
+        }
+
+        @Override
+        public void lookupAddress(final ILocationServiceCallbacks callbacks, final double latitude, final double longitude, final int precision) throws RemoteException {
+            if (callbacks == null) return;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    LocationSubscriber subscriber = findSubscriber(callbacks);
+                    if (subscriber == null) {
+                        Log.e(Constants.LOG_TAG_ERROR, "LocationService.lookupAddress(): client isn't registered");
+                        return;
+                    }
+                    mAddressCache.lookup(subscriber, latitude, longitude, precision);
+                }
+            });
+        }
+
+        @Override
+        public List<DwellCell> getDwellCells(final int precision, final int maxCount) throws RemoteException {
+            //heatmap is updated on worker thread only
+            final AtomicReference<List<DwellCell>> cells = new AtomicReference<>();
+            boolean isDone = runOnWorker(new Runnable() {
+                @Override
+                public void run() {
+                    cells.set(mHeatmap.getCells(precision, maxCount));
+                }
+            });
+            return isDone ? cells.get() : Collections.<DwellCell>emptyList();
+        }
+
+        @Override
+        public byte[] exportDwellHeatmap(final int precision) throws RemoteException {
+            final byte[][] snapshot = new byte[1][];
+            boolean isDone = runOnWorker(new Runnable() {
+                @Override
+                public void run() {
+                    snapshot[0] = mHeatmap.export(precision);
+                }
+            });
+            return isDone ? snapshot[0] : null;
         }
 
         @Override
         public void unregisterCallback(ILocationServiceCallbacks callbacks) throws RemoteException {
-            if (callbacks != null) mCallbacks.unregister(callbacks);
+            if (callbacks == null) return;
+            //client's queue is closed on worker thread, the only one which iterates callbacks
+            Message msg = mHandler.obtainMessage(HANDLE_MSG_UNREGISTER, callbacks);
+            mHandler.sendMessage(msg);
+        }
+    };
+
+    private final PipelineStats mStats = new PipelineStats();
+
+    /**
+     * Fixes are copied here from provider and referenced by sequence number until clients get them
+     */
+    private final FixRing mFixRing = new FixRing(Constants.FIX_RING_CAPACITY);
+    //used on worker thread only
+    private final LocationFix mWorkerFix = new LocationFix();
+    private long mProcessedSeq = -1;
+
+    /**
+     * Fixes passed Kalman filter, written by worker thread only while there are clients who want them
+     */
+    private final FixRing mSmoothedFixRing = new FixRing(Constants.FIX_RING_CAPACITY);
+    private final KalmanFilter mKalmanFilter = new KalmanFilter();
+    private final LocationFix mSmoothedFix = new LocationFix();
+    private boolean mHasSmoothedClients;
+
+    /**
+     * The last fix and settings state for instant first callbacks after restart, null - file isn't available
+     */
+    private WarmStartSnapshot mWarmStart;
+    private final LocationFix mWarmStartFix = new LocationFix();
+
+    /**
+     * Every fix is copied here for clients who read fixes from shared memory, null - nobody asked yet
+     */
+    private SharedFixRing mSharedFixRing;
+
+    /**
+     * Appends fixes from the ring to the track log, null - recording is off
+     */
+    private TrackRecorder mTrackRecorder;
+    private volatile boolean mIsTrackRecording;
+    private TrackHistory mTrackHistory;
+
+    /**
+     * Cursors given to clients and not closed yet, they are closed on destroy
+     */
+    private final Set<HistoryCursor> mHistoryCursors = Collections.synchronizedSet(new HashSet<HistoryCursor>());
+    private final HistoryCursor.Listener mHistoryCursorListener = new HistoryCursor.Listener() {
+        @Override
+        public void onCursorClosed(HistoryCursor cursor) {
+            mHistoryCursors.remove(cursor);
         }
     };
 
     /**
-     * Handler for send callbacks to client
+     * Sends fixes to server, used on worker thread only
      */
-    private final Handler mHandler = new Handler() {
+    private FixUploader mUploader;
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
         @Override
-        public void handleMessage(Message msg) {
-            Log.d(Constants.LOG_TAG_DEBUG, "LocationService.handleMessage(): msg.what = " + msg.what);
+        public void onReceive(Context context, Intent intent) {
+            if (mUploader != null) mUploader.onNetworkChanged();
+        }
+    };
+
+    /**
+     * Sends events to clients, every client has its own queue
+     */
+    private final CallbackDispatcher mDispatcher = new CallbackDispatcher(
+            new CallbackDispatcher.Listener() {
+                @Override
+                public void onSubscriberFailed(LocationSubscriber subscriber) {
+                    Log.d(Constants.LOG_TAG_DEBUG, "LocationService.onSubscriberFailed(): client is disconnected");
+                    subscriber.close();
+                    mCallbacks.unregister(subscriber.getCallbacks());
+                    Message msg = mHandler.obtainMessage(HANDLE_MSG_SUBSCRIBER_REMOVED, subscriber);
+                    mHandler.sendMessage(msg);
+                }
+            },
+            mFixRing,
+            mSmoothedFixRing,
+            mStats
+    );
+
+    /**
+     * Checks fixes against clients' geofences, used on worker thread only
+     */
+    private final GeofenceEngine mGeofenceEngine = new GeofenceEngine(
+            new GeofenceEngine.Listener() {
+                @Override
+                public void onGeofenceTransition(LocationSubscriber owner, String id, int transition, LocationFix fix) {
+                    mDispatcher.dispatch(owner, new ClientEvent.GeofenceTransition(id, transition, fix.getLatitude(), fix.getLongitude()));
+                }
+            }
+    );
+
+    /**
+     * Splits raw fixes into stops and moves while there are clients who want them, used on worker thread only
+     */
+    private final TripSegmenter mTripSegmenter = new TripSegmenter(
+            new TripSegmenter.Listener() {
+                @Override
+                public void onSegmentStarted(int type, long time, double latitude, double longitude) {
+                    broadcastTripEvent(new ClientEvent.TripSegmentStarted(type, time, latitude, longitude));
+                }
+
+                @Override
+                public void onSegmentEnded(TripSegment segment) {
+                    broadcastTripEvent(new ClientEvent.TripSegmentEnded(segment));
+                }
+            }
+    );
+    private boolean mHasTripClients;
+
+    /**
+     * Addresses of clients' positions, geocoder is called on cache thread
+     */
+    private AddressCache mAddressCache;
+    private final AddressCache.Listener mAddressListener = new AddressCache.Listener() {
+        @Override
+        public void onAddressResolved(LocationSubscriber subscriber, double latitude, double longitude, String address) {
+            mDispatcher.dispatch(subscriber, new ClientEvent.AddressResolved(latitude, longitude, address));
+        }
+    };
+
+    /**
+     * Dwell time and visits of geohash cells, used on worker thread only
+     */
+    private DwellHeatmap mHeatmap;
+
+    /**
+     * Worker thread for processing of fixes and sending callbacks to client
+     */
+    private HandlerThread mWorkerThread;
+    private Handler mHandler;
+
+    /**
+     * Handles messages on worker thread
+     */
+    private final Handler.Callback mHandlerCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            if (Log.isLoggable(Constants.LOG_TAG_DEBUG, Log.DEBUG)) {
+                Log.d(Constants.LOG_TAG_DEBUG, "LocationService.handleMessage(): msg.what = " + msg.what);
+            }
             int N;
-            Location location;
+            long now;
+            LocationSubscriber subscriber;
 
             switch (msg.what) {
                 //when google api connection failed
                 case HANDLE_MSG_ON_GAPI_CONNECTION_FAILED:
-                    if (!(msg.obj instanceof GoogleApiError)) return;
-                    GoogleApiError error = (GoogleApiError) msg.obj;
-                    N = mCallbacks.beginBroadcast();
-                    //send callbacks
-                    for (int i = 0; i < N; i++) {
-                        try {
-                            mCallbacks.getBroadcastItem(i).onGoogleApiConnectionFailed(
-                                    error.getCode(),
-                                    error.getMessage()
-                            );
-                        } catch (RemoteException e) {
-                            Log.e(Constants.LOG_TAG_ERROR, "Handler.handleMessage: HANDLE_MSG_ON_GAPI_CONNECTION_FAILED EXCEPTION - " + e.getLocalizedMessage(), e);
-                        }
-                    }
-                    mCallbacks.finishBroadcast();
+                    updateProviderState();
+                    if (!(msg.obj instanceof GoogleApiError)) return true;
+                    broadcast(new ClientEvent.ConnectionFailed((GoogleApiError) msg.obj));
                     break;
                 //when location state get
                 case HANDLE_MSG_ON_GET_LOCATION_STATE:
-                    if (!(msg.obj instanceof LocationSettings)) return;
-
-                    LocationSettings settings = (LocationSettings) msg.obj;
-                    N = mCallbacks.beginBroadcast();
-                    //send callbacks
-                    for (int i = 0; i < N; i++) {
-                        try {
-                            mCallbacks.getBroadcastItem(i).onGetLocationSettingsState(
-                                    settings.isNetworkLocationOn(),
-                                    settings.isGpsOn()
-                            );
-                        } catch (RemoteException e) {
-                            Log.e(Constants.LOG_TAG_ERROR, "Handler.handleMessage: HANDLE_MSG_ON_GET_LOCATION_STATE EXCEPTION - " + e.getLocalizedMessage(), e);
-                        }
-                    }
-                    mCallbacks.finishBroadcast();
+                    if (!(msg.obj instanceof LocationSettings)) return true;
+                    broadcast(new ClientEvent.SettingsState((LocationSettings) msg.obj));
                     break;
                 //when location updated
                 case HANDLE_MSG_ON_LOCATION_UPDATED:
-                    if (!(msg.obj instanceof Location)) return;
-
-                    location = (Location) msg.obj;
+                    processFixes(false);
+                    break;
+                //when batch deadline has come
+                case HANDLE_MSG_FLUSH_BATCHES:
+                    now = SystemClock.elapsedRealtime();
                     N = mCallbacks.beginBroadcast();
-                    //send callbacks
                     for (int i = 0; i < N; i++) {
-                        try {
-                            mCallbacks.getBroadcastItem(i).onLocationUpdated(
-                                    location.getLatitude(),
-                                    location.getLongitude(),
-                                    location.getAltitude(),
-                                    location.getAccuracy()
-                            );
-                        } catch (RemoteException e) {
-                            Log.e(Constants.LOG_TAG_ERROR, "Handler.handleMessage: HANDLE_MSG_ON_LOCATION_UPDATED EXCEPTION - " + e.getLocalizedMessage(), e);
-                        }
+                        subscriber = (LocationSubscriber) mCallbacks.getBroadcastCookie(i);
+                        long deadline = subscriber.getBatchDeadline();
+                        if (deadline == 0 || deadline > now) continue;
+                        dispatchBatch(subscriber);
                     }
                     mCallbacks.finishBroadcast();
+                    scheduleBatchesFlush();
+                    break;
+                //when client unregistered
+                case HANDLE_MSG_UNREGISTER:
+                    ILocationServiceCallbacks callbacks = (ILocationServiceCallbacks) msg.obj;
+                    subscriber = findSubscriber(callbacks);
+                    mCallbacks.unregister(callbacks);
+                    if (subscriber == null) break;
+                    subscriber.close();
+                    onSubscriberRemoved(subscriber);
+                    break;
+                //when client is gone without unregistering
+                case HANDLE_MSG_SUBSCRIBER_REMOVED:
+                    onSubscriberRemoved((LocationSubscriber) msg.obj);
+                    break;
+                //when client registered
+                case HANDLE_MSG_REGISTER:
+                    subscriber = (LocationSubscriber) msg.obj;
+                    //client registered again with new subscription, its old state is released
+                    LocationSubscriber old = findSubscriber(subscriber.getCallbacks());
+                    if (old != null) {
+                        old.close();
+                        mGeofenceEngine.removeAll(old);
+                    }
+                    mCallbacks.register(subscriber.getCallbacks(), subscriber);
+                    sendWarmStart(subscriber);
+                    updateLocationRequest();
+                    int providerState = mProviderState;
+                    updateProviderState();
+                    //changed state is already broadcast
+                    if (mProviderState == providerState) {
+                        mDispatcher.dispatch(subscriber, new ClientEvent.ProviderStateChanged(providerState));
+                    }
+                    //user may have turned location on since the last check
+                    if (mProviderState == PROVIDER_STATE_LOCATION_OFF) checkLocationSettingsState();
+                    scheduleStatsSnapshots();
+                    break;
+                //when stats must be sent to some clients
+                case HANDLE_MSG_STATS_SNAPSHOT:
+                    sendStatsSnapshots();
+                    scheduleStatsSnapshots();
+                    break;
+                //when nobody needed fixes for idle timeout
+                case HANDLE_MSG_PROVIDER_IDLE:
+                    mIsProviderIdle = true;
+                    updateProviderState();
+                    break;
+                //when provider didn't come back after suspension
+                case HANDLE_MSG_RECONNECT:
+                    reconnect();
                     break;
                 default:
-                    super.handleMessage(msg);
+                    return false;
             }
+            return true;
         }
     };
 
+    /**
+     * Send all fixes written to the ring since the last call. Doesn't allocate unless client uses batches.
+     *
+     * @param isGroup True - fixes came in one provider result, clients with deferred delivery get them
+     *                as one batch
+     */
+    private void processFixes(boolean isGroup) {
+        long lastSeq = mFixRing.getLastSeq();
+        //worker lagged more than ring capacity, the oldest fixes are already overwritten
+        if (lastSeq - mProcessedSeq > mFixRing.getCapacity()) {
+            mStats.onFixesDropped((int) (lastSeq - mProcessedSeq - mFixRing.getCapacity()));
+            mProcessedSeq = lastSeq - mFixRing.getCapacity();
+        }
+        long sharedSeq = mSharedFixRing != null ? mSharedFixRing.getLastSeq() : -1;
+        boolean hasFix = false;
+        while (mProcessedSeq < lastSeq) {
+            long seq = ++mProcessedSeq;
+            if (mFixRing.read(seq, mWorkerFix)) {
+                processFix(seq, mWorkerFix, isGroup);
+                hasFix = true;
+            }
+        }
+        if (isGroup) {
+            int N = mCallbacks.beginBroadcast();
+            for (int i = 0; i < N; i++) {
+                LocationSubscriber subscriber = (LocationSubscriber) mCallbacks.getBroadcastCookie(i);
+                if (!subscriber.isBatchingEnabled()) dispatchBatch(subscriber);
+            }
+            mCallbacks.finishBroadcast();
+        }
+        if (hasFix && mWarmStart != null) mWarmStart.writeFix(mWorkerFix);
+        //one wakeup for all new fixes
+        if (mSharedFixRing != null && mSharedFixRing.getLastSeq() != sharedSeq) {
+            int N = mCallbacks.beginBroadcast();
+            for (int i = 0; i < N; i++) {
+                LocationSubscriber subscriber = (LocationSubscriber) mCallbacks.getBroadcastCookie(i);
+                if (subscriber.isSharedRingReader()) mDispatcher.dispatchSharedFixesAvailable(subscriber);
+            }
+            mCallbacks.finishBroadcast();
+        }
+        scheduleBatchesFlush();
+    }
+
+    /**
+     * Pass fix to clients
+     *
+     * @param seq     Sequence number of fix in the ring
+     * @param fix     Fix (reused for every fix, batches take a copy)
+     * @param isGroup True - fix is a part of provider result which is sent at once to clients with deferred delivery
+     */
+    private void processFix(long seq, LocationFix fix, boolean isGroup) {
+        //change request when device stops or starts moving
+        if (mSampler.onFix(fix.getTime(), fix.getLatitude(), fix.getLongitude(), fix.getAccuracy(), fix.getSpeed())) {
+            onSamplingModeChanged();
+        }
+        mGeofenceEngine.onFix(fix);
+        mHeatmap.onFix(fix);
+        if (mHasTripClients) mTripSegmenter.onFix(fix);
+        if (mSharedFixRing != null) mSharedFixRing.write(fix);
+
+        //filter once for all clients who want smoothed fixes, outlier isn't sent to them
+        long smoothedSeq = -1;
+        if (mHasSmoothedClients && mKalmanFilter.onFix(fix, mSmoothedFix)) {
+            smoothedSeq = mSmoothedFixRing.write(mSmoothedFix);
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long tolerance = mLocationRequest.getInterval() / 2;
+        int N = mCallbacks.beginBroadcast();
+        for (int i = 0; i < N; i++) {
+            LocationSubscriber subscriber = (LocationSubscriber) mCallbacks.getBroadcastCookie(i);
+            //reads fixes from shared memory
+            if (subscriber.isSharedRingReader()) continue;
+            boolean isSmoothed = subscriber.isSmoothed();
+            if (isSmoothed && smoothedSeq < 0) continue;
+            LocationFix clientFix = isSmoothed ? mSmoothedFix : fix;
+            //client may need fixes less often than the merged request gives
+            if (!subscriber.acceptFix(clientFix, subscriberInterval(subscriber), tolerance)) continue;
+
+            if (subscriber.isBatchingEnabled()) {
+                //send batch only when it's full, otherwise wait for deadline
+                if (subscriber.addToBatch(clientFix, now)) {
+                    dispatchBatch(subscriber);
+                }
+            } else if (isGroup && subscriber.isDeferredDelivery()) {
+                if (subscriber.addToGroup(clientFix)) {
+                    dispatchBatch(subscriber);
+                }
+            } else {
+                mDispatcher.dispatchFix(subscriber, isSmoothed ? smoothedSeq : seq);
+            }
+        }
+        mCallbacks.finishBroadcast();
+    }
+
+    /**
+     * Send saved settings state and the last fix to just registered client, live ones come later
+     *
+     * @param subscriber Client's state
+     */
+    private void sendWarmStart(LocationSubscriber subscriber) {
+        if (mWarmStart == null) return;
+        long now = System.currentTimeMillis();
+        LocationSettings settings = mWarmStart.getSettings();
+        if (settings != null && Math.abs(now - mWarmStart.getSettingsTime()) <= Constants.WARM_START_SETTINGS_MAX_AGE) {
+            mDispatcher.dispatch(subscriber, new ClientEvent.SettingsState(settings));
+        }
+        if (mWarmStart.readFix(mWarmStartFix) && Math.abs(now - mWarmStartFix.getTime()) <= Constants.WARM_START_FIX_MAX_AGE) {
+            long age = Math.max(0, now - mWarmStartFix.getTime());
+            mDispatcher.dispatch(subscriber, new ClientEvent.CachedLocation(new LocationFix(mWarmStartFix), age));
+        }
+    }
+
+    /**
+     * Release client's state held by the service, called on worker thread
+     *
+     * @param subscriber Client's state, already closed and unregistered
+     */
+    private void onSubscriberRemoved(LocationSubscriber subscriber) {
+        mGeofenceEngine.removeAll(subscriber);
+        if (subscriber.isSharedRingReader()) updateSharedFixRing();
+        updateLocationRequest();
+        updateProviderState();
+        scheduleStatsSnapshots();
+    }
+
+    /**
+     * Close the shared fix ring when its last reader is gone: fixes aren't written to the file
+     * when nobody reads them. The next reader gets a new ring.
+     */
+    private void updateSharedFixRing() {
+        if (mSharedFixRing == null) return;
+        boolean hasReaders = false;
+        int N = mCallbacks.beginBroadcast();
+        for (int i = 0; i < N && !hasReaders; i++) {
+            hasReaders = ((LocationSubscriber) mCallbacks.getBroadcastCookie(i)).isSharedRingReader();
+        }
+        mCallbacks.finishBroadcast();
+        if (!hasReaders) {
+            mSharedFixRing.close();
+            mSharedFixRing = null;
+        }
+    }
+
+    /**
+     * Should be called on the handler thread outside of broadcast
+     *
+     * @param callbacks Client's callbacks
+     * @return Client's state or null if client isn't registered
+     */
+    private LocationSubscriber findSubscriber(ILocationServiceCallbacks callbacks) {
+        LocationSubscriber subscriber = null;
+        int N = mCallbacks.beginBroadcast();
+        for (int i = 0; i < N && subscriber == null; i++) {
+            if (mCallbacks.getBroadcastItem(i).asBinder() == callbacks.asBinder()) {
+                subscriber = (LocationSubscriber) mCallbacks.getBroadcastCookie(i);
+            }
+        }
+        mCallbacks.finishBroadcast();
+        return subscriber;
+    }
+
+    /**
+     * Merge requests of all clients and re-request location updates if merged request was changed
+     */
+    private void updateLocationRequest() {
+        mRequestMerger.reset();
+        boolean hasSmoothedClients = false;
+        boolean hasTripClients = false;
+        int N = mCallbacks.beginBroadcast();
+        for (int i = 0; i < N; i++) {
+            LocationSubscriber subscriber = (LocationSubscriber) mCallbacks.getBroadcastCookie(i);
+            mRequestMerger.add(subscriber.getSubscription());
+            hasSmoothedClients |= subscriber.isSmoothed();
+            hasTripClients |= subscriber.isTripSegmentation();
+        }
+        mCallbacks.finishBroadcast();
+        //filter and segmenter states are stale when the next client comes
+        if (!hasSmoothedClients) mKalmanFilter.reset();
+        mHasSmoothedClients = hasSmoothedClients;
+        if (!hasTripClients) mTripSegmenter.reset();
+        mHasTripClients = hasTripClients;
+
+        LocationRequest request = mRequestMerger.build();
+        //keep the last request while there are no clients
+        if (request == null) return;
+
+        if (mSampler.setEnabled(mRequestMerger.isAdaptiveSamplingAllowed())) {
+            mSamplingMode = mSampler.getMode();
+            broadcast(new ClientEvent.SamplingModeChanged(mSamplingMode));
+        }
+        mSampler.adjustRequest(request);
+        if (LocationRequestMerger.isSame(request, mLocationRequest)) return;
+
+        Log.d(Constants.LOG_TAG_DEBUG, "LocationService.updateLocationRequest(): interval - " + request.getInterval() + ", priority - " + request.getPriority());
+        mLocationRequest = request;
+        if (mIsLocationUpdateStarted) startLocationUpdate();
+    }
+
+    /**
+     * Adaptive sampler switched mode: notify clients and adjust request
+     */
+    private void onSamplingModeChanged() {
+        mSamplingMode = mSampler.getMode();
+        Log.d(Constants.LOG_TAG_DEBUG, "LocationService.onSamplingModeChanged(): mode - " + mSamplingMode);
+        broadcast(new ClientEvent.SamplingModeChanged(mSamplingMode));
+        updateLocationRequest();
+    }
+
+    /**
+     * @param subscriber Client's state
+     * @return Client's interval adjusted by adaptive sampling (if client allows it)
+     */
+    private long subscriberInterval(LocationSubscriber subscriber) {
+        LocationSubscription subscription = subscriber.getSubscription();
+        if (!subscription.isAdaptiveSampling()) return subscription.getInterval();
+        return mSampler.scaleInterval(subscription.getInterval(), subscription.getFastestInterval());
+    }
+
+    /**
+     * Put event to queues of all clients
+     *
+     * @param event Event
+     */
+    private void broadcast(ClientEvent event) {
+        int N = mCallbacks.beginBroadcast();
+        for (int i = 0; i < N; i++) {
+            mDispatcher.dispatch((LocationSubscriber) mCallbacks.getBroadcastCookie(i), event);
+        }
+        mCallbacks.finishBroadcast();
+    }
+
+    /**
+     * Send event to clients who subscribed with trip segmentation.
+     * Should be called on the handler thread outside of broadcast.
+     *
+     * @param event Event
+     */
+    private void broadcastTripEvent(ClientEvent event) {
+        int N = mCallbacks.beginBroadcast();
+        for (int i = 0; i < N; i++) {
+            LocationSubscriber subscriber = (LocationSubscriber) mCallbacks.getBroadcastCookie(i);
+            if (subscriber.isTripSegmentation()) mDispatcher.dispatch(subscriber, event);
+        }
+        mCallbacks.finishBroadcast();
+    }
+
+    /**
+     * Send pending fixes of client
+     *
+     * @param subscriber Client's state
+     */
+    private void dispatchBatch(LocationSubscriber subscriber) {
+        List<LocationFix> fixes = subscriber.takeBatch();
+        if (fixes != null) mDispatcher.dispatch(subscriber, new ClientEvent.LocationsBatch(fixes));
+    }
+
+    /**
+     * Schedule sending of batches by the nearest deadline.
+     * Should be called on the handler thread outside of broadcast.
+     */
+    private void scheduleBatchesFlush() {
+        long nearestDeadline = 0;
+        int N = mCallbacks.beginBroadcast();
+        for (int i = 0; i < N; i++) {
+            long deadline = ((LocationSubscriber) mCallbacks.getBroadcastCookie(i)).getBatchDeadline();
+            if (deadline > 0 && (nearestDeadline == 0 || deadline < nearestDeadline)) {
+                nearestDeadline = deadline;
+            }
+        }
+        mCallbacks.finishBroadcast();
+
+        mHandler.removeMessages(HANDLE_MSG_FLUSH_BATCHES);
+        if (nearestDeadline > 0) {
+            mHandler.sendEmptyMessageAtTime(
+                    HANDLE_MSG_FLUSH_BATCHES,
+                    SystemClock.uptimeMillis() + Math.max(0, nearestDeadline - SystemClock.elapsedRealtime())
+            );
+        }
+    }
+
+    /**
+     * Send stats snapshot to clients whose stats interval has passed
+     */
+    private void sendStatsSnapshots() {
+        long now = SystemClock.elapsedRealtime();
+        boolean isDue = false;
+        int N = mCallbacks.beginBroadcast();
+        for (int i = 0; i < N && !isDue; i++) {
+            long deadline = ((LocationSubscriber) mCallbacks.getBroadcastCookie(i)).getStatsDeadline(now);
+            isDue = deadline > 0 && deadline <= now;
+        }
+        mCallbacks.finishBroadcast();
+        if (!isDue) return;
+
+        //one snapshot is shared by all clients
+        ClientEvent event = new ClientEvent.StatsSnapshot(createStats());
+        N = mCallbacks.beginBroadcast();
+        for (int i = 0; i < N; i++) {
+            LocationSubscriber subscriber = (LocationSubscriber) mCallbacks.getBroadcastCookie(i);
+            long deadline = subscriber.getStatsDeadline(now);
+            if (deadline == 0 || deadline > now) continue;
+            mDispatcher.dispatch(subscriber, event);
+            subscriber.onStatsSent(now);
+        }
+        mCallbacks.finishBroadcast();
+    }
+
+    /**
+     * Schedule sending of stats by the nearest deadline.
+     * Should be called on the handler thread outside of broadcast.
+     */
+    private void scheduleStatsSnapshots() {
+        long now = SystemClock.elapsedRealtime();
+        long nearestDeadline = 0;
+        int N = mCallbacks.beginBroadcast();
+        for (int i = 0; i < N; i++) {
+            long deadline = ((LocationSubscriber) mCallbacks.getBroadcastCookie(i)).getStatsDeadline(now);
+            if (deadline > 0 && (nearestDeadline == 0 || deadline < nearestDeadline)) {
+                nearestDeadline = deadline;
+            }
+        }
+        mCallbacks.finishBroadcast();
+
+        mHandler.removeMessages(HANDLE_MSG_STATS_SNAPSHOT);
+        if (nearestDeadline > 0) {
+            mHandler.sendEmptyMessageAtTime(
+                    HANDLE_MSG_STATS_SNAPSHOT,
+                    SystemClock.uptimeMillis() + Math.max(0, nearestDeadline - now)
+            );
+        }
+    }
+
+    /**
+     * Start or stop track recorder, called on worker thread
+     *
+     * @param isEnabled True - record fixes
+     */
+    private void setTrackRecordingEnabled(boolean isEnabled) {
+        if (isEnabled == (mTrackRecorder != null)) return;
+        Log.d(Constants.LOG_TAG_DEBUG, "LocationService.setTrackRecordingEnabled(): " + isEnabled);
+        if (isEnabled) {
+            mTrackRecorder = new TrackRecorder(getTrackDir(), mFixRing);
+        } else {
+            mTrackRecorder.stop();
+            mTrackRecorder = null;
+        }
+        mIsTrackRecording = isEnabled;
+        updateProviderState();
+    }
+
+    /**
+     * Start, retarget or stop uploading. Called on worker thread.
+     *
+     * @param endpoint URL, null or empty - stop
+     */
+    private void setUploadEndpointOnWorker(String endpoint) {
+        if (endpoint == null || endpoint.isEmpty()) {
+            stopUploader();
+            return;
+        }
+        URL url;
+        try {
+            url = new URL(endpoint);
+        } catch (MalformedURLException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "LocationService.setUploadEndpoint: EXCEPTION - " + e.getLocalizedMessage(), e);
+            return;
+        }
+        Log.d(Constants.LOG_TAG_DEBUG, "LocationService.setUploadEndpoint(): " + url);
+        if (mUploader != null) {
+            mUploader.setEndpoint(url);
+            return;
+        }
+        mUploader = new FixUploader(
+                getUploadDir(),
+                mFixRing,
+                url,
+                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE)
+        );
+        //network change broadcasts come to worker thread
+        registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION), null, mHandler);
+        updateProviderState();
+    }
+
+    private void stopUploader() {
+        if (mUploader == null) return;
+        unregisterReceiver(mConnectivityReceiver);
+        mUploader.stop();
+        mUploader = null;
+        updateProviderState();
+    }
+
+    /**
+     * Should be called on the handler thread outside of broadcast
+     *
+     * @return Service counters with per client values
+     */
+    private LocationServiceStats createStats() {
+        int N = mCallbacks.beginBroadcast();
+        LocationServiceStats stats = new LocationServiceStats(mStats, N);
+        for (int i = 0; i < N; i++) {
+            stats.setClient(i, (LocationSubscriber) mCallbacks.getBroadcastCookie(i));
+        }
+        mCallbacks.finishBroadcast();
+        return stats;
+    }
+
+    /**
+     * Run task on worker thread and wait for it.
+     * Task which didn't start in DUMP_TIMEOUT is cancelled, so it never runs after the caller gave up
+     * (e.g. switches client to the shared ring nobody gets the descriptor of). Started task is waited for.
+     *
+     * @param task Task
+     * @return False - task wasn't run, worker is busy or stopped
+     */
+    private boolean runOnWorker(final Runnable task) {
+        //taken by worker when it starts the task or by caller when it cancels the task, whoever is first
+        final AtomicBoolean isTaken = new AtomicBoolean();
+        final CountDownLatch latch = new CountDownLatch(1);
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                if (!isTaken.compareAndSet(false, true)) return;
+                try {
+                    task.run();
+                } finally {
+                    latch.countDown();
+                }
+            }
+        };
+        if (!mHandler.post(runnable)) return false;
+
+        boolean isInterrupted = false;
+        try {
+            if (latch.await(Constants.DUMP_TIMEOUT, TimeUnit.MILLISECONDS)) return true;
+        } catch (InterruptedException e) {
+            isInterrupted = true;
+        }
+        if (isTaken.compareAndSet(false, true)) {
+            mHandler.removeCallbacks(runnable);
+            if (isInterrupted) Thread.currentThread().interrupt();
+            return false;
+        }
+        //worker is running the task right now, its result must not be lost
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) Thread.currentThread().interrupt();
+        return true;
+    }
+
     //PRIORITY_BALANCED_POWER_ACCURACY  - Wifi and Network
     //PRIORITY_HIGH_ACCURACY - WiFi , GPS and Network
-    private final LocationRequest mLocationRequest = new LocationRequest()
+    //Default request until clients are registered, then it is merged from clients' subscriptions
+    private LocationRequest mLocationRequest = new LocationRequest()
             .setInterval(Constants.UPDATE_LOCATION_INTERVAL)
             .setFastestInterval(Constants.UPDATE_LOCATION_INTERVAL_FASTEST)
             .setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+    private final LocationRequestMerger mRequestMerger = new LocationRequestMerger();
+    private final AdaptiveSampler mSampler = new AdaptiveSampler();
+    private volatile int mSamplingMode = AdaptiveSampler.MODE_MOVING;
+    private boolean mIsLocationUpdateStarted;
 
-    private GoogleApiClient mGoogleApiClient;
+    private LocationProvider mLocationProvider;
 
     /**
-     * Listen location changes
+     * Provider duty cycle: updates run only while somebody needs fixes, used on worker thread only
      */
-    private final LocationListener mLocationListener = new LocationListener() {
+    private volatile int mProviderState = PROVIDER_STATE_CONNECTING;
+    private LocationSettings mLocationSettings; //null - not checked since connection
+    private boolean mIsProviderIdle;
+    private boolean mIsProviderSuspended;
+    private boolean mIsProviderFailed;
+    private int mReconnectAttempts;
+
+    /**
+     * Listen provider events, called on worker thread
+     */
+    private final LocationProvider.Listener mProviderListener = new LocationProvider.Listener() {
+        @Override
+        public void onConnected() {
+            mHandler.removeMessages(HANDLE_MSG_RECONNECT);
+            mIsProviderSuspended = false;
+            mIsProviderFailed = false;
+            mReconnectAttempts = 0;
+            //settings were checked recently (by the previous run of the service), start at once
+            LocationSettings settings = mWarmStart != null ? mWarmStart.getSettings() : null;
+            if (settings != null && (settings.isGpsOn() || settings.isNetworkLocationOn())
+                    && Math.abs(System.currentTimeMillis() - mWarmStart.getSettingsTime()) <= Constants.WARM_START_SETTINGS_MAX_AGE) {
+                Log.d(Constants.LOG_TAG_DEBUG, "LocationService.onConnected(): settings are checked recently");
+                mLocationSettings = settings;
+                checkLastKnownLocation();
+                updateProviderState();
+                return;
+            }
+            //check location state and here will be started location update
+            mLocationSettings = null;
+            updateProviderState();
+            checkLocationSettingsState();
+        }
+
+        @Override
+        public void onConnectionSuspended() {
+            //requested updates are lost with connection
+            mIsLocationUpdateStarted = false;
+            mIsProviderSuspended = true;
+            scheduleReconnect();
+            updateProviderState();
+        }
+
+        @Override
+        public void onConnectionFailed(GoogleApiError error) {
+            //failed reconnection is retried with backoff, the first connection needs user's action
+            if (!mIsProviderSuspended) mIsProviderFailed = true;
+            //Send error to client
+            Message msg = mHandler.obtainMessage(HANDLE_MSG_ON_GAPI_CONNECTION_FAILED, error);
+            mHandler.sendMessage(msg);
+        }
+
+        @Override
+        public void onGetLocationSettingsState(LocationSettings settings) {
+            //send result to client
+            Log.d(Constants.LOG_TAG_DEBUG, "checkLocationSettings.onResult(): isGpsOn - " + settings.isGpsOn() + ", isNetworkLocationOn - " + settings.isNetworkLocationOn());
+            Message msg = mHandler.obtainMessage(HANDLE_MSG_ON_GET_LOCATION_STATE, settings);
+            mHandler.sendMessage(msg);
+            if (mWarmStart != null) mWarmStart.writeSettings(settings, System.currentTimeMillis());
+
+            //getting location if location is turned-on
+            mLocationSettings = settings;
+            if (settings.isGpsOn() || settings.isNetworkLocationOn()) {
+                checkLastKnownLocation();
+            }
+            updateProviderState();
+        }
+
         @Override
         public void onLocationChanged(Location location) {
             if (location == null) return;
-            Log.d(Constants.LOG_TAG_DEBUG, "LocationListener.onLocationChanged(): lat - " + location.getLatitude() + ", lon - " + location.getLongitude());
-            Message msg = new Message();
-            msg.obj = location;
-            msg.what = HANDLE_MSG_ON_LOCATION_UPDATED;
-            mHandler.sendMessage(msg);
+            if (Log.isLoggable(Constants.LOG_TAG_DEBUG, Log.DEBUG)) {
+                Log.d(Constants.LOG_TAG_DEBUG, "LocationListener.onLocationChanged(): lat - " + location.getLatitude() + ", lon - " + location.getLongitude());
+            }
+            onFixReceived(location);
+        }
+
+        @Override
+        public void onLocationsChanged(List<Location> locations) {
+            if (Log.isLoggable(Constants.LOG_TAG_DEBUG, Log.DEBUG)) {
+                Log.d(Constants.LOG_TAG_DEBUG, "LocationListener.onLocationsChanged(): fixes - " + locations.size());
+            }
+            onFixesReceived(locations);
         }
     };
 
@@ -169,18 +1067,54 @@ public class LocationService extends Service {
     @Override
     public void onCreate() {
         Log.d(Constants.LOG_TAG_DEBUG, "LocationService.onCreate(): ");
-        //connect to google api and start listen location changes
-        connectToGoogleApi(getBaseContext());
+        //start worker thread, provider callbacks and fixes are handled there too
+        mWorkerThread = new HandlerThread("LocationServiceWorker", Process.THREAD_PRIORITY_BACKGROUND);
+        mWorkerThread.start();
+        mHandler = new Handler(mWorkerThread.getLooper(), mHandlerCallback);
+        mLocationProvider = createLocationProvider();
+        mTrackHistory = new TrackHistory(getTrackDir());
+        mAddressCache = new AddressCache(getAddressCacheFile(), createAddressProvider(), mAddressListener, mStats);
+        mHeatmap = new DwellHeatmap(getHeatmapFile());
+        //connect to provider and start listen location changes
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mWarmStart = WarmStartSnapshot.open(getWarmStartFile());
+                mHeatmap.load();
+                mLocationProvider.connect(mProviderListener, mHandler);
+            }
+        });
     }
 
     @Override
     public void onDestroy() {
         Log.d(Constants.LOG_TAG_DEBUG, "LocationService.onDestroy(): ");
-        //disconnect from google api and stop listen location changes
-        disconnectFromGoogleApi();
-        //unregister all callbacks
-        mCallbacks.kill();
+        //drop pending messages, then release everything on the worker thread and stop it
         mHandler.removeCallbacksAndMessages(null);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                //unregister all callbacks, provider state changes below aren't sent to anybody
+                mCallbacks.kill();
+                //stop listen location changes and disconnect from provider
+                stopLocationUpdate();
+                mLocationProvider.disconnect();
+                setTrackRecordingEnabled(false);
+                List<HistoryCursor> cursors;
+                synchronized (mHistoryCursors) {
+                    cursors = new ArrayList<>(mHistoryCursors);
+                }
+                for (HistoryCursor cursor : cursors) {
+                    cursor.close();
+                }
+                stopUploader();
+                if (mSharedFixRing != null) mSharedFixRing.close();
+                mAddressCache.close();
+                mHeatmap.save();
+                mDispatcher.shutdown();
+                mWorkerThread.quit();
+            }
+        });
     }
 
     @Override
@@ -189,177 +1123,237 @@ public class LocationService extends Service {
         return START_NOT_STICKY;
     }
 
+    /**
+     * Print pipeline stats as JSON (adb shell dumpsys activity service LocationService)
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mStats.dump(writer, mCallbacks.getRegisteredCallbackCount());
+        //per client latency, clients are iterated on worker thread only
+        final PrintWriter clientsWriter = writer;
+        runOnWorker(new Runnable() {
+            @Override
+            public void run() {
+                int N = mCallbacks.beginBroadcast();
+                for (int i = 0; i < N; i++) {
+                    LocationSubscriber subscriber = (LocationSubscriber) mCallbacks.getBroadcastCookie(i);
+                    clientsWriter.print("{\"client\":" + i + ",\"fixes_dropped\":" + subscriber.getFixesDropped() + ",\"dispatch_latency_ns\":");
+                    PipelineStats.dumpHistogram(clientsWriter, subscriber.getDispatchLatency());
+                    clientsWriter.println("}");
+                }
+                mCallbacks.finishBroadcast();
+            }
+        });
+    }
 
     /**
-     * Connect to Google Api Client
+     * Copy provider's location to the ring (receiving time is stamped for latency stats)
+     * and wake up processing. Called on worker thread, doesn't allocate.
      *
-     * @param context Context
-     */
-    private void connectToGoogleApi(final Context context) {
-        if (context == null) return;
-        mGoogleApiClient = new GoogleApiClient.Builder(context)
-                .addConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
-                    @Override
-                    public void onConnected(@Nullable Bundle bundle) {
-                        //check location state and here will be started location update
-                        checkLocationSettingsState();
-                    }
-
-                    @Override
-                    public void onConnectionSuspended(int i) {
-                        Log.d(Constants.LOG_TAG_DEBUG, "GoogleApiClient.onConnectionSuspended(): ");
-                    }
-                })
-                .addOnConnectionFailedListener(new GoogleApiClient.OnConnectionFailedListener() {
-                    @Override
-                    public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
-                        onGapiFailedConnection(context, connectionResult);
-                    }
-                })
-                .addApi(LocationServices.API)
-                .build();
-
-        mGoogleApiClient.connect();
+     * @param location Location
+     */
+    private void onFixReceived(Location location) {
+        mFixRing.write(location, SystemClock.elapsedRealtimeNanos());
+        mStats.onFixReceived();
+        onFixesWritten();
     }
 
     /**
-     * Disconnect from Google API client
+     * Copy provider's batch to the ring and process it right away as one group: one wakeup of recorder,
+     * one event per client with deferred delivery. Called on worker thread.
+     *
+     * @param locations Locations
      */
-    private void disconnectFromGoogleApi() {
-        if (mGoogleApiClient != null) {
-            if (mGoogleApiClient.isConnected()) {
-                stopLocationUpdate();
-                mGoogleApiClient.disconnect();
+    private void onFixesReceived(List<Location> locations) {
+        //fixes of earlier provider results aren't a part of this group
+        if (mFixRing.getLastSeq() != mProcessedSeq) processFixes(false);
+
+        boolean isGroup = locations.size() > 1;
+        long receivedNanos = SystemClock.elapsedRealtimeNanos();
+        int count = 0;
+        for (int i = 0; i < locations.size(); i++) {
+            Location location = locations.get(i);
+            if (location == null) continue;
+            mFixRing.write(location, receivedNanos);
+            mStats.onFixReceived();
+            //big batch is processed by parts, so the ring isn't overwritten before it's read
+            if (++count == mFixRing.getCapacity() / 2) {
+                if (mTrackRecorder != null) mTrackRecorder.onFixWritten();
+                if (mUploader != null) mUploader.onFixWritten();
+                processFixes(isGroup);
+                count = 0;
             }
-            mGoogleApiClient = null;
+        }
+        if (mTrackRecorder != null) mTrackRecorder.onFixWritten();
+        if (mUploader != null) mUploader.onFixWritten();
+        processFixes(isGroup);
+        //pending message of earlier fixes has nothing left to process
+        mHandler.removeMessages(HANDLE_MSG_ON_LOCATION_UPDATED);
+    }
+
+    private void onFixesWritten() {
+        if (mTrackRecorder != null) mTrackRecorder.onFixWritten();
+        if (mUploader != null) mUploader.onFixWritten();
+        //one pending message processes all fixes in the ring
+        if (!mHandler.hasMessages(HANDLE_MSG_ON_LOCATION_UPDATED)) {
+            mHandler.sendEmptyMessage(HANDLE_MSG_ON_LOCATION_UPDATED);
         }
     }
 
     /**
-     * Handle Google API error
+     * @return Directory of recorded track segments
+     */
+    private File getTrackDir() {
+        return new File(getFilesDir(), Constants.TRACK_DIR);
+    }
+
+    private File getUploadDir() {
+        return new File(getFilesDir(), Constants.UPLOAD_DIR);
+    }
+
+    private File getWarmStartFile() {
+        return new File(getFilesDir(), Constants.WARM_START_FILE);
+    }
+
+    private File getSharedFixRingFile() {
+        return new File(getCacheDir(), Constants.SHARED_FIX_RING_FILE);
+    }
+
+    private File getAddressCacheFile() {
+        return new File(getFilesDir(), Constants.ADDRESS_CACHE_FILE);
+    }
+
+    private File getHeatmapFile() {
+        return new File(getFilesDir(), Constants.HEATMAP_FILE);
+    }
+
+    /**
+     * Create source of fixes. Fused provider by default,
+     * may be overridden (e.g. with ReplayLocationProvider) to drive the service without Google Play Services.
      *
-     * @param context          Context
-     * @param connectionResult ConnectionResult
+     * @return Location provider
      */
-    private void onGapiFailedConnection(Context context, ConnectionResult connectionResult) {
-        if (connectionResult == null) return;
-        //get detailed error message
-        String errMessage = zzh.zzi(context, connectionResult.getErrorCode());
+    LocationProvider createLocationProvider() {
+        return new FusedLocationProvider(getBaseContext());
+    }
 
-        GoogleApiError error = new GoogleApiError(
-                connectionResult.getErrorCode(),
-                errMessage
-        );
+    /**
+     * Create geocoder for address lookups. Platform Geocoder by default, offline StubAddressProvider
+     * when there is no geocoder service on the device. May be overridden to drive the cache without network.
+     *
+     * @return Address provider
+     */
+    AddressProvider createAddressProvider() {
+        if (Geocoder.isPresent()) return new GeocoderAddressProvider(getBaseContext());
+        return new StubAddressProvider(0);
+    }
+
+    /**
+     * Start or stop location updates by demand and provider connection, tell clients about new state.
+     * Should be called on the handler thread outside of broadcast after anything of them is changed.
+     */
+    private void updateProviderState() {
+        //clients, track recording and uploading need fixes
+        boolean hasDemand = mCallbacks.getRegisteredCallbackCount() > 0 || mTrackRecorder != null || mUploader != null;
+        if (hasDemand) {
+            mHandler.removeMessages(HANDLE_MSG_PROVIDER_IDLE);
+            mIsProviderIdle = false;
+            //reconnection was postponed while idle
+            if (mIsProviderSuspended && !mHandler.hasMessages(HANDLE_MSG_RECONNECT)) {
+                mHandler.sendEmptyMessage(HANDLE_MSG_RECONNECT);
+            }
+        } else if (!mIsProviderIdle && !mHandler.hasMessages(HANDLE_MSG_PROVIDER_IDLE)) {
+            //short gaps between clients (screen transitions) don't restart provider
+            mHandler.sendEmptyMessageDelayed(HANDLE_MSG_PROVIDER_IDLE, Constants.PROVIDER_IDLE_TIMEOUT);
+        }
+
+        int state;
+        if (mIsProviderSuspended) {
+            state = PROVIDER_STATE_SUSPENDED;
+        } else if (mIsProviderFailed) {
+            state = PROVIDER_STATE_FAILED;
+        } else if (!mLocationProvider.isConnected() || (mLocationSettings == null && !mIsProviderIdle)) {
+            state = PROVIDER_STATE_CONNECTING;
+        } else if (mIsProviderIdle) {
+            state = PROVIDER_STATE_IDLE;
+        } else if (!mLocationSettings.isGpsOn() && !mLocationSettings.isNetworkLocationOn()) {
+            state = PROVIDER_STATE_LOCATION_OFF;
+        } else {
+            state = PROVIDER_STATE_ACTIVE;
+        }
 
-        //Send error to client
-        Message msg = new Message();
-        msg.obj = error;
-        msg.what = HANDLE_MSG_ON_GAPI_CONNECTION_FAILED;
-        mHandler.sendMessage(msg);
+        if (state == PROVIDER_STATE_ACTIVE && !mIsLocationUpdateStarted) {
+            startLocationUpdate();
+        } else if (state != PROVIDER_STATE_ACTIVE && mIsLocationUpdateStarted) {
+            stopLocationUpdate();
+        }
+        if (state == mProviderState) return;
+        Log.d(Constants.LOG_TAG_DEBUG, "LocationService.updateProviderState(): " + mProviderState + " -> " + state);
+        mProviderState = state;
+        broadcast(new ClientEvent.ProviderStateChanged(state));
+    }
+
+    /**
+     * Connect provider again if it didn't come back after suspension by itself
+     */
+    private void reconnect() {
+        if (!mIsProviderSuspended || mLocationProvider.isConnected()) return;
+        //nobody needs fixes, don't wake up until somebody does
+        if (mIsProviderIdle) return;
+        Log.d(Constants.LOG_TAG_DEBUG, "LocationService.reconnect(): attempt - " + (mReconnectAttempts + 1));
+        //before connect(): provider may call onConnected() at once, it cancels the next attempt and resets backoff
+        scheduleReconnect();
+        mLocationProvider.disconnect();
+        mLocationProvider.connect(mProviderListener, mHandler);
+    }
+
+    /**
+     * Exponential backoff between reconnections, cancelled by onConnected()
+     */
+    private void scheduleReconnect() {
+        long delay = Constants.PROVIDER_RECONNECT_MIN << Math.min(mReconnectAttempts, 16);
+        mReconnectAttempts++;
+        mHandler.removeMessages(HANDLE_MSG_RECONNECT);
+        mHandler.sendEmptyMessageDelayed(HANDLE_MSG_RECONNECT, Math.min(delay, Constants.PROVIDER_RECONNECT_MAX));
     }
 
     /**
      * Return to client last location
      */
     private void checkLastKnownLocation() {
-        if (mGoogleApiClient == null) return;
-        Location location = null;
-        try {
-            location = LocationServices.FusedLocationApi.getLastLocation(mGoogleApiClient);
-        } catch (SecurityException e) {
-            //do nothing
-        }
-
+        Location location = mLocationProvider.getLastLocation();
         if (location == null) return;
 
         Log.d(Constants.LOG_TAG_DEBUG, "LocationListener.setLastKnownLocation(): lat - " + location.getLatitude() + ", lon - " + location.getLongitude());
-        Message msg = new Message();
-        msg.obj = location;
-        msg.what = HANDLE_MSG_ON_LOCATION_UPDATED;
-        mHandler.sendMessage(msg);
+        onFixReceived(location);
     }
 
     /**
      * Start listen location changes
      */
     private void startLocationUpdate() {
+        if (!mLocationProvider.isConnected()) return;
         Log.d(Constants.LOG_TAG_DEBUG, "LocationService.startLocationUpdate(): ");
-        try {
-            LocationServices.FusedLocationApi.requestLocationUpdates(
-                    mGoogleApiClient,
-                    mLocationRequest,
-                    mLocationListener
-            );
-        } catch (SecurityException e) {
-            Log.e(Constants.LOG_TAG_ERROR, "LocationService.startLocationUpdate: EXCEPTION - " + e.getLocalizedMessage(), e);
-        }
+        mLocationProvider.requestLocationUpdates(mLocationRequest);
+        mIsLocationUpdateStarted = true;
     }
 
     /**
      * Stop listen location changes
      */
     private void stopLocationUpdate() {
-        if (mGoogleApiClient == null) return;
         Log.d(Constants.LOG_TAG_DEBUG, "LocationService.stopLocationUpdate(): ");
-        try {
-            LocationServices.FusedLocationApi.removeLocationUpdates(
-                    mGoogleApiClient,
-                    mLocationListener
-            );
-        } catch (SecurityException e) {
-            Log.e(Constants.LOG_TAG_ERROR, "LocationService.stopLocationUpdate: EXCEPTION - " + e.getLocalizedMessage(), e);
-        }
+        mLocationProvider.removeLocationUpdates();
+        mIsLocationUpdateStarted = false;
     }
 
     /**
      * Check location settings
      */
     public void checkLocationSettingsState() {
-        if (mGoogleApiClient == null) return;
+        if (mLocationProvider == null) return;
         Log.d(Constants.LOG_TAG_DEBUG, "LocationService.checkLocationSettingsState(): ");
-        LocationServices.SettingsApi.checkLocationSettings(
-                mGoogleApiClient,
-                new LocationSettingsRequest.Builder()
-                        .addLocationRequest(mLocationRequest)
-                        .build()
-        ).setResultCallback(
-                new ResultCallback<LocationSettingsResult>() {
-                    @Override
-                    public void onResult(@NonNull LocationSettingsResult locationSettingsResult) {
-                        Log.d(Constants.LOG_TAG_DEBUG, "LocationSettingsResult.onResult(): ");
-                        LocationSettingsStates states = locationSettingsResult.getLocationSettingsStates();
-                        /*
-                        boolean isGPSOn = states.isGpsUsable();
-                        boolean isNetworkLocationOn = states.isNetworkLocationUsable();
-
-                        /*if (isGPSOn || isNetworkLocationOn) {
-                            callbacks.onLocationON();
-                        } else {
-                            callbacks.onLocationOFF();
-                        }
-                        */
-
-                        LocationSettings settings = new LocationSettings(
-                                states.isGpsUsable(),
-                                states.isNetworkLocationUsable()
-                        );
-
-                        //send result to client
-                        Log.d(Constants.LOG_TAG_DEBUG, "checkLocationSettings.onResult(): isGpsOn - " + settings.isGpsOn() + ", isNetworkLocationOn - " + settings.isNetworkLocationOn());
-                        Message msg = new Message();
-                        msg.obj = settings;
-                        msg.what = HANDLE_MSG_ON_GET_LOCATION_STATE;
-                        mHandler.sendMessage(msg);
-
-                        //getting location if location is turned-on
-                        if (settings.isGpsOn() || settings.isNetworkLocationOn()) {
-                            checkLastKnownLocation();
-                            startLocationUpdate();
-                        }
-                    }
-                }
-        );
-
+        mLocationProvider.checkLocationSettings(mLocationRequest);
     }
 
 }
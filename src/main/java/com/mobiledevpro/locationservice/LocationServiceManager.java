@@ -12,7 +12,10 @@ import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.provider.Settings;
 import android.support.annotation.NonNull;
@@ -23,6 +26,11 @@ import android.util.Log;
 
 import com.google.android.gms.common.GoogleApiAvailability;
 
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Manager for location service
  * <p>
@@ -34,10 +42,40 @@ import com.google.android.gms.common.GoogleApiAvailability;
 
 public class LocationServiceManager {
 
+    /**
+     * Adaptive sampling modes, see Callbacks.onSamplingModeChanged()
+     */
+    public static final int SAMPLING_MODE_STATIONARY = AdaptiveSampler.MODE_STATIONARY;
+    public static final int SAMPLING_MODE_MOVING = AdaptiveSampler.MODE_MOVING;
+    public static final int SAMPLING_MODE_FAST = AdaptiveSampler.MODE_FAST;
+
+    /**
+     * Provider states, see Callbacks.onProviderStateChanged()
+     */
+    public static final int PROVIDER_STATE_CONNECTING = LocationService.PROVIDER_STATE_CONNECTING;
+    public static final int PROVIDER_STATE_ACTIVE = LocationService.PROVIDER_STATE_ACTIVE;
+    public static final int PROVIDER_STATE_IDLE = LocationService.PROVIDER_STATE_IDLE;
+    public static final int PROVIDER_STATE_LOCATION_OFF = LocationService.PROVIDER_STATE_LOCATION_OFF;
+    public static final int PROVIDER_STATE_SUSPENDED = LocationService.PROVIDER_STATE_SUSPENDED;
+    public static final int PROVIDER_STATE_FAILED = LocationService.PROVIDER_STATE_FAILED;
+
     private static LocationServiceManager sManager;
 
+    /**
+     * One connection is shared by all listeners, it's used on main thread only
+     */
     private ServiceConnection mLocationServiceConnection;
     private ILocationService mLocationService = null;
+    private Context mAppContext;
+    private final Map<Callbacks, LocationSubscription> mListeners = new LinkedHashMap<>();
+    private long mLingerTimeout = Constants.SERVICE_LINGER_TIMEOUT;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mUnbindTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mListeners.isEmpty()) unbind();
+        }
+    };
 
     private LocationServiceManager() {
     }
@@ -53,10 +91,22 @@ public class LocationServiceManager {
      * Bind service
      */
     public void bindLocationService(@NonNull Context context, @NonNull Callbacks callbacks) {
-        //check network connection
+        bindLocationService(context, callbacks, null);
+    }
+
+    /**
+     * Add listener with subscription parameters. Service is bound once and shared by all listeners,
+     * listener which is already added gets new subscription (its geofences and shared fix ring are dropped).
+     * Must be called on main thread.
+     *
+     * @param context      Context, application context is used for binding
+     * @param callbacks    Service callbacks
+     * @param subscription Subscription parameters (batching, etc), null - default
+     */
+    public void bindLocationService(@NonNull Context context, @NonNull Callbacks callbacks, LocationSubscription subscription) {
+        //location works offline (GPS), client is only told about it
         if (!isDeviceOnline(context)) {
             callbacks.isDeviceOffline();
-            return;
         }
 
         //check location permission
@@ -65,27 +115,287 @@ public class LocationServiceManager {
             return;
         }
 
-        Intent intent = new Intent(context, LocationService.class);
-        //unbind service if it was already bound
-        unbindLocationService(context);
-        //init location service connection
-        initLocationServiceConnection(callbacks);
-        //bind service to context
-        context.bindService(
-                intent,
-                mLocationServiceConnection,
-                Context.BIND_AUTO_CREATE
-        );
+        //service is kept, listener comes back before linger timeout
+        mMainHandler.removeCallbacks(mUnbindTask);
+        //the same listener gets new subscription, service replaces its registration
+        mListeners.put(callbacks, subscription);
+
+        if (mLocationServiceConnection == null) {
+            mAppContext = context.getApplicationContext();
+            initLocationServiceConnection();
+            //all listeners are registered when service is connected
+            mAppContext.bindService(
+                    new Intent(mAppContext, LocationService.class),
+                    mLocationServiceConnection,
+                    Context.BIND_AUTO_CREATE
+            );
+        } else {
+            registerCallback(callbacks, subscription);
+        }
     }
 
     /**
-     * Unbind service
+     * Remove listener. Service is unbound after linger timeout when there are no listeners.
+     * Must be called on main thread.
+     *
+     * @param context   Context
+     * @param callbacks Listener added by bindLocationService()
+     */
+    public void unbindLocationService(@NonNull Context context, @NonNull Callbacks callbacks) {
+        if (mListeners.remove(callbacks) == null) return;
+        unregisterCallback(callbacks);
+        if (mListeners.isEmpty()) scheduleUnbind();
+    }
+
+    /**
+     * Remove all listeners. Service is unbound after linger timeout.
+     * Must be called on main thread.
      */
     public void unbindLocationService(@NonNull Context context) {
-        if (mLocationServiceConnection != null) {
-            context.unbindService(mLocationServiceConnection);
-            mLocationServiceConnection = null;
+        for (Callbacks callbacks : mListeners.keySet()) {
+            unregisterCallback(callbacks);
         }
+        mListeners.clear();
+        scheduleUnbind();
+    }
+
+    /**
+     * How long service stays bound after the last listener is removed,
+     * so short gaps between screens don't reconnect location provider
+     *
+     * @param lingerTimeout Milliseconds, 0 - unbind at once
+     */
+    public void setLingerTimeout(long lingerTimeout) {
+        mLingerTimeout = Math.max(0, lingerTimeout);
+    }
+
+    /**
+     * Get service health counters
+     *
+     * @return Stats or null if service isn't bound
+     */
+    public LocationServiceStats getStats() {
+        if (mLocationService == null) return null;
+        try {
+            return mLocationService.getStats();
+        } catch (RemoteException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "LocationServiceManager.getStats: EXCEPTION - " + e.getLocalizedMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return One of PROVIDER_STATE_* or -1 if service isn't bound
+     */
+    public int getProviderState() {
+        if (mLocationService == null) return -1;
+        try {
+            return mLocationService.getProviderState();
+        } catch (RemoteException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "LocationServiceManager.getProviderState: EXCEPTION - " + e.getLocalizedMessage(), e);
+            return -1;
+        }
+    }
+
+    /**
+     * Turn on/off recording of all fixes to the track log on device storage
+     *
+     * @param isEnabled True - record fixes
+     * @return False - service isn't bound
+     */
+    public boolean setTrackRecording(boolean isEnabled) {
+        if (mLocationService == null) return false;
+        try {
+            mLocationService.setTrackRecording(isEnabled);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "LocationServiceManager.setTrackRecording: EXCEPTION - " + e.getLocalizedMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Send all fixes to the server. Fixes are sent in gzip JSON batches (POST with Idempotency-Key header),
+     * they wait on device storage while it's offline.
+     *
+     * @param url Endpoint, null - stop uploading
+     * @return False - service isn't bound
+     */
+    public boolean setUploadEndpoint(String url) {
+        if (mLocationService == null) return false;
+        try {
+            mLocationService.setUploadEndpoint(url);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "LocationServiceManager.setUploadEndpoint: EXCEPTION - " + e.getLocalizedMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Places where device spends its time, counted from every fix (with or without clients' subscriptions)
+     *
+     * @param precision Geohash length, DwellCell.MIN_PRECISION..DwellCell.MAX_PRECISION
+     * @param maxCount  Max count of cells
+     * @return Cells with the longest dwell time first or null if service isn't bound
+     */
+    public List<DwellCell> getDwellCells(int precision, int maxCount) {
+        if (mLocationService == null) return null;
+        try {
+            return mLocationService.getDwellCells(precision, maxCount);
+        } catch (RemoteException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "LocationServiceManager.getDwellCells: EXCEPTION - " + e.getLocalizedMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Compact snapshot of dwell heatmap for upload, decoded with HeatmapCodec.decode()
+     *
+     * @param precision Geohash length, DwellCell.MIN_PRECISION..DwellCell.MAX_PRECISION
+     * @return Snapshot or null if service isn't bound
+     */
+    public byte[] exportDwellHeatmap(int precision) {
+        if (mLocationService == null) return null;
+        try {
+            return mLocationService.exportDwellHeatmap(precision);
+        } catch (RemoteException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "LocationServiceManager.exportDwellHeatmap: EXCEPTION - " + e.getLocalizedMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Query recorded fixes (track recording must be on), read them with cursor.next() until empty list is returned
+     *
+     * @param fromTime UTC time, milliseconds
+     * @param toTime   UTC time, milliseconds, inclusive
+     * @return Cursor (must be closed) or null if service isn't bound
+     */
+    public IHistoryCursor queryHistory(long fromTime, long toTime) {
+        if (mLocationService == null) return null;
+        try {
+            return mLocationService.queryHistory(fromTime, toTime);
+        } catch (RemoteException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "LocationServiceManager.queryHistory: EXCEPTION - " + e.getLocalizedMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Add geofences of the listener, transitions are sent to its Callbacks.onGeofenceTransition().
+     * Fence with the same id replaces the old one.
+     *
+     * @param callbacks Listener added by bindLocationService()
+     * @param geofences Geofences (thousands are fine)
+     * @return False - service isn't bound
+     */
+    public boolean addGeofences(@NonNull Callbacks callbacks, @NonNull List<Geofence> geofences) {
+        if (mLocationService == null) return false;
+        try {
+            mLocationService.addGeofences(callbacks, geofences);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "LocationServiceManager.addGeofences: EXCEPTION - " + e.getLocalizedMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * @param callbacks   Listener added by bindLocationService()
+     * @param geofenceIds Ids of the listener's geofences to remove
+     * @return False - service isn't bound
+     */
+    public boolean removeGeofences(@NonNull Callbacks callbacks, @NonNull List<String> geofenceIds) {
+        if (mLocationService == null) return false;
+        try {
+            mLocationService.removeGeofences(callbacks, geofenceIds);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "LocationServiceManager.removeGeofences: EXCEPTION - " + e.getLocalizedMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * @return True - service runs in this process: calls and callbacks don't go through Binder,
+     * fixes are delivered to Callbacks.onLocationFix() as objects
+     */
+    public boolean isLocalService() {
+        //asInterface() returns Stub itself for local binder and Proxy for remote one
+        return mLocationService instanceof ILocationService.Stub;
+    }
+
+    /**
+     * Read every fix from memory shared with the service instead of location callbacks.
+     * After this call the service sends onSharedFixesAvailable() only to the listener.
+     *
+     * @param callbacks Listener added by bindLocationService()
+     * @return Reader or null if service isn't bound or ring isn't available
+     */
+    public SharedFixReader openSharedFixRing(@NonNull Callbacks callbacks) {
+        if (mLocationService == null) return null;
+        try {
+            ParcelFileDescriptor descriptor = mLocationService.openSharedFixRing(callbacks);
+            return descriptor != null ? new SharedFixReader(descriptor) : null;
+        } catch (RemoteException | IOException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "LocationServiceManager.openSharedFixRing: EXCEPTION - " + e.getLocalizedMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Find address of the position, it's sent to the listener's Callbacks.onAddressResolved().
+     * Positions a few meters apart share one cached address, so it may be called for every fix.
+     *
+     * @param callbacks Listener added by bindLocationService()
+     * @param latitude  Degrees
+     * @param longitude Degrees
+     * @return False - service isn't bound
+     */
+    public boolean lookupAddress(@NonNull Callbacks callbacks, double latitude, double longitude) {
+        return lookupAddress(callbacks, latitude, longitude, Constants.ADDRESS_PRECISION);
+    }
+
+    /**
+     * @param callbacks Listener added by bindLocationService()
+     * @param latitude  Degrees
+     * @param longitude Degrees
+     * @param precision Geohash length of cached cell, 1..12 (7 - ~150 m, 8 - ~40 m, 9 - ~5 m)
+     * @return False - service isn't bound
+     */
+    public boolean lookupAddress(@NonNull Callbacks callbacks, double latitude, double longitude, int precision) {
+        if (mLocationService == null) return false;
+        try {
+            mLocationService.lookupAddress(callbacks, latitude, longitude, precision);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "LocationServiceManager.lookupAddress: EXCEPTION - " + e.getLocalizedMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Fixes as demand-driven stream with operators, e.g. fixes(context, null).distinctByDistance(50).sample(5000).
+     * Every subscriber is a listener of its own (see bindLocationService()), cancel() removes it.
+     * Must be subscribed on main thread, values come on main thread.
+     *
+     * @param context      Context, application context is used for binding
+     * @param subscription Subscription parameters, null - default
+     * @return Stream
+     */
+    public FixStream fixes(@NonNull Context context, LocationSubscription subscription) {
+        return new FixStream(ServiceStreamSource.<LocationFix>create(context, subscription, ServiceStreamSource.TYPE_FIXES));
+    }
+
+    /**
+     * Location settings states as stream, see fixes()
+     *
+     * @param context Context, application context is used for binding
+     * @return Stream
+     */
+    public LocationStream<LocationSettings> settingsStates(@NonNull Context context) {
+        return ServiceStreamSource.create(context, null, ServiceStreamSource.TYPE_SETTINGS);
     }
 
     /**
@@ -155,31 +465,68 @@ public class LocationServiceManager {
     }
 
     /**
-     * Create service connection
+     * Create service connection shared by all listeners
      */
-    private void initLocationServiceConnection(final ILocationServiceCallbacks callbacks) {
+    private void initLocationServiceConnection() {
         mLocationServiceConnection = new ServiceConnection() {
             @Override
             public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
-                Log.d(Constants.LOG_TAG_DEBUG, "LocationServiceManager.onServiceConnected(): service connected");
+                Log.d(Constants.LOG_TAG_DEBUG, "LocationServiceManager.onServiceConnected(): service connected, listeners - " + mListeners.size());
 
-                //define location service
+                //define location service: local binder is returned as is, so calls in the same process are direct
                 mLocationService = ILocationService.Stub.asInterface(iBinder);
-                //register service callbacks
-                try {
-                    mLocationService.registerCallback(callbacks);
-                } catch (RemoteException e) {
-                    Log.e(Constants.LOG_TAG_ERROR, "LocationServiceManager.onServiceConnected: EXCEPTION - " + e.getLocalizedMessage(), e);
+                Log.d(Constants.LOG_TAG_DEBUG, "LocationServiceManager.onServiceConnected(): local - " + isLocalService());
+                //register callbacks of all listeners (again, if service was restarted)
+                for (Map.Entry<Callbacks, LocationSubscription> listener : mListeners.entrySet()) {
+                    registerCallback(listener.getKey(), listener.getValue());
                 }
             }
 
             @Override
             public void onServiceDisconnected(ComponentName componentName) {
+                //service process died, system reconnects and onServiceConnected() is called again
                 Log.d(Constants.LOG_TAG_DEBUG, "LocationServiceManager.onServiceDisconnected(): service disconnected");
+                mLocationService = null;
             }
         };
     }
 
+    private void registerCallback(Callbacks callbacks, LocationSubscription subscription) {
+        if (mLocationService == null) return;
+        try {
+            mLocationService.registerCallbackWithParams(callbacks, subscription);
+        } catch (RemoteException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "LocationServiceManager.registerCallback: EXCEPTION - " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    private void unregisterCallback(Callbacks callbacks) {
+        if (mLocationService == null) return;
+        try {
+            mLocationService.unregisterCallback(callbacks);
+        } catch (RemoteException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "LocationServiceManager.unregisterCallback: EXCEPTION - " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    private void scheduleUnbind() {
+        if (mLocationServiceConnection == null) return;
+        mMainHandler.removeCallbacks(mUnbindTask);
+        if (mLingerTimeout == 0) {
+            unbind();
+        } else {
+            mMainHandler.postDelayed(mUnbindTask, mLingerTimeout);
+        }
+    }
+
+    private void unbind() {
+        if (mLocationServiceConnection == null) return;
+        Log.d(Constants.LOG_TAG_DEBUG, "LocationServiceManager.unbind(): no listeners");
+        mAppContext.unbindService(mLocationServiceConnection);
+        mLocationServiceConnection = null;
+        mLocationService = null;
+    }
+
     /**
      * Check network connection
      *
@@ -209,9 +556,31 @@ public class LocationServiceManager {
     }
 
     /**
-     * Callbacks for client
+     * Callbacks for client.
+     * <p>
+     * Called on main thread, or on the thread of handler passed to constructor
+     * (isDeviceOffline() and isNotLocationPermissionGranted() are called by bindLocationService() itself).
      */
     public static abstract class Callbacks extends ILocationServiceCallbacks.Stub {
+        private final Handler mHandler;
+
+        public Callbacks() {
+            this(null);
+        }
+
+        /**
+         * @param handler Handler of the thread for callbacks, null - main thread
+         */
+        public Callbacks(Handler handler) {
+            mHandler = handler != null ? handler : new Handler(Looper.getMainLooper());
+        }
+
+        /**
+         * @return Handler of the thread for callbacks
+         */
+        Handler getHandler() {
+            return mHandler;
+        }
 
         @Override
         public abstract void isDeviceOffline();
@@ -231,6 +600,122 @@ public class LocationServiceManager {
 
         @Override
         public abstract void onGetLocationSettingsState(boolean isNetworkLocationOn, boolean isGpsLocationOn);
+
+        /**
+         * Fix with all its fields, called instead of onLocationUpdated() when the service runs in client's process.
+         * Calls onLocationUpdated() by default.
+         *
+         * @param fix Fix, it's reused after return: copy values you keep
+         */
+        public void onLocationFix(LocationFix fix) {
+            onLocationUpdated(fix.getLatitude(), fix.getLongitude(), fix.getAltitude(), fix.getAccuracy());
+        }
+
+        /**
+         * Called instead of onLocationUpdated() when subscription batch size > 1, or with fixes
+         * which came at once when subscription max wait time > 0.
+         * By default every fix of the batch is passed to onLocationFix().
+         *
+         * @param fixes Fixes in order of arrival
+         */
+        @Override
+        public void onLocationsBatch(List<LocationFix> fixes) {
+            if (fixes == null) return;
+            for (LocationFix fix : fixes) {
+                onLocationFix(fix);
+            }
+        }
+
+        /**
+         * Adaptive sampling mode was changed (does nothing by default)
+         *
+         * @param mode SAMPLING_MODE_STATIONARY, SAMPLING_MODE_MOVING or SAMPLING_MODE_FAST
+         */
+        @Override
+        public void onSamplingModeChanged(int mode) {
+        }
+
+        /**
+         * Periodic stats, called when subscription stats interval > 0 (does nothing by default)
+         *
+         * @param stats Service health counters
+         */
+        @Override
+        public void onStatsSnapshot(LocationServiceStats stats) {
+        }
+
+        /**
+         * Geofence transition (does nothing by default)
+         *
+         * @param geofenceId Geofence id
+         * @param transition Geofence.TRANSITION_ENTER, TRANSITION_EXIT or TRANSITION_DWELL
+         * @param latitude   Fix which caused transition
+         * @param longitude  Fix which caused transition
+         */
+        @Override
+        public void onGeofenceTransition(String geofenceId, int transition, double latitude, double longitude) {
+        }
+
+        /**
+         * Stop or move started, called when subscription trip segmentation is on (does nothing by default)
+         *
+         * @param type      TripSegment.TYPE_STOP or TYPE_MOVE
+         * @param time      UTC time of the start
+         * @param latitude  Position of the start
+         * @param longitude Position of the start
+         */
+        @Override
+        public void onTripSegmentStarted(int type, long time, double latitude, double longitude) {
+        }
+
+        /**
+         * Stop or move finished (does nothing by default)
+         *
+         * @param segment Segment with its summary
+         */
+        @Override
+        public void onTripSegmentEnded(TripSegment segment) {
+        }
+
+        /**
+         * The last known fix, sent right after binding before live fixes come.
+         * Calls onLocationUpdated() by default.
+         *
+         * @param fix       Fix
+         * @param ageMillis Milliseconds since the fix
+         */
+        @Override
+        public void onCachedLocation(LocationFix fix, long ageMillis) {
+            onLocationUpdated(fix.getLatitude(), fix.getLongitude(), fix.getAltitude(), fix.getAccuracy());
+        }
+
+        /**
+         * New fixes in the shared fix ring, read them with SharedFixReader.next() (does nothing by default)
+         */
+        @Override
+        public void onSharedFixesAvailable() {
+        }
+
+        /**
+         * Location provider state was changed, the current one is sent after binding too (does nothing by default)
+         *
+         * @param state PROVIDER_STATE_ACTIVE - fixes come, PROVIDER_STATE_IDLE - stopped because nobody needs fixes,
+         *              PROVIDER_STATE_SUSPENDED - connection is lost and restored with backoff, etc
+         */
+        @Override
+        public void onProviderStateChanged(int state) {
+        }
+
+        /**
+         * Answer to lookupAddress() (does nothing by default)
+         *
+         * @param latitude  Position from the request
+         * @param longitude Position from the request
+         * @param address   Address or null if there is no one or geocoder isn't available
+         */
+        @Override
+        public void onAddressResolved(double latitude, double longitude, String address) {
+        }
     }
 
 }
@@ -0,0 +1,236 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Snapshot of service health counters (see ILocationService.getStats() and Callbacks.onStatsSnapshot())
+ */
+
+public class LocationServiceStats implements Parcelable {
+    private long uptime; //milliseconds
+    private long fixesReceived;
+    private long fixesDropped;
+    private long eventsDelivered;
+    private long remoteExceptions;
+    private long dispatchLatencyP50; //nanoseconds
+    private long dispatchLatencyP99;
+    private long dispatchLatencyMax;
+    private long fixAgeP50; //milliseconds
+    private long fixAgeP99;
+    private long fixAgeMax;
+    //per client, in order of registration
+    private long[] clientLatencyP50;
+    private long[] clientLatencyP99;
+    private long[] clientFixesDropped;
+    private long addressLookups;
+    private long addressCacheHits;
+    private long geocoderCalls;
+
+    public static final Creator<LocationServiceStats> CREATOR = new Creator<LocationServiceStats>() {
+        @Override
+        public LocationServiceStats createFromParcel(Parcel in) {
+            return new LocationServiceStats(in);
+        }
+
+        @Override
+        public LocationServiceStats[] newArray(int size) {
+            return new LocationServiceStats[size];
+        }
+    };
+
+    /**
+     * @param stats       Service counters
+     * @param clientCount Count of clients, per client values are set with setClient()
+     */
+    LocationServiceStats(PipelineStats stats, int clientCount) {
+        uptime = stats.getUptime();
+        fixesReceived = stats.getFixesReceived();
+        fixesDropped = stats.getFixesDropped();
+        eventsDelivered = stats.getEventsDelivered();
+        remoteExceptions = stats.getRemoteExceptions();
+        dispatchLatencyP50 = stats.getDispatchLatency().getPercentile(50);
+        dispatchLatencyP99 = stats.getDispatchLatency().getPercentile(99);
+        dispatchLatencyMax = stats.getDispatchLatency().getMax();
+        fixAgeP50 = stats.getFixAge().getPercentile(50);
+        fixAgeP99 = stats.getFixAge().getPercentile(99);
+        fixAgeMax = stats.getFixAge().getMax();
+        clientLatencyP50 = new long[clientCount];
+        clientLatencyP99 = new long[clientCount];
+        clientFixesDropped = new long[clientCount];
+        addressLookups = stats.getAddressLookups();
+        addressCacheHits = stats.getAddressCacheHits();
+        geocoderCalls = stats.getGeocoderCalls();
+    }
+
+    private LocationServiceStats(Parcel in) {
+        uptime = in.readLong();
+        fixesReceived = in.readLong();
+        fixesDropped = in.readLong();
+        eventsDelivered = in.readLong();
+        remoteExceptions = in.readLong();
+        dispatchLatencyP50 = in.readLong();
+        dispatchLatencyP99 = in.readLong();
+        dispatchLatencyMax = in.readLong();
+        fixAgeP50 = in.readLong();
+        fixAgeP99 = in.readLong();
+        fixAgeMax = in.readLong();
+        clientLatencyP50 = in.createLongArray();
+        clientLatencyP99 = in.createLongArray();
+        clientFixesDropped = in.createLongArray();
+        addressLookups = in.readLong();
+        addressCacheHits = in.readLong();
+        geocoderCalls = in.readLong();
+    }
+
+    /**
+     * @param index      Client's index
+     * @param subscriber Client's state
+     */
+    void setClient(int index, LocationSubscriber subscriber) {
+        if (index >= clientLatencyP50.length) return;
+        clientLatencyP50[index] = subscriber.getDispatchLatency().getPercentile(50);
+        clientLatencyP99[index] = subscriber.getDispatchLatency().getPercentile(99);
+        clientFixesDropped[index] = subscriber.getFixesDropped();
+    }
+
+    /**
+     * @return Milliseconds since service was created
+     */
+    public long getUptime() {
+        return uptime;
+    }
+
+    public long getFixesReceived() {
+        return fixesReceived;
+    }
+
+    /**
+     * @return Average count of fixes from provider per second
+     */
+    public double getFixesPerSecond() {
+        return uptime > 0 ? fixesReceived * 1000.0 / uptime : 0;
+    }
+
+    /**
+     * @return Fixes which weren't delivered because clients didn't keep up (queue overflow, ring overwrite)
+     */
+    public long getFixesDropped() {
+        return fixesDropped;
+    }
+
+    public long getEventsDelivered() {
+        return eventsDelivered;
+    }
+
+    /**
+     * @return Count of failed callbacks (client is disconnected after the first one)
+     */
+    public long getRemoteExceptions() {
+        return remoteExceptions;
+    }
+
+    /**
+     * @return Nanoseconds from receiving of fix to return from client's callback, all clients
+     */
+    public long getDispatchLatencyP50() {
+        return dispatchLatencyP50;
+    }
+
+    public long getDispatchLatencyP99() {
+        return dispatchLatencyP99;
+    }
+
+    public long getDispatchLatencyMax() {
+        return dispatchLatencyMax;
+    }
+
+    /**
+     * @return Milliseconds from fix time to delivery, all clients
+     */
+    public long getFixAgeP50() {
+        return fixAgeP50;
+    }
+
+    public long getFixAgeP99() {
+        return fixAgeP99;
+    }
+
+    public long getFixAgeMax() {
+        return fixAgeMax;
+    }
+
+    public int getClientCount() {
+        return clientLatencyP50.length;
+    }
+
+    /**
+     * @param index Client's index, 0..getClientCount() - 1
+     * @return Nanoseconds from receiving of fix to return from this client's callback
+     */
+    public long getClientLatencyP50(int index) {
+        return clientLatencyP50[index];
+    }
+
+    public long getClientLatencyP99(int index) {
+        return clientLatencyP99[index];
+    }
+
+    public long getClientFixesDropped(int index) {
+        return clientFixesDropped[index];
+    }
+
+    /**
+     * @return Count of address lookups by all clients
+     */
+    public long getAddressLookups() {
+        return addressLookups;
+    }
+
+    /**
+     * @return Lookups which were answered from cache without waiting for geocoder
+     */
+    public long getAddressCacheHits() {
+        return addressCacheHits;
+    }
+
+    /**
+     * @return Hits of address cache, 0..1
+     */
+    public double getAddressCacheHitRate() {
+        return addressLookups > 0 ? (double) addressCacheHits / addressLookups : 0;
+    }
+
+    /**
+     * @return Calls of geocoder (lookups of the same cell at the same time share one call)
+     */
+    public long getGeocoderCalls() {
+        return geocoderCalls;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(uptime);
+        dest.writeLong(fixesReceived);
+        dest.writeLong(fixesDropped);
+        dest.writeLong(eventsDelivered);
+        dest.writeLong(remoteExceptions);
+        dest.writeLong(dispatchLatencyP50);
+        dest.writeLong(dispatchLatencyP99);
+        dest.writeLong(dispatchLatencyMax);
+        dest.writeLong(fixAgeP50);
+        dest.writeLong(fixAgeP99);
+        dest.writeLong(fixAgeMax);
+        dest.writeLongArray(clientLatencyP50);
+        dest.writeLongArray(clientLatencyP99);
+        dest.writeLongArray(clientFixesDropped);
+        dest.writeLong(addressLookups);
+        dest.writeLong(addressCacheHits);
+        dest.writeLong(geocoderCalls);
+    }
+}
@@ -1,7 +1,7 @@
 package com.mobiledevpro.locationservice;
 
 /**
- * Model from location settings
+ * Model from location settings (see LocationServiceManager.settingsStates())
  * <p>
  * Created by Dmitriy V. Chernysh on 19.01.17.
  * dmitriy.chernysh@gmail.com
@@ -9,7 +9,7 @@ package com.mobiledevpro.locationservice;
  * www.mobile-dev.pro
  */
 
-class LocationSettings {
+public class LocationSettings {
     private boolean isGpsOn;
     private boolean isNetworkLocationOn;
 
@@ -18,11 +18,11 @@ class LocationSettings {
         this.isNetworkLocationOn = isNetworkLocationOn;
     }
 
-    boolean isGpsOn() {
+    public boolean isGpsOn() {
         return isGpsOn;
     }
 
-    boolean isNetworkLocationOn() {
+    public boolean isNetworkLocationOn() {
         return isNetworkLocationOn;
     }
 }
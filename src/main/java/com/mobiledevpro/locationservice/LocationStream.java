@@ -0,0 +1,323 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Demand-driven stream of service values (Reactive Streams / Flow style).
+ * <p>
+ * Everything runs on main thread: values, operators, timers of sample() and buffer().
+ * Subscriber gets not more values than it requested. When it doesn't request, every stage keeps
+ * only the latest value (location is useful while it's fresh), so a slow subscriber never makes
+ * memory grow and never blocks the service. Operators don't allocate per value except buffer() lists.
+ */
+
+public abstract class LocationStream<T> {
+
+    public interface Subscriber<T> {
+        /**
+         * Called once before other methods, values come after subscription.request()
+         *
+         * @param subscription Subscription
+         */
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T value);
+
+        /**
+         * Stream is failed (e.g. location permission isn't granted), nothing comes after it
+         *
+         * @param error Error
+         */
+        void onError(Throwable error);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /**
+         * @param count Count of values subscriber is ready for, Long.MAX_VALUE - all
+         */
+        void request(long count);
+
+        /**
+         * Stop the stream, values may still come until the current main thread task returns
+         */
+        void cancel();
+    }
+
+    /**
+     * Start the stream, must be called on main thread. Every subscriber gets its own stream.
+     *
+     * @param subscriber Subscriber
+     */
+    public abstract void subscribe(Subscriber<? super T> subscriber);
+
+    /**
+     * Pass the first value, then drop values until interval has passed
+     *
+     * @param intervalMillis Min milliseconds between values
+     * @return Stream
+     */
+    public LocationStream<T> throttle(final long intervalMillis) {
+        return lift(new StageFactory<T, T>() {
+            @Override
+            public Stage<T, T> create(Subscriber<? super T> downstream) {
+                return new ThrottleStage<>(downstream, intervalMillis);
+            }
+        });
+    }
+
+    /**
+     * Pass the latest value once per period, nothing if there was no new value in the period
+     *
+     * @param periodMillis Period, milliseconds
+     * @return Stream
+     */
+    public LocationStream<T> sample(final long periodMillis) {
+        return lift(new StageFactory<T, T>() {
+            @Override
+            public Stage<T, T> create(Subscriber<? super T> downstream) {
+                return new SampleStage<>(downstream, periodMillis);
+            }
+        });
+    }
+
+    /**
+     * Collect values into lists
+     *
+     * @param maxCount      List is passed when it has this count of values
+     * @param maxTimeMillis Or when its first value is this old, 0 - no time limit
+     * @return Stream of lists
+     */
+    public LocationStream<List<T>> buffer(final int maxCount, final long maxTimeMillis) {
+        return lift(new StageFactory<T, List<T>>() {
+            @Override
+            public Stage<T, List<T>> create(Subscriber<? super List<T>> downstream) {
+                return new BufferStage<>(downstream, Math.max(1, maxCount), maxTimeMillis);
+            }
+        });
+    }
+
+    /**
+     * @param factory Creates operator for every subscriber
+     * @return Stream which passes values of this one through operator
+     */
+    <R> LocationStream<R> lift(final StageFactory<T, R> factory) {
+        final LocationStream<T> upstream = this;
+        return new LocationStream<R>() {
+            @Override
+            public void subscribe(Subscriber<? super R> subscriber) {
+                upstream.subscribe(factory.create(subscriber));
+            }
+        };
+    }
+
+    interface StageFactory<T, R> {
+        Stage<T, R> create(Subscriber<? super R> downstream);
+    }
+
+    /**
+     * Passes values to subscriber while it has demand, otherwise keeps the latest one.
+     * Used on main thread only.
+     */
+    abstract static class Emitter<R> implements Subscription, Handler.Callback {
+        final Subscriber<? super R> mDownstream;
+        final Handler mHandler;
+        private long mRequested;
+        private R mPending;
+        private boolean mIsDone;
+
+        Emitter(Subscriber<? super R> downstream) {
+            mDownstream = downstream;
+            mHandler = new Handler(Looper.getMainLooper(), this);
+        }
+
+        @Override
+        public void request(long count) {
+            if (count <= 0 || mIsDone) return;
+            mRequested = mRequested + count < 0 ? Long.MAX_VALUE : mRequested + count;
+            if (mPending != null) {
+                R value = mPending;
+                mPending = null;
+                emit(value);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (mIsDone) return;
+            mIsDone = true;
+            mPending = null;
+            onCancel();
+        }
+
+        void emit(R value) {
+            if (mIsDone) return;
+            if (mRequested == 0) {
+                mPending = value;
+                return;
+            }
+            if (mRequested != Long.MAX_VALUE) mRequested--;
+            mDownstream.onNext(value);
+        }
+
+        void error(Throwable error) {
+            if (mIsDone) return;
+            cancel();
+            mDownstream.onError(error);
+        }
+
+        void complete() {
+            if (mIsDone) return;
+            cancel();
+            mDownstream.onComplete();
+        }
+
+        boolean isDone() {
+            return mIsDone;
+        }
+
+        /**
+         * Messages of mHandler, stages use it for runnables only
+         */
+        @Override
+        public boolean handleMessage(Message msg) {
+            return false;
+        }
+
+        /**
+         * Release resources: stop timers, unsubscribe from upstream
+         */
+        abstract void onCancel();
+    }
+
+    /**
+     * Operator between upstream and subscriber, takes all upstream values
+     */
+    abstract static class Stage<T, R> extends Emitter<R> implements Subscriber<T> {
+        private Subscription mUpstream;
+
+        Stage(Subscriber<? super R> downstream) {
+            super(downstream);
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            mUpstream = subscription;
+            mDownstream.onSubscribe(this);
+            //stages drop or conflate values, so they never hold more than one
+            if (!isDone()) subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            error(error);
+        }
+
+        @Override
+        public void onComplete() {
+            complete();
+        }
+
+        @Override
+        void onCancel() {
+            mHandler.removeCallbacksAndMessages(null);
+            if (mUpstream != null) mUpstream.cancel();
+        }
+    }
+
+    private static class ThrottleStage<T> extends Stage<T, T> {
+        private final long mInterval;
+        private long mLastTime;
+        private boolean mHasValue;
+
+        ThrottleStage(Subscriber<? super T> downstream, long interval) {
+            super(downstream);
+            mInterval = interval;
+        }
+
+        @Override
+        public void onNext(T value) {
+            long now = SystemClock.elapsedRealtime();
+            if (mHasValue && now - mLastTime < mInterval) return;
+            mHasValue = true;
+            mLastTime = now;
+            emit(value);
+        }
+    }
+
+    private static class SampleStage<T> extends Stage<T, T> {
+        private final long mPeriod;
+        private T mLatest;
+        private long mLastTime;
+        private final Runnable mTick = new Runnable() {
+            @Override
+            public void run() {
+                T value = mLatest;
+                mLatest = null;
+                mLastTime = SystemClock.uptimeMillis();
+                if (value != null) emit(value);
+            }
+        };
+
+        SampleStage(Subscriber<? super T> downstream, long period) {
+            super(downstream);
+            mPeriod = period;
+        }
+
+        @Override
+        public void onNext(T value) {
+            boolean isScheduled = mLatest != null;
+            mLatest = value;
+            //no wakeups while there are no values
+            if (!isScheduled) mHandler.postAtTime(mTick, Math.max(SystemClock.uptimeMillis(), mLastTime + mPeriod));
+        }
+    }
+
+    private static class BufferStage<T> extends Stage<T, List<T>> {
+        private final int mMaxCount;
+        private final long mMaxTime;
+        private List<T> mBuffer;
+        private final Runnable mTimeout = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+
+        BufferStage(Subscriber<? super List<T>> downstream, int maxCount, long maxTime) {
+            super(downstream);
+            mMaxCount = maxCount;
+            mMaxTime = maxTime;
+        }
+
+        @Override
+        public void onNext(T value) {
+            if (mBuffer == null) {
+                mBuffer = new ArrayList<>(mMaxCount);
+                if (mMaxTime > 0) mHandler.postDelayed(mTimeout, mMaxTime);
+            }
+            mBuffer.add(value);
+            if (mBuffer.size() >= mMaxCount) flush();
+        }
+
+        @Override
+        public void onComplete() {
+            flush();
+            super.onComplete();
+        }
+
+        private void flush() {
+            mHandler.removeCallbacks(mTimeout);
+            List<T> buffer = mBuffer;
+            mBuffer = null;
+            if (buffer != null) emit(buffer);
+        }
+    }
+}
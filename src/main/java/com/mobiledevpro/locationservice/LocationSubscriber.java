@@ -0,0 +1,463 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.Handler;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Service side state of registered client (stored as cookie in RemoteCallbackList)
+ */
+
+class LocationSubscriber {
+    static final int ENQUEUE_QUEUED = 0;
+    static final int ENQUEUE_SCHEDULE = 1;
+    static final int ENQUEUE_DISCONNECT = 2;
+
+    private final ILocationServiceCallbacks mCallbacks;
+    //not null - client lives in the service process, fixes are passed to it as objects on its handler thread
+    private final LocationServiceManager.Callbacks mLocalCallbacks;
+    private final Handler mLocalHandler;
+    private final LocationSubscription mSubscription;
+    private final CallbackDispatcher mDispatcher;
+    private final LatencyHistogram mDispatchLatency = new LatencyHistogram();
+    private final AtomicLong mFixesDropped = new AtomicLong();
+
+    //used on service worker thread only
+    private boolean mHasLastFix;
+    private long mLastFixTime;
+    private double mLastFixLatitude;
+    private double mLastFixLongitude;
+    private final ArrayList<LocationFix> mBatch;
+    private long mBatchDeadline; //SystemClock.elapsedRealtime(), 0 - no pending batch
+    private long mStatsDeadline; //SystemClock.elapsedRealtime(), 0 - not scheduled yet
+    private boolean mIsSharedRingReader;
+
+    //guarded by mQueue, events and fixes share one bounded ring, so they are sent in order of enqueueing
+    private final Object mQueue = new Object();
+    private final ClientEvent[] mEvents; //null - the slot holds a fix
+    private final long[] mFixSeqs; //sequence numbers of fixes in FixRing
+    private int mHead;
+    private int mCount;
+    private boolean mIsScheduled;
+    private boolean mIsClosed;
+    private boolean mIsAbandoned; //dropped by dispatcher while its callback didn't return
+    private final ClientEvent mSharedFixesAvailable = new ClientEvent.SharedFixesAvailable();
+    private boolean mIsSharedFixesAvailableQueued;
+
+    //used by drain only (drain is never run in parallel for one client)
+    private final LocationFix mDrainFix = new LocationFix();
+    //SystemClock.uptimeMillis() when remote callback was called, 0 - drain isn't in a callback
+    private volatile long mDeliveryStart;
+
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            int slot = mLocalHandler == null ? mDispatcher.onDrainStarted(LocationSubscriber.this) : -1;
+            drain();
+            mDispatcher.onDrainFinished(LocationSubscriber.this, slot);
+        }
+    };
+
+    LocationSubscriber(ILocationServiceCallbacks callbacks, LocationSubscription subscription, CallbackDispatcher dispatcher) {
+        mCallbacks = callbacks;
+        mLocalCallbacks = callbacks instanceof LocationServiceManager.Callbacks ? (LocationServiceManager.Callbacks) callbacks : null;
+        mLocalHandler = mLocalCallbacks != null ? mLocalCallbacks.getHandler() : null;
+        mSubscription = subscription != null ? subscription : new LocationSubscription();
+        mDispatcher = dispatcher;
+        mBatch = new ArrayList<>(mSubscription.getMaxBatchSize());
+        mEvents = new ClientEvent[mSubscription.getQueueCapacity()];
+        mFixSeqs = new long[mSubscription.getQueueCapacity()];
+    }
+
+    ILocationServiceCallbacks getCallbacks() {
+        return mCallbacks;
+    }
+
+    LocationSubscription getSubscription() {
+        return mSubscription;
+    }
+
+    boolean isBatchingEnabled() {
+        return mSubscription.isBatchingEnabled();
+    }
+
+    /**
+     * @return True - client set max wait time, fixes of one provider result are sent to it as one batch
+     */
+    boolean isDeferredDelivery() {
+        return mSubscription.getMaxWaitTime() > 0;
+    }
+
+    boolean isSmoothed() {
+        return mSubscription.isSmoothed();
+    }
+
+    boolean isTripSegmentation() {
+        return mSubscription.isTripSegmentation();
+    }
+
+    /**
+     * @return True - client reads fixes from the shared fix ring instead of location callbacks
+     */
+    boolean isSharedRingReader() {
+        return mIsSharedRingReader;
+    }
+
+    void setSharedRingReader() {
+        mIsSharedRingReader = true;
+    }
+
+    /**
+     * Thin the merged fix stream to client's own interval and displacement
+     *
+     * @param fix       Fix
+     * @param interval  Client's interval, milliseconds (may be adjusted by adaptive sampling)
+     * @param tolerance Milliseconds, fix may come a bit earlier than client's interval
+     * @return True - fix must be sent to client
+     */
+    boolean acceptFix(LocationFix fix, long interval, long tolerance) {
+        if (mHasLastFix) {
+            long elapsed = fix.getTime() - mLastFixTime;
+            //elapsed < 0 - clock was changed, don't get stuck on it
+            if (elapsed >= 0 && elapsed + tolerance < interval) return false;
+
+            if (mSubscription.getSmallestDisplacement() > 0
+                    && AdaptiveSampler.distance(mLastFixLatitude, mLastFixLongitude, fix.getLatitude(), fix.getLongitude())
+                    < mSubscription.getSmallestDisplacement()) {
+                return false;
+            }
+        }
+
+        mHasLastFix = true;
+        mLastFixTime = fix.getTime();
+        mLastFixLatitude = fix.getLatitude();
+        mLastFixLongitude = fix.getLongitude();
+        return true;
+    }
+
+    /**
+     * Add copy of fix to the pending batch
+     *
+     * @param fix Fix
+     * @param now SystemClock.elapsedRealtime()
+     * @return True - batch is full and must be sent
+     */
+    boolean addToBatch(LocationFix fix, long now) {
+        if (mBatch.isEmpty() && mSubscription.getMaxBatchLatency() > 0) {
+            mBatchDeadline = now + mSubscription.getMaxBatchLatency();
+        }
+        mBatch.add(new LocationFix(fix));
+        return mBatch.size() >= mSubscription.getMaxBatchSize();
+    }
+
+    /**
+     * Add copy of fix to fixes which came at once (provider batch), client with deferred delivery
+     * and without own batching gets them as one event when the group is processed
+     *
+     * @param fix Fix
+     * @return True - group reached MAX_BATCH_SIZE and must be sent now
+     */
+    boolean addToGroup(LocationFix fix) {
+        mBatch.add(new LocationFix(fix));
+        return mBatch.size() >= Constants.MAX_BATCH_SIZE;
+    }
+
+    /**
+     * @return Time when pending batch must be sent, or 0 if there is nothing to wait for
+     */
+    long getBatchDeadline() {
+        return mBatch.isEmpty() ? 0 : mBatchDeadline;
+    }
+
+    /**
+     * Take pending fixes, the batch is cleared
+     *
+     * @return Fixes or null if batch is empty
+     */
+    List<LocationFix> takeBatch() {
+        if (mBatch.isEmpty()) return null;
+        List<LocationFix> fixes = new ArrayList<>(mBatch);
+        mBatch.clear();
+        mBatchDeadline = 0;
+        return fixes;
+    }
+
+    /**
+     * @param now SystemClock.elapsedRealtime()
+     * @return Time when client must get stats snapshot, 0 - client didn't ask for snapshots
+     */
+    long getStatsDeadline(long now) {
+        if (mSubscription.getStatsInterval() == 0) return 0;
+        if (mStatsDeadline == 0) mStatsDeadline = now + mSubscription.getStatsInterval();
+        return mStatsDeadline;
+    }
+
+    /**
+     * @param now SystemClock.elapsedRealtime() when snapshot was sent
+     */
+    void onStatsSent(long now) {
+        mStatsDeadline = now + mSubscription.getStatsInterval();
+    }
+
+    /**
+     * Put event to the bounded queue, overflow policy is applied when queue is full
+     *
+     * @param event Event
+     * @return ENQUEUE_SCHEDULE - drain task must be executed,
+     * ENQUEUE_DISCONNECT - client must be unregistered,
+     * ENQUEUE_QUEUED - nothing to do
+     */
+    int enqueue(ClientEvent event) {
+        return enqueue(event, -1);
+    }
+
+    /**
+     * Put fix to the bounded queue, overflow policy is applied when queue is full.
+     * Doesn't allocate.
+     *
+     * @param seq Sequence number of fix in FixRing
+     * @return The same as enqueue(ClientEvent)
+     */
+    int enqueueFix(long seq) {
+        return enqueue(null, seq);
+    }
+
+    /**
+     * @param event Event or null if slot holds fix
+     * @param seq   Sequence number of fix, used when event is null
+     */
+    private int enqueue(ClientEvent event, long seq) {
+        synchronized (mQueue) {
+            if (mIsClosed) return ENQUEUE_QUEUED;
+
+            if (mCount == mEvents.length) {
+                switch (mSubscription.getOverflowPolicy()) {
+                    case LocationSubscription.OVERFLOW_DISCONNECT:
+                        close();
+                        return ENQUEUE_DISCONNECT;
+                    case LocationSubscription.OVERFLOW_CONFLATE_LATEST:
+                        //new location makes all queued locations useless
+                        if (event == null || event.isLocation()) onFixesDropped(removeLocations(Integer.MAX_VALUE));
+                        break;
+                    default:
+                        onFixesDropped(removeLocations(1));
+                }
+                //queue holds non-location events only (or new event isn't a location), drop the oldest one
+                if (mCount == mEvents.length) {
+                    ClientEvent oldest = mEvents[mHead];
+                    if (oldest == mSharedFixesAvailable) mIsSharedFixesAvailableQueued = false;
+                    onFixesDropped(oldest == null ? 1 : oldest.getFixCount());
+                    mEvents[mHead] = null;
+                    mHead = (mHead + 1) % mEvents.length;
+                    mCount--;
+                }
+            }
+            int slot = (mHead + mCount) % mEvents.length;
+            mEvents[slot] = event;
+            mFixSeqs[slot] = seq;
+            mCount++;
+
+            if (mIsScheduled) return ENQUEUE_QUEUED;
+            mIsScheduled = true;
+            return ENQUEUE_SCHEDULE;
+        }
+    }
+
+    /**
+     * Queue wakeup of shared fix ring reader unless it's already queued: client reads all new fixes anyway.
+     * Doesn't allocate.
+     *
+     * @return The same as enqueue(ClientEvent)
+     */
+    int enqueueSharedFixesAvailable() {
+        synchronized (mQueue) {
+            if (mIsSharedFixesAvailableQueued) return ENQUEUE_QUEUED;
+            int result = enqueue(mSharedFixesAvailable);
+            mIsSharedFixesAvailableQueued = !mIsClosed;
+            return result;
+        }
+    }
+
+    /**
+     * Stop delivering and drop queued events
+     */
+    void close() {
+        synchronized (mQueue) {
+            mIsClosed = true;
+            for (int i = 0; i < mCount; i++) {
+                mEvents[(mHead + i) % mEvents.length] = null;
+            }
+            mCount = 0;
+            mIsSharedFixesAvailableQueued = false;
+        }
+    }
+
+    /**
+     * @param now SystemClock.uptimeMillis()
+     * @return True - remote callback doesn't return for DISPATCH_DELIVERY_TIMEOUT
+     */
+    boolean isStuck(long now) {
+        long start = mDeliveryStart;
+        return start != 0 && now - start >= Constants.DISPATCH_DELIVERY_TIMEOUT;
+    }
+
+    /**
+     * Close stuck client, the dispatcher thread in its callback isn't waited for
+     *
+     * @return True - client is abandoned by this call, false - it was abandoned before
+     */
+    boolean abandon() {
+        synchronized (mQueue) {
+            if (mIsAbandoned) return false;
+            mIsAbandoned = true;
+            close();
+            return true;
+        }
+    }
+
+    boolean isAbandoned() {
+        synchronized (mQueue) {
+            return mIsAbandoned;
+        }
+    }
+
+    /**
+     * @return Latency from receiving of fix to return from this client's callback, nanoseconds
+     */
+    LatencyHistogram getDispatchLatency() {
+        return mDispatchLatency;
+    }
+
+    /**
+     * @return Fixes which weren't delivered to this client because it didn't keep up
+     */
+    long getFixesDropped() {
+        return mFixesDropped.get();
+    }
+
+    /**
+     * @return Handler of in-process client, its queue is drained there, or null - client is remote
+     */
+    Handler getLocalHandler() {
+        return mLocalHandler;
+    }
+
+    Runnable getDrainTask() {
+        return mDrainTask;
+    }
+
+    /**
+     * Remove the oldest fixes and location events from the queue, order of the rest is kept.
+     * Should be called under lock of mQueue.
+     *
+     * @param count Max count of slots to remove
+     * @return Count of removed fixes
+     */
+    private int removeLocations(int count) {
+        int fixes = 0;
+        int kept = 0;
+        for (int i = 0; i < mCount; i++) {
+            int from = (mHead + i) % mEvents.length;
+            ClientEvent event = mEvents[from];
+            if (count > 0 && (event == null || event.isLocation())) {
+                fixes += event == null ? 1 : event.getFixCount();
+                count--;
+                continue;
+            }
+            int to = (mHead + kept) % mEvents.length;
+            mEvents[to] = event;
+            mFixSeqs[to] = mFixSeqs[from];
+            kept++;
+        }
+        for (int i = kept; i < mCount; i++) {
+            mEvents[(mHead + i) % mEvents.length] = null;
+        }
+        mCount = kept;
+        return fixes;
+    }
+
+    private void onFixesDropped(int count) {
+        if (count == 0) return;
+        mFixesDropped.addAndGet(count);
+        mDispatcher.onFixesDropped(count);
+    }
+
+    /**
+     * Send queued events and fixes to client in order of enqueueing,
+     * runs on dispatcher thread (remote client) or on client's handler thread (in-process client)
+     */
+    private void drain() {
+        FixRing ring = mDispatcher.getFixRing(mSubscription.isSmoothed());
+        for (int i = 0; i < Constants.DISPATCH_DRAIN_LIMIT; i++) {
+            ClientEvent event;
+            long seq;
+            synchronized (mQueue) {
+                if (mCount == 0) {
+                    mIsScheduled = false;
+                    return;
+                }
+                event = mEvents[mHead];
+                seq = mFixSeqs[mHead];
+                mEvents[mHead] = null;
+                mHead = (mHead + 1) % mEvents.length;
+                mCount--;
+                //fixes written after this one need a new wakeup
+                if (event == mSharedFixesAvailable) mIsSharedFixesAvailableQueued = false;
+            }
+
+            try {
+                long sourceNanos;
+                long fixTime;
+                if (mLocalCallbacks == null) mDeliveryStart = SystemClock.uptimeMillis();
+                if (event != null) {
+                    event.deliver(mCallbacks);
+                    sourceNanos = event.getSourceNanos();
+                    fixTime = event.getFixTime();
+                } else {
+                    //fix was overwritten in the ring, client lags too much
+                    if (!ring.read(seq, mDrainFix)) {
+                        onFixesDropped(1);
+                        continue;
+                    }
+                    if (mLocalCallbacks != null) {
+                        mLocalCallbacks.onLocationFix(mDrainFix);
+                    } else {
+                        mCallbacks.onLocationUpdated(
+                                mDrainFix.getLatitude(),
+                                mDrainFix.getLongitude(),
+                                mDrainFix.getAltitude(),
+                                mDrainFix.getAccuracy()
+                        );
+                    }
+                    sourceNanos = mDrainFix.receivedNanos;
+                    fixTime = mDrainFix.getTime();
+                }
+
+                long latency = 0;
+                if (sourceNanos > 0) {
+                    latency = SystemClock.elapsedRealtimeNanos() - sourceNanos;
+                    mDispatchLatency.record(latency);
+                }
+                mDispatcher.onDelivered(latency, fixTime);
+            } catch (RemoteException e) {
+                Log.e(Constants.LOG_TAG_ERROR, "LocationSubscriber.drain: EXCEPTION - " + e.getLocalizedMessage(), e);
+                close();
+                //abandoned client is already unregistered by dispatcher
+                if (!isAbandoned()) mDispatcher.onDeliveryFailed(this);
+                return;
+            } catch (RuntimeException e) {
+                //in-process client threw, don't let it kill dispatcher thread
+                Log.e(Constants.LOG_TAG_ERROR, "LocationSubscriber.drain: EXCEPTION - " + e.getLocalizedMessage(), e);
+            } finally {
+                mDeliveryStart = 0;
+            }
+        }
+        //give other clients a chance, continue later
+        mDispatcher.reschedule(this);
+    }
+}
@@ -0,0 +1,301 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.google.android.gms.location.LocationRequest;
+
+/**
+ * Client's parameters for location updates
+ */
+
+public class LocationSubscription implements Parcelable {
+    /**
+     * Queue overflow policies (when client doesn't keep up with events)
+     */
+    public static final int OVERFLOW_DROP_OLDEST = 0;
+    public static final int OVERFLOW_CONFLATE_LATEST = 1;
+    public static final int OVERFLOW_DISCONNECT = 2;
+
+    private long interval = Constants.UPDATE_LOCATION_INTERVAL; //milliseconds
+    private long fastestInterval = Constants.UPDATE_LOCATION_INTERVAL_FASTEST; //milliseconds
+    private int priority = LocationRequest.PRIORITY_HIGH_ACCURACY;
+    private float smallestDisplacement = 0; //meters
+    private boolean isAdaptiveSampling = true;
+    private int maxBatchSize = 1;
+    private long maxBatchLatency = 0; //milliseconds
+    private int queueCapacity = Constants.CLIENT_QUEUE_CAPACITY;
+    private int overflowPolicy = OVERFLOW_DROP_OLDEST;
+    private long statsInterval = 0; //milliseconds
+    private boolean isSmoothed = false;
+    private long maxWaitTime = 0; //milliseconds
+    private boolean isTripSegmentation = false;
+
+    public static final Creator<LocationSubscription> CREATOR = new Creator<LocationSubscription>() {
+        @Override
+        public LocationSubscription createFromParcel(Parcel in) {
+            return new LocationSubscription(in);
+        }
+
+        @Override
+        public LocationSubscription[] newArray(int size) {
+            return new LocationSubscription[size];
+        }
+    };
+
+    public LocationSubscription() {
+    }
+
+    private LocationSubscription(Parcel in) {
+        //values come from another process, they are checked by setters like local ones
+        setInterval(in.readLong());
+        setFastestInterval(in.readLong());
+        setPriority(in.readInt());
+        setSmallestDisplacement(in.readFloat());
+        setAdaptiveSampling(in.readByte() != 0);
+        setMaxBatchSize(in.readInt());
+        setMaxBatchLatency(in.readLong());
+        setQueueCapacity(in.readInt());
+        setOverflowPolicy(in.readInt());
+        setStatsInterval(in.readLong());
+        setSmoothed(in.readByte() != 0);
+        setMaxWaitTime(in.readLong());
+        setTripSegmentation(in.readByte() != 0);
+    }
+
+    /**
+     * Desired interval of location updates for this client
+     *
+     * @param interval Milliseconds
+     * @return This subscription
+     */
+    public LocationSubscription setInterval(long interval) {
+        this.interval = Math.max(0, interval);
+        if (fastestInterval > this.interval) fastestInterval = this.interval;
+        return this;
+    }
+
+    /**
+     * Fastest interval this client can handle
+     *
+     * @param fastestInterval Milliseconds
+     * @return This subscription
+     */
+    public LocationSubscription setFastestInterval(long fastestInterval) {
+        this.fastestInterval = Math.max(0, Math.min(fastestInterval, interval));
+        return this;
+    }
+
+    /**
+     * Accuracy needed by this client
+     *
+     * @param priority LocationRequest.PRIORITY_HIGH_ACCURACY, PRIORITY_BALANCED_POWER_ACCURACY, etc
+     *                 (unknown value is ignored)
+     * @return This subscription
+     */
+    public LocationSubscription setPriority(int priority) {
+        switch (priority) {
+            case LocationRequest.PRIORITY_HIGH_ACCURACY:
+            case LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY:
+            case LocationRequest.PRIORITY_LOW_POWER:
+            case LocationRequest.PRIORITY_NO_POWER:
+                this.priority = priority;
+        }
+        return this;
+    }
+
+    /**
+     * Don't send fix to this client until device moves by this distance
+     *
+     * @param smallestDisplacement Meters
+     * @return This subscription
+     */
+    public LocationSubscription setSmallestDisplacement(float smallestDisplacement) {
+        this.smallestDisplacement = Math.max(0, smallestDisplacement);
+        return this;
+    }
+
+    /**
+     * Allow the service to change interval by device motion: rare fixes while device stays still,
+     * frequent fixes while it moves fast. On by default.
+     *
+     * @param isAdaptiveSampling False - this client needs exactly its interval
+     * @return This subscription
+     */
+    public LocationSubscription setAdaptiveSampling(boolean isAdaptiveSampling) {
+        this.isAdaptiveSampling = isAdaptiveSampling;
+        return this;
+    }
+
+    /**
+     * Deferred delivery: location provider may hold fixes up to this time and deliver them at once,
+     * so the device sleeps between batches. Longer wait - less power, bigger latency.
+     * Fixes which come at once are sent to client as one onLocationsBatch() call.
+     * Works only while every client allows it, the shortest wait of all clients is used.
+     *
+     * @param maxWaitTime Milliseconds, should be several intervals (0 - every fix at once, default)
+     * @return This subscription
+     */
+    public LocationSubscription setMaxWaitTime(long maxWaitTime) {
+        this.maxWaitTime = Math.max(0, maxWaitTime);
+        return this;
+    }
+
+    /**
+     * Get live stops and moves of the device through onTripSegmentStarted() and onTripSegmentEnded()
+     *
+     * @param isTripSegmentation True - segment events are sent
+     * @return This subscription
+     */
+    public LocationSubscription setTripSegmentation(boolean isTripSegmentation) {
+        this.isTripSegmentation = isTripSegmentation;
+        return this;
+    }
+
+    /**
+     * Deliver fixes in batches through onLocationsBatch() instead of onLocationUpdated()
+     *
+     * @param maxBatchSize Max count of fixes in one batch (1 - batching is off)
+     * @return This subscription
+     */
+    public LocationSubscription setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = Math.max(1, Math.min(maxBatchSize, Constants.MAX_BATCH_SIZE));
+        return this;
+    }
+
+    /**
+     * Max time the fix may wait in a batch before the batch will be sent
+     *
+     * @param maxBatchLatency Milliseconds (0 - wait until batch is full)
+     * @return This subscription
+     */
+    public LocationSubscription setMaxBatchLatency(long maxBatchLatency) {
+        this.maxBatchLatency = Math.max(0, maxBatchLatency);
+        return this;
+    }
+
+    /**
+     * Max count of events waiting for sending to this client
+     *
+     * @param queueCapacity Capacity of client's queue, 1..4096
+     * @return This subscription
+     */
+    public LocationSubscription setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, Math.min(queueCapacity, Constants.CLIENT_QUEUE_CAPACITY_MAX));
+        return this;
+    }
+
+    /**
+     * What to do when client's queue is full
+     *
+     * @param overflowPolicy OVERFLOW_DROP_OLDEST, OVERFLOW_CONFLATE_LATEST or OVERFLOW_DISCONNECT
+     *                       (unknown value is ignored)
+     * @return This subscription
+     */
+    public LocationSubscription setOverflowPolicy(int overflowPolicy) {
+        if (overflowPolicy < OVERFLOW_DROP_OLDEST || overflowPolicy > OVERFLOW_DISCONNECT) return this;
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * Send service stats to Callbacks.onStatsSnapshot() periodically
+     *
+     * @param statsInterval Milliseconds (0 - don't send)
+     * @return This subscription
+     */
+    public LocationSubscription setStatsInterval(long statsInterval) {
+        this.statsInterval = statsInterval > 0 ? Math.max(statsInterval, Constants.STATS_INTERVAL_MIN) : 0;
+        return this;
+    }
+
+    /**
+     * Get fixes smoothed by Kalman filter instead of raw ones: less noise, outliers are dropped.
+     * Accuracy, speed and bearing of smoothed fix are estimated by the filter.
+     *
+     * @param isSmoothed True - smoothed fixes
+     * @return This subscription
+     */
+    public LocationSubscription setSmoothed(boolean isSmoothed) {
+        this.isSmoothed = isSmoothed;
+        return this;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public long getFastestInterval() {
+        return fastestInterval;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public float getSmallestDisplacement() {
+        return smallestDisplacement;
+    }
+
+    public boolean isAdaptiveSampling() {
+        return isAdaptiveSampling;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getMaxBatchLatency() {
+        return maxBatchLatency;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public int getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getStatsInterval() {
+        return statsInterval;
+    }
+
+    public boolean isSmoothed() {
+        return isSmoothed;
+    }
+
+    public long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    public boolean isTripSegmentation() {
+        return isTripSegmentation;
+    }
+
+    boolean isBatchingEnabled() {
+        return maxBatchSize > 1;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(interval);
+        dest.writeLong(fastestInterval);
+        dest.writeInt(priority);
+        dest.writeFloat(smallestDisplacement);
+        dest.writeByte((byte) (isAdaptiveSampling ? 1 : 0));
+        dest.writeInt(maxBatchSize);
+        dest.writeLong(maxBatchLatency);
+        dest.writeInt(queueCapacity);
+        dest.writeInt(overflowPolicy);
+        dest.writeLong(statsInterval);
+        dest.writeByte((byte) (isSmoothed ? 1 : 0));
+        dest.writeLong(maxWaitTime);
+        dest.writeByte((byte) (isTripSegmentation ? 1 : 0));
+    }
+}
@@ -0,0 +1,116 @@
+package com.mobiledevpro.locationservice;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map with primitive long keys, so lookups on the fix path don't box keys.
+ * Not thread safe.
+ */
+
+class LongHashMap<V> {
+    private long[] mKeys;
+    private Object[] mValues; //null - free slot
+    private int mSize;
+
+    LongHashMap() {
+        this(16);
+    }
+
+    /**
+     * @param capacity Expected count of entries
+     */
+    LongHashMap(int capacity) {
+        int size = Integer.highestOneBit(Math.max(4, capacity * 2 - 1)) << 1;
+        mKeys = new long[size];
+        mValues = new Object[size];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int mask = mKeys.length - 1;
+        for (int i = hash(key) & mask; mValues[i] != null; i = (i + 1) & mask) {
+            if (mKeys[i] == key) return (V) mValues[i];
+        }
+        return null;
+    }
+
+    /**
+     * @param key   Key
+     * @param value Value, not null
+     */
+    void put(long key, V value) {
+        int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        for (; mValues[i] != null; i = (i + 1) & mask) {
+            if (mKeys[i] == key) {
+                mValues[i] = value;
+                return;
+            }
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        if (++mSize * 2 > mKeys.length) resize(mKeys.length * 2);
+    }
+
+    /**
+     * @param key Key
+     * @return Removed value or null
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        for (; mValues[i] != null; i = (i + 1) & mask) {
+            if (mKeys[i] == key) break;
+        }
+        V value = (V) mValues[i];
+        if (value == null) return null;
+
+        //shift following entries of the cluster back, so lookups don't stop at the hole
+        int hole = i;
+        for (int j = (hole + 1) & mask; mValues[j] != null; j = (j + 1) & mask) {
+            int home = hash(mKeys[j]) & mask;
+            //entry may fill the hole if its home isn't between the hole and its slot
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                mKeys[hole] = mKeys[j];
+                mValues[hole] = mValues[j];
+                hole = j;
+            }
+        }
+        mValues[hole] = null;
+        mSize--;
+        return value;
+    }
+
+    void clear() {
+        Arrays.fill(mValues, null);
+        mSize = 0;
+    }
+
+    private void resize(int size) {
+        long[] keys = mKeys;
+        Object[] values = mValues;
+        mKeys = new long[size];
+        mValues = new Object[size];
+        int mask = size - 1;
+        for (int j = 0; j < keys.length; j++) {
+            if (values[j] == null) continue;
+            int i = hash(keys[j]) & mask;
+            while (mValues[i] != null) i = (i + 1) & mask;
+            mKeys[i] = keys[j];
+            mValues[i] = values[j];
+        }
+    }
+
+    static int hash(long key) {
+        //murmur3 finalizer
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
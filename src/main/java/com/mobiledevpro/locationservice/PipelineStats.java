@@ -0,0 +1,157 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the fix-to-callback pipeline, written from worker and dispatcher threads without locks
+ */
+
+class PipelineStats {
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private final AtomicLong mFixesReceived = new AtomicLong();
+    private final AtomicLong mEventsDelivered = new AtomicLong();
+    private final AtomicLong mFixesDropped = new AtomicLong();
+    private final AtomicLong mRemoteExceptions = new AtomicLong();
+    private final AtomicLong mAddressLookups = new AtomicLong();
+    private final AtomicLong mAddressCacheHits = new AtomicLong();
+    private final AtomicLong mAddressCoalesced = new AtomicLong();
+    private final AtomicLong mGeocoderCalls = new AtomicLong();
+    private final AtomicLong mGeocoderErrors = new AtomicLong();
+    //from provider's onLocationChanged() to return from client's callback (callbacks aren't oneway,
+    //so for remote client it's the time until its process returned)
+    private final LatencyHistogram mDispatchLatency = new LatencyHistogram();
+    //milliseconds from fix time to return from client's callback
+    private final LatencyHistogram mFixAge = new LatencyHistogram();
+
+    void onFixReceived() {
+        mFixesReceived.incrementAndGet();
+    }
+
+    /**
+     * @param latency Nanoseconds since fix was received, 0 - event isn't a fix
+     * @param fixTime UTC time of the fix, 0 - event isn't a fix
+     */
+    void onEventDelivered(long latency, long fixTime) {
+        mEventsDelivered.incrementAndGet();
+        if (latency > 0) mDispatchLatency.record(latency);
+        if (fixTime > 0) mFixAge.record(System.currentTimeMillis() - fixTime);
+    }
+
+    /**
+     * @param count Fixes which client won't get
+     */
+    void onFixesDropped(int count) {
+        mFixesDropped.addAndGet(count);
+    }
+
+    void onRemoteException() {
+        mRemoteExceptions.incrementAndGet();
+    }
+
+    /**
+     * @param isHit       True - address was in cache
+     * @param isCoalesced True - the same cell is already resolved for another lookup
+     */
+    void onAddressLookup(boolean isHit, boolean isCoalesced) {
+        mAddressLookups.incrementAndGet();
+        if (isHit) mAddressCacheHits.incrementAndGet();
+        if (isCoalesced) mAddressCoalesced.incrementAndGet();
+    }
+
+    /**
+     * @param isSuccess False - geocoder failed
+     */
+    void onGeocoderCall(boolean isSuccess) {
+        mGeocoderCalls.incrementAndGet();
+        if (!isSuccess) mGeocoderErrors.incrementAndGet();
+    }
+
+    long getFixesReceived() {
+        return mFixesReceived.get();
+    }
+
+    long getEventsDelivered() {
+        return mEventsDelivered.get();
+    }
+
+    long getFixesDropped() {
+        return mFixesDropped.get();
+    }
+
+    long getRemoteExceptions() {
+        return mRemoteExceptions.get();
+    }
+
+    long getAddressLookups() {
+        return mAddressLookups.get();
+    }
+
+    long getAddressCacheHits() {
+        return mAddressCacheHits.get();
+    }
+
+    long getAddressCoalesced() {
+        return mAddressCoalesced.get();
+    }
+
+    long getGeocoderCalls() {
+        return mGeocoderCalls.get();
+    }
+
+    long getGeocoderErrors() {
+        return mGeocoderErrors.get();
+    }
+
+    LatencyHistogram getFixAge() {
+        return mFixAge;
+    }
+
+    LatencyHistogram getDispatchLatency() {
+        return mDispatchLatency;
+    }
+
+    /**
+     * @return Milliseconds since stats were created
+     */
+    long getUptime() {
+        return SystemClock.elapsedRealtime() - mStartTime;
+    }
+
+    /**
+     * Print stats as one JSON object, so dump can be parsed by scripts
+     *
+     * @param writer  Writer
+     * @param clients Count of registered clients
+     */
+    void dump(PrintWriter writer, int clients) {
+        long uptime = getUptime();
+        writer.print("{\"uptime_ms\":" + uptime);
+        writer.print(",\"clients\":" + clients);
+        writer.print(",\"fixes_received\":" + getFixesReceived());
+        writer.print(",\"fixes_per_sec\":" + (uptime > 0 ? getFixesReceived() * 1000.0 / uptime : 0));
+        writer.print(",\"fixes_dropped\":" + getFixesDropped());
+        writer.print(",\"events_delivered\":" + getEventsDelivered());
+        writer.print(",\"remote_exceptions\":" + getRemoteExceptions());
+        writer.print(",\"address_lookups\":" + getAddressLookups());
+        writer.print(",\"address_cache_hits\":" + getAddressCacheHits());
+        writer.print(",\"address_coalesced\":" + getAddressCoalesced());
+        writer.print(",\"geocoder_calls\":" + getGeocoderCalls());
+        writer.print(",\"geocoder_errors\":" + getGeocoderErrors());
+        writer.print(",\"dispatch_latency_ns\":");
+        dumpHistogram(writer, mDispatchLatency);
+        writer.print(",\"fix_age_ms\":");
+        dumpHistogram(writer, mFixAge);
+        writer.println("}");
+    }
+
+    static void dumpHistogram(PrintWriter writer, LatencyHistogram histogram) {
+        writer.print("{\"count\":" + histogram.getCount());
+        writer.print(",\"p50\":" + histogram.getPercentile(50));
+        writer.print(",\"p99\":" + histogram.getPercentile(99));
+        writer.print(",\"max\":" + histogram.getMax());
+        writer.print("}");
+    }
+}
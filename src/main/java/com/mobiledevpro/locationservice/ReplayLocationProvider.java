@@ -0,0 +1,211 @@
+package com.mobiledevpro.locationservice;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.location.LocationRequest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Streams recorded fixes from file, used for load testing of the service without Google Play Services.
+ * <p>
+ * File is read line by line, one fix per line:
+ * time,latitude,longitude[,altitude,accuracy,speed,bearing]
+ * where time is UTC milliseconds. Empty lines and lines starting with '#' are skipped.
+ */
+
+class ReplayLocationProvider implements LocationProvider {
+    private static final String PROVIDER_NAME = "replay";
+
+    private final File mTraceFile;
+    private final double mSpeedFactor;
+    private final int mFixesPerSecond;
+
+    private Listener mListener;
+    private Handler mHandler;
+    private BufferedReader mReader;
+    private boolean mIsStarted;
+
+    private Location mNextLocation;
+    private long mFirstFixTime; //recorded time of the first fix
+    private long mStartUptime; //SystemClock.uptimeMillis() when replay was started
+    private long mFixCount;
+    private Location mLastLocation;
+
+    private final Runnable mReplayTask = new Runnable() {
+        @Override
+        public void run() {
+            replay();
+        }
+    };
+
+    /**
+     * @param traceFile      File with recorded fixes
+     * @param speedFactor    How many times faster than recorded (1 - real time), used when fixesPerSecond == 0
+     * @param fixesPerSecond Fixed rate regardless of recorded time (e.g. 1000), 0 - follow recorded time
+     */
+    ReplayLocationProvider(File traceFile, double speedFactor, int fixesPerSecond) {
+        mTraceFile = traceFile;
+        mSpeedFactor = speedFactor > 0 ? speedFactor : 1;
+        mFixesPerSecond = Math.max(0, fixesPerSecond);
+    }
+
+    @Override
+    public void connect(Listener listener, Handler handler) {
+        mListener = listener;
+        mHandler = handler;
+        try {
+            mReader = new BufferedReader(new FileReader(mTraceFile));
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "ReplayLocationProvider.connect: EXCEPTION - " + e.getLocalizedMessage(), e);
+            listener.onConnectionFailed(new GoogleApiError(-1, "Unable to open trace file " + mTraceFile));
+            return;
+        }
+        listener.onConnected();
+    }
+
+    @Override
+    public void disconnect() {
+        removeLocationUpdates();
+        if (mReader != null) {
+            try {
+                mReader.close();
+            } catch (IOException e) {
+                //do nothing
+            }
+            mReader = null;
+        }
+        mListener = null;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mReader != null;
+    }
+
+    /**
+     * Recorded fixes don't depend on device settings, so everything is on
+     */
+    @Override
+    public void checkLocationSettings(LocationRequest request) {
+        if (mListener != null) mListener.onGetLocationSettingsState(new LocationSettings(true, true));
+    }
+
+    @Override
+    public Location getLastLocation() {
+        return mLastLocation;
+    }
+
+    /**
+     * Start (or continue) replay, request parameters are not used: the whole trace is streamed
+     * and the service thins it for every client.
+     */
+    @Override
+    public void requestLocationUpdates(LocationRequest request) {
+        if (mIsStarted || !isConnected()) return;
+        mIsStarted = true;
+        mStartUptime = SystemClock.uptimeMillis();
+        mFixCount = 0;
+        mFirstFixTime = mNextLocation != null ? mNextLocation.getTime() : -1;
+        mHandler.post(mReplayTask);
+    }
+
+    @Override
+    public void removeLocationUpdates() {
+        mIsStarted = false;
+        if (mHandler != null) mHandler.removeCallbacks(mReplayTask);
+    }
+
+    /**
+     * Send fixes which are due, then wait for the next one.
+     * Not more than half of the fix ring is sent at once: the service processes them
+     * before the rest is sent, so they aren't overwritten in the ring.
+     */
+    private void replay() {
+        long now = SystemClock.uptimeMillis();
+        for (int count = 0; mIsStarted; count++) {
+            if (count == Constants.FIX_RING_CAPACITY / 2) {
+                //processing of sent fixes is already queued on the handler, continue after it
+                mHandler.post(mReplayTask);
+                return;
+            }
+            if (mNextLocation == null) mNextLocation = readNext();
+            if (mNextLocation == null) {
+                Log.d(Constants.LOG_TAG_DEBUG, "ReplayLocationProvider.replay(): end of trace, fixes - " + mFixCount);
+                mIsStarted = false;
+                return;
+            }
+            if (mFirstFixTime < 0) mFirstFixTime = mNextLocation.getTime();
+
+            long dueTime = getDueTime(mNextLocation);
+            if (dueTime > now) {
+                mHandler.postAtTime(mReplayTask, dueTime);
+                return;
+            }
+
+            mLastLocation = mNextLocation;
+            mNextLocation = null;
+            mFixCount++;
+            if (mListener != null) mListener.onLocationChanged(mLastLocation);
+        }
+    }
+
+    /**
+     * @param location Next fix
+     * @return SystemClock.uptimeMillis() when fix has to be sent
+     */
+    private long getDueTime(Location location) {
+        if (mFixesPerSecond > 0) {
+            return mStartUptime + mFixCount * 1000 / mFixesPerSecond;
+        }
+        return mStartUptime + (long) ((location.getTime() - mFirstFixTime) / mSpeedFactor);
+    }
+
+    /**
+     * @return Next fix from file or null at the end of file
+     */
+    private Location readNext() {
+        if (mReader == null) return null;
+        try {
+            String line;
+            while ((line = mReader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                Location location = parse(line);
+                if (location != null) return location;
+            }
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "ReplayLocationProvider.readNext: EXCEPTION - " + e.getLocalizedMessage(), e);
+        }
+        return null;
+    }
+
+    /**
+     * @param line time,latitude,longitude[,altitude,accuracy,speed,bearing]
+     * @return Location or null if line can't be parsed
+     */
+    private static Location parse(String line) {
+        String[] values = line.split(",");
+        if (values.length < 3) return null;
+        try {
+            Location location = new Location(PROVIDER_NAME);
+            location.setTime(Long.parseLong(values[0].trim()));
+            location.setLatitude(Double.parseDouble(values[1].trim()));
+            location.setLongitude(Double.parseDouble(values[2].trim()));
+            if (values.length > 3) location.setAltitude(Double.parseDouble(values[3].trim()));
+            if (values.length > 4) location.setAccuracy(Float.parseFloat(values[4].trim()));
+            if (values.length > 5) location.setSpeed(Float.parseFloat(values[5].trim()));
+            if (values.length > 6) location.setBearing(Float.parseFloat(values[6].trim()));
+            return location;
+        } catch (NumberFormatException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "ReplayLocationProvider.parse: wrong line - " + line);
+            return null;
+        }
+    }
+}
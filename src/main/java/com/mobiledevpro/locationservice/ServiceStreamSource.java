@@ -0,0 +1,136 @@
+package com.mobiledevpro.locationservice;
+
+import android.content.Context;
+import android.os.Message;
+
+import java.util.List;
+
+/**
+ * Head of LocationStream: listener added to LocationServiceManager for one subscriber.
+ * Callbacks come on main thread (binder threads for remote service) and are posted to main thread with pooled messages,
+ * so values are emitted outside of service callbacks.
+ */
+
+class ServiceStreamSource<T> extends LocationStream.Emitter<T> {
+    static final int TYPE_FIXES = 1;
+    static final int TYPE_SETTINGS = 2;
+
+    private static final int MSG_VALUE = 1;
+    private static final int MSG_ERROR = 2;
+
+    private final Context mContext;
+    private final LocationSubscription mSubscription;
+    private final int mType;
+
+    private final LocationServiceManager.Callbacks mCallbacks = new LocationServiceManager.Callbacks() {
+        @Override
+        public void isDeviceOffline() {
+            //location works offline
+        }
+
+        @Override
+        public void isNotLocationPermissionGranted() {
+            postError(new SecurityException("Location permission isn't granted"));
+        }
+
+        @Override
+        public void onGoogleApiConnectionFailed(int errCode, String errMessage) {
+            postError(new IllegalStateException("Google Api connection failed: " + errCode + " - " + errMessage));
+        }
+
+        @Override
+        public void onLocationUpdated(double latitude, double longitude, double altitude, float accuracy) {
+            //remote service sends position only
+            LocationFix fix = new LocationFix();
+            fix.set(System.currentTimeMillis(), latitude, longitude, altitude, accuracy, 0, 0);
+            postFix(fix);
+        }
+
+        @Override
+        public void onLocationFix(LocationFix fix) {
+            //fix is reused by the service after return
+            postFix(new LocationFix(fix));
+        }
+
+        @Override
+        public void onLocationsBatch(List<LocationFix> fixes) {
+            for (LocationFix fix : fixes) {
+                postFix(fix);
+            }
+        }
+
+        @Override
+        public void onCachedLocation(LocationFix fix, long ageMillis) {
+            postFix(new LocationFix(fix));
+        }
+
+        @Override
+        public void onGetLocationSettingsState(boolean isNetworkLocationOn, boolean isGpsLocationOn) {
+            if (mType != TYPE_SETTINGS) return;
+            mHandler.obtainMessage(MSG_VALUE, new LocationSettings(isGpsLocationOn, isNetworkLocationOn)).sendToTarget();
+        }
+    };
+
+    /**
+     * @param downstream   Subscriber
+     * @param context      Context for binding
+     * @param subscription Subscription parameters, null - default
+     * @param type         TYPE_FIXES (T is LocationFix) or TYPE_SETTINGS (T is LocationSettings)
+     */
+    ServiceStreamSource(LocationStream.Subscriber<? super T> downstream, Context context, LocationSubscription subscription, int type) {
+        super(downstream);
+        mContext = context;
+        mSubscription = subscription;
+        mType = type;
+    }
+
+    /**
+     * @param type TYPE_FIXES or TYPE_SETTINGS
+     * @return Stream which binds the service for every subscriber
+     */
+    static <T> LocationStream<T> create(final Context context, final LocationSubscription subscription, final int type) {
+        return new LocationStream<T>() {
+            @Override
+            public void subscribe(Subscriber<? super T> subscriber) {
+                ServiceStreamSource<T> source = new ServiceStreamSource<>(subscriber, context, subscription, type);
+                subscriber.onSubscribe(source);
+                if (!source.isDone()) source.start();
+            }
+        };
+    }
+
+    private void start() {
+        LocationServiceManager.getInstance().bindLocationService(mContext, mCallbacks, mSubscription);
+    }
+
+    @Override
+    void onCancel() {
+        mHandler.removeCallbacksAndMessages(null);
+        LocationServiceManager.getInstance().unbindLocationService(mContext, mCallbacks);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean handleMessage(Message msg) {
+        switch (msg.what) {
+            case MSG_VALUE:
+                emit((T) msg.obj);
+                break;
+            case MSG_ERROR:
+                error((Throwable) msg.obj);
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    private void postFix(LocationFix fix) {
+        if (mType != TYPE_FIXES) return;
+        mHandler.obtainMessage(MSG_VALUE, fix).sendToTarget();
+    }
+
+    private void postError(Throwable error) {
+        mHandler.obtainMessage(MSG_ERROR, error).sendToTarget();
+    }
+}
@@ -0,0 +1,124 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Client side of the shared fix ring: reads every fix directly from memory shared with the service.
+ * Service only sends Callbacks.onSharedFixesAvailable() when there are new fixes.
+ * <p>
+ * One reader must be used from one thread. Reader which lags more than ring capacity skips
+ * overwritten fixes, see getMissedCount().
+ */
+
+public final class SharedFixReader {
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final long mMask;
+    private final LocationFix mFix = new LocationFix();
+    private long mNextSeq;
+    private long mMissedCount;
+
+    /**
+     * Map the ring, the descriptor is closed
+     *
+     * @param descriptor Descriptor from the service
+     * @throws IOException Can't map or it isn't a fix ring
+     */
+    SharedFixReader(ParcelFileDescriptor descriptor) throws IOException {
+        FileInputStream in = new FileInputStream(descriptor.getFileDescriptor());
+        try {
+            FileChannel channel = in.getChannel();
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+            descriptor.close();
+        }
+        mBuffer.order(ByteOrder.nativeOrder());
+
+        if (mBuffer.capacity() < SharedFixRing.HEADER_SIZE || mBuffer.getInt(SharedFixRing.OFFSET_MAGIC) != SharedFixRing.MAGIC) {
+            throw new IOException("Not a fix ring");
+        }
+        SharedFixRing.fence();
+        int version = mBuffer.getInt(SharedFixRing.OFFSET_VERSION);
+        mCapacity = mBuffer.getInt(SharedFixRing.OFFSET_CAPACITY);
+        if (version != SharedFixRing.VERSION
+                || mBuffer.getInt(SharedFixRing.OFFSET_SLOT_SIZE) != SharedFixRing.SLOT_SIZE
+                || mBuffer.capacity() < SharedFixRing.HEADER_SIZE + (long) mCapacity * SharedFixRing.SLOT_SIZE) {
+            throw new IOException("Unsupported fix ring: version - " + version + ", capacity - " + mCapacity);
+        }
+        mMask = mCapacity - 1;
+        //start from the latest fix
+        mNextSeq = Math.max(0, getLastSeq());
+    }
+
+    /**
+     * @return Sequence number of the last fix written by the service, -1 if there are no fixes yet
+     */
+    public long getLastSeq() {
+        return mBuffer.getLong(SharedFixRing.OFFSET_LAST_SEQ);
+    }
+
+    /**
+     * @return True - there are fixes which weren't read yet
+     */
+    public boolean hasNext() {
+        return mNextSeq <= getLastSeq();
+    }
+
+    /**
+     * Read the next fix. Doesn't allocate: the returned object is reused by the next call.
+     *
+     * @return Fix or null if there are no new fixes
+     */
+    public LocationFix next() {
+        while (true) {
+            long lastSeq = getLastSeq();
+            SharedFixRing.fence();
+            if (mNextSeq > lastSeq) return null;
+            //the oldest fixes are already overwritten
+            if (lastSeq - mNextSeq >= mCapacity) {
+                long oldest = lastSeq - mCapacity + 1;
+                mMissedCount += oldest - mNextSeq;
+                mNextSeq = oldest;
+            }
+
+            long seq = mNextSeq++;
+            if (read(seq)) return mFix;
+            //writer overwrote the slot while we were reading it
+            mMissedCount++;
+        }
+    }
+
+    /**
+     * @return Count of fixes which were overwritten before this reader got them
+     */
+    public long getMissedCount() {
+        return mMissedCount;
+    }
+
+    private boolean read(long seq) {
+        int base = SharedFixRing.HEADER_SIZE + (int) (seq & mMask) * SharedFixRing.SLOT_SIZE;
+        if (mBuffer.getLong(base + SharedFixRing.FIELD_SEQ) != seq) return false;
+        SharedFixRing.fence();
+
+        long time = mBuffer.getLong(base + SharedFixRing.FIELD_TIME);
+        double latitude = mBuffer.getDouble(base + SharedFixRing.FIELD_LATITUDE);
+        double longitude = mBuffer.getDouble(base + SharedFixRing.FIELD_LONGITUDE);
+        double altitude = mBuffer.getDouble(base + SharedFixRing.FIELD_ALTITUDE);
+        float accuracy = mBuffer.getFloat(base + SharedFixRing.FIELD_ACCURACY);
+        float speed = mBuffer.getFloat(base + SharedFixRing.FIELD_SPEED);
+        float bearing = mBuffer.getFloat(base + SharedFixRing.FIELD_BEARING);
+
+        SharedFixRing.fence();
+        if (mBuffer.getLong(base + SharedFixRing.FIELD_SEQ) != seq) return false;
+
+        mFix.set(time, latitude, longitude, altitude, accuracy, speed, bearing);
+        return true;
+    }
+}
@@ -0,0 +1,160 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Ring of fixed-size fix records in a memory-mapped file, shared with client processes read-only.
+ * Clients read fixes directly from memory (SharedFixReader), no Binder call per fix.
+ * <p>
+ * Header: magic, version, capacity, slot size, sequence number of the last written fix.
+ * Slot: the same fields as in FixRing, guarded by its sequence number (seqlock).
+ * Single writer (service worker thread). The service closes the ring when its last reader is gone,
+ * so fixes aren't written to the file when nobody reads them.
+ * <p>
+ * The file is in the cache dir, not in ashmem: readers map the descriptor with FileChannel, which needs
+ * the size of a regular file. Dirty pages are written back by the kernel on its own schedule,
+ * 64 fixes share one page.
+ */
+
+class SharedFixRing {
+    static final int MAGIC = 0x4C534652; //"LSFR"
+    static final int VERSION = 1;
+
+    static final int OFFSET_MAGIC = 0;
+    static final int OFFSET_VERSION = 4;
+    static final int OFFSET_CAPACITY = 8;
+    static final int OFFSET_SLOT_SIZE = 12;
+    static final int OFFSET_LAST_SEQ = 16;
+    static final int HEADER_SIZE = 64; //cache line, so header and slots aren't shared
+
+    static final int FIELD_SEQ = 0;
+    static final int FIELD_TIME = 8;
+    static final int FIELD_LATITUDE = 16;
+    static final int FIELD_LONGITUDE = 24;
+    static final int FIELD_ALTITUDE = 32;
+    static final int FIELD_ACCURACY = 40;
+    static final int FIELD_SPEED = 44;
+    static final int FIELD_BEARING = 48;
+    static final int SLOT_SIZE = 64;
+
+    static final long SEQ_WRITING = -1;
+
+    private static volatile int sFence;
+
+    private final File mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mMask;
+    private long mLastSeq = -1;
+
+    /**
+     * @param file     File for the ring, it's recreated
+     * @param capacity Count of slots, rounded up to power of two
+     * @throws IOException
+     */
+    SharedFixRing(File file, int capacity) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mFile = file;
+        mMask = size - 1;
+
+        //readers of the old file keep their mapping, new readers don't see stale fixes
+        if (file.exists() && !file.delete()) throw new IOException("Can't delete " + file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) size * SLOT_SIZE);
+        } finally {
+            raf.close();
+        }
+        mBuffer.order(ByteOrder.nativeOrder());
+
+        for (int i = 0; i < size; i++) {
+            mBuffer.putLong(HEADER_SIZE + i * SLOT_SIZE + FIELD_SEQ, SEQ_WRITING);
+        }
+        mBuffer.putInt(OFFSET_VERSION, VERSION);
+        mBuffer.putInt(OFFSET_CAPACITY, size);
+        mBuffer.putInt(OFFSET_SLOT_SIZE, SLOT_SIZE);
+        mBuffer.putLong(OFFSET_LAST_SEQ, -1);
+        fence();
+        //reader checks magic last written, header is complete when it's there
+        mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+    }
+
+    /**
+     * @return Descriptor for client, read-only
+     * @throws IOException
+     */
+    ParcelFileDescriptor openForReader() throws IOException {
+        return ParcelFileDescriptor.open(mFile, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * @return Sequence number of the last written fix, -1 if nothing was written
+     */
+    long getLastSeq() {
+        return mLastSeq;
+    }
+
+    /**
+     * Copy fix to the next slot, doesn't allocate
+     *
+     * @param fix Fix
+     * @return Sequence number of the fix
+     */
+    long write(LocationFix fix) {
+        long seq = mLastSeq + 1;
+        int base = HEADER_SIZE + (int) (seq & mMask) * SLOT_SIZE;
+
+        mBuffer.putLong(base + FIELD_SEQ, SEQ_WRITING);
+        fence();
+        mBuffer.putLong(base + FIELD_TIME, fix.getTime());
+        mBuffer.putDouble(base + FIELD_LATITUDE, fix.getLatitude());
+        mBuffer.putDouble(base + FIELD_LONGITUDE, fix.getLongitude());
+        mBuffer.putDouble(base + FIELD_ALTITUDE, fix.getAltitude());
+        mBuffer.putFloat(base + FIELD_ACCURACY, fix.getAccuracy());
+        mBuffer.putFloat(base + FIELD_SPEED, fix.getSpeed());
+        mBuffer.putFloat(base + FIELD_BEARING, fix.getBearing());
+        fence();
+        mBuffer.putLong(base + FIELD_SEQ, seq);
+        fence();
+        mBuffer.putLong(OFFSET_LAST_SEQ, seq);
+
+        mLastSeq = seq;
+        return seq;
+    }
+
+    /**
+     * Delete the file, mapping stays valid for readers until they drop it
+     */
+    void close() {
+        if (!mFile.delete()) {
+            Log.e(Constants.LOG_TAG_ERROR, "SharedFixRing.close(): can't delete " + mFile);
+        }
+    }
+
+    /**
+     * Orders accesses of mapped memory before it with accesses after it, for the seqlock.
+     * <p>
+     * The Java memory model doesn't cover memory shared with another process: the writer and the reader
+     * don't synchronize on the same variable, so it gives no guarantee here. What is relied upon is
+     * how ART compiles it. Volatile store is a release (stlr on ARMv8, dmb before str on ARMv7),
+     * the following volatile load is an acquire (ldar, ldr + dmb), and the compiler doesn't move memory
+     * accesses across them. Together they act as a full hardware barrier for this thread, and hardware
+     * barriers order accesses to the physical pages whichever process maps them.
+     * <p>
+     * ByteBuffer accesses of 8-byte aligned fields are single loads and stores on ARMv8 and x86-64,
+     * so sequence numbers aren't torn there. On 32-bit devices they may be: a torn slot sequence number
+     * fails the check and the fix is counted as missed, the high half of the last sequence number
+     * changes once per 2^32 fixes.
+     */
+    static void fence() {
+        sFence = 0;
+        if (sFence != 0) throw new AssertionError();
+    }
+}
@@ -0,0 +1,31 @@
+package com.mobiledevpro.locationservice;
+
+import java.util.Locale;
+
+/**
+ * Stand-in for geocoder which works offline: address is the position itself.
+ * Used when there is no platform Geocoder, or instead of it to drive the cache without network.
+ */
+
+class StubAddressProvider implements AddressProvider {
+    private final long mDelay;
+
+    /**
+     * @param delay Milliseconds every lookup takes, like a network call (0 - at once)
+     */
+    StubAddressProvider(long delay) {
+        mDelay = Math.max(0, delay);
+    }
+
+    @Override
+    public String getAddress(double latitude, double longitude) {
+        if (mDelay > 0) {
+            try {
+                Thread.sleep(mDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return String.format(Locale.US, "%.5f, %.5f", latitude, longitude);
+    }
+}
@@ -0,0 +1,335 @@
+package com.mobiledevpro.locationservice;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compact track format: every field is stored as zig-zag varint of the difference with the previous fix.
+ * <p>
+ * Header: magic (2 bytes), version, coordinate precision (decimal digits of degrees).
+ * Fix: time (ms), latitude, longitude (degrees * 10^precision), altitude (dm),
+ * accuracy (dm), speed (cm/s), bearing (0.1 degree). NaN or infinite value is stored as NO_VALUE
+ * and decoded as NaN.
+ * A fix at 1 Hz usually takes ~10 bytes instead of 44 bytes of the track log record.
+ */
+
+public final class TrackCodec {
+    public static final int DEFAULT_PRECISION = 6; //~0.1 meter
+    public static final int MAX_PRECISION = 7;
+
+    private static final int MAGIC = 0x4C54; //"LT"
+    private static final int VERSION = 1;
+    private static final int FIELD_COUNT = 7;
+    private static final int MAX_VARINT_SIZE = 10;
+    private static final long NO_VALUE = Long.MIN_VALUE; //isn't produced by rounding of finite value in range
+
+    static final int HEADER_SIZE = 4;
+    static final int MAX_FIX_SIZE = FIELD_COUNT * MAX_VARINT_SIZE; //bytes, every field has the longest varint
+
+    private TrackCodec() {
+    }
+
+    /**
+     * Writes fixes to stream one by one, optionally skipping fixes which don't change the shape of the track
+     */
+    public static final class Encoder {
+        private final OutputStream mOut;
+        private final double mScale;
+        private final Simplifier mSimplifier;
+        private final long[] mPrevious = new long[FIELD_COUNT];
+        private final long[] mCurrent = new long[FIELD_COUNT];
+        private final byte[] mBuffer = new byte[FIELD_COUNT * MAX_VARINT_SIZE];
+        private boolean mIsHeaderWritten;
+        private int mCount;
+
+        /**
+         * Lossless encoder (up to precision)
+         *
+         * @param out       Stream
+         * @param precision Decimal digits of coordinates, 0..MAX_PRECISION
+         */
+        public Encoder(OutputStream out, int precision) {
+            this(out, precision, 0);
+        }
+
+        /**
+         * @param out       Stream
+         * @param precision Decimal digits of coordinates, 0..MAX_PRECISION
+         * @param tolerance Meters, fix is skipped if track without it differs less (0 - keep all fixes)
+         */
+        public Encoder(OutputStream out, int precision, float tolerance) {
+            if (precision < 0 || precision > MAX_PRECISION) {
+                throw new IllegalArgumentException("Precision must be 0.." + MAX_PRECISION + ": " + precision);
+            }
+            mOut = out;
+            mScale = Math.pow(10, precision);
+            mBuffer[0] = (byte) (MAGIC >>> 8);
+            mBuffer[1] = (byte) MAGIC;
+            mBuffer[2] = (byte) VERSION;
+            mBuffer[3] = (byte) precision;
+            mSimplifier = tolerance > 0 ? new Simplifier(tolerance) : null;
+        }
+
+        /**
+         * @param fix Fix, in order of time
+         * @throws IOException
+         */
+        public void write(LocationFix fix) throws IOException {
+            if (mSimplifier == null) {
+                encode(fix);
+                return;
+            }
+            LocationFix kept = mSimplifier.add(fix);
+            if (kept != null) encode(kept);
+        }
+
+        /**
+         * Write fix held by simplifier and flush the stream. Stream isn't closed.
+         *
+         * @throws IOException
+         */
+        public void finish() throws IOException {
+            if (mSimplifier != null) {
+                LocationFix last = mSimplifier.finish();
+                if (last != null) encode(last);
+            }
+            writeHeader();
+            mOut.flush();
+        }
+
+        /**
+         * @return Count of written fixes
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        private void encode(LocationFix fix) throws IOException {
+            writeHeader();
+            mCurrent[0] = fix.getTime();
+            mCurrent[1] = scale(fix.getLatitude(), mScale);
+            mCurrent[2] = scale(fix.getLongitude(), mScale);
+            mCurrent[3] = scale(fix.getAltitude(), 10);
+            mCurrent[4] = scale(fix.getAccuracy(), 10);
+            mCurrent[5] = scale(fix.getSpeed(), 100);
+            mCurrent[6] = scale(fix.getBearing(), 10);
+
+            int size = 0;
+            for (int i = 0; i < FIELD_COUNT; i++) {
+                size = writeVarint(mBuffer, size, zigZag(mCurrent[i] - mPrevious[i]));
+                mPrevious[i] = mCurrent[i];
+            }
+            mOut.write(mBuffer, 0, size);
+            mCount++;
+        }
+
+        private void writeHeader() throws IOException {
+            if (mIsHeaderWritten) return;
+            mOut.write(mBuffer, 0, HEADER_SIZE);
+            mIsHeaderWritten = true;
+        }
+    }
+
+    /**
+     * Reads fixes from stream one by one
+     */
+    public static final class Decoder {
+        private final InputStream mIn;
+        private final byte[] mBuffer = new byte[4096];
+        private int mPosition;
+        private int mLimit;
+        private double mScale;
+        private final long[] mValues = new long[FIELD_COUNT];
+        private boolean mIsHeaderRead;
+
+        public Decoder(InputStream in) {
+            mIn = in;
+        }
+
+        /**
+         * Read the next fix, doesn't allocate
+         *
+         * @param out Fix to fill
+         * @return False - end of stream
+         * @throws IOException Stream error or it isn't a track
+         */
+        public boolean read(LocationFix out) throws IOException {
+            if (!mIsHeaderRead) {
+                if (!fill()) return false;
+                readHeader();
+            }
+            if (!fill()) return false;
+
+            for (int i = 0; i < FIELD_COUNT; i++) {
+                mValues[i] += unZigZag(readVarint());
+            }
+            out.set(
+                    mValues[0],
+                    unscale(mValues[1], mScale),
+                    unscale(mValues[2], mScale),
+                    unscale(mValues[3], 10),
+                    (float) unscale(mValues[4], 10),
+                    (float) unscale(mValues[5], 100),
+                    (float) unscale(mValues[6], 10)
+            );
+            return true;
+        }
+
+        private void readHeader() throws IOException {
+            int magic = (readByte() << 8) | readByte();
+            int version = readByte();
+            int precision = readByte();
+            if (magic != MAGIC || version != VERSION || precision > MAX_PRECISION) {
+                throw new IOException("Not a track: magic - " + magic + ", version - " + version);
+            }
+            mScale = Math.pow(10, precision);
+            mIsHeaderRead = true;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        private int readByte() throws IOException {
+            if (!fill()) throw new EOFException("Truncated track");
+            return mBuffer[mPosition++] & 0xFF;
+        }
+
+        /**
+         * @return False - end of stream
+         */
+        private boolean fill() throws IOException {
+            if (mPosition < mLimit) return true;
+            mLimit = mIn.read(mBuffer, 0, mBuffer.length);
+            mPosition = 0;
+            if (mLimit > 0) return true;
+            mLimit = 0;
+            return false;
+        }
+    }
+
+    /**
+     * Streaming line simplification: fix is kept when the straight line from the last kept fix
+     * to the newest one passes farther than tolerance from any fix between them.
+     * Memory is bounded by SIMPLIFY_WINDOW fixes.
+     */
+    static final class Simplifier {
+        private final double mTolerance;
+        private final LocationFix[] mWindow = new LocationFix[Constants.SIMPLIFY_WINDOW];
+        private int mCount; //fixes in window, the first one is the last kept fix
+        private final LocationFix mKept = new LocationFix();
+
+        /**
+         * @param tolerance Meters
+         */
+        Simplifier(double tolerance) {
+            mTolerance = tolerance;
+            for (int i = 0; i < mWindow.length; i++) {
+                mWindow[i] = new LocationFix();
+            }
+        }
+
+        /**
+         * @param fix Fix
+         * @return Fix which must be kept (valid until the next call) or null
+         */
+        LocationFix add(LocationFix fix) {
+            if (mCount == 0) {
+                copy(fix, mWindow[0]);
+                mCount = 1;
+                mKept.set(fix.getTime(), fix.getLatitude(), fix.getLongitude(), fix.getAltitude(), fix.getAccuracy(), fix.getSpeed(), fix.getBearing());
+                return mKept;
+            }
+
+            LocationFix anchor = mWindow[0];
+            boolean isDeviated = mCount == mWindow.length;
+            for (int i = 1; i < mCount && !isDeviated; i++) {
+                isDeviated = distanceToLine(mWindow[i], anchor, fix) > mTolerance;
+            }
+            if (isDeviated) {
+                //the previous fix becomes the new anchor
+                LocationFix previous = mWindow[mCount - 1];
+                copy(previous, mKept);
+                copy(previous, mWindow[0]);
+                copy(fix, mWindow[1]);
+                mCount = 2;
+                return mKept;
+            }
+            copy(fix, mWindow[mCount++]);
+            return null;
+        }
+
+        /**
+         * @return The last fix if it wasn't kept yet, or null
+         */
+        LocationFix finish() {
+            LocationFix last = mCount > 1 ? mWindow[mCount - 1] : null;
+            mCount = 0;
+            if (last == null) return null;
+            copy(last, mKept);
+            return mKept;
+        }
+
+        /**
+         * @return Meters from point to segment, equirectangular projection (good for short segments)
+         */
+        private static double distanceToLine(LocationFix point, LocationFix start, LocationFix end) {
+            double cosLatitude = Math.cos(Math.toRadians(start.getLatitude()));
+            double x = (point.getLongitude() - start.getLongitude()) * cosLatitude;
+            double y = point.getLatitude() - start.getLatitude();
+            double dx = (end.getLongitude() - start.getLongitude()) * cosLatitude;
+            double dy = end.getLatitude() - start.getLatitude();
+
+            double lengthSquared = dx * dx + dy * dy;
+            double t = lengthSquared > 0 ? Math.max(0, Math.min(1, (x * dx + y * dy) / lengthSquared)) : 0;
+            double distanceX = x - t * dx;
+            double distanceY = y - t * dy;
+            return Math.toRadians(Math.sqrt(distanceX * distanceX + distanceY * distanceY)) * AdaptiveSampler.EARTH_RADIUS;
+        }
+
+        private static void copy(LocationFix from, LocationFix to) {
+            to.set(from.getTime(), from.getLatitude(), from.getLongitude(), from.getAltitude(), from.getAccuracy(), from.getSpeed(), from.getBearing());
+        }
+    }
+
+    /**
+     * @return Value in units of 1 / scale, NO_VALUE - value is NaN or infinite
+     */
+    private static long scale(double value, double scale) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) return NO_VALUE;
+        //finite values out of long range are clamped to it, not to NO_VALUE
+        return Math.max(NO_VALUE + 1, Math.round(value * scale));
+    }
+
+    private static double unscale(long value, double scale) {
+        return value == NO_VALUE ? Double.NaN : value / scale;
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @return Position after the varint
+     */
+    static int writeVarint(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+}
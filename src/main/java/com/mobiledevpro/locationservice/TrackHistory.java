@@ -0,0 +1,126 @@
+package com.mobiledevpro.locationservice;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Time index over recorded track segments.
+ * <p>
+ * Every segment is indexed by time of every HISTORY_INDEX_STEP-th record, so the start of range
+ * is found by binary search in memory and a short scan of one segment.
+ * Index of full segment never changes and is cached, the segment being written is indexed on every query.
+ */
+
+class TrackHistory {
+    private final File mDir;
+    //guarded by itself
+    private final HashMap<String, SegmentIndex> mIndexes = new HashMap<>();
+
+    /**
+     * @param dir Directory of segments
+     */
+    TrackHistory(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * @param from UTC time, milliseconds
+     * @param to   UTC time, milliseconds
+     * @return Indexes of segments which hold fixes in range, from the oldest
+     */
+    List<SegmentIndex> findSegments(long from, long to) {
+        File[] files = TrackRecorder.listSegments(mDir);
+        List<SegmentIndex> result = new ArrayList<>();
+        synchronized (mIndexes) {
+            Set<String> names = new HashSet<>();
+            for (File file : files) {
+                names.add(file.getName());
+                SegmentIndex index = mIndexes.get(file.getName());
+                if (index == null) {
+                    index = createIndex(file);
+                    if (index == null) continue;
+                    if (index.isFull) mIndexes.put(file.getName(), index);
+                }
+                if (index.count > 0 && index.lastTime >= from && index.firstTime <= to) {
+                    result.add(index);
+                }
+            }
+            //forget deleted segments
+            mIndexes.keySet().retainAll(names);
+        }
+        return result;
+    }
+
+    private static SegmentIndex createIndex(File file) {
+        TrackSegment segment;
+        try {
+            segment = TrackSegment.openForRead(file);
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "TrackHistory.createIndex: EXCEPTION - " + e.getLocalizedMessage(), e);
+            return null;
+        }
+        try {
+            int count = segment.getCount();
+            long[] times = new long[(count + Constants.HISTORY_INDEX_STEP - 1) / Constants.HISTORY_INDEX_STEP];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = segment.readTime(i * Constants.HISTORY_INDEX_STEP);
+            }
+            return new SegmentIndex(file, count, times, segment.getLastTime(), segment.isFull());
+        } finally {
+            segment.close();
+        }
+    }
+
+    /**
+     * Sparse index of one segment
+     */
+    static class SegmentIndex {
+        final File file;
+        final int count;
+        final long[] times; //time of every HISTORY_INDEX_STEP-th record
+        final long firstTime;
+        final long lastTime;
+        final boolean isFull;
+
+        SegmentIndex(File file, int count, long[] times, long lastTime, boolean isFull) {
+            this.file = file;
+            this.count = count;
+            this.times = times;
+            this.firstTime = times.length > 0 ? times[0] : 0;
+            this.lastTime = lastTime;
+            this.isFull = isFull;
+        }
+
+        /**
+         * @param segment Opened segment of this index
+         * @param from    UTC time, milliseconds
+         * @return Index of the first record with time >= from, or segment's count
+         */
+        int findFirst(TrackSegment segment, long from) {
+            //the last indexed record before range, range starts within the next step
+            int low = 0;
+            int high = times.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (times[middle] < from) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            int record = Math.max(0, low - 1) * Constants.HISTORY_INDEX_STEP;
+            int count = segment.getCount();
+            while (record < count && segment.readTime(record) < from) {
+                record++;
+            }
+            return record;
+        }
+    }
+}
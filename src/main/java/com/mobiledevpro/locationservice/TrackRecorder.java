@@ -0,0 +1,249 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Appends every fix from the ring to segmented track log on its own thread,
+ * so disk never delays sending of fixes to clients.
+ * Fixes older than the last recorded one are skipped, so the log is ordered by time.
+ * <p>
+ * Records are flushed to storage by group commit: not more often than TRACK_COMMIT_INTERVAL
+ * or every TRACK_COMMIT_RECORDS records. Mapped pages survive the process crash anyway,
+ * torn tail after power loss is cut off when the segment is opened again.
+ */
+
+class TrackRecorder {
+    private static final int MSG_RECORD = 1;
+    private static final int MSG_COMMIT = 2;
+
+    private final File mDir;
+    private final FixRing mFixRing;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    //used on recorder thread only
+    private final LocationFix mFix = new LocationFix();
+    private TrackSegment mSegment;
+    private int mSegmentIndex;
+    private long mLastTime; //time of the last recorded fix
+    private long mRecordedSeq;
+    private int mUncommitted;
+    private long mLastCommitTime;
+    private long mRecorded;
+    private long mDropped;
+
+    /**
+     * Handles messages on recorder thread
+     */
+    private final Handler.Callback mHandlerCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                //when new fixes are in the ring
+                case MSG_RECORD:
+                    record();
+                    break;
+                //when commit interval has passed
+                case MSG_COMMIT:
+                    commit();
+                    break;
+                default:
+                    return false;
+            }
+            return true;
+        }
+    };
+
+    /**
+     * @param dir     Directory of segments
+     * @param fixRing Ring written by service worker
+     */
+    TrackRecorder(File dir, FixRing fixRing) {
+        mDir = dir;
+        mFixRing = fixRing;
+        //fixes written before recording was turned on aren't recorded
+        mRecordedSeq = fixRing.getLastSeq();
+        mThread = new HandlerThread("LocationServiceRecorder", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper(), mHandlerCallback);
+    }
+
+    /**
+     * Called by ring writer after every fix, doesn't block and doesn't allocate
+     */
+    void onFixWritten() {
+        //one pending message records all fixes in the ring
+        if (!mHandler.hasMessages(MSG_RECORD)) {
+            mHandler.sendEmptyMessage(MSG_RECORD);
+        }
+    }
+
+    /**
+     * Record fixes which are still in the ring, commit and stop the thread
+     */
+    void stop() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                record();
+                if (mSegment != null) {
+                    commit();
+                    mSegment.close();
+                    mSegment = null;
+                }
+                Log.d(Constants.LOG_TAG_DEBUG, "TrackRecorder.stop(): recorded - " + mRecorded + ", dropped - " + mDropped);
+                mThread.quit();
+            }
+        });
+    }
+
+    /**
+     * @param dir Directory of segments
+     * @return Segment files sorted from the oldest
+     */
+    static File[] listSegments(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(TrackSegment.FILE_EXTENSION);
+            }
+        });
+        if (files == null) return new File[0];
+        //names are zero-padded indexes
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Append all fixes written to the ring since the last call
+     */
+    private void record() {
+        long lastSeq = mFixRing.getLastSeq();
+        //recorder lagged more than ring capacity, the oldest fixes are already overwritten
+        if (lastSeq - mRecordedSeq > mFixRing.getCapacity()) {
+            mDropped += lastSeq - mRecordedSeq - mFixRing.getCapacity();
+            mRecordedSeq = lastSeq - mFixRing.getCapacity();
+        }
+        while (mRecordedSeq < lastSeq) {
+            if (!mFixRing.read(++mRecordedSeq, mFix)) {
+                mDropped++;
+                continue;
+            }
+            if (!append(mFix)) {
+                mDropped++;
+                continue;
+            }
+            mRecorded++;
+            mUncommitted++;
+        }
+        scheduleCommit();
+    }
+
+    /**
+     * @param fix Fix
+     * @return False - segment can't be opened or fix is out of order
+     */
+    private boolean append(LocationFix fix) {
+        if (mSegment != null && mSegment.isFull()) {
+            commit();
+            mSegment.close();
+            mSegment = null;
+            mSegmentIndex++;
+        }
+        if (mSegment == null && !openSegment()) return false;
+        //time index relies on order, late fix (e.g. after clock change) is skipped
+        if (fix.getTime() < mLastTime) return false;
+        if (!mSegment.append(fix)) return false;
+        mLastTime = fix.getTime();
+        return true;
+    }
+
+    /**
+     * Open the last segment (it may have free records) or the next one after rotation
+     *
+     * @return False - storage error
+     */
+    private boolean openSegment() {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.e(Constants.LOG_TAG_ERROR, "TrackRecorder.openSegment(): can't create " + mDir);
+            return false;
+        }
+        File[] files = listSegments(mDir);
+        if (mSegmentIndex == 0) {
+            mSegmentIndex = files.length > 0 ? Math.max(1, parseIndex(files[files.length - 1])) : 1;
+        }
+        try {
+            mSegment = TrackSegment.openForWrite(segmentFile(mSegmentIndex), Constants.TRACK_SEGMENT_SIZE);
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "TrackRecorder.openSegment: EXCEPTION - " + e.getLocalizedMessage(), e);
+            //file is broken, don't try it again
+            mSegmentIndex++;
+            return false;
+        }
+        mLastTime = Math.max(mLastTime, mSegment.getLastTime());
+        if (mSegment.isFull()) {
+            mSegment.close();
+            mSegment = null;
+            mSegmentIndex++;
+            return openSegment();
+        }
+        deleteOldSegments(files);
+        return true;
+    }
+
+    /**
+     * Keep not more than TRACK_MAX_SEGMENTS segments including the current one
+     *
+     * @param files Segments existing before the current one was opened
+     */
+    private void deleteOldSegments(File[] files) {
+        for (File file : files) {
+            if (mSegmentIndex - parseIndex(file) < Constants.TRACK_MAX_SEGMENTS) break;
+            if (!file.delete()) {
+                Log.e(Constants.LOG_TAG_ERROR, "TrackRecorder.deleteOldSegments(): can't delete " + file);
+            }
+        }
+    }
+
+    private void scheduleCommit() {
+        if (mUncommitted == 0) return;
+        long now = SystemClock.uptimeMillis();
+        if (mUncommitted >= Constants.TRACK_COMMIT_RECORDS || now - mLastCommitTime >= Constants.TRACK_COMMIT_INTERVAL) {
+            commit();
+        } else if (!mHandler.hasMessages(MSG_COMMIT)) {
+            mHandler.sendEmptyMessageAtTime(MSG_COMMIT, mLastCommitTime + Constants.TRACK_COMMIT_INTERVAL);
+        }
+    }
+
+    private void commit() {
+        mHandler.removeMessages(MSG_COMMIT);
+        mLastCommitTime = SystemClock.uptimeMillis();
+        if (mUncommitted == 0 || mSegment == null) return;
+        mSegment.force();
+        mUncommitted = 0;
+    }
+
+    private File segmentFile(int index) {
+        return new File(mDir, String.format(Locale.US, "%010d", index) + TrackSegment.FILE_EXTENSION);
+    }
+
+    private static int parseIndex(File file) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - TrackSegment.FILE_EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.mobiledevpro.locationservice;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * One memory-mapped file of recorded track: header and fixed-width fix records.
+ * <p>
+ * Record: time (long), latitude, longitude (double), altitude, accuracy, speed, bearing (float), CRC32 (int).
+ * Record with wrong CRC ends the segment: it's a torn tail after crash or not written space.
+ * Not thread safe.
+ */
+
+class TrackSegment {
+    static final String FILE_EXTENSION = ".trk";
+
+    private static final int MAGIC = 0x4C535452; //"LSTR"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int PAYLOAD_SIZE = 40;
+    static final int RECORD_SIZE = PAYLOAD_SIZE + 4;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private int mCount;
+
+    private final byte[] mPayload = new byte[PAYLOAD_SIZE];
+    private final ByteBuffer mPayloadBuffer = ByteBuffer.wrap(mPayload);
+    private final CRC32 mCrc = new CRC32();
+
+    private TrackSegment(File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer) {
+        mFile = file;
+        mRandomAccessFile = randomAccessFile;
+        mBuffer = buffer;
+        mCapacity = (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    /**
+     * Open segment for appending, torn tail left by crash is recovered
+     *
+     * @param file Segment file, created if doesn't exist
+     * @param size Size of file, bytes
+     * @return Segment
+     * @throws IOException
+     */
+    static TrackSegment openForWrite(File file, int size) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            //file is extended with zeros
+            size = (int) Math.max(size, randomAccessFile.length());
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            TrackSegment segment = new TrackSegment(file, randomAccessFile, buffer);
+            if (buffer.getInt(0) == 0) {
+                segment.writeHeader();
+            } else {
+                segment.checkHeader();
+                segment.recover();
+            }
+            return segment;
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open segment for reading
+     *
+     * @param file Segment file
+     * @return Segment
+     * @throws IOException
+     */
+    static TrackSegment openForRead(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            TrackSegment segment = new TrackSegment(file, randomAccessFile, buffer);
+            segment.checkHeader();
+            segment.mCount = segment.countRecords();
+            return segment;
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return Count of valid records
+     */
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return Time of the last valid record, 0 - segment is empty
+     */
+    long getLastTime() {
+        return mCount > 0 ? readTime(mCount - 1) : 0;
+    }
+
+    boolean isFull() {
+        return mCount >= mCapacity;
+    }
+
+    /**
+     * Write fix to the next record. Changes are in page cache until force() is called.
+     *
+     * @param fix Fix
+     * @return False - segment is full
+     */
+    boolean append(LocationFix fix) {
+        if (isFull()) return false;
+
+        mPayloadBuffer.clear();
+        mPayloadBuffer.putLong(fix.getTime());
+        mPayloadBuffer.putDouble(fix.getLatitude());
+        mPayloadBuffer.putDouble(fix.getLongitude());
+        mPayloadBuffer.putFloat((float) fix.getAltitude());
+        mPayloadBuffer.putFloat(fix.getAccuracy());
+        mPayloadBuffer.putFloat(fix.getSpeed());
+        mPayloadBuffer.putFloat(fix.getBearing());
+        mCrc.reset();
+        mCrc.update(mPayload, 0, PAYLOAD_SIZE);
+
+        int position = HEADER_SIZE + mCount * RECORD_SIZE;
+        mBuffer.position(position);
+        mBuffer.put(mPayload, 0, PAYLOAD_SIZE);
+        mBuffer.putInt((int) mCrc.getValue());
+        mCount++;
+        return true;
+    }
+
+    /**
+     * Read fix of the record
+     *
+     * @param index Record index
+     * @param out   Fix to fill
+     * @return False - record isn't valid
+     */
+    boolean read(int index, LocationFix out) {
+        if (!isValid(index)) return false;
+        int position = HEADER_SIZE + index * RECORD_SIZE;
+        out.set(
+                mBuffer.getLong(position),
+                mBuffer.getDouble(position + 8),
+                mBuffer.getDouble(position + 16),
+                mBuffer.getFloat(position + 24),
+                mBuffer.getFloat(position + 28),
+                mBuffer.getFloat(position + 32),
+                mBuffer.getFloat(position + 36)
+        );
+        return true;
+    }
+
+    /**
+     * @param index Record index
+     * @return Fix time of the record, no CRC check
+     */
+    long readTime(int index) {
+        return mBuffer.getLong(HEADER_SIZE + index * RECORD_SIZE);
+    }
+
+    /**
+     * Flush written records to storage (group commit)
+     */
+    void force() {
+        mBuffer.force();
+    }
+
+    void close() {
+        try {
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "TrackSegment.close: EXCEPTION - " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    private void writeHeader() {
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putInt(8, RECORD_SIZE);
+        mBuffer.force();
+    }
+
+    private void checkHeader() throws IOException {
+        if (mBuffer.capacity() < HEADER_SIZE
+                || mBuffer.getInt(0) != MAGIC
+                || mBuffer.getInt(4) != VERSION
+                || mBuffer.getInt(8) != RECORD_SIZE) {
+            throw new IOException("Not a track segment: " + mFile);
+        }
+    }
+
+    /**
+     * Find the end of valid records and wipe everything after it,
+     * so records from before the crash can't appear behind the new ones
+     */
+    private void recover() {
+        mCount = 0;
+        while (mCount < mCapacity && isValid(mCount)) {
+            mCount++;
+        }
+        int position = HEADER_SIZE + mCount * RECORD_SIZE;
+        //usual case: segment wasn't written further, reading is cheaper than wiping
+        if (isWiped(position)) return;
+
+        Log.d(Constants.LOG_TAG_DEBUG, "TrackSegment.recover(): torn tail at record " + mCount + " in " + mFile.getName());
+        byte[] zeros = new byte[RECORD_SIZE * 64];
+        mBuffer.position(position);
+        while (mBuffer.remaining() > 0) {
+            mBuffer.put(zeros, 0, Math.min(zeros.length, mBuffer.remaining()));
+        }
+        mBuffer.force();
+    }
+
+    private boolean isWiped(int position) {
+        int limit = mBuffer.capacity();
+        for (; position < limit && position % 8 != 0; position++) {
+            if (mBuffer.get(position) != 0) return false;
+        }
+        for (; position + 8 <= limit; position += 8) {
+            if (mBuffer.getLong(position) != 0) return false;
+        }
+        for (; position < limit; position++) {
+            if (mBuffer.get(position) != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Valid records are always followed by wiped space, so the end is found by binary search
+     *
+     * @return Count of valid records
+     */
+    private int countRecords() {
+        int low = 0;
+        int high = mCapacity;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (isValid(middle)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private boolean isValid(int index) {
+        if (index < 0 || index >= mCapacity) return false;
+        int position = HEADER_SIZE + index * RECORD_SIZE;
+        mCrc.reset();
+        for (int i = 0; i < PAYLOAD_SIZE; i++) {
+            mPayload[i] = mBuffer.get(position + i);
+        }
+        mCrc.update(mPayload, 0, PAYLOAD_SIZE);
+        return mBuffer.getInt(position + PAYLOAD_SIZE) == (int) mCrc.getValue();
+    }
+}
@@ -0,0 +1,130 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Finished stop or move with its summary
+ */
+
+public class TripSegment implements Parcelable {
+    public static final int TYPE_STOP = 1;
+    public static final int TYPE_MOVE = 2;
+
+    private int type;
+    private long startTime; //UTC, milliseconds
+    private long endTime; //UTC, milliseconds
+    private double startLatitude;
+    private double startLongitude;
+    private double endLatitude;
+    private double endLongitude;
+    private float distance; //meters
+    private float maxSpeed; //meters/second
+
+    public static final Creator<TripSegment> CREATOR = new Creator<TripSegment>() {
+        @Override
+        public TripSegment createFromParcel(Parcel in) {
+            return new TripSegment(in);
+        }
+
+        @Override
+        public TripSegment[] newArray(int size) {
+            return new TripSegment[size];
+        }
+    };
+
+    TripSegment(int type, long startTime, double startLatitude, double startLongitude,
+                long endTime, double endLatitude, double endLongitude, float distance, float maxSpeed) {
+        this.type = type;
+        this.startTime = startTime;
+        this.startLatitude = startLatitude;
+        this.startLongitude = startLongitude;
+        this.endTime = endTime;
+        this.endLatitude = endLatitude;
+        this.endLongitude = endLongitude;
+        this.distance = distance;
+        this.maxSpeed = maxSpeed;
+    }
+
+    private TripSegment(Parcel in) {
+        type = in.readInt();
+        startTime = in.readLong();
+        endTime = in.readLong();
+        startLatitude = in.readDouble();
+        startLongitude = in.readDouble();
+        endLatitude = in.readDouble();
+        endLongitude = in.readDouble();
+        distance = in.readFloat();
+        maxSpeed = in.readFloat();
+    }
+
+    /**
+     * @return TYPE_STOP or TYPE_MOVE
+     */
+    public int getType() {
+        return type;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * @return Milliseconds
+     */
+    public long getDuration() {
+        return endTime - startTime;
+    }
+
+    public double getStartLatitude() {
+        return startLatitude;
+    }
+
+    public double getStartLongitude() {
+        return startLongitude;
+    }
+
+    public double getEndLatitude() {
+        return endLatitude;
+    }
+
+    public double getEndLongitude() {
+        return endLongitude;
+    }
+
+    /**
+     * @return Meters along the track, 0 for stop
+     */
+    public float getDistance() {
+        return distance;
+    }
+
+    /**
+     * @return Meters/second, by speed of fixes
+     */
+    public float getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(type);
+        dest.writeLong(startTime);
+        dest.writeLong(endTime);
+        dest.writeDouble(startLatitude);
+        dest.writeDouble(startLongitude);
+        dest.writeDouble(endLatitude);
+        dest.writeDouble(endLongitude);
+        dest.writeFloat(distance);
+        dest.writeFloat(maxSpeed);
+    }
+}
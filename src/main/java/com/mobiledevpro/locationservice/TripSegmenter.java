@@ -0,0 +1,168 @@
+package com.mobiledevpro.locationservice;
+
+/**
+ * Splits the fix stream into stops and moves as fixes come.
+ * <p>
+ * Fixes within TRIP_DWELL_RADIUS of the anchor (the first fix of the cluster) and slower than TRIP_MOVE_SPEED
+ * form a cluster, cluster longer than TRIP_DWELL_TIME is a stop which starts at the anchor.
+ * Fix out of the cluster ends the stop and becomes the new anchor.
+ * State is O(1), doesn't allocate unless a segment ends. Used on service worker thread only,
+ * may be fed with recorded fixes (TrackHistory, TrackCodec.Decoder) as well.
+ */
+
+class TripSegmenter {
+    private static final int STATE_UNKNOWN = 0;
+
+    interface Listener {
+        /**
+         * @param type      TripSegment.TYPE_STOP or TYPE_MOVE
+         * @param time      UTC time of the start
+         * @param latitude  Position of the start
+         * @param longitude Position of the start
+         */
+        void onSegmentStarted(int type, long time, double latitude, double longitude);
+
+        /**
+         * @param segment Finished segment
+         */
+        void onSegmentEnded(TripSegment segment);
+    }
+
+    private final Listener mListener;
+    private int mState = STATE_UNKNOWN;
+    private boolean mHasFix;
+
+    //the previous fix
+    private long mLastTime;
+    private double mLastLatitude;
+    private double mLastLongitude;
+
+    //the first fix of the current cluster
+    private long mAnchorTime;
+    private double mAnchorLatitude;
+    private double mAnchorLongitude;
+    private double mDistanceAtAnchor;
+
+    //the last fix in the cluster
+    private long mLastInsideTime;
+    private double mLastInsideLatitude;
+    private double mLastInsideLongitude;
+
+    //the current segment
+    private long mStartTime;
+    private double mStartLatitude;
+    private double mStartLongitude;
+    private double mDistance;
+    private float mMaxSpeed; //of move before the current cluster
+    private float mClusterMaxSpeed;
+
+    TripSegmenter(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Forget the current segment, the next fix starts from unknown state
+     */
+    void reset() {
+        mState = STATE_UNKNOWN;
+        mHasFix = false;
+    }
+
+    /**
+     * @param fix Fix, in order of time
+     */
+    void onFix(LocationFix fix) {
+        //too rough to tell a stop from a move
+        if (fix.getAccuracy() > Constants.TRIP_MAX_ACCURACY) return;
+        if (!mHasFix || fix.getTime() < mLastTime) {
+            mHasFix = true;
+            mState = STATE_UNKNOWN;
+            mDistance = 0;
+            mMaxSpeed = 0;
+            setAnchor(fix);
+            setLast(fix);
+            setLastInside(fix);
+            return;
+        }
+
+        double step = AdaptiveSampler.distance(mLastLatitude, mLastLongitude, fix.getLatitude(), fix.getLongitude());
+        float speed = fix.getSpeed();
+        setLast(fix);
+        boolean isInside = speed <= Constants.TRIP_MOVE_SPEED
+                && AdaptiveSampler.distance(mAnchorLatitude, mAnchorLongitude, fix.getLatitude(), fix.getLongitude())
+                <= Constants.TRIP_DWELL_RADIUS;
+
+        if (isInside) {
+            mDistance += step;
+            mClusterMaxSpeed = Math.max(mClusterMaxSpeed, speed);
+            setLastInside(fix);
+            if (mState != TripSegment.TYPE_STOP && fix.getTime() - mAnchorTime >= Constants.TRIP_DWELL_TIME) {
+                //device stays since the anchor: move ends there
+                if (mState == TripSegment.TYPE_MOVE) {
+                    endSegment(mAnchorTime, mAnchorLatitude, mAnchorLongitude, mDistanceAtAnchor, mMaxSpeed);
+                }
+                startSegment(TripSegment.TYPE_STOP, mAnchorTime, mAnchorLatitude, mAnchorLongitude);
+            }
+            return;
+        }
+
+        if (mState == TripSegment.TYPE_STOP) {
+            //device left the stop after its last fix inside
+            endSegment(mLastInsideTime, mAnchorLatitude, mAnchorLongitude, 0, mClusterMaxSpeed);
+            startSegment(TripSegment.TYPE_MOVE, mLastInsideTime, mLastInsideLatitude, mLastInsideLongitude);
+            mDistance = AdaptiveSampler.distance(mLastInsideLatitude, mLastInsideLongitude, fix.getLatitude(), fix.getLongitude());
+            mMaxSpeed = 0;
+        } else {
+            if (mState == STATE_UNKNOWN) {
+                startSegment(TripSegment.TYPE_MOVE, mAnchorTime, mAnchorLatitude, mAnchorLongitude);
+            }
+            mDistance += step;
+            mMaxSpeed = Math.max(mMaxSpeed, mClusterMaxSpeed);
+        }
+        mMaxSpeed = Math.max(mMaxSpeed, speed);
+        setAnchor(fix);
+        setLastInside(fix);
+    }
+
+    private void startSegment(int type, long time, double latitude, double longitude) {
+        mState = type;
+        mStartTime = time;
+        mStartLatitude = latitude;
+        mStartLongitude = longitude;
+        mListener.onSegmentStarted(type, time, latitude, longitude);
+    }
+
+    private void endSegment(long time, double latitude, double longitude, double distance, float maxSpeed) {
+        mListener.onSegmentEnded(new TripSegment(
+                mState,
+                mStartTime,
+                mStartLatitude,
+                mStartLongitude,
+                time,
+                latitude,
+                longitude,
+                (float) distance,
+                maxSpeed
+        ));
+    }
+
+    private void setAnchor(LocationFix fix) {
+        mAnchorTime = fix.getTime();
+        mAnchorLatitude = fix.getLatitude();
+        mAnchorLongitude = fix.getLongitude();
+        mDistanceAtAnchor = mDistance;
+        mClusterMaxSpeed = 0;
+    }
+
+    private void setLast(LocationFix fix) {
+        mLastTime = fix.getTime();
+        mLastLatitude = fix.getLatitude();
+        mLastLongitude = fix.getLongitude();
+    }
+
+    private void setLastInside(LocationFix fix) {
+        mLastInsideTime = fix.getTime();
+        mLastInsideLatitude = fix.getLatitude();
+        mLastInsideLongitude = fix.getLongitude();
+    }
+}
@@ -0,0 +1,167 @@
+package com.mobiledevpro.locationservice;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * The last fix and location settings state kept in a small memory-mapped file,
+ * so the next service start gives them to clients before provider is connected.
+ * <p>
+ * Layout: magic, version, CRC of the rest, flags, settings time, fix fields.
+ * Snapshot with wrong CRC (process was killed in the middle of write) is ignored.
+ * Used on service worker thread only.
+ */
+
+class WarmStartSnapshot {
+    private static final int MAGIC = 0x4C535753; //"LSWS"
+    private static final int VERSION = 1;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CRC = 8;
+    private static final int OFFSET_FLAGS = 12; //CRC is counted from here
+    private static final int OFFSET_SETTINGS_TIME = 16;
+    private static final int OFFSET_FIX_TIME = 24;
+    private static final int OFFSET_LATITUDE = 32;
+    private static final int OFFSET_LONGITUDE = 40;
+    private static final int OFFSET_ALTITUDE = 48;
+    private static final int OFFSET_ACCURACY = 56;
+    private static final int OFFSET_SPEED = 60;
+    private static final int OFFSET_BEARING = 64;
+    private static final int SIZE = 68;
+
+    private static final int FLAG_HAS_FIX = 1;
+    private static final int FLAG_HAS_SETTINGS = 2;
+    private static final int FLAG_GPS_ON = 4;
+    private static final int FLAG_NETWORK_LOCATION_ON = 8;
+
+    private final MappedByteBuffer mFile;
+    //the snapshot is built here, then copied to the file at once
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(SIZE).order(ByteOrder.nativeOrder());
+    private final CRC32 mCrc = new CRC32();
+
+    private WarmStartSnapshot(MappedByteBuffer file) {
+        mFile = file;
+        mFile.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Map the snapshot file, it's created if there is no one
+     *
+     * @param file File
+     * @return Snapshot or null if file can't be mapped
+     */
+    static WarmStartSnapshot open(File file) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                WarmStartSnapshot snapshot = new WarmStartSnapshot(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE));
+                snapshot.load();
+                return snapshot;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "WarmStartSnapshot.open: EXCEPTION - " + e.getLocalizedMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @param out Fix to fill
+     * @return False - there is no saved fix
+     */
+    boolean readFix(LocationFix out) {
+        if ((mBuffer.getInt(OFFSET_FLAGS) & FLAG_HAS_FIX) == 0) return false;
+        out.set(
+                mBuffer.getLong(OFFSET_FIX_TIME),
+                mBuffer.getDouble(OFFSET_LATITUDE),
+                mBuffer.getDouble(OFFSET_LONGITUDE),
+                mBuffer.getDouble(OFFSET_ALTITUDE),
+                mBuffer.getFloat(OFFSET_ACCURACY),
+                mBuffer.getFloat(OFFSET_SPEED),
+                mBuffer.getFloat(OFFSET_BEARING)
+        );
+        return true;
+    }
+
+    /**
+     * @return Saved settings state or null
+     */
+    LocationSettings getSettings() {
+        int flags = mBuffer.getInt(OFFSET_FLAGS);
+        if ((flags & FLAG_HAS_SETTINGS) == 0) return null;
+        return new LocationSettings((flags & FLAG_GPS_ON) != 0, (flags & FLAG_NETWORK_LOCATION_ON) != 0);
+    }
+
+    /**
+     * @return UTC time when settings were checked, milliseconds
+     */
+    long getSettingsTime() {
+        return mBuffer.getLong(OFFSET_SETTINGS_TIME);
+    }
+
+    /**
+     * Save fix, doesn't allocate
+     *
+     * @param fix Fix
+     */
+    void writeFix(LocationFix fix) {
+        mBuffer.putInt(OFFSET_FLAGS, mBuffer.getInt(OFFSET_FLAGS) | FLAG_HAS_FIX);
+        mBuffer.putLong(OFFSET_FIX_TIME, fix.getTime());
+        mBuffer.putDouble(OFFSET_LATITUDE, fix.getLatitude());
+        mBuffer.putDouble(OFFSET_LONGITUDE, fix.getLongitude());
+        mBuffer.putDouble(OFFSET_ALTITUDE, fix.getAltitude());
+        mBuffer.putFloat(OFFSET_ACCURACY, fix.getAccuracy());
+        mBuffer.putFloat(OFFSET_SPEED, fix.getSpeed());
+        mBuffer.putFloat(OFFSET_BEARING, fix.getBearing());
+        commit();
+    }
+
+    /**
+     * @param settings Settings state
+     * @param time     UTC time of the check, milliseconds
+     */
+    void writeSettings(LocationSettings settings, long time) {
+        int flags = mBuffer.getInt(OFFSET_FLAGS) & FLAG_HAS_FIX;
+        flags |= FLAG_HAS_SETTINGS;
+        if (settings.isGpsOn()) flags |= FLAG_GPS_ON;
+        if (settings.isNetworkLocationOn()) flags |= FLAG_NETWORK_LOCATION_ON;
+        mBuffer.putInt(OFFSET_FLAGS, flags);
+        mBuffer.putLong(OFFSET_SETTINGS_TIME, time);
+        commit();
+    }
+
+    private void load() {
+        mFile.position(0);
+        mFile.get(mBuffer.array());
+        boolean isValid = mBuffer.getInt(OFFSET_MAGIC) == MAGIC
+                && mBuffer.getInt(OFFSET_VERSION) == VERSION
+                && mBuffer.getInt(OFFSET_CRC) == crc();
+        if (isValid) return;
+        //new file, other version or torn write: start empty
+        mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+        mBuffer.putInt(OFFSET_VERSION, VERSION);
+        mBuffer.putInt(OFFSET_FLAGS, 0);
+    }
+
+    private void commit() {
+        mBuffer.putInt(OFFSET_CRC, crc());
+        mFile.position(0);
+        mFile.put(mBuffer.array());
+    }
+
+    private int crc() {
+        mCrc.reset();
+        mCrc.update(mBuffer.array(), OFFSET_FLAGS, SIZE - OFFSET_FLAGS);
+        return (int) mCrc.getValue();
+    }
+}
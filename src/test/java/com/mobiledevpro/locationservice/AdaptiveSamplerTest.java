@@ -0,0 +1,341 @@
+package com.mobiledevpro.locationservice;
+
+import com.google.android.gms.location.LocationRequest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.mobiledevpro.locationservice.AdaptiveSampler.MODE_FAST;
+import static com.mobiledevpro.locationservice.AdaptiveSampler.MODE_MOVING;
+import static com.mobiledevpro.locationservice.AdaptiveSampler.MODE_STATIONARY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays synthetic stationary, walking and driving traces through AdaptiveSampler
+ * and checks mode, interval and priority after every fix.
+ */
+
+public class AdaptiveSamplerTest {
+    private static final long INTERVAL = 10000;
+    private static final long FASTEST_INTERVAL = 2000;
+    private static final double START_LATITUDE = 50.4501;
+    private static final double START_LONGITUDE = 30.5234;
+
+    @Test
+    public void stationaryTraceSlowsDownAfterStationaryTime() {
+        AdaptiveSampler sampler = new AdaptiveSampler();
+        //phone on a table: fixes every 5 s jumping within 10 m
+        List<Fix> trace = new Trace(0).stay(5000, 30, 10).build();
+
+        int switchIndex = replay(sampler, trace);
+
+        //within radius for ADAPTIVE_STATIONARY_TIME, then confirmed by the next fix
+        assertEquals(indexAt(trace, Constants.ADAPTIVE_STATIONARY_TIME) + 1, switchIndex);
+        assertEquals(MODE_STATIONARY, sampler.getMode());
+        LocationRequest request = adjust(sampler);
+        assertEquals(INTERVAL * Constants.ADAPTIVE_STATIONARY_FACTOR, request.getInterval());
+        assertEquals(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, request.getPriority());
+    }
+
+    @Test
+    public void stationaryIntervalIsBoundedByMax() {
+        AdaptiveSampler sampler = new AdaptiveSampler();
+        replay(sampler, new Trace(0).stay(5000, 30, 10).build());
+
+        assertEquals(MODE_STATIONARY, sampler.getMode());
+        assertEquals(Constants.ADAPTIVE_INTERVAL_MAX, sampler.scaleInterval(60000, FASTEST_INTERVAL));
+        //client asking for rarer updates than max keeps its interval
+        assertEquals(300000, sampler.scaleInterval(300000, FASTEST_INTERVAL));
+    }
+
+    @Test
+    public void inaccurateStationaryTraceIsStationary() {
+        AdaptiveSampler sampler = new AdaptiveSampler();
+        //indoors: network fixes jumping within 45 m, radius grows with accuracy
+        List<Fix> trace = new Trace(0).accuracy(100).stay(5000, 30, 45).build();
+
+        replay(sampler, trace);
+
+        assertEquals(MODE_STATIONARY, sampler.getMode());
+    }
+
+    @Test
+    public void walkingTraceKeepsRequest() {
+        AdaptiveSampler sampler = new AdaptiveSampler();
+        //1.4 m/s, provider doesn't report speed, 10 minutes
+        List<Fix> trace = new Trace(0).move(5000, 120, 1.4, 45, false).build();
+
+        assertEquals(-1, replay(sampler, trace));
+        assertEquals(MODE_MOVING, sampler.getMode());
+        LocationRequest request = adjust(sampler);
+        assertEquals(INTERVAL, request.getInterval());
+        assertEquals(FASTEST_INTERVAL, request.getFastestInterval());
+        assertEquals(LocationRequest.PRIORITY_HIGH_ACCURACY, request.getPriority());
+    }
+
+    @Test
+    public void drivingTraceSpeedsUpAfterConfirmation() {
+        AdaptiveSampler sampler = new AdaptiveSampler();
+        //20 m/s with speed from provider; smoothed speed: 0, 6, 10.2, ...
+        List<Fix> trace = new Trace(0).move(1000, 60, 20, 90, true).build();
+
+        List<Integer> modes = new ArrayList<>();
+        for (Fix fix : trace) {
+            fix.feed(sampler);
+            modes.add(sampler.getMode());
+        }
+
+        //the first fast estimate is a candidate only, the second one switches
+        assertEquals(MODE_MOVING, (int) modes.get(2));
+        assertEquals(MODE_FAST, (int) modes.get(3));
+        assertEquals(MODE_FAST, sampler.getMode());
+        LocationRequest request = adjust(sampler);
+        assertEquals(INTERVAL / Constants.ADAPTIVE_FAST_FACTOR, request.getInterval());
+        assertEquals(FASTEST_INTERVAL, request.getFastestInterval());
+        assertEquals(LocationRequest.PRIORITY_HIGH_ACCURACY, request.getPriority());
+    }
+
+    @Test
+    public void fastIntervalIsBoundedByMinAndFastest() {
+        AdaptiveSampler sampler = new AdaptiveSampler();
+        replay(sampler, new Trace(0).move(1000, 60, 20, 90, true).build());
+
+        assertEquals(MODE_FAST, sampler.getMode());
+        assertEquals(Constants.ADAPTIVE_INTERVAL_MIN, sampler.scaleInterval(3000, 1000));
+        //client can't handle fixes more often than its fastest interval
+        assertEquals(15000, sampler.scaleInterval(20000, 15000));
+        //client asking for more frequent updates than min keeps its interval
+        assertEquals(1000, sampler.scaleInterval(1000, 500));
+
+        //fastest interval never stays above interval
+        LocationRequest request = LocationRequest.create().setInterval(3000).setFastestInterval(5000);
+        sampler.adjustRequest(request);
+        assertEquals(3000, request.getInterval());
+        assertEquals(3000, request.getFastestInterval());
+    }
+
+    @Test
+    public void singleFastFixDoesNotSwitch() {
+        AdaptiveSampler sampler = new AdaptiveSampler();
+        List<Fix> trace = new Trace(0)
+                .move(5000, 20, 1.4, 0, true)
+                .move(5000, 1, 30, 0, true) //bad speed from provider
+                .move(5000, 20, 1.4, 0, true)
+                .build();
+
+        assertEquals(-1, replay(sampler, trace));
+        assertEquals(MODE_MOVING, sampler.getMode());
+    }
+
+    @Test
+    public void leavesStationaryAtOnce() {
+        AdaptiveSampler sampler = new AdaptiveSampler();
+        List<Fix> trace = new Trace(0).stay(5000, 30, 10).move(5000, 1, 10, 180, false).build();
+
+        List<Fix> stay = trace.subList(0, trace.size() - 1);
+        replay(sampler, stay);
+        assertEquals(MODE_STATIONARY, sampler.getMode());
+
+        assertTrue(trace.get(trace.size() - 1).feed(sampler));
+        assertEquals(MODE_MOVING, sampler.getMode());
+        LocationRequest request = adjust(sampler);
+        assertEquals(INTERVAL, request.getInterval());
+        assertEquals(LocationRequest.PRIORITY_HIGH_ACCURACY, request.getPriority());
+    }
+
+    @Test
+    public void drivingThenParkingGoesThroughAllModes() {
+        AdaptiveSampler sampler = new AdaptiveSampler();
+        List<Fix> trace = new Trace(0)
+                .move(2000, 60, 20, 0, false)
+                .stay(2000, 60, 5)
+                .build();
+
+        List<Integer> modes = new ArrayList<>();
+        List<Long> switchTimes = new ArrayList<>();
+        for (Fix fix : trace) {
+            if (fix.feed(sampler)) {
+                modes.add(sampler.getMode());
+                switchTimes.add(fix.time);
+            }
+        }
+
+        assertEquals(3, modes.size());
+        assertEquals(MODE_FAST, (int) modes.get(0));
+        assertEquals(MODE_MOVING, (int) modes.get(1));
+        assertEquals(MODE_STATIONARY, (int) modes.get(2));
+        long parkingTime = trace.get(60).time;
+        //smoothed speed drops below ADAPTIVE_FAST_SPEED in a few fixes
+        assertTrue(switchTimes.get(1) - parkingTime <= 5 * 2000);
+        assertTrue(switchTimes.get(2) - parkingTime >= Constants.ADAPTIVE_STATIONARY_TIME);
+    }
+
+    @Test
+    public void disabledSamplerKeepsMovingMode() {
+        AdaptiveSampler sampler = new AdaptiveSampler();
+        replay(sampler, new Trace(0).stay(5000, 30, 10).build());
+        assertEquals(MODE_STATIONARY, sampler.getMode());
+
+        assertTrue(sampler.setEnabled(false));
+        assertEquals(MODE_MOVING, sampler.getMode());
+        assertEquals(-1, replay(sampler, new Trace(200000).move(1000, 60, 20, 90, true).build()));
+        assertEquals(MODE_MOVING, sampler.getMode());
+        assertEquals(INTERVAL, adjust(sampler).getInterval());
+
+        assertFalse(sampler.setEnabled(true));
+    }
+
+    @Test
+    public void oldFixIsIgnored() {
+        AdaptiveSampler sampler = new AdaptiveSampler();
+        List<Fix> trace = new Trace(0).move(1000, 60, 20, 90, true).build();
+        replay(sampler, trace);
+
+        //last known location from before the trace
+        Fix old = new Trace(0).stay(1000, 1, 0).build().get(0);
+        assertFalse(old.feed(sampler));
+        assertEquals(MODE_FAST, sampler.getMode());
+    }
+
+    @Test
+    public void sameTraceGivesSameDecisions() {
+        List<Fix> trace = new Trace(0)
+                .stay(5000, 20, 15)
+                .move(3000, 40, 1.4, 30, false)
+                .move(1000, 120, 15, 100, true)
+                .stay(5000, 20, 15)
+                .build();
+
+        assertEquals(decisions(trace), decisions(trace));
+    }
+
+    /**
+     * @return Index of the fix which changed mode for the last time, -1 - mode wasn't changed
+     */
+    private static int replay(AdaptiveSampler sampler, List<Fix> trace) {
+        int switchIndex = -1;
+        for (int i = 0; i < trace.size(); i++) {
+            if (trace.get(i).feed(sampler)) switchIndex = i;
+        }
+        return switchIndex;
+    }
+
+    private static List<String> decisions(List<Fix> trace) {
+        AdaptiveSampler sampler = new AdaptiveSampler();
+        List<String> decisions = new ArrayList<>();
+        for (Fix fix : trace) {
+            fix.feed(sampler);
+            LocationRequest request = adjust(sampler);
+            decisions.add(sampler.getMode() + "/" + request.getInterval() + "/" + request.getPriority());
+        }
+        return decisions;
+    }
+
+    private static int indexAt(List<Fix> trace, long time) {
+        for (int i = 0; i < trace.size(); i++) {
+            if (trace.get(i).time >= trace.get(0).time + time) return i;
+        }
+        return -1;
+    }
+
+    private static LocationRequest adjust(AdaptiveSampler sampler) {
+        LocationRequest request = LocationRequest.create()
+                .setInterval(INTERVAL)
+                .setFastestInterval(FASTEST_INTERVAL)
+                .setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+        sampler.adjustRequest(request);
+        return request;
+    }
+
+    private static class Fix {
+        final long time;
+        final double latitude;
+        final double longitude;
+        final float accuracy;
+        final float speed;
+
+        Fix(long time, double latitude, double longitude, float accuracy, float speed) {
+            this.time = time;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.accuracy = accuracy;
+            this.speed = speed;
+        }
+
+        boolean feed(AdaptiveSampler sampler) {
+            return sampler.onFix(time, latitude, longitude, accuracy, speed);
+        }
+    }
+
+    /**
+     * Trace builder, fixes go one after another from the start point
+     */
+    private static class Trace {
+        private static final double METERS_PER_DEGREE = AdaptiveSampler.EARTH_RADIUS * Math.PI / 180;
+
+        private final List<Fix> mFixes = new ArrayList<>();
+        private final Random mRandom = new Random(42);
+        private long mTime;
+        private double mLatitude = START_LATITUDE;
+        private double mLongitude = START_LONGITUDE;
+        private float mAccuracy = 10;
+
+        Trace(long startTime) {
+            mTime = startTime;
+        }
+
+        Trace accuracy(float accuracy) {
+            mAccuracy = accuracy;
+            return this;
+        }
+
+        /**
+         * @param step   Milliseconds between fixes
+         * @param count  Count of fixes
+         * @param jitter Max distance of a fix from the current point, meters
+         */
+        Trace stay(long step, int count, double jitter) {
+            for (int i = 0; i < count; i++) {
+                double angle = mRandom.nextDouble() * 2 * Math.PI;
+                double distance = mRandom.nextDouble() * jitter;
+                add(step, distance * Math.cos(angle), distance * Math.sin(angle), 0);
+            }
+            return this;
+        }
+
+        /**
+         * @param step      Milliseconds between fixes
+         * @param count     Count of fixes
+         * @param speed     Meters/second
+         * @param bearing   Degrees
+         * @param hasSpeed  True - provider reports speed
+         */
+        Trace move(long step, int count, double speed, double bearing, boolean hasSpeed) {
+            double distance = speed * step / 1000;
+            double north = distance * Math.cos(Math.toRadians(bearing));
+            double east = distance * Math.sin(Math.toRadians(bearing));
+            for (int i = 0; i < count; i++) {
+                mLatitude += north / METERS_PER_DEGREE;
+                mLongitude += east / (METERS_PER_DEGREE * Math.cos(Math.toRadians(mLatitude)));
+                add(step, 0, 0, hasSpeed ? (float) speed : 0);
+            }
+            return this;
+        }
+
+        List<Fix> build() {
+            return mFixes;
+        }
+
+        private void add(long step, double north, double east, float speed) {
+            double latitude = mLatitude + north / METERS_PER_DEGREE;
+            double longitude = mLongitude + east / (METERS_PER_DEGREE * Math.cos(Math.toRadians(mLatitude)));
+            mFixes.add(new Fix(mTime, latitude, longitude, mAccuracy, speed));
+            mTime += step;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.mobiledevpro.locationservice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RoboSettings;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * AddressCache in front of StubAddressProvider: eviction, expiry, persistence, coalescing and counters.
+ * Cache thread runs when the test idles loopers, so lookups stay pending until then.
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class AddressCacheTest {
+    private static final double LATITUDE = 50.4501;
+    private static final double LONGITUDE = 30.5234;
+    private static final double CELL_STEP = 0.001; //degrees between positions of different cells
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private CountingProvider mProvider;
+    private PipelineStats mStats;
+    private final List<String> mAddresses = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Double> mLatitudes = Collections.synchronizedList(new ArrayList<Double>());
+    private AddressCache mCache;
+
+    @Before
+    public void setUp() {
+        RoboSettings.setUseGlobalScheduler(true);
+        ShadowLooper.pauseMainLooper();
+        mFile = new File(mFolder.getRoot(), Constants.ADDRESS_CACHE_FILE);
+        mCache = open();
+    }
+
+    @After
+    public void tearDown() {
+        mCache.close();
+        ShadowLooper.idleMainLooper();
+        RoboSettings.setUseGlobalScheduler(false);
+    }
+
+    @Test
+    public void nearbyPositionIsAnsweredFromCache() {
+        mCache.lookup(null, LATITUDE, LONGITUDE, Constants.ADDRESS_PRECISION);
+        assertEquals(0, mAddresses.size());
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(1, mProvider.mCalls);
+        assertEquals(1, mAddresses.size());
+        //a meter away, answered at once
+        mCache.lookup(null, LATITUDE + 1e-5, LONGITUDE, Constants.ADDRESS_PRECISION);
+
+        assertEquals(1, mProvider.mCalls);
+        assertEquals(2, mAddresses.size());
+        assertEquals(mAddresses.get(0), mAddresses.get(1));
+        assertEquals(LATITUDE + 1e-5, mLatitudes.get(1), 0);
+        assertEquals(2, mStats.getAddressLookups());
+        assertEquals(1, mStats.getAddressCacheHits());
+        assertEquals(1, mStats.getGeocoderCalls());
+    }
+
+    @Test
+    public void concurrentLookupsOfCellShareOneCall() throws InterruptedException {
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final double latitude = LATITUDE + i * 1e-6;
+            Thread client = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    mCache.lookup(null, latitude, LONGITUDE, Constants.ADDRESS_PRECISION);
+                }
+            });
+            client.start();
+            clients.add(client);
+        }
+        start.countDown();
+        for (Thread client : clients) {
+            client.join();
+        }
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(1, mProvider.mCalls);
+        assertEquals(threads, mAddresses.size());
+        assertEquals(threads, mStats.getAddressLookups());
+        assertEquals(0, mStats.getAddressCacheHits());
+        assertEquals(threads - 1, mStats.getAddressCoalesced());
+    }
+
+    @Test
+    public void leastRecentlyUsedCellIsEvicted() {
+        for (int i = 0; i < Constants.ADDRESS_CACHE_SIZE; i++) {
+            lookup(i);
+        }
+        ShadowLooper.idleMainLooper();
+        assertEquals(Constants.ADDRESS_CACHE_SIZE, mProvider.mCalls);
+
+        //cell 0 becomes the most recently used, cell 1 is the eldest one
+        lookup(0);
+        lookup(Constants.ADDRESS_CACHE_SIZE);
+        ShadowLooper.idleMainLooper();
+        lookup(0);
+        assertEquals(Constants.ADDRESS_CACHE_SIZE + 1, mProvider.mCalls);
+        lookup(1);
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(Constants.ADDRESS_CACHE_SIZE + 2, mProvider.mCalls);
+        assertEquals(2, mStats.getAddressCacheHits());
+    }
+
+    @Test
+    public void failedLookupIsNotCached() {
+        mProvider.mIsFailing = true;
+        lookup(0);
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(1, mAddresses.size());
+        assertNull(mAddresses.get(0));
+        mProvider.mIsFailing = false;
+        lookup(0);
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(2, mProvider.mCalls);
+        assertEquals(2, mAddresses.size());
+        assertEquals(1, mStats.getGeocoderErrors());
+    }
+
+    @Test
+    public void cacheSurvivesReload() {
+        for (int i = 0; i < 10; i++) {
+            lookup(i);
+        }
+        ShadowLooper.idleMainLooper();
+        //saved on close
+        mCache.close();
+        ShadowLooper.idleMainLooper();
+
+        mCache = open();
+        ShadowLooper.idleMainLooper();
+        for (int i = 0; i < 10; i++) {
+            lookup(i);
+        }
+
+        assertEquals(0, mProvider.mCalls);
+        assertEquals(10, mAddresses.size());
+        assertEquals(10, mStats.getAddressCacheHits());
+    }
+
+    @Test
+    public void expiredEntriesAreResolvedAgain() throws IOException {
+        long now = System.currentTimeMillis();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        out.writeInt(AddressCache.MAGIC);
+        out.writeInt(AddressCache.VERSION);
+        out.writeInt(4);
+        writeEntry(out, 0, now - Constants.ADDRESS_CACHE_TTL - 1000, "expired");
+        writeEntry(out, 1, now - Constants.ADDRESS_CACHE_TTL + 60000, "fresh");
+        //cells without address expire sooner
+        writeEntry(out, 2, now - Constants.ADDRESS_CACHE_EMPTY_TTL - 1000, null);
+        writeEntry(out, 3, now - Constants.ADDRESS_CACHE_EMPTY_TTL + 60000, null);
+        out.close();
+        mCache.close();
+        ShadowLooper.idleMainLooper();
+        mCache = open();
+        ShadowLooper.idleMainLooper();
+
+        for (int i = 0; i < 4; i++) {
+            lookup(i);
+        }
+        assertEquals("fresh", mAddresses.get(0));
+        assertNull(mAddresses.get(1));
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(2, mProvider.mCalls);
+        assertEquals(2, mStats.getAddressCacheHits());
+    }
+
+    private AddressCache open() {
+        mProvider = new CountingProvider();
+        mStats = new PipelineStats();
+        mAddresses.clear();
+        mLatitudes.clear();
+        return new AddressCache(mFile, mProvider, new AddressCache.Listener() {
+            @Override
+            public void onAddressResolved(LocationSubscriber subscriber, double latitude, double longitude, String address) {
+                mLatitudes.add(latitude);
+                mAddresses.add(address);
+            }
+        }, mStats);
+    }
+
+    /**
+     * @param index Cell index, cells are CELL_STEP apart
+     */
+    private void lookup(int index) {
+        mCache.lookup(null, LATITUDE + index * CELL_STEP, LONGITUDE, Constants.ADDRESS_PRECISION);
+    }
+
+    private static void writeEntry(DataOutputStream out, int index, long time, String address) throws IOException {
+        out.writeLong(GeoHash.encode(LATITUDE + index * CELL_STEP, LONGITUDE, Constants.ADDRESS_PRECISION));
+        out.writeLong(time);
+        out.writeBoolean(address != null);
+        if (address != null) out.writeUTF(address);
+    }
+
+    private static class CountingProvider implements AddressProvider {
+        private final StubAddressProvider mStub = new StubAddressProvider(0);
+        volatile int mCalls; //written by cache thread only
+        volatile boolean mIsFailing;
+
+        @Override
+        public String getAddress(double latitude, double longitude) throws IOException {
+            mCalls++;
+            if (mIsFailing) throw new IOException("geocoder is down");
+            return mStub.getAddress(latitude, longitude);
+        }
+    }
+}
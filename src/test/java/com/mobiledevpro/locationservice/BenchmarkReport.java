@@ -0,0 +1,39 @@
+package com.mobiledevpro.locationservice;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Benchmark results are printed and written to build/reports/benchmarks/[name].json,
+ * one JSON object per line, so runs can be compared by scripts
+ */
+
+class BenchmarkReport {
+    private static final File DIR = new File("build/reports/benchmarks");
+
+    private BenchmarkReport() {
+    }
+
+    /**
+     * @param name    Name of the report file
+     * @param results JSON objects
+     * @throws IOException
+     */
+    static void write(String name, List<String> results) throws IOException {
+        for (String result : results) {
+            System.out.println(result);
+        }
+        if (!DIR.isDirectory() && !DIR.mkdirs()) throw new IOException("Unable to create " + DIR);
+        FileWriter writer = new FileWriter(new File(DIR, name + ".json"));
+        try {
+            for (String result : results) {
+                writer.write(result);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
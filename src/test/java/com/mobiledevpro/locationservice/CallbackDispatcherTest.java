@@ -0,0 +1,179 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RoboSettings;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Remote clients whose callbacks don't return, more of them than dispatcher threads.
+ * Callbacks run on real dispatcher threads, the deadline is checked against Robolectric's clock.
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class CallbackDispatcherTest {
+    private static final int HUNG_CLIENTS = Constants.DISPATCH_THREAD_COUNT + 2;
+    private static final long WAIT = 5000; //real milliseconds to wait for dispatcher threads
+
+    private final List<LocationSubscriber> mFailed = Collections.synchronizedList(new ArrayList<LocationSubscriber>());
+    private final Semaphore mEntered = new Semaphore(0); //released by hung callbacks
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private FixRing mRing;
+    private CallbackDispatcher mDispatcher;
+    private int mWritten;
+
+    @Before
+    public void setUp() {
+        RoboSettings.setUseGlobalScheduler(true);
+        ShadowLooper.pauseMainLooper();
+        mRing = new FixRing(Constants.FIX_RING_CAPACITY);
+        mDispatcher = new CallbackDispatcher(new CallbackDispatcher.Listener() {
+            @Override
+            public void onSubscriberFailed(LocationSubscriber subscriber) {
+                subscriber.close();
+                mFailed.add(subscriber);
+            }
+        }, mRing, mRing, new PipelineStats());
+    }
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        mDispatcher.shutdown();
+        RoboSettings.setUseGlobalScheduler(false);
+    }
+
+    @Test
+    public void hungClientsDoNotStallOthers() throws Exception {
+        List<LocationSubscriber> hung = new ArrayList<>();
+        for (int i = 0; i < HUNG_CLIENTS; i++) {
+            hung.add(subscribe(new HungCallbacks()));
+        }
+        ReceivingCallbacks callbacks = new ReceivingCallbacks();
+        LocationSubscriber healthy = subscribe(callbacks);
+
+        //every thread is in a hung callback, the healthy client waits for a free one
+        long seq = write();
+        for (LocationSubscriber subscriber : hung) {
+            mDispatcher.dispatchFix(subscriber, seq);
+        }
+        mDispatcher.dispatchFix(healthy, seq);
+        assertTrue(mEntered.tryAcquire(Constants.DISPATCH_THREAD_COUNT, WAIT, TimeUnit.MILLISECONDS));
+        assertEquals(0, callbacks.mReceived.availablePermits());
+
+        //deadline is checked when the next event is dispatched
+        ShadowLooper.idleMainLooper(Constants.DISPATCH_DELIVERY_TIMEOUT);
+        mDispatcher.dispatchFix(healthy, write());
+        assertTrue(callbacks.mReceived.tryAcquire(2, WAIT, TimeUnit.MILLISECONDS));
+        assertEquals(Constants.DISPATCH_THREAD_COUNT, mFailed.size());
+        assertEquals(Constants.DISPATCH_THREAD_COUNT, mDispatcher.getStuckThreadCount());
+
+        //the rest of hung clients got replacement threads and hung there too
+        assertTrue(mEntered.tryAcquire(HUNG_CLIENTS - Constants.DISPATCH_THREAD_COUNT, WAIT, TimeUnit.MILLISECONDS));
+        awaitReturned(healthy);
+        ShadowLooper.idleMainLooper(Constants.DISPATCH_DELIVERY_TIMEOUT);
+        mDispatcher.dispatchFix(healthy, write());
+        assertTrue(callbacks.mReceived.tryAcquire(1, WAIT, TimeUnit.MILLISECONDS));
+        assertEquals(HUNG_CLIENTS, mFailed.size());
+        assertTrue(mFailed.containsAll(hung));
+
+        //binders die at last, the clients aren't reported again and the pool shrinks back
+        mRelease.countDown();
+        long deadline = System.currentTimeMillis() + WAIT;
+        while (mDispatcher.getStuckThreadCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, mDispatcher.getStuckThreadCount());
+        assertEquals(HUNG_CLIENTS, mFailed.size());
+    }
+
+    @Test
+    public void slowClientWithinDeadlineIsKept() throws Exception {
+        HungCallbacks callbacks = new HungCallbacks();
+        callbacks.mIsDying = false;
+        LocationSubscriber slow = subscribe(callbacks);
+        ReceivingCallbacks healthyCallbacks = new ReceivingCallbacks();
+        LocationSubscriber healthy = subscribe(healthyCallbacks);
+
+        mDispatcher.dispatchFix(slow, write());
+        assertTrue(mEntered.tryAcquire(1, WAIT, TimeUnit.MILLISECONDS));
+        ShadowLooper.idleMainLooper(Constants.DISPATCH_DELIVERY_TIMEOUT - 1);
+        mDispatcher.dispatchFix(healthy, write());
+        assertTrue(healthyCallbacks.mReceived.tryAcquire(1, WAIT, TimeUnit.MILLISECONDS));
+        awaitReturned(healthy);
+
+        mRelease.countDown();
+        mDispatcher.dispatchFix(slow, write());
+        assertTrue(mEntered.tryAcquire(1, WAIT, TimeUnit.MILLISECONDS));
+        assertEquals(0, mFailed.size());
+        assertEquals(0, mDispatcher.getStuckThreadCount());
+    }
+
+    /**
+     * Clock jumps by the deadline at once, so a client which is still returning from its callback
+     * would look stuck
+     */
+    private static void awaitReturned(LocationSubscriber subscriber) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT;
+        while (subscriber.isStuck(Long.MAX_VALUE) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private LocationSubscriber subscribe(ILocationServiceCallbacks callbacks) {
+        return new LocationSubscriber(callbacks, new LocationSubscription().setInterval(0), mDispatcher);
+    }
+
+    private long write() {
+        LocationFix fix = new LocationFix();
+        fix.set(1500000000000L + mWritten * 1000L, 50.4501 + mWritten * 1e-5, 30.5234, 100, 5, 1, 0);
+        mWritten++;
+        return mRing.write(fix);
+    }
+
+    /**
+     * Client in another process which doesn't return from the callback until released,
+     * then its binder is dead
+     */
+    private class HungCallbacks extends FixPipelineAllocationTest.CountingCallbacks {
+        boolean mIsDying = true;
+
+        @Override
+        public void onLocationUpdated(double latitude, double longitude, double altitude, float accuracy) throws RemoteException {
+            mEntered.release();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (mIsDying) throw new DeadObjectException();
+        }
+    }
+
+    private static class ReceivingCallbacks extends FixPipelineAllocationTest.CountingCallbacks {
+        final Semaphore mReceived = new Semaphore(0);
+
+        @Override
+        public void onLocationUpdated(double latitude, double longitude, double altitude, float accuracy) {
+            mReceived.release();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.Parcel;
+import android.os.RemoteException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RoboSettings;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Latency from provider's onLocationChanged() to return from client's callback: in-process client
+ * (typed fix on its handler) against the same client behind an AIDL proxy (dispatcher thread,
+ * arguments marshalled through Parcel). Fixes are sent one by one, every fix is delivered before the next one.
+ * <p>
+ * There is no kernel Binder under Robolectric, so on device the AIDL path costs more than here.
+ * Results are written to build/reports/benchmarks/callback_path.json.
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27, shadows = ShadowCountingRemoteCallbackList.class)
+public class CallbackPathBenchmarkTest {
+    private static final int[] CLIENTS = {1, 8};
+    private static final int FIXES = 2000;
+    private static final int WARM_UP_FIXES = 1000;
+    private static final int RATE = 10;
+    private static final long DELIVERY_TIMEOUT = 5000; //milliseconds
+
+    @Before
+    public void setUp() {
+        RoboSettings.setUseGlobalScheduler(true);
+        ShadowLooper.pauseMainLooper();
+    }
+
+    @After
+    public void tearDown() {
+        RoboSettings.setUseGlobalScheduler(false);
+    }
+
+    @Test
+    public void inProcessPathIsFasterThanAidl() throws Exception {
+        run(1, false, WARM_UP_FIXES);
+        run(1, true, WARM_UP_FIXES);
+
+        List<String> results = new ArrayList<>();
+        long[] inProcessP50 = new long[CLIENTS.length];
+        long[] aidlP50 = new long[CLIENTS.length];
+        for (int i = 0; i < CLIENTS.length; i++) {
+            LatencyHistogram inProcess = run(CLIENTS[i], false, FIXES);
+            LatencyHistogram aidl = run(CLIENTS[i], true, FIXES);
+            results.add(result("in_process", CLIENTS[i], inProcess));
+            results.add(result("aidl", CLIENTS[i], aidl));
+            inProcessP50[i] = inProcess.getPercentile(50);
+            aidlP50[i] = aidl.getPercentile(50);
+        }
+        BenchmarkReport.write("callback_path", results);
+
+        for (int i = 0; i < CLIENTS.length; i++) {
+            assertTrue("clients " + CLIENTS[i] + ": in-process p50 " + inProcessP50[i] + " ns, AIDL p50 " + aidlP50[i] + " ns",
+                    inProcessP50[i] < aidlP50[i]);
+        }
+    }
+
+    /**
+     * @param isAidl True - clients are registered by AIDL proxies
+     * @return Latencies of all clients
+     */
+    private LatencyHistogram run(int clients, boolean isAidl, int fixes) throws Exception {
+        PipelineBenchmarkTest.BenchmarkProvider provider = new PipelineBenchmarkTest.BenchmarkProvider(RATE, fixes);
+        PipelineBenchmarkTest.BenchmarkService.sProvider = provider;
+        ServiceController<PipelineBenchmarkTest.BenchmarkService> controller =
+                Robolectric.buildService(PipelineBenchmarkTest.BenchmarkService.class).create();
+        ILocationService service = ILocationService.Stub.asInterface(controller.get().onBind(null));
+        //service restarted with saved settings may start the provider before clients are registered
+        int missed = provider.mSent;
+        LatencyHistogram latency = new LatencyHistogram();
+        List<PipelineBenchmarkTest.LatencyCallbacks> callbacks = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            PipelineBenchmarkTest.LatencyCallbacks client = new PipelineBenchmarkTest.LatencyCallbacks(provider, latency);
+            ILocationServiceCallbacks registered = isAidl
+                    ? ILocationServiceCallbacks.Stub.asInterface(new RemoteBinder(client))
+                    : client;
+            service.registerCallbackWithParams(registered, new LocationSubscription()
+                    .setInterval(0)
+                    .setFastestInterval(0)
+                    .setAdaptiveSampling(false));
+            callbacks.add(client);
+        }
+
+        //clients are registered and the provider is started
+        ShadowLooper.idleMainLooper();
+        while (provider.mSent < fixes) {
+            ShadowLooper.idleMainLooper(1000 / RATE);
+            //remote clients are called on dispatcher threads
+            long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT;
+            for (PipelineBenchmarkTest.LatencyCallbacks client : callbacks) {
+                while (client.mCount < provider.mSent - missed) {
+                    assertTrue("fix isn't delivered", System.currentTimeMillis() < deadline);
+                    Thread.yield();
+                }
+            }
+        }
+
+        controller.destroy();
+        ShadowLooper.idleMainLooper();
+        assertEquals((long) (fixes - missed) * clients, latency.getCount());
+        return latency;
+    }
+
+    private static String result(String path, int clients, LatencyHistogram latency) {
+        return "{\"benchmark\":\"callback_path\""
+                + ",\"path\":\"" + path + "\""
+                + ",\"clients\":" + clients
+                + ",\"fixes\":" + FIXES
+                + ",\"latency_p50_ns\":" + latency.getPercentile(50)
+                + ",\"latency_p99_ns\":" + latency.getPercentile(99)
+                + ",\"latency_max_ns\":" + latency.getMax()
+                + "}";
+    }
+
+    /**
+     * Binder of a client in another process: it isn't a local interface,
+     * so the service talks to the client through the generated proxy and transactions
+     */
+    private static class RemoteBinder extends Binder {
+        private final IBinder mTarget;
+
+        RemoteBinder(ILocationServiceCallbacks target) {
+            mTarget = target.asBinder();
+        }
+
+        @Override
+        public IInterface queryLocalInterface(String descriptor) {
+            return null;
+        }
+
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+            return mTarget.transact(code, data, reply, flags);
+        }
+    }
+}
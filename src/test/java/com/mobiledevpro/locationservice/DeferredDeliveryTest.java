@@ -0,0 +1,126 @@
+package com.mobiledevpro.locationservice;
+
+import android.location.Location;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RoboSettings;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Fixes of one provider result are sent as one batch only to clients with deferred delivery,
+ * fixes of separate results which are processed together aren't grouped.
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27, shadows = ShadowCountingRemoteCallbackList.class)
+public class DeferredDeliveryTest {
+    private static final long START_TIME = 1500000000000L;
+
+    private ServiceController<ProviderDutyCycleTest.ScriptedService> mController;
+    private ProviderDutyCycleTest.ScriptedProvider mProvider;
+    private ILocationService mService;
+    private GroupCallbacks mLive;
+    private GroupCallbacks mDeferred;
+    private int mFixCount;
+
+    @Before
+    public void setUp() throws Exception {
+        RoboSettings.setUseGlobalScheduler(true);
+        ShadowLooper.pauseMainLooper();
+        mProvider = new ProviderDutyCycleTest.ScriptedProvider();
+        ProviderDutyCycleTest.ScriptedService.sProvider = mProvider;
+        mController = Robolectric.buildService(ProviderDutyCycleTest.ScriptedService.class).create();
+        mService = ILocationService.Stub.asInterface(mController.get().onBind(null));
+
+        mLive = new GroupCallbacks();
+        mDeferred = new GroupCallbacks();
+        mService.registerCallbackWithParams(mLive, new LocationSubscription().setInterval(0).setAdaptiveSampling(false));
+        mService.registerCallbackWithParams(mDeferred, new LocationSubscription().setInterval(0).setAdaptiveSampling(false)
+                .setMaxWaitTime(60000));
+        ShadowLooper.idleMainLooper();
+    }
+
+    @After
+    public void tearDown() {
+        mController.destroy();
+        ShadowLooper.idleMainLooper();
+        RoboSettings.setUseGlobalScheduler(false);
+    }
+
+    @Test
+    public void singleResultsAreNotGrouped() {
+        //both results are in the ring before the worker processes them
+        mProvider.deliver(location());
+        mProvider.deliver(location());
+        ShadowLooper.idleMainLooper();
+
+        assertFixes(mLive, 2);
+        assertFixes(mDeferred, 2);
+        assertEquals(Collections.<Integer>emptyList(), mLive.mBatchSizes);
+        assertEquals(Collections.<Integer>emptyList(), mDeferred.mBatchSizes);
+    }
+
+    @Test
+    public void providerResultIsBatchOnlyForDeferredClient() {
+        mProvider.deliver(location());
+        mProvider.deliver(location(), location(), location());
+        mProvider.deliver(location(), location());
+        ShadowLooper.idleMainLooper();
+
+        assertFixes(mLive, 6);
+        assertFixes(mDeferred, 6);
+        assertEquals(Collections.<Integer>emptyList(), mLive.mBatchSizes);
+        assertEquals(Arrays.asList(3, 2), mDeferred.mBatchSizes);
+    }
+
+    private Location location() {
+        Location location = new Location("test");
+        location.setTime(START_TIME + mFixCount * 1000L);
+        location.setLatitude(50.4501 + mFixCount * 1e-5);
+        location.setLongitude(30.5234);
+        location.setAccuracy(5);
+        mFixCount++;
+        return location;
+    }
+
+    /**
+     * Every fix reaches onLocationFix() in order, batches go through the default onLocationsBatch()
+     */
+    private static void assertFixes(GroupCallbacks callbacks, int count) {
+        assertEquals(count, callbacks.mTimes.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(START_TIME + i * 1000L, (long) callbacks.mTimes.get(i));
+        }
+    }
+
+    private static class GroupCallbacks extends LocationServiceReplayTest.RecordingCallbacks {
+        final List<Long> mTimes = new ArrayList<>();
+        final List<Integer> mBatchSizes = new ArrayList<>();
+
+        @Override
+        public void onLocationFix(LocationFix fix) {
+            mTimes.add(fix.getTime());
+            super.onLocationFix(fix);
+        }
+
+        @Override
+        public void onLocationsBatch(List<LocationFix> fixes) {
+            mBatchSizes.add(fixes.size());
+            super.onLocationsBatch(fixes);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.mobiledevpro.locationservice;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Dwell time and visits of heatmap cells: fixes in order, gaps, time going back, save and load
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class DwellHeatmapTest {
+    private static final long START_TIME = 1500000000000L;
+    //far apart, so they are different cells at every precision
+    private static final double[] HOME = {50.4501, 30.5234};
+    private static final double[] WORK = {50.0005, 30.0005};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private DwellHeatmap mHeatmap;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mFolder.getRoot(), Constants.HEATMAP_FILE);
+        mHeatmap = new DwellHeatmap(mFile);
+    }
+
+    @Test
+    public void timeIsAddedToCellOfEarlierFix() {
+        fix(HOME, 0);
+        fix(HOME, 60000);
+        fix(WORK, 120000);
+        fix(WORK, 180000);
+        fix(HOME, 190000);
+
+        for (int precision = DwellCell.MIN_PRECISION; precision <= DwellCell.MAX_PRECISION; precision++) {
+            List<DwellCell> cells = mHeatmap.getCells(precision, 10);
+            assertEquals(2, cells.size());
+            assertCell(cells.get(0), HOME, 120000, 2);
+            assertCell(cells.get(1), WORK, 70000, 1);
+        }
+    }
+
+    @Test
+    public void gapAndTimeGoingBackAreNotCounted() {
+        fix(HOME, 0);
+        fix(HOME, 60000);
+        //device was off
+        fix(HOME, 60000 + Constants.HEATMAP_MAX_GAP + 1);
+        fix(HOME, 120000 + Constants.HEATMAP_MAX_GAP + 1);
+        //replayed track starts over
+        fix(HOME, 30000);
+        fix(HOME, 40000);
+        //inaccurate fix is skipped
+        fix(WORK, 50000, Constants.HEATMAP_MAX_ACCURACY + 1);
+
+        List<DwellCell> cells = mHeatmap.getCells(DwellCell.MAX_PRECISION, 10);
+        assertEquals(1, cells.size());
+        assertCell(cells.get(0), HOME, 130000, 3);
+    }
+
+    @Test
+    public void savedHeatmapIsContinuedAfterLoad() {
+        fix(HOME, 0);
+        fix(HOME, 60000);
+        fix(WORK, 120000);
+        mHeatmap.save();
+
+        DwellHeatmap loaded = new DwellHeatmap(mFile);
+        loaded.load();
+        for (int precision = DwellCell.MIN_PRECISION; precision <= DwellCell.MAX_PRECISION; precision++) {
+            List<DwellCell> cells = loaded.getCells(precision, 10);
+            assertEquals(2, cells.size());
+            assertCell(cells.get(0), HOME, 120000, 1);
+            assertCell(cells.get(1), WORK, 0, 1);
+        }
+
+        //the last fix was kept: dwell time of its cell continues, it isn't a new visit
+        mHeatmap = loaded;
+        fix(WORK, 150000);
+        assertCell(loaded.getCells(DwellCell.MAX_PRECISION, 10).get(1), WORK, 30000, 1);
+    }
+
+    @Test
+    public void tornFileKeepsWhatIsRead() throws Exception {
+        fix(HOME, 0);
+        fix(HOME, 60000);
+        mHeatmap.save();
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+
+        DwellHeatmap loaded = new DwellHeatmap(mFile);
+        loaded.load();
+        assertCell(loaded.getCells(DwellCell.MIN_PRECISION, 10).get(0), HOME, 60000, 1);
+    }
+
+    private void fix(double[] place, long time) {
+        fix(place, time, 5);
+    }
+
+    private void fix(double[] place, long time, float accuracy) {
+        LocationFix fix = new LocationFix();
+        fix.set(START_TIME + time, place[0], place[1], 100, accuracy, 0, 0);
+        mHeatmap.onFix(fix);
+    }
+
+    private static void assertCell(DwellCell cell, double[] place, long dwellTime, int visits) {
+        assertEquals(GeoHash.toString(GeoHash.encode(place[0], place[1], cell.getGeohash().length())), cell.getGeohash());
+        assertEquals(dwellTime, cell.getDwellTime());
+        assertEquals(visits, cell.getVisitCount());
+    }
+}
@@ -0,0 +1,56 @@
+package com.mobiledevpro.locationservice;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Trimming of dwell table: the longest dwell times are kept, and the cell the device is in
+ */
+
+public class DwellTableTest {
+
+    @Test
+    public void trimKeepsLongestDwellTimes() {
+        DwellTable table = new DwellTable(4);
+        for (int i = 1; i <= 100; i++) {
+            table.add(i, (i % 10) * 1000L, i);
+        }
+        table.trim(25, 0);
+
+        //10 cells of 9 and 8 seconds, 5 of 7 seconds; visits go with their cells
+        assertEquals(25, table.size());
+        int sevenSeconds = 0;
+        for (int i = 1; i <= 100; i++) {
+            int slot = table.find(i);
+            if (i % 10 >= 8) assertTrue(slot >= 0);
+            if (i % 10 < 7) assertEquals(-1, slot);
+            if (slot < 0) continue;
+            assertEquals(i, table.getVisits(slot));
+            if (table.getDwellTime(slot) == 7000) sevenSeconds++;
+        }
+        assertEquals(5, sevenSeconds);
+    }
+
+    @Test
+    public void trimKeepsCurrentCell() {
+        DwellTable table = new DwellTable(4);
+        for (int i = 1; i <= 100; i++) {
+            table.add(i, i * 1000L, 1);
+        }
+        //device has just come into a new cell, its dwell time is still 0
+        table.add(1000, 0, 1);
+        table.trim(10, 1000);
+
+        assertEquals(10, table.size());
+        assertEquals(1, table.getVisits(table.find(1000)));
+        for (int i = 92; i <= 100; i++) {
+            assertTrue(table.find(i) >= 0);
+        }
+
+        table.trim(1, 1000);
+        assertEquals(1, table.size());
+        assertTrue(table.find(1000) >= 0);
+    }
+}
@@ -0,0 +1,193 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pushes fixes through FixRing, client's queue and its drain on the test thread
+ * and counts bytes allocated by the thread (HotSpot's ThreadMXBean).
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class FixPipelineAllocationTest {
+    private static final int WARM_UP_FIXES = 20000;
+    private static final int FIXES = 10000;
+
+    @Test
+    public void remoteClientPathDoesNotAllocate() {
+        CountingCallbacks callbacks = new CountingCallbacks();
+
+        long bytes = measure(callbacks);
+
+        assertEquals(WARM_UP_FIXES + FIXES, callbacks.mCount);
+        assertEquals("bytes per fix, total " + bytes, 0, bytes / FIXES);
+    }
+
+    @Test
+    public void inProcessClientPathDoesNotAllocate() {
+        CountingLocalCallbacks callbacks = new CountingLocalCallbacks();
+
+        long bytes = measure(callbacks);
+
+        assertEquals(WARM_UP_FIXES + FIXES, callbacks.mCount);
+        assertEquals("bytes per fix, total " + bytes, 0, bytes / FIXES);
+    }
+
+    /**
+     * @param callbacks Client
+     * @return Bytes allocated while FIXES fixes were written, enqueued and drained (after warm up)
+     */
+    private static long measure(ILocationServiceCallbacks callbacks) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assertTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        FixRing ring = new FixRing(Constants.FIX_RING_CAPACITY);
+        CallbackDispatcher dispatcher = new CallbackDispatcher(null, ring, ring, new PipelineStats());
+        LocationSubscriber subscriber = new LocationSubscriber(callbacks, new LocationSubscription().setInterval(0), dispatcher);
+        //receivedNanos stays 0: latency isn't measured, the test doesn't depend on the shadowed clock
+        LocationFix fix = new LocationFix();
+        long threadId = Thread.currentThread().getId();
+
+        push(ring, subscriber, fix, WARM_UP_FIXES);
+        //cost of the measurement itself
+        long start = threads.getThreadAllocatedBytes(threadId);
+        long overhead = threads.getThreadAllocatedBytes(threadId) - start;
+
+        start = threads.getThreadAllocatedBytes(threadId);
+        push(ring, subscriber, fix, FIXES);
+        long bytes = threads.getThreadAllocatedBytes(threadId) - start - overhead;
+
+        dispatcher.shutdown();
+        return bytes;
+    }
+
+    /**
+     * The same calls as the service worker (write and enqueue) and the dispatcher (drain) do
+     */
+    private static void push(FixRing ring, LocationSubscriber subscriber, LocationFix fix, int count) {
+        for (int i = 0; i < count; i++) {
+            fix.set(1500000000000L + i * 1000L, 50.4501 + i * 1e-6, 30.5234, 100, 5, 1, 0);
+            long seq = ring.write(fix);
+            assertEquals(LocationSubscriber.ENQUEUE_SCHEDULE, subscriber.enqueueFix(seq));
+            subscriber.getDrainTask().run();
+        }
+    }
+
+    /**
+     * Client in another process: gets fixes by onLocationUpdated() on dispatcher thread
+     */
+    static class CountingCallbacks implements ILocationServiceCallbacks {
+        int mCount;
+
+        @Override
+        public void onLocationUpdated(double latitude, double longitude, double altitude, float accuracy) throws RemoteException {
+            mCount++;
+        }
+
+        @Override
+        public void isDeviceOffline() {
+        }
+
+        @Override
+        public void isNotLocationPermissionGranted() {
+        }
+
+        @Override
+        public void onGoogleApiConnectionFailed(int errCode, String errMessage) {
+        }
+
+        @Override
+        public void onGetLocationSettingsState(boolean isNetworkLocationOn, boolean isGpsLocationOn) {
+        }
+
+        @Override
+        public void onLocationsBatch(List<LocationFix> fixes) {
+        }
+
+        @Override
+        public void onSamplingModeChanged(int mode) {
+        }
+
+        @Override
+        public void onStatsSnapshot(LocationServiceStats stats) {
+        }
+
+        @Override
+        public void onGeofenceTransition(String geofenceId, int transition, double latitude, double longitude) {
+        }
+
+        @Override
+        public void onTripSegmentStarted(int type, long time, double latitude, double longitude) {
+        }
+
+        @Override
+        public void onTripSegmentEnded(TripSegment segment) {
+        }
+
+        @Override
+        public void onCachedLocation(LocationFix fix, long ageMillis) {
+        }
+
+        @Override
+        public void onSharedFixesAvailable() {
+        }
+
+        @Override
+        public void onAddressResolved(double latitude, double longitude, String address) {
+        }
+
+        @Override
+        public void onProviderStateChanged(int state) {
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+    }
+
+    /**
+     * Client in the service process: gets fixes by onLocationFix()
+     */
+    private static class CountingLocalCallbacks extends LocationServiceManager.Callbacks {
+        int mCount;
+
+        @Override
+        public void onLocationFix(LocationFix fix) {
+            mCount++;
+        }
+
+        @Override
+        public void isDeviceOffline() {
+        }
+
+        @Override
+        public void isNotLocationPermissionGranted() {
+        }
+
+        @Override
+        public void onGoogleApiConnectionFailed(int errCode, String errMessage) {
+        }
+
+        @Override
+        public void onLocationUpdated(double latitude, double longitude, double altitude, float accuracy) {
+        }
+
+        @Override
+        public void onGetLocationSettingsState(boolean isNetworkLocationOn, boolean isGpsLocationOn) {
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.mobiledevpro.locationservice;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RoboSettings;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FixUploader against an HTTP server in the test JVM: sealing of spool by size and by time,
+ * the same Idempotency-Key for every retry of a batch, and what is done with the batch for every status.
+ * Uploader thread runs when the test idles loopers, Robolectric's clock drives seal and backoff delays.
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class FixUploaderTest {
+    private static final long START_TIME = 1500000000000L;
+    private static final Pattern BATCH_ID = Pattern.compile("\"batch_id\":\"([^\"]+)\"");
+    private static final Pattern FIX_TIME = Pattern.compile("\"time\":");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private final List<Request> mRequests = Collections.synchronizedList(new ArrayList<Request>());
+    private final Queue<Integer> mResponses = new LinkedList<>(); //status codes, 200 when empty
+    private File mDir;
+    private FixRing mFixRing;
+    private FixUploader mUploader;
+    private int mWritten;
+
+    private static class Request {
+        final String idempotencyKey;
+        final String batchId;
+        final int fixes;
+
+        Request(String idempotencyKey, String batchId, int fixes) {
+            this.idempotencyKey = idempotencyKey;
+            this.batchId = batchId;
+            this.fixes = fixes;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        RoboSettings.setUseGlobalScheduler(true);
+        ShadowLooper.pauseMainLooper();
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/fixes", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = read(new GZIPInputStream(exchange.getRequestBody()));
+                Matcher batchId = BATCH_ID.matcher(body);
+                int fixes = 0;
+                for (Matcher time = FIX_TIME.matcher(body); time.find(); ) {
+                    fixes++;
+                }
+                mRequests.add(new Request(
+                        exchange.getRequestHeaders().getFirst("Idempotency-Key"),
+                        batchId.find() ? batchId.group(1) : null,
+                        fixes
+                ));
+                Integer code;
+                synchronized (mResponses) {
+                    code = mResponses.poll();
+                }
+                exchange.sendResponseHeaders(code != null ? code : 200, -1);
+                exchange.close();
+            }
+        });
+        mServer.start();
+        mDir = mFolder.newFolder(Constants.UPLOAD_DIR);
+        mFixRing = new FixRing(1024);
+        mUploader = start();
+    }
+
+    @After
+    public void tearDown() {
+        mUploader.stop();
+        ShadowLooper.idleMainLooper();
+        mServer.stop(0);
+        RoboSettings.setUseGlobalScheduler(false);
+    }
+
+    @Test
+    public void spoolIsSealedBySize() {
+        write(Constants.UPLOAD_BATCH_MAX_FIXES + 10);
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(1, mRequests.size());
+        assertEquals(Constants.UPLOAD_BATCH_MAX_FIXES, mRequests.get(0).fixes);
+        //the rest waits for more fixes or for its age
+        ShadowLooper.idleMainLooper(Constants.UPLOAD_BATCH_MAX_AGE - 1000);
+        assertEquals(1, mRequests.size());
+    }
+
+    @Test
+    public void spoolIsSealedByTime() {
+        write(10);
+        ShadowLooper.idleMainLooper(Constants.UPLOAD_BATCH_MAX_AGE - 1000);
+        assertEquals(0, mRequests.size());
+        write(5);
+        ShadowLooper.idleMainLooper(1000);
+
+        //age is counted from the first fix in spool
+        assertEquals(1, mRequests.size());
+        assertEquals(15, mRequests.get(0).fixes);
+        assertEquals(0, batchCount());
+    }
+
+    @Test
+    public void retryHasTheSameIdempotencyKey() {
+        respond(503, 500, 408, 429, 200);
+        write(3);
+        ShadowLooper.idleMainLooper(Constants.UPLOAD_BATCH_MAX_AGE);
+        //backoff doubles every failure: 5, 10, 20, 40 seconds at most
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, mRequests.size());
+            ShadowLooper.idleMainLooper(Constants.UPLOAD_BACKOFF_MIN << (i - 1));
+        }
+
+        assertEquals(5, mRequests.size());
+        String key = mRequests.get(0).idempotencyKey;
+        for (Request request : mRequests) {
+            assertEquals(key, request.idempotencyKey);
+            assertEquals(key, request.batchId);
+            assertEquals(3, request.fixes);
+        }
+        assertEquals(0, batchCount());
+        //delivered batch isn't sent again
+        ShadowLooper.idleMainLooper(Constants.UPLOAD_BACKOFF_MAX);
+        assertEquals(5, mRequests.size());
+    }
+
+    @Test
+    public void sealedBatchIsStoredByTrackCodec() throws IOException {
+        mUploader.setEndpoint(new URL("http://127.0.0.1:1/fixes"));
+        write(100);
+        ShadowLooper.idleMainLooper(Constants.UPLOAD_BATCH_MAX_AGE);
+        assertEquals(1, batchCount());
+
+        File batch = mDir.listFiles()[0];
+        List<LocationFix> fixes = TrackCodecTest.decode(Files.readAllBytes(batch.toPath()));
+
+        assertEquals(100, fixes.size());
+        assertEquals(START_TIME + 99 * 1000L, fixes.get(99).getTime());
+        assertEquals(50.45 + 99 * 1e-5, fixes.get(99).getLatitude(), 0.5e-6);
+        assertTrue("batch bytes " + batch.length(), batch.length() * 3 < 100 * FixUploader.RECORD_SIZE);
+    }
+
+    @Test
+    public void statusIsMappedToResult() throws IOException {
+        int[] sent = {200, 201, 202, 204, 409};
+        int[] rejected = {400, 401, 403, 404, 410, 413, 422};
+        int[] retry = {408, 429, 500, 502, 503, 504};
+        assertResult(FixUploader.RESULT_SENT, sent);
+        assertResult(FixUploader.RESULT_REJECTED, rejected);
+        assertResult(FixUploader.RESULT_RETRY, retry);
+    }
+
+    @Test
+    public void conflictMeansDelivered() {
+        respond(409);
+        write(3);
+        ShadowLooper.idleMainLooper(Constants.UPLOAD_BATCH_MAX_AGE);
+
+        assertEquals(1, mRequests.size());
+        assertEquals(0, batchCount());
+        ShadowLooper.idleMainLooper(Constants.UPLOAD_BACKOFF_MAX);
+        assertEquals(1, mRequests.size());
+    }
+
+    @Test
+    public void rejectedBatchIsDropped() {
+        respond(400, 200);
+        write(3);
+        ShadowLooper.idleMainLooper(Constants.UPLOAD_BATCH_MAX_AGE);
+        assertEquals(1, mRequests.size());
+        assertEquals(0, batchCount());
+        ShadowLooper.idleMainLooper(Constants.UPLOAD_BACKOFF_MAX);
+        assertEquals(1, mRequests.size());
+
+        write(2);
+        ShadowLooper.idleMainLooper(Constants.UPLOAD_BATCH_MAX_AGE);
+
+        assertEquals(2, mRequests.size());
+        assertEquals(2, mRequests.get(1).fixes);
+        assertNotEquals(mRequests.get(0).idempotencyKey, mRequests.get(1).idempotencyKey);
+    }
+
+    @Test
+    public void unreadableBatchIsDropped() throws IOException {
+        //the oldest batches: the last record is cut in the middle of a varint, and not a track at all
+        byte[] track = TrackCodecTest.encode(Collections.singletonList(
+                TrackCodecTest.fix(START_TIME, 50.45, 30.52, 100, 5, 1, 0)), 0);
+        track = Arrays.copyOf(track, track.length + 1);
+        track[track.length - 1] = (byte) 0x80;
+        Files.write(new File(mDir, "0000000000000_truncated.batch").toPath(), track);
+        Files.write(new File(mDir, "0000000000001_garbage.batch").toPath(), "garbage".getBytes("UTF-8"));
+
+        write(3);
+        ShadowLooper.idleMainLooper(Constants.UPLOAD_BATCH_MAX_AGE);
+
+        assertEquals(1, mRequests.size());
+        assertEquals(3, mRequests.get(0).fixes);
+        assertEquals(0, batchCount());
+    }
+
+    @Test
+    public void batchIsDroppedAfterMaxAttempts() {
+        Integer[] errors = new Integer[Constants.UPLOAD_MAX_ATTEMPTS];
+        Arrays.fill(errors, 500);
+        respond(errors);
+        write(3);
+        ShadowLooper.idleMainLooper(Constants.UPLOAD_BATCH_MAX_AGE);
+        write(2);
+        ShadowLooper.idleMainLooper(Constants.UPLOAD_BATCH_MAX_AGE);
+        ShadowLooper.idleMainLooper(Constants.UPLOAD_MAX_ATTEMPTS * Constants.UPLOAD_BACKOFF_MAX);
+
+        assertEquals(Constants.UPLOAD_MAX_ATTEMPTS + 1, mRequests.size());
+        for (int i = 0; i < Constants.UPLOAD_MAX_ATTEMPTS; i++) {
+            assertEquals(mRequests.get(0).batchId, mRequests.get(i).batchId);
+        }
+        assertEquals(2, mRequests.get(Constants.UPLOAD_MAX_ATTEMPTS).fixes);
+        assertEquals(0, batchCount());
+    }
+
+    @Test
+    public void nonFiniteValuesAreSentAsNull() throws Exception {
+        File batch = mFolder.newFile();
+        Files.write(batch.toPath(), TrackCodecTest.encode(Collections.singletonList(
+                TrackCodecTest.fix(START_TIME, 50.45, 30.52, Double.NaN, 5, Float.POSITIVE_INFINITY, Float.NaN)), 0));
+
+        JSONObject json = new JSONObject(read(new GZIPInputStream(new ByteArrayInputStream(FixUploader.encode("finite", batch)))));
+
+        JSONObject fix = json.getJSONArray("fixes").getJSONObject(0);
+        assertEquals(START_TIME, fix.getLong("time"));
+        assertEquals(50.45, fix.getDouble("latitude"), 1e-6);
+        assertEquals(5, fix.getDouble("accuracy"), 0);
+        assertTrue(fix.isNull("altitude"));
+        assertTrue(fix.isNull("speed"));
+        assertTrue(fix.isNull("bearing"));
+    }
+
+    @Test
+    public void batchesWaitWhileServerIsDown() throws IOException {
+        //connection refused
+        mUploader.setEndpoint(new URL("http://127.0.0.1:1/fixes"));
+        write(Constants.UPLOAD_BATCH_MAX_FIXES * 2);
+        ShadowLooper.idleMainLooper(Constants.UPLOAD_BACKOFF_MIN * 4);
+        assertEquals(2, batchCount());
+
+        mUploader.setEndpoint(endpoint());
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(2, mRequests.size());
+        assertEquals(0, batchCount());
+    }
+
+    @Test
+    public void spoolOfStoppedUploaderIsSentOnStart() throws IOException {
+        write(7);
+        ShadowLooper.idleMainLooper();
+        mUploader.stop();
+        ShadowLooper.idleMainLooper();
+        assertEquals(0, mRequests.size());
+
+        mUploader = start();
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(1, mRequests.size());
+        assertEquals(7, mRequests.get(0).fixes);
+    }
+
+    private void assertResult(int result, int[] codes) throws IOException {
+        File batch = mFolder.newFile();
+        byte[] body = FixUploader.encode("status", batch);
+        for (int code : codes) {
+            respond(code);
+            assertEquals("status " + code, result, FixUploader.post(endpoint(), "status", body));
+        }
+    }
+
+    private FixUploader start() throws IOException {
+        return new FixUploader(mDir, mFixRing, endpoint(), null);
+    }
+
+    private URL endpoint() throws IOException {
+        return new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/fixes");
+    }
+
+    private void respond(Integer... codes) {
+        synchronized (mResponses) {
+            Collections.addAll(mResponses, codes);
+        }
+    }
+
+    private void write(int count) {
+        for (int i = 0; i < count; i++) {
+            mFixRing.write(TrackCodecTest.fix(START_TIME + mWritten * 1000L, 50.45 + mWritten * 1e-5, 30.52,
+                    100, 5, 1, 0));
+            mWritten++;
+            mUploader.onFixWritten();
+        }
+    }
+
+    private int batchCount() {
+        File[] files = mDir.listFiles();
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(".batch")) count++;
+        }
+        return count;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,183 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.Parcel;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Transitions emitted by GeofenceEngine and values accepted by Geofence
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class GeofenceEngineTest {
+    private static final double LATITUDE = 50.4501;
+    private static final double LONGITUDE = 30.5234;
+    private static final double METERS_PER_DEGREE = 111320;
+
+    private final List<String> mTransitions = new ArrayList<>();
+    private final LocationSubscriber mOwner = new LocationSubscriber(null, null, null);
+    private GeofenceEngine mEngine;
+    private long mTime = 1500000000000L;
+
+    @Before
+    public void setUp() {
+        mEngine = new GeofenceEngine(new GeofenceEngine.Listener() {
+            @Override
+            public void onGeofenceTransition(LocationSubscriber owner, String id, int transition, LocationFix fix) {
+                mTransitions.add((owner == mOwner ? "" : "other.") + id + ":" + transition);
+            }
+        });
+    }
+
+    @Test
+    public void enterDwellExit() {
+        add(new Geofence("home", LATITUDE, LONGITUDE, 100)
+                .setTransitionTypes(Geofence.TRANSITION_ENTER | Geofence.TRANSITION_EXIT | Geofence.TRANSITION_DWELL)
+                .setLoiteringDelay(60000));
+
+        fix(LATITUDE + 500 / METERS_PER_DEGREE, LONGITUDE, 0);
+        fix(LATITUDE + 50 / METERS_PER_DEGREE, LONGITUDE, 1000);
+        fix(LATITUDE, LONGITUDE, 30000);
+        assertTransitions("home:" + Geofence.TRANSITION_ENTER);
+
+        fix(LATITUDE, LONGITUDE, 30000);
+        fix(LATITUDE, LONGITUDE, 1000);
+        assertTransitions("home:" + Geofence.TRANSITION_DWELL);
+
+        //dwell is sent once per visit
+        fix(LATITUDE, LONGITUDE, 60000);
+        fix(LATITUDE + 500 / METERS_PER_DEGREE, LONGITUDE, 1000);
+        assertTransitions("home:" + Geofence.TRANSITION_EXIT);
+
+        fix(LATITUDE, LONGITUDE, 1000);
+        fix(LATITUDE, LONGITUDE, 60000);
+        assertTransitions("home:" + Geofence.TRANSITION_ENTER, "home:" + Geofence.TRANSITION_DWELL);
+    }
+
+    @Test
+    public void fenceAcross180thMeridian() {
+        add(new Geofence("east", 0, 179.999, 500), new Geofence("west", 0, 540 - 0.001, 500));
+        fix(0, -179.999, 1000);
+        assertTransitions("east:" + Geofence.TRANSITION_ENTER, "west:" + Geofence.TRANSITION_ENTER);
+        fix(0, 179.990, 1000);
+        assertTransitions("west:" + Geofence.TRANSITION_EXIT, "east:" + Geofence.TRANSITION_EXIT);
+    }
+
+    @Test
+    public void largeFencesAreChecked() {
+        //the last one has no valid cell range at all
+        add(new Geofence("city", LATITUDE, LONGITUDE, 50000),
+                new Geofence("pole", 90, 0, 1000),
+                new Geofence("earth", 0, 0, Float.MAX_VALUE));
+        fix(LATITUDE + 40000 / METERS_PER_DEGREE, LONGITUDE, 1000);
+        assertTransitions("city:" + Geofence.TRANSITION_ENTER, "earth:" + Geofence.TRANSITION_ENTER);
+        fix(89.999, 120, 1000);
+        assertTransitions("city:" + Geofence.TRANSITION_EXIT, "pole:" + Geofence.TRANSITION_ENTER);
+        assertEquals(3, mEngine.getCount());
+    }
+
+    @Test
+    public void fenceWithTheSameIdIsReplaced() {
+        double latitude = LATITUDE + 0.1;
+        add(new Geofence("work", LATITUDE, LONGITUDE, 100));
+        fix(LATITUDE, LONGITUDE, 1000);
+        assertTransitions("work:" + Geofence.TRANSITION_ENTER);
+
+        //the old area is forgotten without exit, the new one is entered as usual
+        add(new Geofence("work", latitude, LONGITUDE, 100));
+        assertEquals(1, mEngine.getCount());
+        fix(LATITUDE, LONGITUDE, 1000);
+        fix(latitude, LONGITUDE, 1000);
+        assertTransitions("work:" + Geofence.TRANSITION_ENTER);
+    }
+
+    @Test
+    public void removedFencesAreNotChecked() {
+        LocationSubscriber other = new LocationSubscriber(null, null, null);
+        add(new Geofence("a", LATITUDE, LONGITUDE, 100), new Geofence("b", LATITUDE, LONGITUDE, 100000));
+        mEngine.add(other, Collections.singletonList(new Geofence("a", LATITUDE, LONGITUDE, 100)));
+        fix(LATITUDE, LONGITUDE, 1000);
+        assertTransitions("b:" + Geofence.TRANSITION_ENTER, "a:" + Geofence.TRANSITION_ENTER, "other.a:" + Geofence.TRANSITION_ENTER);
+
+        mEngine.remove(mOwner, Collections.singletonList("a"));
+        mEngine.removeAll(other);
+        assertEquals(1, mEngine.getCount());
+        mEngine.remove(mOwner, Collections.singletonList("b"));
+        assertEquals(0, mEngine.getCount());
+        fix(LATITUDE + 1, LONGITUDE, 1000);
+        fix(LATITUDE, LONGITUDE, 1000);
+        assertTransitions();
+    }
+
+    @Test
+    public void invalidValuesAreRejected() {
+        assertRejected(Double.NaN, LONGITUDE, 100);
+        assertRejected(1000, LONGITUDE, 100);
+        assertRejected(-90.5, LONGITUDE, 100);
+        assertRejected(LATITUDE, Double.POSITIVE_INFINITY, 100);
+        assertRejected(LATITUDE, LONGITUDE, -2000);
+        assertRejected(LATITUDE, LONGITUDE, 0);
+        assertRejected(LATITUDE, LONGITUDE, Float.NaN);
+
+        assertEquals(-170, new Geofence("a", 0, 190, 100).getLongitude(), 1e-9);
+        assertEquals(-180, new Geofence("a", 0, 180, 100).getLongitude(), 1e-9);
+        assertEquals(179, new Geofence("a", 0, -541, 100).getLongitude(), 1e-9);
+        assertEquals(1, new Geofence("a", 0, 0, 0.01f).getRadius(), 0);
+    }
+
+    private void assertRejected(double latitude, double longitude, float radius) {
+        try {
+            new Geofence("a", latitude, longitude, radius);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+
+        //fence from another process is checked the same way
+        Parcel parcel = Parcel.obtain();
+        parcel.writeString("a");
+        parcel.writeDouble(latitude);
+        parcel.writeDouble(longitude);
+        parcel.writeFloat(radius);
+        parcel.writeInt(Geofence.TRANSITION_ENTER);
+        parcel.writeLong(0);
+        parcel.setDataPosition(0);
+        try {
+            Geofence.CREATOR.createFromParcel(parcel);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //expected
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private void add(Geofence... fences) {
+        assertEquals(0, mEngine.add(mOwner, Arrays.asList(fences)));
+    }
+
+    private void fix(double latitude, double longitude, long elapsed) {
+        mTime += elapsed;
+        LocationFix fix = new LocationFix();
+        fix.set(mTime, latitude, longitude, 100, 5, 1, 0);
+        mEngine.onFix(fix);
+    }
+
+    private void assertTransitions(String... transitions) {
+        assertEquals(Arrays.asList(transitions), mTransitions);
+        mTransitions.clear();
+    }
+}
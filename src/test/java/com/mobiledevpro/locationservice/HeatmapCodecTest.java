@@ -0,0 +1,67 @@
+package com.mobiledevpro.locationservice;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Heatmap snapshot round trip and its size
+ */
+
+public class HeatmapCodecTest {
+    private static final int PRECISION = 7;
+    private static final int CELLS = 1000;
+
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        //places around one city, dwell times are whole seconds as the snapshot keeps them
+        Random random = new Random(1);
+        DwellTable table = new DwellTable(CELLS);
+        Map<String, DwellCell> expected = new HashMap<>();
+        while (table.size() < CELLS) {
+            long cell = GeoHash.encode(50.45 + random.nextGaussian() * 0.05, 30.52 + random.nextGaussian() * 0.08, PRECISION);
+            long dwellTime = (1 + random.nextInt(100000)) * 1000L;
+            int visits = 1 + random.nextInt(50);
+            if (table.find(cell) >= 0) continue;
+            table.add(cell, dwellTime, visits);
+            expected.put(GeoHash.toString(cell), new DwellCell(cell, dwellTime, visits));
+        }
+
+        byte[] snapshot = HeatmapCodec.encode(table, PRECISION);
+        List<DwellCell> cells = HeatmapCodec.decode(snapshot);
+
+        assertEquals(CELLS, cells.size());
+        String previous = "";
+        for (DwellCell cell : cells) {
+            DwellCell original = expected.get(cell.getGeohash());
+            assertEquals(original.getDwellTime(), cell.getDwellTime());
+            assertEquals(original.getVisitCount(), cell.getVisitCount());
+            assertTrue(cell.getGeohash().compareTo(previous) > 0);
+            previous = cell.getGeohash();
+        }
+        assertTrue("snapshot bytes " + snapshot.length, snapshot.length < CELLS * 8);
+    }
+
+    @Test
+    public void emptySnapshot() throws IOException {
+        byte[] snapshot = HeatmapCodec.encode(new DwellTable(4), PRECISION);
+        assertEquals(5, snapshot.length);
+        assertEquals(0, HeatmapCodec.decode(snapshot).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedSnapshotIsRejected() throws IOException {
+        DwellTable table = new DwellTable(4);
+        table.add(GeoHash.encode(50.45, 30.52, PRECISION), 60000, 1);
+        byte[] snapshot = HeatmapCodec.encode(table, PRECISION);
+        HeatmapCodec.decode(Arrays.copyOf(snapshot, snapshot.length - 1));
+    }
+}
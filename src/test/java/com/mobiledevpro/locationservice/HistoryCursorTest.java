@@ -0,0 +1,154 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pages of recorded fixes read from a track segment written by the test.
+ * Idle timeout runs on the paused main looper.
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class HistoryCursorTest {
+    private static final long START_TIME = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final List<HistoryCursor> mClosed = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+    }
+
+    @Test
+    public void encodedPageOfJumpingFixesIsLimitedByBytes() throws IOException {
+        //every fix jumps across the globe, so it takes the longest varints
+        int count = Constants.HISTORY_ENCODED_PAGE_SIZE;
+        File dir = writeSegment(count, true);
+        HistoryCursor cursor = open(dir, START_TIME, Long.MAX_VALUE);
+
+        int decoded = 0;
+        int pages = 0;
+        byte[] page;
+        while ((page = cursor.nextEncoded(count, 0)).length > 0) {
+            assertTrue("page bytes " + page.length, page.length <= Constants.HISTORY_ENCODED_PAGE_BYTES);
+            decoded += TrackCodecTest.decode(page).size();
+            pages++;
+        }
+
+        assertEquals(count, decoded);
+        assertTrue(pages > 1);
+    }
+
+    @Test
+    public void encodedPageOfSmoothTrackIsLimitedByCount() throws IOException {
+        File dir = writeSegment(Constants.HISTORY_ENCODED_PAGE_SIZE + 10, false);
+        HistoryCursor cursor = open(dir, START_TIME, Long.MAX_VALUE);
+
+        assertEquals(Constants.HISTORY_ENCODED_PAGE_SIZE, TrackCodecTest.decode(cursor.nextEncoded(Integer.MAX_VALUE, 0)).size());
+        assertEquals(10, TrackCodecTest.decode(cursor.nextEncoded(Integer.MAX_VALUE, 0)).size());
+        assertEquals(0, cursor.nextEncoded(Integer.MAX_VALUE, 0).length);
+    }
+
+    @Test
+    public void pageHoldsFixesOfRange() throws IOException {
+        File dir = writeSegment(100, false);
+        HistoryCursor cursor = open(dir, START_TIME + 10 * 1000, START_TIME + 19 * 1000);
+
+        List<LocationFix> fixes = cursor.next(Constants.HISTORY_PAGE_SIZE);
+
+        assertEquals(10, fixes.size());
+        assertEquals(START_TIME + 10 * 1000, fixes.get(0).getTime());
+        assertEquals(0, cursor.next(Constants.HISTORY_PAGE_SIZE).size());
+        //closed at the end of range, once
+        cursor.close();
+        assertEquals(1, mClosed.size());
+    }
+
+    @Test
+    public void idleCursorIsClosed() throws IOException {
+        HistoryCursor cursor = open(writeSegment(100, false), START_TIME, Long.MAX_VALUE);
+        assertEquals(10, cursor.next(10).size());
+
+        ShadowLooper.idleMainLooper(Constants.HISTORY_CURSOR_IDLE_TIMEOUT - 1);
+        assertEquals(0, mClosed.size());
+        ShadowLooper.idleMainLooper(1);
+
+        assertEquals(1, mClosed.size());
+        assertEquals(0, cursor.next(10).size());
+    }
+
+    @Test
+    public void readingKeepsCursorOpen() throws IOException {
+        HistoryCursor cursor = open(writeSegment(100, false), START_TIME, Long.MAX_VALUE);
+
+        for (int i = 0; i < 5; i++) {
+            ShadowLooper.idleMainLooper(Constants.HISTORY_CURSOR_IDLE_TIMEOUT - 1000);
+            assertEquals(10, cursor.next(10).size());
+        }
+        assertEquals(0, mClosed.size());
+        ShadowLooper.idleMainLooper(Constants.HISTORY_CURSOR_IDLE_TIMEOUT);
+
+        assertEquals(1, mClosed.size());
+    }
+
+    private HistoryCursor open(File dir, long from, long to) {
+        return new HistoryCursor(new TrackHistory(dir), from, to, new Handler(Looper.getMainLooper()),
+                new HistoryCursor.Listener() {
+                    @Override
+                    public void onCursorClosed(HistoryCursor cursor) {
+                        mClosed.add(cursor);
+                    }
+                });
+    }
+
+    /**
+     * @param count     Count of fixes, one per second
+     * @param isJumping True - fixes alternate between opposite sides of the globe
+     * @return Directory with the segment
+     */
+    private File writeSegment(int count, boolean isJumping) throws IOException {
+        File dir = mFolder.newFolder("tracks");
+        TrackSegment segment = TrackSegment.openForWrite(new File(dir, "0000000000" + TrackSegment.FILE_EXTENSION),
+                Constants.TRACK_SEGMENT_SIZE);
+        try {
+            for (int i = 0; i < count; i++) {
+                int sign = isJumping && i % 2 == 1 ? -1 : 1;
+                LocationFix fix = TrackCodecTest.fix(
+                        START_TIME + i * 1000L,
+                        isJumping ? sign * 89.9 : 50.45 + i * 1e-5,
+                        isJumping ? sign * 179.9 : 30.52,
+                        isJumping ? sign * 9000 : 100,
+                        isJumping && sign > 0 ? 100000 : 5,
+                        isJumping && sign > 0 ? 300 : 1,
+                        isJumping && sign > 0 ? 359 : 0
+                );
+                assertTrue(segment.append(fix));
+            }
+            segment.force();
+        } finally {
+            segment.close();
+        }
+        return dir;
+    }
+}
@@ -0,0 +1,139 @@
+package com.mobiledevpro.locationservice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a walking trace with GPS noise through KalmanFilter, with and without outliers
+ */
+
+public class KalmanFilterTest {
+    private static final long START_TIME = 1500000000000L;
+    private static final double START_LATITUDE = 50.4501;
+    private static final double START_LONGITUDE = 30.5234;
+    private static final double METERS_PER_DEGREE = Math.toRadians(AdaptiveSampler.EARTH_RADIUS);
+    private static final int[] OUTLIERS = {20, 50, 51, 52, 90};
+
+    @Test
+    public void outliersAreRejected() {
+        KalmanFilter filter = new KalmanFilter();
+        List<LocationFix> trace = walk(120);
+        LocationFix out = new LocationFix();
+
+        for (int i = 0; i < trace.size(); i++) {
+            boolean isOutlier = isOutlier(i);
+            LocationFix fix = isOutlier ? jump(trace.get(i)) : trace.get(i);
+            assertEquals("fix " + i, !isOutlier, filter.onFix(fix, out));
+        }
+    }
+
+    @Test
+    public void rejectedFixDoesNotChangeFilterState() {
+        List<LocationFix> trace = walk(120);
+        KalmanFilter clean = new KalmanFilter();
+        KalmanFilter withOutliers = new KalmanFilter();
+        LocationFix cleanOut = new LocationFix();
+        LocationFix out = new LocationFix();
+
+        for (int i = 0; i < trace.size(); i++) {
+            if (isOutlier(i)) {
+                assertFalse(withOutliers.onFix(jump(trace.get(i)), out));
+                continue;
+            }
+            assertTrue(clean.onFix(trace.get(i), cleanOut));
+            assertTrue(withOutliers.onFix(trace.get(i), out));
+
+            //outliers are as if they never came
+            assertEquals("fix " + i, cleanOut.getLatitude(), out.getLatitude(), 1e-12);
+            assertEquals("fix " + i, cleanOut.getLongitude(), out.getLongitude(), 1e-12);
+            assertEquals("fix " + i, cleanOut.getAccuracy(), out.getAccuracy(), 1e-6);
+            assertEquals("fix " + i, cleanOut.getSpeed(), out.getSpeed(), 1e-6);
+        }
+    }
+
+    @Test
+    public void smoothedTrackIsCloserToPathThanRawFixes() {
+        KalmanFilter filter = new KalmanFilter();
+        List<LocationFix> trace = walk(300);
+        LocationFix out = new LocationFix();
+        double rawError = 0;
+        double smoothedError = 0;
+
+        for (int i = 0; i < trace.size(); i++) {
+            LocationFix fix = isOutlier(i) ? jump(trace.get(i)) : trace.get(i);
+            if (!filter.onFix(fix, out) || i < 10) continue;
+            //walking east along the parallel
+            rawError += Math.abs(fix.getLatitude() - START_LATITUDE) * METERS_PER_DEGREE;
+            smoothedError += Math.abs(out.getLatitude() - START_LATITUDE) * METERS_PER_DEGREE;
+        }
+
+        assertTrue("raw " + rawError + ", smoothed " + smoothedError, smoothedError < rawError * 0.8);
+    }
+
+    @Test
+    public void filterStartsOverAfterTooManyOutliers() {
+        KalmanFilter filter = new KalmanFilter();
+        List<LocationFix> trace = walk(20);
+        LocationFix out = new LocationFix();
+        for (int i = 0; i < 10; i++) {
+            filter.onFix(trace.get(i), out);
+        }
+
+        //device really moved far away (e.g. fixes after a flight without a gap)
+        for (int i = 10; i < 10 + Constants.KALMAN_MAX_REJECTED; i++) {
+            assertFalse(filter.onFix(jump(trace.get(i)), out));
+        }
+        LocationFix far = jump(trace.get(10 + Constants.KALMAN_MAX_REJECTED));
+
+        assertTrue(filter.onFix(far, out));
+        assertEquals(far.getLatitude(), out.getLatitude(), 1e-9);
+        assertEquals(far.getLongitude(), out.getLongitude(), 1e-9);
+    }
+
+    private static boolean isOutlier(int index) {
+        for (int outlier : OUTLIERS) {
+            if (outlier == index) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The same fix moved 5 km north
+     */
+    private static LocationFix jump(LocationFix fix) {
+        LocationFix jump = new LocationFix(fix);
+        jump.set(fix.getTime(), fix.getLatitude() + 5000 / METERS_PER_DEGREE, fix.getLongitude(),
+                fix.getAltitude(), fix.getAccuracy(), fix.getSpeed(), fix.getBearing());
+        return jump;
+    }
+
+    /**
+     * @return Walk east at 1.5 m/s, fix every second with ~5 m of noise
+     */
+    private static List<LocationFix> walk(int count) {
+        Random random = new Random(3);
+        double metersPerLongitudeDegree = METERS_PER_DEGREE * Math.cos(Math.toRadians(START_LATITUDE));
+        List<LocationFix> trace = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            LocationFix fix = new LocationFix();
+            fix.set(
+                    START_TIME + i * 1000L,
+                    START_LATITUDE + random.nextGaussian() * 5 / METERS_PER_DEGREE,
+                    START_LONGITUDE + (i * 1.5 + random.nextGaussian() * 5) / metersPerLongitudeDegree,
+                    150,
+                    5,
+                    1.5f,
+                    90
+            );
+            trace.add(fix);
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,61 @@
+package com.mobiledevpro.locationservice;
+
+import com.google.android.gms.location.LocationRequest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Merging of clients' subscriptions into one provider request
+ */
+
+public class LocationRequestMergerTest {
+
+    @Test
+    public void noClientsGiveNoRequest() {
+        assertNull(new LocationRequestMerger().build());
+    }
+
+    @Test
+    public void mostDemandingValuesAreTaken() {
+        LocationRequestMerger merger = new LocationRequestMerger();
+        merger.add(new LocationSubscription()
+                .setInterval(30000)
+                .setFastestInterval(10000)
+                .setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY)
+                .setSmallestDisplacement(50));
+        merger.add(new LocationSubscription()
+                .setInterval(5000)
+                .setFastestInterval(5000)
+                .setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY)
+                .setSmallestDisplacement(10));
+
+        LocationRequest request = merger.build();
+
+        assertEquals(5000, request.getInterval());
+        assertEquals(5000, request.getFastestInterval());
+        assertEquals(LocationRequest.PRIORITY_HIGH_ACCURACY, request.getPriority());
+        assertEquals(10, request.getSmallestDisplacement(), 0);
+    }
+
+    @Test
+    public void maxWaitTimeIsLimitedByFixRing() {
+        LocationRequestMerger merger = new LocationRequestMerger();
+        merger.add(new LocationSubscription().setInterval(10000).setMaxWaitTime(Long.MAX_VALUE));
+
+        assertEquals(10000 * Constants.DEFERRED_MAX_FIXES, merger.build().getMaxWaitTime());
+    }
+
+    @Test
+    public void hugeIntervalDoesNotOverflowMaxWaitTime() {
+        LocationRequestMerger merger = new LocationRequestMerger();
+        merger.add(new LocationSubscription().setInterval(Long.MAX_VALUE / 10).setMaxWaitTime(Long.MAX_VALUE));
+
+        LocationRequest request = merger.build();
+
+        assertEquals(Long.MAX_VALUE / 10, request.getInterval());
+        assertEquals(Long.MAX_VALUE, request.getMaxWaitTime());
+    }
+}
@@ -0,0 +1,180 @@
+package com.mobiledevpro.locationservice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RoboSettings;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Drives LocationService with recorded traces through ReplayLocationProvider,
+ * messages of the worker thread are run by the test with the main looper clock.
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class LocationServiceReplayTest {
+    private static final long START_TIME = 1500000000000L;
+    private static final double START_LATITUDE = 50.4501;
+    private static final double START_LONGITUDE = 30.5234;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private ServiceController<ReplayService> mController;
+    private ILocationService mService;
+
+    @Before
+    public void setUp() {
+        //worker looper shares the clock of main looper, its messages run when the test idles the looper
+        RoboSettings.setUseGlobalScheduler(true);
+        ShadowLooper.pauseMainLooper();
+    }
+
+    @After
+    public void tearDown() {
+        mController.destroy();
+        ShadowLooper.idleMainLooper();
+        RoboSettings.setUseGlobalScheduler(false);
+    }
+
+    @Test
+    public void everyFixOfTraceIsDeliveredInOrder() throws Exception {
+        startService(writeTrace(1000, 1000), 1000);
+        RecordingCallbacks callbacks = new RecordingCallbacks();
+        mService.registerCallbackWithParams(callbacks, new LocationSubscription().setInterval(0).setAdaptiveSampling(false));
+
+        ShadowLooper.idleMainLooper(2000);
+
+        assertLatitudes(callbacks.mLatitudes, 0, 1000);
+    }
+
+    @Test
+    public void traceDueAtOnceIsNotOverwrittenInRing() throws Exception {
+        //all fixes are due at once: several times more than the fix ring holds
+        startService(writeTrace(Constants.FIX_RING_CAPACITY * 4, 1000), 1e9);
+        //fixes come one by one, client's own batches keep copies of them all
+        RecordingCallbacks callbacks = new RecordingCallbacks();
+        mService.registerCallbackWithParams(callbacks, new LocationSubscription().setInterval(0).setAdaptiveSampling(false)
+                .setMaxBatchSize(Constants.MAX_BATCH_SIZE).setMaxBatchLatency(1000));
+
+        ShadowLooper.idleMainLooper(2000);
+
+        assertLatitudes(callbacks.mLatitudes, 0, Constants.FIX_RING_CAPACITY * 4);
+        assertEquals(0, mService.getStats().getFixesDropped());
+    }
+
+    @Test
+    public void clientGetsFixesByItsInterval() throws Exception {
+        startService(writeTrace(600, 1000), 1000);
+        RecordingCallbacks everyFix = new RecordingCallbacks();
+        RecordingCallbacks everyTenth = new RecordingCallbacks();
+        mService.registerCallbackWithParams(everyFix, new LocationSubscription().setInterval(0).setAdaptiveSampling(false));
+        mService.registerCallbackWithParams(everyTenth, new LocationSubscription().setInterval(10000).setAdaptiveSampling(false));
+
+        ShadowLooper.idleMainLooper(2000);
+
+        assertEquals(600, everyFix.mLatitudes.size());
+        assertEquals(60, everyTenth.mLatitudes.size());
+        for (int i = 0; i < everyTenth.mLatitudes.size(); i++) {
+            assertEquals(latitude(i * 10), everyTenth.mLatitudes.get(i), 1e-9);
+        }
+    }
+
+    /**
+     * Create service, its provider replays the trace after the first client is registered
+     *
+     * @param trace       Trace file
+     * @param speedFactor How many times faster than recorded
+     */
+    private void startService(File trace, double speedFactor) {
+        ReplayService.sTraceFile = trace;
+        ReplayService.sSpeedFactor = speedFactor;
+        mController = Robolectric.buildService(ReplayService.class).create();
+        mService = ILocationService.Stub.asInterface(mController.get().onBind(null));
+    }
+
+    /**
+     * @param count Count of fixes
+     * @param step  Milliseconds between fixes
+     * @return Trace moving north by 1e-5 degree per fix
+     */
+    private File writeTrace(int count, long step) throws IOException {
+        File file = mFolder.newFile("trace.csv");
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write("# time,latitude,longitude,altitude,accuracy,speed,bearing\n");
+            for (int i = 0; i < count; i++) {
+                writer.write((START_TIME + i * step) + "," + latitude(i) + "," + START_LONGITUDE + ",100,5,1,0\n");
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private static double latitude(int index) {
+        return START_LATITUDE + index * 1e-5;
+    }
+
+    private static void assertLatitudes(List<Double> latitudes, int from, int count) {
+        assertEquals(count, latitudes.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(latitude(from + i), latitudes.get(i), 1e-9);
+        }
+    }
+
+    /**
+     * Service with fixes from the trace file
+     */
+    public static class ReplayService extends LocationService {
+        static File sTraceFile;
+        static double sSpeedFactor;
+
+        @Override
+        LocationProvider createLocationProvider() {
+            return new ReplayLocationProvider(sTraceFile, sSpeedFactor, 0);
+        }
+    }
+
+    static class RecordingCallbacks extends LocationServiceManager.Callbacks {
+        final List<Double> mLatitudes = new ArrayList<>();
+
+        @Override
+        public void isDeviceOffline() {
+        }
+
+        @Override
+        public void isNotLocationPermissionGranted() {
+        }
+
+        @Override
+        public void onGoogleApiConnectionFailed(int errCode, String errMessage) {
+        }
+
+        @Override
+        public void onLocationUpdated(double latitude, double longitude, double altitude, float accuracy) {
+            mLatitudes.add(latitude);
+        }
+
+        @Override
+        public void onGetLocationSettingsState(boolean isNetworkLocationOn, boolean isGpsLocationOn) {
+        }
+    }
+}
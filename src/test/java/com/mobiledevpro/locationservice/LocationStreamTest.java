@@ -0,0 +1,297 @@
+package com.mobiledevpro.locationservice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Demand, cancellation and operators of LocationStream and FixStream, values are pushed by the test.
+ * Main looper is paused, timers of sample() and buffer() run when the test idles it.
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class LocationStreamTest {
+    private static final double START_LATITUDE = 50.4501;
+    private static final double METERS_PER_DEGREE = Math.toRadians(AdaptiveSampler.EARTH_RADIUS);
+
+    private TestSource<Integer> mSource;
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+        mSource = new TestSource<>();
+    }
+
+    @Test
+    public void valuesComeOnlyOnRequest() {
+        Recorder<Integer> recorder = new Recorder<>(0);
+        mSource.subscribe(recorder);
+
+        mSource.push(1, 2);
+        assertEquals(Collections.emptyList(), recorder.mValues);
+        //without demand only the latest value is kept
+        recorder.mSubscription.request(1);
+        assertEquals(Arrays.asList(2), recorder.mValues);
+        mSource.push(3, 4);
+        recorder.mSubscription.request(2);
+        mSource.push(5, 6);
+
+        assertEquals(Arrays.asList(2, 4, 5), recorder.mValues);
+        recorder.mSubscription.request(1);
+        assertEquals(Arrays.asList(2, 4, 5, 6), recorder.mValues);
+    }
+
+    @Test
+    public void unboundedDemandDoesNotOverflow() {
+        Recorder<Integer> recorder = new Recorder<>(Long.MAX_VALUE);
+        mSource.subscribe(recorder);
+        recorder.mSubscription.request(Long.MAX_VALUE);
+        recorder.mSubscription.request(5);
+
+        for (int i = 0; i < 100; i++) {
+            mSource.push(i);
+        }
+
+        assertEquals(100, recorder.mValues.size());
+    }
+
+    @Test
+    public void cancelStopsStreamAndUpstream() {
+        Recorder<Integer> recorder = new Recorder<>(Long.MAX_VALUE);
+        mSource.throttle(0).sample(1000).subscribe(recorder);
+        mSource.push(1);
+        ShadowLooper.idleMainLooper(1000);
+        assertEquals(Arrays.asList(1), recorder.mValues);
+
+        mSource.push(2);
+        recorder.mSubscription.cancel();
+        //the pending sample tick is removed with the stage
+        ShadowLooper.idleMainLooper(1000);
+        mSource.push(3);
+        recorder.mSubscription.request(1);
+
+        assertTrue(mSource.mEmitters.get(0).mIsCancelled);
+        assertEquals(Arrays.asList(1), recorder.mValues);
+    }
+
+    @Test
+    public void cancelInOnSubscribeStopsUpstream() {
+        Recorder<Integer> recorder = new Recorder<Integer>(Long.MAX_VALUE) {
+            @Override
+            public void onSubscribe(LocationStream.Subscription subscription) {
+                super.onSubscribe(subscription);
+                subscription.cancel();
+            }
+        };
+        mSource.throttle(0).subscribe(recorder);
+        mSource.push(1);
+
+        assertTrue(mSource.mEmitters.get(0).mIsCancelled);
+        assertEquals(Collections.emptyList(), recorder.mValues);
+    }
+
+    @Test
+    public void errorEndsStream() {
+        Recorder<Integer> recorder = new Recorder<>(Long.MAX_VALUE);
+        mSource.throttle(0).subscribe(recorder);
+        Exception error = new SecurityException("Location permission isn't granted");
+
+        mSource.mEmitters.get(0).error(error);
+        mSource.push(1);
+
+        assertSame(error, recorder.mError);
+        assertFalse(recorder.mIsComplete);
+        assertTrue(mSource.mEmitters.get(0).mIsCancelled);
+        assertEquals(Collections.emptyList(), recorder.mValues);
+    }
+
+    @Test
+    public void throttlePassesFirstValueOfInterval() {
+        Recorder<Integer> recorder = new Recorder<>(Long.MAX_VALUE);
+        mSource.throttle(1000).subscribe(recorder);
+
+        mSource.push(1);
+        ShadowLooper.idleMainLooper(500);
+        mSource.push(2);
+        ShadowLooper.idleMainLooper(500);
+        mSource.push(3, 4);
+
+        assertEquals(Arrays.asList(1, 3), recorder.mValues);
+    }
+
+    @Test
+    public void samplePassesLatestValueOfPeriod() {
+        Recorder<Integer> recorder = new Recorder<>(Long.MAX_VALUE);
+        mSource.sample(1000).subscribe(recorder);
+
+        mSource.push(1, 2);
+        ShadowLooper.idleMainLooper(1000);
+        assertEquals(Arrays.asList(2), recorder.mValues);
+        //no values - nothing is sent
+        ShadowLooper.idleMainLooper(3000);
+        assertEquals(Arrays.asList(2), recorder.mValues);
+        mSource.push(3);
+        ShadowLooper.idleMainLooper();
+        mSource.push(4, 5);
+        ShadowLooper.idleMainLooper(999);
+        assertEquals(Arrays.asList(2, 3), recorder.mValues);
+        ShadowLooper.idleMainLooper(1);
+
+        assertEquals(Arrays.asList(2, 3, 5), recorder.mValues);
+    }
+
+    @Test
+    public void bufferIsPassedByCountAndByTime() {
+        Recorder<List<Integer>> recorder = new Recorder<>(Long.MAX_VALUE);
+        mSource.buffer(3, 1000).subscribe(recorder);
+
+        mSource.push(1, 2, 3, 4, 5, 6, 7);
+        assertEquals(Arrays.asList(Arrays.asList(1, 2, 3), Arrays.asList(4, 5, 6)), recorder.mValues);
+        ShadowLooper.idleMainLooper(999);
+        assertEquals(2, recorder.mValues.size());
+        ShadowLooper.idleMainLooper(1);
+        assertEquals(Arrays.asList(7), recorder.mValues.get(2));
+
+        //the rest is passed on completion
+        mSource.push(8);
+        mSource.mEmitters.get(0).complete();
+        assertEquals(Arrays.asList(8), recorder.mValues.get(3));
+        assertTrue(recorder.mIsComplete);
+    }
+
+    @Test
+    public void bufferWithoutDemandKeepsLatestList() {
+        Recorder<List<Integer>> recorder = new Recorder<>(0);
+        mSource.buffer(2, 0).subscribe(recorder);
+
+        mSource.push(1, 2, 3, 4, 5, 6);
+        recorder.mSubscription.request(Long.MAX_VALUE);
+
+        assertEquals(Arrays.asList(Arrays.asList(5, 6)), recorder.mValues);
+    }
+
+    @Test
+    public void distinctByDistancePassesFixesFartherThanDistance() {
+        TestSource<LocationFix> source = new TestSource<>();
+        Recorder<LocationFix> recorder = new Recorder<>(Long.MAX_VALUE);
+        new FixStream(source).distinctByDistance(10).subscribe(recorder);
+
+        //meters north of the start
+        for (double north : new double[]{0, 5, 12, 15, 30}) {
+            source.push(fix(north));
+        }
+
+        assertEquals(3, recorder.mValues.size());
+        assertEquals(fix(0).getLatitude(), recorder.mValues.get(0).getLatitude(), 0);
+        assertEquals(fix(12).getLatitude(), recorder.mValues.get(1).getLatitude(), 0);
+        assertEquals(fix(30).getLatitude(), recorder.mValues.get(2).getLatitude(), 0);
+    }
+
+    @Test
+    public void operatorChainKeepsLatestValueWithoutDemand() {
+        TestSource<LocationFix> source = new TestSource<>();
+        Recorder<LocationFix> recorder = new Recorder<>(0);
+        FixStream stream = new FixStream(source).throttle(0).distinctByDistance(1).sample(1000);
+        stream.subscribe(recorder);
+
+        for (int i = 0; i < 100; i++) {
+            source.push(fix(i * 10));
+            ShadowLooper.idleMainLooper(1000);
+        }
+        assertEquals(0, recorder.mValues.size());
+        recorder.mSubscription.request(1);
+
+        assertEquals(1, recorder.mValues.size());
+        assertEquals(fix(990).getLatitude(), recorder.mValues.get(0).getLatitude(), 0);
+    }
+
+    private static LocationFix fix(double north) {
+        return TrackCodecTest.fix(1500000000000L, START_LATITUDE + north / METERS_PER_DEGREE, 30.5234, 100, 5, 1, 0);
+    }
+
+    /**
+     * Head of stream which passes values pushed by the test to every subscriber
+     */
+    private static class TestSource<T> extends LocationStream<T> {
+        final List<SourceEmitter<T>> mEmitters = new ArrayList<>();
+
+        @Override
+        public void subscribe(Subscriber<? super T> subscriber) {
+            SourceEmitter<T> emitter = new SourceEmitter<>(subscriber);
+            mEmitters.add(emitter);
+            subscriber.onSubscribe(emitter);
+        }
+
+        @SafeVarargs
+        final void push(T... values) {
+            for (T value : values) {
+                for (SourceEmitter<T> emitter : mEmitters) {
+                    emitter.emit(value);
+                }
+            }
+        }
+    }
+
+    private static class SourceEmitter<T> extends LocationStream.Emitter<T> {
+        boolean mIsCancelled;
+
+        SourceEmitter(LocationStream.Subscriber<? super T> downstream) {
+            super(downstream);
+        }
+
+        @Override
+        void onCancel() {
+            mIsCancelled = true;
+        }
+    }
+
+    private static class Recorder<T> implements LocationStream.Subscriber<T> {
+        private final long mInitialRequest;
+        final List<T> mValues = new ArrayList<>();
+        LocationStream.Subscription mSubscription;
+        Throwable mError;
+        boolean mIsComplete;
+
+        /**
+         * @param initialRequest Requested in onSubscribe(), 0 - nothing
+         */
+        Recorder(long initialRequest) {
+            mInitialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(LocationStream.Subscription subscription) {
+            mSubscription = subscription;
+            if (mInitialRequest > 0) subscription.request(mInitialRequest);
+        }
+
+        @Override
+        public void onNext(T value) {
+            mValues.add(value);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            mError = error;
+        }
+
+        @Override
+        public void onComplete() {
+            mIsComplete = true;
+        }
+    }
+}
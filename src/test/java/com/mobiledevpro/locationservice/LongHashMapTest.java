@@ -0,0 +1,91 @@
+package com.mobiledevpro.locationservice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * LongHashMap against HashMap, with keys colliding in the same slots
+ */
+
+public class LongHashMapTest {
+    private static final int CAPACITY = 16;
+    private static final int MASK = 31; //table size for CAPACITY - 1
+
+    @Test
+    public void putGetRemove() {
+        LongHashMap<String> map = new LongHashMap<>();
+        map.put(1, "a");
+        map.put(-1, "b");
+        map.put(Long.MIN_VALUE, "c");
+        map.put(1, "d");
+        assertEquals(3, map.size());
+        assertEquals("d", map.get(1));
+        assertEquals("b", map.get(-1));
+        assertEquals("c", map.get(Long.MIN_VALUE));
+        assertNull(map.get(0));
+
+        assertEquals("d", map.remove(1));
+        assertNull(map.remove(1));
+        assertEquals(2, map.size());
+        assertNull(map.get(1));
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(-1));
+    }
+
+    @Test
+    public void removeFromCollisionCluster() {
+        //keys of one home slot and of the next one, at the table end, so the cluster wraps around
+        List<Long> keys = new ArrayList<>();
+        keys.addAll(keysOfSlot(MASK, 4));
+        keys.addAll(keysOfSlot(0, 3));
+        for (int removed = 0; removed < keys.size(); removed++) {
+            LongHashMap<Long> map = new LongHashMap<>(CAPACITY);
+            for (long key : keys) map.put(key, key);
+            assertEquals(keys.get(removed), map.remove(keys.get(removed)));
+            for (int i = 0; i < keys.size(); i++) {
+                assertEquals(i == removed ? null : keys.get(i), map.get(keys.get(i)));
+            }
+            assertEquals(keys.size() - 1, map.size());
+        }
+    }
+
+    @Test
+    public void randomOperations() {
+        Random random = new Random(1);
+        LongHashMap<Long> map = new LongHashMap<>(4);
+        Map<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            //small key range keeps clusters long and removals frequent
+            long key = random.nextInt(2000) - 1000;
+            long value = random.nextLong();
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                expected.put(key, value);
+                map.put(key, value);
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (long key = -1000; key < 1000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    private static List<Long> keysOfSlot(int slot, int count) {
+        List<Long> keys = new ArrayList<>();
+        for (long key = 0; keys.size() < count; key++) {
+            if ((LongHashMap.hash(key) & MASK) == slot) keys.add(key);
+        }
+        return keys;
+    }
+}
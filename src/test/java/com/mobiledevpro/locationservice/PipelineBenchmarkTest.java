@@ -0,0 +1,257 @@
+package com.mobiledevpro.locationservice;
+
+import android.location.Location;
+import android.os.Handler;
+
+import com.google.android.gms.location.LocationRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RoboSettings;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Throughput, allocation per fix and p50/p99 latency from provider's onLocationChanged() to return from
+ * in-process client's callback, for different count of clients and provider rates.
+ * <p>
+ * Worker and main loopers run on the test thread with Robolectric's clock, so rate sets fix times
+ * and thinning for clients, while time and allocations are the real cost of processing. Allocations
+ * include Robolectric's scheduler, FixPipelineAllocationTest checks the service's own path.
+ * <p>
+ * Results are printed and written to build/reports/benchmarks/pipeline.json, one JSON object per line.
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27, shadows = ShadowCountingRemoteCallbackList.class)
+public class PipelineBenchmarkTest {
+    private static final int[] CLIENTS = {1, 8, 64};
+    private static final int[] RATES = {1, 10, 100}; //fixes per second
+    private static final int FIXES = 2000;
+    private static final int WARM_UP_FIXES = 2000;
+    private static final long CLIENT_INTERVAL = 1000;
+    private static final long START_TIME = 1500000000000L;
+    private static final double START_LATITUDE = 50.4501;
+    private static final double LATITUDE_STEP = 1e-5; //per fix, fix is found by its latitude
+
+    private ServiceController<BenchmarkService> mController;
+
+    @Before
+    public void setUp() {
+        RoboSettings.setUseGlobalScheduler(true);
+        ShadowLooper.pauseMainLooper();
+    }
+
+    @After
+    public void tearDown() {
+        RoboSettings.setUseGlobalScheduler(false);
+    }
+
+    @Test
+    public void fixToCallbackPipeline() throws Exception {
+        run(8, 10, WARM_UP_FIXES);
+
+        List<String> results = new ArrayList<>();
+        for (int clients : CLIENTS) {
+            for (int rate : RATES) {
+                results.add(run(clients, rate, FIXES));
+            }
+        }
+        BenchmarkReport.write("pipeline", results);
+    }
+
+    /**
+     * @return Result as JSON object
+     */
+    private String run(int clients, int rate, int fixes) throws Exception {
+        BenchmarkService.sProvider = new BenchmarkProvider(rate, fixes);
+        mController = Robolectric.buildService(BenchmarkService.class).create();
+        ILocationService service = ILocationService.Stub.asInterface(mController.get().onBind(null));
+        LatencyHistogram latency = new LatencyHistogram();
+        List<LatencyCallbacks> callbacks = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            LatencyCallbacks client = new LatencyCallbacks(BenchmarkService.sProvider, latency);
+            service.registerCallbackWithParams(client, new LocationSubscription()
+                    .setInterval(CLIENT_INTERVAL)
+                    .setFastestInterval(0)
+                    .setAdaptiveSampling(false));
+            callbacks.add(client);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long bytes = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        ShadowLooper.idleMainLooper(fixes * 1000L / rate + 1000);
+        long elapsed = System.nanoTime() - start;
+        bytes = threads.getThreadAllocatedBytes(threadId) - bytes;
+
+        long dropped = service.getStats().getFixesDropped();
+        mController.destroy();
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(fixes, BenchmarkService.sProvider.mSent);
+        assertEquals(0, dropped);
+        int delivered = 0;
+        for (LatencyCallbacks client : callbacks) {
+            assertEquals(callbacks.get(0).mCount, client.mCount);
+            assertTrue(client.mCount > 0);
+            delivered += client.mCount;
+        }
+
+        StringWriter result = new StringWriter();
+        PrintWriter writer = new PrintWriter(result);
+        writer.print("{\"benchmark\":\"pipeline\"");
+        writer.print(",\"clients\":" + clients);
+        writer.print(",\"rate_hz\":" + rate);
+        writer.print(",\"fixes\":" + fixes);
+        writer.print(",\"callbacks\":" + delivered);
+        writer.print(",\"fixes_per_sec\":" + Math.round(fixes * 1e9 / elapsed));
+        writer.print(",\"callbacks_per_sec\":" + Math.round(delivered * 1e9 / elapsed));
+        writer.print(",\"alloc_bytes_per_fix\":" + bytes / fixes);
+        writer.print(",\"dispatch_latency_ns\":");
+        PipelineStats.dumpHistogram(writer, latency);
+        writer.print("}");
+        writer.flush();
+        return result.toString();
+    }
+
+    public static class BenchmarkService extends LocationService {
+        static BenchmarkProvider sProvider;
+
+        @Override
+        LocationProvider createLocationProvider() {
+            return sProvider;
+        }
+    }
+
+    /**
+     * Sends fixes at fixed rate, one reused Location, and remembers System.nanoTime() when every fix was sent
+     */
+    static class BenchmarkProvider implements LocationProvider {
+        private final long mStep;
+        private final long[] mSentNanos;
+        private final Location mLocation = new Location("benchmark");
+        private Listener mListener;
+        private Handler mHandler;
+        private boolean mIsStarted;
+        int mSent;
+
+        private final Runnable mSendTask = new Runnable() {
+            @Override
+            public void run() {
+                if (!mIsStarted || mSent == mSentNanos.length) return;
+                mLocation.setTime(START_TIME + mSent * mStep);
+                mLocation.setLatitude(START_LATITUDE + mSent * LATITUDE_STEP);
+                mLocation.setLongitude(30.5234);
+                mLocation.setAccuracy(5);
+                mSentNanos[mSent++] = System.nanoTime();
+                mListener.onLocationChanged(mLocation);
+                mHandler.postDelayed(this, mStep);
+            }
+        };
+
+        BenchmarkProvider(int rate, int fixes) {
+            mStep = 1000 / rate;
+            mSentNanos = new long[fixes];
+        }
+
+        /**
+         * @param latitude Latitude of the fix
+         * @return System.nanoTime() when the fix was sent
+         */
+        long getSentNanos(double latitude) {
+            return mSentNanos[(int) Math.round((latitude - START_LATITUDE) / LATITUDE_STEP)];
+        }
+
+        @Override
+        public void connect(Listener listener, Handler handler) {
+            mListener = listener;
+            mHandler = handler;
+            listener.onConnected();
+        }
+
+        @Override
+        public void disconnect() {
+            removeLocationUpdates();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mListener != null;
+        }
+
+        @Override
+        public void checkLocationSettings(LocationRequest request) {
+            mListener.onGetLocationSettingsState(new LocationSettings(true, true));
+        }
+
+        @Override
+        public Location getLastLocation() {
+            return null;
+        }
+
+        @Override
+        public void requestLocationUpdates(LocationRequest request) {
+            if (mIsStarted) return;
+            mIsStarted = true;
+            mHandler.post(mSendTask);
+        }
+
+        @Override
+        public void removeLocationUpdates() {
+            mIsStarted = false;
+            if (mHandler != null) mHandler.removeCallbacks(mSendTask);
+        }
+    }
+
+    /**
+     * Records latency of every fix, in-process client gets them by onLocationFix() which calls onLocationUpdated()
+     */
+    static class LatencyCallbacks extends LocationServiceManager.Callbacks {
+        private final BenchmarkProvider mProvider;
+        private final LatencyHistogram mLatency;
+        volatile int mCount; //written by one thread at a time
+
+        LatencyCallbacks(BenchmarkProvider provider, LatencyHistogram latency) {
+            mProvider = provider;
+            mLatency = latency;
+        }
+
+        @Override
+        public void isDeviceOffline() {
+        }
+
+        @Override
+        public void isNotLocationPermissionGranted() {
+        }
+
+        @Override
+        public void onGoogleApiConnectionFailed(int errCode, String errMessage) {
+        }
+
+        @Override
+        public void onLocationUpdated(double latitude, double longitude, double altitude, float accuracy) {
+            mLatency.record(System.nanoTime() - mProvider.getSentNanos(latitude));
+            mCount++;
+        }
+
+        @Override
+        public void onGetLocationSettingsState(boolean isNetworkLocationOn, boolean isGpsLocationOn) {
+        }
+    }
+}
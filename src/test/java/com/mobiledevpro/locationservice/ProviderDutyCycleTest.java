@@ -0,0 +1,284 @@
+package com.mobiledevpro.locationservice;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.google.android.gms.location.LocationRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RoboSettings;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Provider duty cycle of LocationService: idle timeout without clients, resume on registration,
+ * reconnection with backoff after suspension. Provider is scripted by the test,
+ * worker messages run when the test idles the main looper.
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27, shadows = ShadowCountingRemoteCallbackList.class)
+public class ProviderDutyCycleTest {
+    private ServiceController<ScriptedService> mController;
+    private ScriptedProvider mProvider;
+    private ILocationService mService;
+
+    @Before
+    public void setUp() {
+        RoboSettings.setUseGlobalScheduler(true);
+        ShadowLooper.pauseMainLooper();
+        mProvider = new ScriptedProvider();
+        ScriptedService.sProvider = mProvider;
+        mController = Robolectric.buildService(ScriptedService.class).create();
+        mService = ILocationService.Stub.asInterface(mController.get().onBind(null));
+    }
+
+    @After
+    public void tearDown() {
+        mController.destroy();
+        ShadowLooper.idleMainLooper();
+        RoboSettings.setUseGlobalScheduler(false);
+    }
+
+    @Test
+    public void updatesStopAfterIdleTimeout() throws Exception {
+        StateCallbacks client = register();
+        assertEquals(LocationService.PROVIDER_STATE_ACTIVE, mService.getProviderState());
+        assertTrue(mProvider.mIsStarted);
+
+        mService.unregisterCallback(client);
+        ShadowLooper.idleMainLooper(Constants.PROVIDER_IDLE_TIMEOUT - 1);
+        assertTrue(mProvider.mIsStarted);
+        ShadowLooper.idleMainLooper(1);
+
+        assertFalse(mProvider.mIsStarted);
+        assertEquals(LocationService.PROVIDER_STATE_IDLE, mService.getProviderState());
+    }
+
+    @Test
+    public void shortGapBetweenClientsKeepsUpdates() throws Exception {
+        StateCallbacks client = register();
+        int requests = mProvider.mRequests;
+
+        mService.unregisterCallback(client);
+        ShadowLooper.idleMainLooper(Constants.PROVIDER_IDLE_TIMEOUT / 2);
+        register();
+        ShadowLooper.idleMainLooper(Constants.PROVIDER_IDLE_TIMEOUT * 2);
+
+        assertTrue(mProvider.mIsStarted);
+        assertEquals(0, mProvider.mRemovals);
+        assertEquals(requests, mProvider.mRequests);
+    }
+
+    @Test
+    public void registrationResumesIdleProvider() throws Exception {
+        mService.unregisterCallback(register());
+        ShadowLooper.idleMainLooper(Constants.PROVIDER_IDLE_TIMEOUT);
+        assertEquals(LocationService.PROVIDER_STATE_IDLE, mService.getProviderState());
+
+        StateCallbacks client = register();
+
+        assertTrue(mProvider.mIsStarted);
+        assertEquals(LocationService.PROVIDER_STATE_ACTIVE, mService.getProviderState());
+        //current state is sent on registration
+        assertEquals(LocationService.PROVIDER_STATE_ACTIVE, client.lastState());
+    }
+
+    @Test
+    public void reconnectionBacksOff() throws Exception {
+        StateCallbacks client = register();
+        mProvider.mIsConnectable = false;
+        long suspendedAt = SystemClock.uptimeMillis();
+        mProvider.suspend();
+        ShadowLooper.idleMainLooper();
+        assertEquals(LocationService.PROVIDER_STATE_SUSPENDED, client.lastState());
+        assertFalse(mProvider.mIsStarted);
+
+        mProvider.mConnectTimes.clear();
+        ShadowLooper.idleMainLooper(30 * 60000);
+
+        //2, 4, 8 ... seconds, then PROVIDER_RECONNECT_MAX
+        long expected = suspendedAt;
+        long delay = Constants.PROVIDER_RECONNECT_MIN;
+        assertTrue(mProvider.mConnectTimes.size() > 10);
+        for (long time : mProvider.mConnectTimes) {
+            expected += Math.min(delay, Constants.PROVIDER_RECONNECT_MAX);
+            assertEquals(expected, time);
+            delay *= 2;
+        }
+        assertEquals(LocationService.PROVIDER_STATE_SUSPENDED, mService.getProviderState());
+    }
+
+    @Test
+    public void reconnectionResetsBackoff() throws Exception {
+        StateCallbacks client = register();
+        mProvider.mIsConnectable = false;
+        mProvider.suspend();
+        ShadowLooper.idleMainLooper(60000);
+        mProvider.mIsConnectable = true;
+        ShadowLooper.idleMainLooper(60000);
+        assertEquals(LocationService.PROVIDER_STATE_ACTIVE, client.lastState());
+        assertTrue(mProvider.mIsStarted);
+
+        mProvider.mIsConnectable = false;
+        mProvider.mConnectTimes.clear();
+        long suspendedAt = SystemClock.uptimeMillis();
+        mProvider.suspend();
+        ShadowLooper.idleMainLooper(Constants.PROVIDER_RECONNECT_MIN);
+
+        assertEquals(1, mProvider.mConnectTimes.size());
+        assertEquals(suspendedAt + Constants.PROVIDER_RECONNECT_MIN, (long) mProvider.mConnectTimes.get(0));
+    }
+
+    @Test
+    public void suspendedProviderWaitsForClientWhileIdle() throws Exception {
+        StateCallbacks client = register();
+        mProvider.mIsConnectable = false;
+        mProvider.mConnectTimes.clear();
+        mProvider.suspend();
+        mService.unregisterCallback(client);
+        //attempts at 2 and 6 seconds, then idle timeout
+        ShadowLooper.idleMainLooper(20 * 60000);
+        assertEquals(2, mProvider.mConnectTimes.size());
+
+        mProvider.mIsConnectable = true;
+        long registeredAt = SystemClock.uptimeMillis();
+        client = register();
+
+        assertEquals(3, mProvider.mConnectTimes.size());
+        assertEquals(registeredAt, (long) mProvider.mConnectTimes.get(2));
+        assertTrue(mProvider.mIsStarted);
+        assertEquals(LocationService.PROVIDER_STATE_ACTIVE, client.lastState());
+    }
+
+    private StateCallbacks register() throws Exception {
+        StateCallbacks client = new StateCallbacks();
+        mService.registerCallbackWithParams(client, new LocationSubscription().setAdaptiveSampling(false));
+        ShadowLooper.idleMainLooper();
+        return client;
+    }
+
+    public static class ScriptedService extends LocationService {
+        static ScriptedProvider sProvider;
+
+        @Override
+        LocationProvider createLocationProvider() {
+            return sProvider;
+        }
+    }
+
+    /**
+     * Connects at once while mIsConnectable, location is always on, remembers calls
+     */
+    static class ScriptedProvider implements LocationProvider {
+        private Listener mListener;
+        private Handler mHandler;
+        private boolean mIsConnected;
+        boolean mIsConnectable = true;
+        boolean mIsStarted;
+        int mRequests;
+        int mRemovals;
+        final List<Long> mConnectTimes = new ArrayList<>(); //SystemClock.uptimeMillis()
+
+        /**
+         * Connection is lost, the service is told about it on its worker thread
+         */
+        void suspend() {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mIsConnected = false;
+                    mIsStarted = false;
+                    mListener.onConnectionSuspended();
+                }
+            });
+        }
+
+        /**
+         * Fixes of one provider result, the service gets them on its worker thread
+         */
+        void deliver(final Location... locations) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (locations.length == 1) {
+                        mListener.onLocationChanged(locations[0]);
+                    } else {
+                        mListener.onLocationsChanged(Arrays.asList(locations));
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void connect(Listener listener, Handler handler) {
+            mListener = listener;
+            mHandler = handler;
+            mConnectTimes.add(SystemClock.uptimeMillis());
+            if (!mIsConnectable) return;
+            mIsConnected = true;
+            listener.onConnected();
+        }
+
+        @Override
+        public void disconnect() {
+            mIsConnected = false;
+            mIsStarted = false;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mIsConnected;
+        }
+
+        @Override
+        public void checkLocationSettings(LocationRequest request) {
+            mListener.onGetLocationSettingsState(new LocationSettings(true, true));
+        }
+
+        @Override
+        public Location getLastLocation() {
+            return null;
+        }
+
+        @Override
+        public void requestLocationUpdates(LocationRequest request) {
+            mIsStarted = true;
+            mRequests++;
+        }
+
+        @Override
+        public void removeLocationUpdates() {
+            mIsStarted = false;
+            mRemovals++;
+        }
+    }
+
+    static class StateCallbacks extends LocationServiceReplayTest.RecordingCallbacks {
+        final List<Integer> mStates = new ArrayList<>();
+
+        @Override
+        public void onProviderStateChanged(int state) {
+            mStates.add(state);
+        }
+
+        int lastState() {
+            return mStates.isEmpty() ? -1 : mStates.get(mStates.size() - 1);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.mobiledevpro.locationservice;
+
+import android.os.IInterface;
+import android.os.RemoteCallbackList;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowRemoteCallbackList;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.Map;
+
+/**
+ * Robolectric's RemoteCallbackList doesn't count its callbacks, so the service would see no clients
+ * and stop the provider after idle timeout
+ */
+
+@Implements(RemoteCallbackList.class)
+public class ShadowCountingRemoteCallbackList<E extends IInterface> extends ShadowRemoteCallbackList<E> {
+
+    @Implementation
+    public int getRegisteredCallbackCount() {
+        Map<?, ?> callbacks = ReflectionHelpers.getField(this, "callbacks");
+        synchronized (callbacks) {
+            boolean isKilled = ReflectionHelpers.getField(this, "killed");
+            return isKilled ? 0 : callbacks.size();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.mobiledevpro.locationservice;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Shared fix ring read through reader's own mapping, as a client process does.
+ * Every field of a written fix is derived from its time, so a fix read while its slot was rewritten
+ * doesn't pass the check.
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class SharedFixRingTest {
+    private static final long WRITE_TIME = 500; //milliseconds, long enough for the reader to be preempted many times
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void readerGetsFixesInOrder() throws Exception {
+        SharedFixRing ring = new SharedFixRing(new File(mFolder.getRoot(), "ring"), 4);
+        SharedFixReader reader = new SharedFixReader(ring.openForReader());
+        LocationFix fix = new LocationFix();
+        assertNull(reader.next());
+
+        for (int i = 0; i < 3; i++) {
+            ring.write(fix(fix, i));
+        }
+        for (int i = 0; i < 3; i++) {
+            assertFix(reader.next(), i);
+        }
+        assertNull(reader.next());
+
+        //reader lagged more than capacity: the oldest fixes are skipped
+        for (int i = 3; i < 13; i++) {
+            ring.write(fix(fix, i));
+        }
+        for (int i = 9; i < 13; i++) {
+            assertFix(reader.next(), i);
+        }
+        assertFalse(reader.hasNext());
+        assertEquals(6, reader.getMissedCount());
+        ring.close();
+    }
+
+    @Test
+    public void slotBeingWrittenIsSkipped() throws Exception {
+        File file = new File(mFolder.getRoot(), "ring");
+        SharedFixRing ring = new SharedFixRing(file, 4);
+        SharedFixReader reader = new SharedFixReader(ring.openForReader());
+        LocationFix fix = new LocationFix();
+        for (int i = 0; i < 3; i++) {
+            ring.write(fix(fix, i));
+        }
+
+        //writer stopped in the middle of the second fix, as another process sees it
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            buffer.order(ByteOrder.nativeOrder());
+            buffer.putLong(SharedFixRing.HEADER_SIZE + SharedFixRing.SLOT_SIZE + SharedFixRing.FIELD_SEQ, SharedFixRing.SEQ_WRITING);
+        } finally {
+            raf.close();
+        }
+
+        assertFix(reader.next(), 0);
+        assertFix(reader.next(), 2);
+        assertNull(reader.next());
+        assertEquals(1, reader.getMissedCount());
+        ring.close();
+    }
+
+    @Test
+    public void concurrentReaderNeverGetsTornFix() throws Exception {
+        final SharedFixRing ring = new SharedFixRing(new File(mFolder.getRoot(), "ring"), 2);
+        SharedFixReader reader = new SharedFixReader(ring.openForReader());
+        final AtomicBoolean isWriting = new AtomicBoolean(true);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                LocationFix fix = new LocationFix();
+                long deadline = System.nanoTime() + WRITE_TIME * 1000000;
+                for (long i = 0; i < Long.MAX_VALUE && System.nanoTime() < deadline; i++) {
+                    ring.write(fix(fix, i));
+                }
+                isWriting.set(false);
+            }
+        });
+        writer.start();
+
+        long read = 0;
+        long lastTime = -1;
+        while (true) {
+            boolean isDone = !isWriting.get();
+            LocationFix fix;
+            while ((fix = reader.next()) != null) {
+                assertFix(fix, fix.getTime());
+                assertTrue(fix.getTime() > lastTime);
+                lastTime = fix.getTime();
+                read++;
+            }
+            if (isDone) break;
+        }
+        writer.join();
+
+        assertEquals(ring.getLastSeq(), lastTime);
+        assertEquals(ring.getLastSeq() + 1, read + reader.getMissedCount());
+        ring.close();
+    }
+
+    private static LocationFix fix(LocationFix fix, long time) {
+        fix.set(time, time * 1e-3, -time * 1e-3, time, time % 1000, time % 100, time % 360);
+        return fix;
+    }
+
+    private static void assertFix(LocationFix fix, long time) {
+        assertEquals(time, fix.getTime());
+        assertEquals(time * 1e-3, fix.getLatitude(), 0);
+        assertEquals(-time * 1e-3, fix.getLongitude(), 0);
+        assertEquals(time, fix.getAltitude(), 0);
+        assertEquals(time % 1000, fix.getAccuracy(), 0);
+        assertEquals(time % 100, fix.getSpeed(), 0);
+        assertEquals(time % 360, fix.getBearing(), 0);
+    }
+}
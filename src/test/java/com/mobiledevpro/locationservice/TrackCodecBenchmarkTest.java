@@ -0,0 +1,141 @@
+package com.mobiledevpro.locationservice;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Size per fix and encode/decode throughput of TrackCodec on a synthetic 1 Hz drive
+ * with GPS noise, lossless and with simplification.
+ * <p>
+ * Results are written to build/reports/benchmarks/track_codec.json.
+ */
+
+public class TrackCodecBenchmarkTest {
+    private static final int FIXES = 200000;
+    private static final int ROUNDS = 5; //the best one is reported, the first ones warm up
+
+    @Test
+    public void compressionAndThroughput() throws IOException {
+        LocationFix[] drive = drive(FIXES);
+        List<String> results = new ArrayList<>();
+
+        byte[] lossless = encode(drive, 0);
+        results.add(result("lossless", drive, lossless, 0));
+        results.add(result("simplified", drive, encode(drive, 5), 5));
+        BenchmarkReport.write("track_codec", results);
+
+        //~44 bytes of track log record
+        assertTrue("bytes per fix " + (double) lossless.length / FIXES, lossless.length < FIXES * 12);
+    }
+
+    private static String result(String name, LocationFix[] drive, byte[] track, float tolerance) throws IOException {
+        long encodeNanos = Long.MAX_VALUE;
+        long decodeNanos = Long.MAX_VALUE;
+        int decoded = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            encode(drive, tolerance, new NullOutputStream());
+            encodeNanos = Math.min(encodeNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            decoded = decode(track);
+            decodeNanos = Math.min(decodeNanos, System.nanoTime() - start);
+        }
+        if (tolerance == 0) assertEquals(drive.length, decoded);
+
+        return "{\"benchmark\":\"track_codec\""
+                + ",\"mode\":\"" + name + "\""
+                + ",\"tolerance_m\":" + tolerance
+                + ",\"fixes\":" + drive.length
+                + ",\"fixes_kept\":" + decoded
+                + ",\"bytes\":" + track.length
+                + ",\"bytes_per_fix\":" + Math.round(track.length * 100.0 / drive.length) / 100.0
+                + ",\"encode_fixes_per_sec\":" + Math.round(drive.length * 1e9 / encodeNanos)
+                + ",\"decode_fixes_per_sec\":" + Math.round(decoded * 1e9 / decodeNanos)
+                + "}";
+    }
+
+    private static byte[] encode(LocationFix[] drive, float tolerance) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encode(drive, tolerance, out);
+        return out.toByteArray();
+    }
+
+    private static void encode(LocationFix[] drive, float tolerance, OutputStream out) throws IOException {
+        TrackCodec.Encoder encoder = new TrackCodec.Encoder(out, TrackCodec.DEFAULT_PRECISION, tolerance);
+        for (LocationFix fix : drive) {
+            encoder.write(fix);
+        }
+        encoder.finish();
+    }
+
+    /**
+     * @return Count of decoded fixes
+     */
+    private static int decode(byte[] track) throws IOException {
+        TrackCodec.Decoder decoder = new TrackCodec.Decoder(new ByteArrayInputStream(track));
+        LocationFix fix = new LocationFix();
+        int count = 0;
+        while (decoder.read(fix)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * City drive at 1 Hz: speed and heading change smoothly, stops at lights, ~3 m of GPS noise
+     */
+    private static LocationFix[] drive(int count) {
+        Random random = new Random(7);
+        LocationFix[] fixes = new LocationFix[count];
+        double latitude = 50.4501;
+        double longitude = 30.5234;
+        double altitude = 170;
+        double speed = 10;
+        double bearing = 90;
+        for (int i = 0; i < count; i++) {
+            if (i % 300 < 30) {
+                speed = 0;
+            } else {
+                speed = Math.max(2, Math.min(25, speed + random.nextGaussian()));
+                bearing = (bearing + random.nextGaussian() * 5 + 360) % 360;
+            }
+            latitude += speed * Math.cos(Math.toRadians(bearing)) / 111320;
+            longitude += speed * Math.sin(Math.toRadians(bearing)) / (111320 * Math.cos(Math.toRadians(latitude)));
+            altitude += random.nextGaussian() * 0.3;
+
+            LocationFix fix = new LocationFix();
+            fix.set(
+                    1500000000000L + i * 1000L,
+                    latitude + random.nextGaussian() * 3 / 111320,
+                    longitude + random.nextGaussian() * 3 / 71000,
+                    altitude,
+                    (float) (3 + random.nextInt(20) / 10.0),
+                    (float) speed,
+                    (float) bearing
+            );
+            fixes[i] = fix;
+        }
+        return fixes;
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
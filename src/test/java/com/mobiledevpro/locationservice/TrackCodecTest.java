@@ -0,0 +1,143 @@
+package com.mobiledevpro.locationservice;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encoding and decoding of tracks, with and without simplification
+ */
+
+public class TrackCodecTest {
+    private static final long START_TIME = 1500000000000L;
+
+    @Test
+    public void fixesAreDecodedUpToPrecision() throws IOException {
+        List<LocationFix> fixes = new ArrayList<>();
+        fixes.add(fix(START_TIME, 50.4501234, 30.5234567, 178.3, 4.2f, 13.37f, 271.4f));
+        fixes.add(fix(START_TIME + 1000, 50.4502001, 30.5233999, 177.9, 3.9f, 13.1f, 270.2f));
+        fixes.add(fix(START_TIME - 5000, -33.8688197, 151.2092955, -2.5, 30, 0, 0));
+
+        List<LocationFix> decoded = decode(encode(fixes, 0));
+
+        assertEquals(fixes.size(), decoded.size());
+        for (int i = 0; i < fixes.size(); i++) {
+            LocationFix expected = fixes.get(i);
+            LocationFix actual = decoded.get(i);
+            assertEquals(expected.getTime(), actual.getTime());
+            assertEquals(expected.getLatitude(), actual.getLatitude(), 0.5e-6);
+            assertEquals(expected.getLongitude(), actual.getLongitude(), 0.5e-6);
+            assertEquals(expected.getAltitude(), actual.getAltitude(), 0.05);
+            assertEquals(expected.getAccuracy(), actual.getAccuracy(), 0.05);
+            assertEquals(expected.getSpeed(), actual.getSpeed(), 0.005);
+            assertEquals(expected.getBearing(), actual.getBearing(), 0.05);
+        }
+    }
+
+    @Test
+    public void decoderFillsGivenFix() throws IOException {
+        List<LocationFix> fixes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            fixes.add(fix(START_TIME + i * 1000, 50.45 + i * 1e-4, 30.52, 100, 5, 1, 0));
+        }
+        TrackCodec.Decoder decoder = new TrackCodec.Decoder(new ByteArrayInputStream(encode(fixes, 0)));
+        LocationFix fix = new LocationFix();
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(decoder.read(fix));
+            assertEquals(START_TIME + i * 1000, fix.getTime());
+        }
+        assertFalse(decoder.read(fix));
+    }
+
+    @Test
+    public void straightLineIsSimplifiedToItsEnds() throws IOException {
+        List<LocationFix> fixes = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            fixes.add(fix(START_TIME + i * 1000, 50.45 + i * 1e-4, 30.52, 100, 5, 10, 0));
+        }
+
+        List<LocationFix> decoded = decode(encode(fixes, 5));
+
+        assertEquals(2, decoded.size());
+        assertEquals(START_TIME, decoded.get(0).getTime());
+        assertEquals(START_TIME + 99 * 1000, decoded.get(1).getTime());
+    }
+
+    @Test
+    public void turnIsKeptBySimplification() throws IOException {
+        //100 fixes north, then 100 fixes east
+        List<LocationFix> fixes = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            double latitude = 50.45 + Math.min(i, 99) * 1e-4;
+            double longitude = 30.52 + Math.max(0, i - 99) * 1e-4;
+            fixes.add(fix(START_TIME + i * 1000, latitude, longitude, 100, 5, 10, 0));
+        }
+
+        List<LocationFix> decoded = decode(encode(fixes, 5));
+
+        assertEquals(3, decoded.size());
+        assertEquals(START_TIME + 99 * 1000, decoded.get(1).getTime());
+    }
+
+    @Test
+    public void nonFiniteValuesAreDecodedAsNaN() throws IOException {
+        List<LocationFix> fixes = new ArrayList<>();
+        fixes.add(fix(START_TIME, 50.45, 30.52, Double.NaN, Float.POSITIVE_INFINITY, Float.NaN, Float.NEGATIVE_INFINITY));
+        fixes.add(fix(START_TIME + 1000, 50.46, 30.53, 100, 5, 1, 90));
+        fixes.add(fix(START_TIME + 2000, Double.NaN, 30.54, 101, 5, 1, 90));
+
+        List<LocationFix> decoded = decode(encode(fixes, 0));
+
+        LocationFix first = decoded.get(0);
+        assertTrue(Double.isNaN(first.getAltitude()));
+        assertTrue(Float.isNaN(first.getAccuracy()));
+        assertTrue(Float.isNaN(first.getSpeed()));
+        assertTrue(Float.isNaN(first.getBearing()));
+        //the next values are still deltas from the right base
+        assertEquals(100, decoded.get(1).getAltitude(), 0.05);
+        assertEquals(90, decoded.get(1).getBearing(), 0.05);
+        assertTrue(Double.isNaN(decoded.get(2).getLatitude()));
+        assertEquals(30.54, decoded.get(2).getLongitude(), 0.5e-6);
+        assertEquals(101, decoded.get(2).getAltitude(), 0.05);
+    }
+
+    @Test(expected = IOException.class)
+    public void streamWithoutHeaderIsRejected() throws IOException {
+        new TrackCodec.Decoder(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5})).read(new LocationFix());
+    }
+
+    static LocationFix fix(long time, double latitude, double longitude, double altitude, float accuracy, float speed, float bearing) {
+        LocationFix fix = new LocationFix();
+        fix.set(time, latitude, longitude, altitude, accuracy, speed, bearing);
+        return fix;
+    }
+
+    static byte[] encode(List<LocationFix> fixes, float tolerance) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TrackCodec.Encoder encoder = new TrackCodec.Encoder(out, TrackCodec.DEFAULT_PRECISION, tolerance);
+        for (LocationFix fix : fixes) {
+            encoder.write(fix);
+        }
+        encoder.finish();
+        return out.toByteArray();
+    }
+
+    static List<LocationFix> decode(byte[] track) throws IOException {
+        TrackCodec.Decoder decoder = new TrackCodec.Decoder(new ByteArrayInputStream(track));
+        List<LocationFix> fixes = new ArrayList<>();
+        LocationFix fix = new LocationFix();
+        while (decoder.read(fix)) {
+            fixes.add(new LocationFix(fix));
+        }
+        return fixes;
+    }
+}
@@ -0,0 +1,174 @@
+package com.mobiledevpro.locationservice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Synthetic 1 Hz tracks fed to TripSegmenter: segment boundaries, distance and max speed
+ */
+
+public class TripSegmenterTest {
+    private static final long START_TIME = 1500000000000L;
+    private static final double START_LATITUDE = 50.4501;
+    private static final double START_LONGITUDE = 30.5234;
+    private static final double METERS_PER_DEGREE = Math.toRadians(AdaptiveSampler.EARTH_RADIUS);
+
+    private final List<long[]> mStarted = new ArrayList<>(); //type, time
+    private final List<TripSegment> mEnded = new ArrayList<>();
+    private final List<LocationFix> mTrack = new ArrayList<>();
+    private final Random mRandom = new Random(5);
+    private TripSegmenter mSegmenter;
+    private int mFed; //count of track fixes passed to segmenter
+
+    @Before
+    public void setUp() {
+        mSegmenter = new TripSegmenter(new TripSegmenter.Listener() {
+            @Override
+            public void onSegmentStarted(int type, long time, double latitude, double longitude) {
+                mStarted.add(new long[]{type, time});
+            }
+
+            @Override
+            public void onSegmentEnded(TripSegment segment) {
+                mEnded.add(segment);
+            }
+        });
+    }
+
+    @Test
+    public void stopMoveStopIsSplitAtBoundaries() {
+        stay(300, 0, 5);          //fixes 0..299
+        move(120, 0, 10, 60, 15); //fixes 300..419, 1200 m north, one fix at 15 m/s
+        stay(300, 1200, 5);       //fixes 420..719
+        feed();
+
+        assertEquals(3, mStarted.size());
+        assertStarted(0, TripSegment.TYPE_STOP, 0);
+        //move starts at the last fix of the stop
+        assertStarted(1, TripSegment.TYPE_MOVE, 299);
+        //stop starts where the device stopped, not after dwell time
+        assertStarted(2, TripSegment.TYPE_STOP, 419);
+
+        assertEquals(2, mEnded.size());
+        TripSegment stop = mEnded.get(0);
+        assertEquals(TripSegment.TYPE_STOP, stop.getType());
+        assertEquals(START_TIME, stop.getStartTime());
+        assertEquals(time(299), stop.getEndTime());
+        assertEquals(0, stop.getDistance(), 0);
+
+        TripSegment move = mEnded.get(1);
+        assertEquals(TripSegment.TYPE_MOVE, move.getType());
+        assertEquals(time(299), move.getStartTime());
+        assertEquals(time(419), move.getEndTime());
+        assertEquals(120 * 1000, move.getDuration());
+        //from the last noisy fix of the stop to the end of the move
+        assertEquals(1200, move.getDistance(), 20);
+        assertEquals(15, move.getMaxSpeed(), 0);
+        assertEquals(START_LATITUDE + 1200 / METERS_PER_DEGREE, move.getEndLatitude(), 1e-9);
+    }
+
+    @Test
+    public void shortPauseDoesNotSplitMove() {
+        move(60, 0, 10, -1, 0);   //fixes 0..59
+        stay(60, 600, 0);         //traffic light, fixes 60..119
+        move(60, 600, 10, -1, 0); //fixes 120..179
+        feed();
+
+        assertEquals(1, mStarted.size());
+        assertStarted(0, TripSegment.TYPE_MOVE, 0);
+        assertEquals(0, mEnded.size());
+    }
+
+    @Test
+    public void slowFixesAroundOnePlaceBecomeStop() {
+        //walking around inside the dwell radius is still a stop
+        for (int i = 0; i < 300; i++) {
+            add(40 * Math.sin(i / 10.0), 1.2f, 5);
+        }
+        feed();
+
+        assertEquals(1, mStarted.size());
+        assertStarted(0, TripSegment.TYPE_STOP, 0);
+        assertEquals(0, mEnded.size());
+    }
+
+    @Test
+    public void inaccurateFixesAreSkipped() {
+        stay(300, 0, 5);
+        //jumps of network location while the device stays
+        for (int i = 0; i < 10; i++) {
+            add(2000, 0, Constants.TRIP_MAX_ACCURACY + 1);
+        }
+        stay(60, 0, 5);
+        feed();
+
+        assertEquals(1, mStarted.size());
+        assertEquals(0, mEnded.size());
+    }
+
+    @Test
+    public void resetStartsOver() {
+        stay(300, 0, 5);
+        feed();
+        mSegmenter.reset();
+        move(60, 5000, 10, -1, 0);
+        feed();
+
+        //the stop isn't ended by fixes after reset
+        assertEquals(2, mStarted.size());
+        assertStarted(1, TripSegment.TYPE_MOVE, 300);
+        assertEquals(0, mEnded.size());
+    }
+
+    private void assertStarted(int index, int type, int fixIndex) {
+        assertEquals("segment " + index, type, mStarted.get(index)[0]);
+        assertEquals("segment " + index, time(fixIndex), mStarted.get(index)[1]);
+    }
+
+    /**
+     * @param count Count of fixes
+     * @param north Meters north of the start
+     * @param noise Meters of GPS noise
+     */
+    private void stay(int count, double north, double noise) {
+        for (int i = 0; i < count; i++) {
+            add(north + mRandom.nextGaussian() * noise, 0, 5);
+        }
+    }
+
+    /**
+     * Move north, the first fix is one step away from the start
+     *
+     * @param count     Count of fixes
+     * @param north     Meters north of the start
+     * @param speed     Meters/second
+     * @param fastIndex Index of fix with fastSpeed, -1 - none
+     * @param fastSpeed Meters/second
+     */
+    private void move(int count, double north, float speed, int fastIndex, float fastSpeed) {
+        for (int i = 0; i < count; i++) {
+            add(north + (i + 1) * speed, i == fastIndex ? fastSpeed : speed, 5);
+        }
+    }
+
+    private void add(double north, float speed, float accuracy) {
+        mTrack.add(TrackCodecTest.fix(time(mTrack.size()), START_LATITUDE + north / METERS_PER_DEGREE,
+                START_LONGITUDE, 150, accuracy, speed, 0));
+    }
+
+    private void feed() {
+        for (; mFed < mTrack.size(); mFed++) {
+            mSegmenter.onFix(mTrack.get(mFed));
+        }
+    }
+
+    private static long time(int index) {
+        return START_TIME + index * 1000L;
+    }
+}